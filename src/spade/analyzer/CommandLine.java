@@ -3,23 +3,39 @@ package spade.analyzer;
 import spade.core.AbstractAnalyzer;
 import spade.core.AbstractQuery;
 import spade.core.Graph;
+import spade.core.GraphStream;
 import spade.core.Kernel;
+import spade.core.QueryCache;
+import spade.core.Settings;
 import spade.resolver.Recursive;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -56,6 +72,7 @@ public class CommandLine extends AbstractAnalyzer
         QUERY_FUNCTION_GET_PATHS("GetPaths(<arguments, limit, direction, maxLength>)"),
         QUERY_FUNCTION_EXPORT("export > /path/to/file/for/next/query"),
         QUERY_LIST_CONSTRAINTS("list constraints"),
+        QUERY_CANCEL("cancel"),
         QUERY_EXIT("exit");
 
         public String value;
@@ -66,6 +83,23 @@ public class CommandLine extends AbstractAnalyzer
         }
     }
 
+    // query connections served at once. More are refused
+    private static final int MAX_CONNECTIONS = Integer.parseInt(Settings.getProperty("query_max_connections"));
+    // queries run at once and queries waiting for a thread. More are refused
+    private static final int QUERY_THREADS = Integer.parseInt(Settings.getProperty("query_threads"));
+    private static final int QUERY_QUEUE_SIZE = Integer.parseInt(Settings.getProperty("query_queue_size"));
+    // queries still running after this are cancelled. 0 for no limit
+    private static final long QUERY_TIMEOUT_SECONDS = Long.parseLong(Settings.getProperty("query_timeout_seconds"));
+    // how often a query waiting for remote resolution checks if it was cancelled
+    private static final long CANCEL_CHECK_MILLIS = 100;
+
+    private ThreadPoolExecutor connectionExecutor;
+    private ThreadPoolExecutor queryExecutor;
+    private ScheduledThreadPoolExecutor deadlineExecutor;
+    // cancel flags of the queries being run
+    private final Set<AtomicBoolean> runningQueries = Collections.newSetFromMap(new ConcurrentHashMap<AtomicBoolean, Boolean>());
+    private final QueryCache queryCache = QueryCache.fromSettings();
+
     public CommandLine()
     {
         QUERY_PORT = "commandline_query_port";
@@ -77,6 +111,14 @@ public class CommandLine extends AbstractAnalyzer
         ServerSocket serverSocket = AbstractAnalyzer.getServerSocket(QUERY_PORT);
         if(serverSocket != null)
         {
+            connectionExecutor = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new NamedThreadFactory("queryConnection-Thread"));
+            connectionExecutor.allowCoreThreadTimeOut(true);
+            queryExecutor = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUERY_QUEUE_SIZE), new NamedThreadFactory("query-Thread"));
+            queryExecutor.allowCoreThreadTimeOut(true);
+            deadlineExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("queryDeadline-Thread"));
+            deadlineExecutor.setRemoveOnCancelPolicy(true);
             Runnable queryRunnable = new Runnable()
             {
                 @Override
@@ -88,8 +130,16 @@ public class CommandLine extends AbstractAnalyzer
                         {
                             Socket querySocket = serverSocket.accept();
                             QueryConnection thisConnection = new QueryConnection(querySocket);
-                            Thread connectionThread = new Thread(thisConnection);
-                            connectionThread.start();
+                            try
+                            {
+                                connectionExecutor.execute(thisConnection);
+                            }
+                            catch(RejectedExecutionException ex)
+                            {
+                                Logger.getLogger(CommandLine.class.getName()).log(Level.WARNING,
+                                        "Query connection refused. " + MAX_CONNECTIONS + " connections open");
+                                refuseConnection(querySocket);
+                            }
                         }
                     }
                     catch(SocketException ex)
@@ -113,6 +163,87 @@ public class CommandLine extends AbstractAnalyzer
         }
     }
 
+    private static void refuseConnection(Socket querySocket)
+    {
+        try
+        {
+            GraphStream.Writer writer = new GraphStream.Writer(querySocket.getOutputStream());
+            writer.writeError("Too many query connections. Try again later");
+            writer.endResult();
+            querySocket.close();
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(CommandLine.class.getName()).log(Level.WARNING, "Unable to refuse query connection", ex);
+        }
+    }
+
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+        if(queryCache != null)
+        {
+            Logger.getLogger(CommandLine.class.getName()).log(Level.INFO, queryCache.toString());
+        }
+        if(connectionExecutor != null)
+        {
+            connectionExecutor.shutdownNow();
+            // running queries are stopped at their next step rather than
+            // interrupted in the middle of storage I/O
+            queryExecutor.getQueue().clear();
+            queryExecutor.shutdown();
+            for(AtomicBoolean cancelled : runningQueries)
+            {
+                cancelled.set(true);
+            }
+            deadlineExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The number of queries waiting for a query thread.
+     */
+    public int getQueuedQueries()
+    {
+        return (queryExecutor == null) ? 0 : queryExecutor.getQueue().size();
+    }
+
+    /**
+     * @return The number of queries being run.
+     */
+    public int getRunningQueries()
+    {
+        return (queryExecutor == null) ? 0 : queryExecutor.getActiveCount();
+    }
+
+    /**
+     * @return The number of open query connections.
+     */
+    public int getOpenConnections()
+    {
+        return (connectionExecutor == null) ? 0 : connectionExecutor.getActiveCount();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     /**
      * Method to display query commands to the given output stream.
      *
@@ -134,6 +265,10 @@ public class CommandLine extends AbstractAnalyzer
 
     public class QueryConnection extends AbstractAnalyzer.QueryConnection
     {
+        private GraphStream.Writer queryOutputStream;
+        // the query of this connection that is waiting or running, if any
+        private QueryTask currentQuery;
+
         QueryConnection(Socket socket)
         {
             super(socket);
@@ -146,102 +281,300 @@ public class CommandLine extends AbstractAnalyzer
             {
                 OutputStream outStream = querySocket.getOutputStream();
                 InputStream inStream = querySocket.getInputStream();
-                ObjectOutputStream queryOutputStream = new ObjectOutputStream(outStream);
+                queryOutputStream = new GraphStream.Writer(outStream);
                 BufferedReader queryInputStream = new BufferedReader(new InputStreamReader(inStream));
 
                 while(!SHUTDOWN)
                 {
-                    // Commands read from the input stream and executed.
+                    // Commands read from the input stream. Queries are run by the
+                    // query threads so that a running query can be cancelled.
                     String line = queryInputStream.readLine();
-                    if(line.equalsIgnoreCase(DigQueryCommands.QUERY_EXIT.value))
+                    if(line == null || line.equalsIgnoreCase(DigQueryCommands.QUERY_EXIT.value))
                     {
                         break;
                     }
+                    else if(line.equalsIgnoreCase(DigQueryCommands.QUERY_CANCEL.value))
+                    {
+                        if(currentQuery != null)
+                        {
+                            currentQuery.cancel("Query cancelled");
+                        }
+                    }
+                    else if(currentQuery != null && !currentQuery.isFinished())
+                    {
+                        sendError("A query is already running on this connection");
+                    }
                     else
                     {
+                        submitQuery(line);
+                    }
+                }
+                if(currentQuery != null)
+                {
+                    currentQuery.cancel("Connection closed");
+                }
+                queryInputStream.close();
+
+                inStream.close();
+                outStream.close();
+                querySocket.close();
+            }
+            catch(Exception ex)
+            {
+                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        private void submitQuery(String line) throws IOException
+        {
+            final QueryTask task = new QueryTask(line);
+            try
+            {
+                queryExecutor.execute(task);
+            }
+            catch(RejectedExecutionException ex)
+            {
+                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.WARNING,
+                        "Query refused with " + getQueuedQueries() + " queries waiting");
+                sendError("Too many queries waiting. Try again later");
+                return;
+            }
+            currentQuery = task;
+            if(QUERY_TIMEOUT_SECONDS > 0)
+            {
+                task.deadline = deadlineExecutor.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        task.cancel("Query timed out after " + QUERY_TIMEOUT_SECONDS + " seconds");
+                    }
+                }, QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+
+        private void sendError(String message) throws IOException
+        {
+            synchronized(queryOutputStream)
+            {
+                queryOutputStream.writeError(message);
+                queryOutputStream.endResult();
+            }
+        }
+
+        private Object executeQuery(String line, Class<?>[] returnTypeHolder) throws Exception
+        {
+            parseQuery(line);
+            final Class<?> returnType;
+            QueryCache.Loader loader;
+            if(USE_SCAFFOLD)
+            {
+                returnType = Graph.class;
+                loader = new QueryCache.Loader()
+                {
+                    @Override
+                    public Object load(Map<String, List<String>> parameters)
+                    {
+                        return scaffold.queryManager(parameters);
+                    }
+                };
+            }
+            else
+            {
+                final AbstractQuery queryClass = (AbstractQuery) Class.forName(getFunctionClassName(functionName)).newInstance();
+                final Integer limit = resultLimit;
+                returnType = Class.forName(getReturnType(functionName));
+                loader = new QueryCache.Loader()
+                {
+                    @Override
+                    public Object load(Map<String, List<String>> parameters)
+                    {
+                        return queryClass.execute(parameters, limit);
+                    }
+                };
+            }
+            // results of queries run again on unchanged storages come from the cache
+            Object result = (queryCache == null) ? loader.load(queryParameters) :
+                    queryCache.get(functionName, queryParameters, resultLimit, loader);
+            returnTypeHolder[0] = returnType;
+            if(result != null && returnType.isAssignableFrom(result.getClass()))
+            {
+                if(result instanceof Graph)
+                {
+                    if(isRemoteResolutionRequired())
+                    {
+                        //TODO: Could use a factory pattern here to get remote resolver
+                        remoteResolver = new Recursive((Graph) result, functionName, 0, null);
+                        Thread remoteResolverThread = new Thread(remoteResolver, "Recursive-AbstractResolver");
+                        remoteResolverThread.start();
+                        // wait for thread to complete to get the final graph.
+                        // The resolver only does network I/O so it is interrupted
+                        // if the query is cancelled meanwhile
                         try
                         {
-                            parseQuery(line);
-                            AbstractQuery queryClass;
-                            Class<?> returnType;
-                            Object result;
-                            if(USE_SCAFFOLD)
+                            while(remoteResolverThread.isAlive())
                             {
-                                result = scaffold.queryManager(queryParameters);
-                                returnType = Graph.class;
+                                remoteResolverThread.join(CANCEL_CHECK_MILLIS);
+                                AbstractQuery.checkCancelled();
                             }
-                            else
-                            {
-                                queryClass = (AbstractQuery) Class.forName(getFunctionClassName(functionName)).newInstance();
-                                returnType = Class.forName(getReturnType(functionName));
-                                result = queryClass.execute(queryParameters, resultLimit);
-                            }
-                            if(result != null && returnType.isAssignableFrom(result.getClass()))
-                            {
-                                if(result instanceof Graph)
-                                {
-                                    if(isRemoteResolutionRequired())
-                                    {
-                                        //TODO: Could use a factory pattern here to get remote resolver
-                                        remoteResolver = new Recursive((Graph) result, functionName, 0, null);
-                                        Thread remoteResolverThread = new Thread(remoteResolver, "Recursive-AbstractResolver");
-                                        remoteResolverThread.start();
-                                        // wait for thread to complete to get the final graph
-                                        remoteResolverThread.join();
-                                        // final graph is a set of unstitched graphs
-                                        Set<Graph> finalGraphSet = remoteResolver.getFinalGraph();
-                                        clearRemoteResolutionRequired();
-                                        // TODO: perform consistency check here - Carol
-                                        // TODO: return the stitched graphs
-                                    }
-                                    if(USE_TRANSFORMER)
-                                    {
-                                        result = iterateTransformers((Graph) result, line);
-                                    }
-                                    if(EXPORT_RESULT)
-                                    {
-                                        result = ((Graph) result).exportGraph();
-                                        EXPORT_RESULT = false;
-                                    }
-                                }
-                            }
-                            else
+                        }
+                        catch(InterruptedException | CancellationException ex)
+                        {
+                            remoteResolverThread.interrupt();
+                            throw ex;
+                        }
+                        // final graph is a set of unstitched graphs
+                        Set<Graph> finalGraphSet = remoteResolver.getFinalGraph();
+                        clearRemoteResolutionRequired();
+                        // TODO: perform consistency check here - Carol
+                        // TODO: return the stitched graphs
+                    }
+                    if(USE_TRANSFORMER)
+                    {
+                        result = iterateTransformers((Graph) result, line);
+                    }
+                    // the client writes the DOT file from the streamed graph
+                    EXPORT_RESULT = false;
+                }
+            }
+            else
+            {
+                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.SEVERE, "Return type null or mismatch!");
+            }
+            return result;
+        }
+
+        /**
+         * A query run by a query thread. The result, or the reason the query
+         * failed or was cancelled, is sent to the client exactly once.
+         */
+        private class QueryTask implements Runnable
+        {
+            private final String line;
+            private final AtomicBoolean responded = new AtomicBoolean(false);
+            private volatile ScheduledFuture<?> deadline;
+            // why the query was cancelled, or null
+            private volatile String cancelReason;
+            // checked by the query between steps
+            private final AtomicBoolean cancelled = new AtomicBoolean(false);
+            private boolean started = false;
+            private boolean finished = false;
+
+            QueryTask(String line)
+            {
+                this.line = line;
+            }
+
+            @Override
+            public void run()
+            {
+                synchronized(this)
+                {
+                    if(finished)
+                        return;
+                    started = true;
+                }
+                AbstractQuery.setCancelFlag(cancelled);
+                runningQueries.add(cancelled);
+                try
+                {
+                    Class<?>[] returnType = new Class<?>[1];
+                    Object result = executeQuery(line, returnType);
+                    if(responded.compareAndSet(false, true))
+                    {
+                        synchronized(queryOutputStream)
+                        {
+                            // vertices and edges are sent in chunks as they are encoded
+                            queryOutputStream.beginResult(returnType[0].getSimpleName());
+                            if(result instanceof Graph)
                             {
-                                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.SEVERE, "Return type null or mismatch!");
+                                queryOutputStream.writeGraph((Graph) result);
                             }
-                            queryOutputStream.writeObject(returnType.getSimpleName());
-                            if(result != null)
+                            else if(result instanceof Collection)
                             {
-//                                String string = "Vertices: " + ((Graph) result).vertexSet().size();
-//                                string += ". Edges: " + ((Graph) result).edgeSet().size() + ".\n";
-//                                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.INFO, string);
-//                                string += result.toString();
-//                                queryOutputStream.writeObject(string);
-                                queryOutputStream.writeObject(result.toString());
+                                queryOutputStream.writeCollection((Collection<?>) result);
                             }
-                            else
+                            else if(result != null)
                             {
-                                queryOutputStream.writeObject("Result Empty");
+                                queryOutputStream.writeText(result.toString());
                             }
-
-                        }
-                        catch(Exception ex)
-                        {
-                            Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.SEVERE, "Error executing query request!", ex);
+                            queryOutputStream.endResult();
                         }
                     }
-
                 }
-                queryInputStream.close();
-                queryOutputStream.close();
+                catch(Exception ex)
+                {
+                    if(cancelReason != null)
+                    {
+                        respondError(cancelReason);
+                    }
+                    else
+                    {
+                        Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.SEVERE, "Error executing query request!", ex);
+                        // let the client stop waiting for the result
+                        respondError(String.valueOf(ex.getMessage()));
+                    }
+                }
+                finally
+                {
+                    AbstractQuery.setCancelFlag(null);
+                    runningQueries.remove(cancelled);
+                    synchronized(this)
+                    {
+                        finished = true;
+                    }
+                    if(deadline != null)
+                    {
+                        deadline.cancel(false);
+                    }
+                }
+            }
 
-                inStream.close();
-                outStream.close();
-                querySocket.close();
+            synchronized boolean isFinished()
+            {
+                return finished;
             }
-            catch(Exception ex)
+
+            /**
+             * Makes the query stop at its next step if it is running and tells
+             * the client why, or keeps it from starting if it is waiting for a
+             * thread. The query thread is not interrupted because it may be
+             * in the middle of storage I/O.
+             */
+            void cancel(String reason)
             {
-                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.SEVERE, null, ex);
+                synchronized(this)
+                {
+                    if(finished || cancelReason != null)
+                        return;
+                    cancelReason = reason;
+                    if(started)
+                    {
+                        cancelled.set(true);
+                    }
+                    else
+                    {
+                        finished = true;
+                        queryExecutor.remove(this);
+                    }
+                }
+                Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.INFO, reason + ": " + line);
+                respondError(reason);
+            }
+
+            private void respondError(String message)
+            {
+                if(responded.compareAndSet(false, true))
+                {
+                    try
+                    {
+                        sendError(message);
+                    }
+                    catch(IOException ex)
+                    {
+                        Logger.getLogger(CommandLine.QueryConnection.class.getName()).log(Level.WARNING, "Unable to send query error", ex);
+                    }
+                }
             }
         }
 
@@ -1,8 +1,9 @@
 package spade.client;
 
 import jline.ConsoleReader;
-import org.apache.hadoop.fs.shell.Command;
-import org.neo4j.cypher.internal.compiler.v2_0.prettifier.Comma;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+import spade.core.GraphStream;
 import spade.core.Settings;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -15,7 +16,6 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.KeyStore;
@@ -33,12 +33,14 @@ import static spade.analyzer.CommandLine.getQueryCommands;
 public class CommandLine
 {
     private static PrintStream clientOutputStream;
-    private static ObjectInputStream clientInputStream;
+    private static GraphStream.Reader clientInputStream;
     private static final String SPADE_ROOT = Settings.getProperty("spade_root");
     private static final String historyFile = SPADE_ROOT + "cfg/query.history";
     private static final String COMMAND_PROMPT = "-> ";
     private static HashMap<String, String> constraints = new HashMap<>();
     private static String RESULT_EXPORT_PATH = null;
+    // whether a query has been sent and its result not completely read
+    private static volatile boolean queryPending = false;
 
     // Members for creating secure sockets
     private static KeyStore clientKeyStorePrivate;
@@ -93,7 +95,7 @@ public class CommandLine
 
             OutputStream outStream = remoteSocket.getOutputStream();
             InputStream inStream = remoteSocket.getInputStream();
-            clientInputStream = new ObjectInputStream(inStream);
+            clientInputStream = new GraphStream.Reader(inStream);
             clientOutputStream = new PrintStream(outStream);
         }
         catch (NumberFormatException | IOException ex)
@@ -102,6 +104,8 @@ public class CommandLine
             System.exit(-1);
         }
 
+        setupCancelHandler();
+
         try
         {
             System.out.println("SPADE 3.0 Query Client");
@@ -130,6 +134,10 @@ public class CommandLine
                         clientOutputStream.println(line);
                         break;
                     }
+                    else if(line.equals(DigQueryCommands.QUERY_CANCEL.value))
+                    {
+                        System.out.println("No query is running. Press Ctrl-C while a query runs to cancel it and exit");
+                    }
                     else if(line.equals(DigQueryCommands.QUERY_LIST_CONSTRAINTS.value))
                     {
                         System.out.println("-------------------------------------------------");
@@ -158,27 +166,54 @@ public class CommandLine
                             query = "export " + query;
                         }
                         long start_time = System.currentTimeMillis();
+                        queryPending = true;
                         clientOutputStream.println(query);
-                        String returnType = (String) clientInputStream.readObject();
-                        String resultString = (String) clientInputStream.readObject();
-                        long elapsed_time = System.currentTimeMillis() - start_time;
-                        System.out.println("Time taken for query: " + elapsed_time + " ms");
+                        // the result is printed or exported as it arrives
                         if(RESULT_EXPORT_PATH != null)
                         {
                             FileWriter writer = new FileWriter(RESULT_EXPORT_PATH, false);
-                            writer.write(resultString);
-                            writer.flush();
+                            DotWriter printer = new DotWriter(writer);
+                            boolean received = clientInputStream.readResult(printer);
+                            queryPending = false;
+                            printer.writeFooter();
                             writer.close();
-                            System.out.println("Output exported to file");
+                            if(!received)
+                            {
+                                throw new IOException("Connection closed by SPADE");
+                            }
+                            System.out.println("Time taken for query: " + (System.currentTimeMillis() - start_time) + " ms");
+                            if(printer.error != null)
+                            {
+                                System.out.println("Error: " + printer.error);
+                            }
+                            else
+                            {
+                                System.out.println("Output exported to file");
+                            }
                             RESULT_EXPORT_PATH = null;
                         }
                         else
                         {
                             System.out.println();
                             System.out.println("Result:");
-                            System.out.println("Return type: " + returnType);
-                            System.out.println("Result: " + resultString);
+                            ResultPrinter printer = new ResultPrinter();
+                            boolean received = clientInputStream.readResult(printer);
+                            queryPending = false;
+                            if(!received)
+                            {
+                                throw new IOException("Connection closed by SPADE");
+                            }
+                            if(printer.error != null)
+                            {
+                                System.out.println("Error: " + printer.error);
+                            }
+                            else if(printer.empty)
+                            {
+                                System.out.println("Result Empty");
+                            }
+                            System.out.println("Vertices: " + printer.vertexCount + ". Edges: " + printer.edgeCount + ".");
                             System.out.println("------------------");
+                            System.out.println("Time taken for query: " + (System.currentTimeMillis() - start_time) + " ms");
                         }
                     }
                     else if(line.toLowerCase().contains("export"))
@@ -193,6 +228,7 @@ public class CommandLine
                 }
                 catch (Exception ex)
                 {
+                    queryPending = false;
                     System.err.println(CommandLine.class.getName() + " Error talking to the client! " + ex);
                 }
             }
@@ -203,6 +239,139 @@ public class CommandLine
         }
     }
 
+    /**
+     * Prints each part of a query result as it is received.
+     */
+    private static class ResultPrinter extends GraphStream.Handler
+    {
+        boolean empty = true;
+        int vertexCount = 0;
+        int edgeCount = 0;
+        String error = null;
+
+        @Override
+        public void returnType(String returnType)
+        {
+            System.out.println("Return type: " + returnType);
+        }
+
+        @Override
+        public void vertex(String hash, AbstractVertex vertex, boolean root, int networkDepth)
+        {
+            empty = false;
+            vertexCount++;
+            System.out.println("Vertex " + hash + ": " + vertex.getAnnotations());
+        }
+
+        @Override
+        public void edge(String childHash, String parentHash, Map<String, String> annotations)
+        {
+            empty = false;
+            edgeCount++;
+            System.out.println("Edge " + childHash + " -> " + parentHash + ": " + annotations);
+        }
+
+        @Override
+        public void text(String text)
+        {
+            empty = false;
+            System.out.println("Result: " + text);
+        }
+
+        @Override
+        public void error(String message)
+        {
+            error = message;
+        }
+    }
+
+    /**
+     * Writes a graph result to a DOT file as it is received.
+     */
+    private static class DotWriter extends ResultPrinter
+    {
+        private final FileWriter writer;
+        private boolean headerWritten = false;
+
+        DotWriter(FileWriter writer)
+        {
+            this.writer = writer;
+        }
+
+        @Override
+        public void returnType(String returnType)
+        {
+            write(Graph.DOT_HEADER);
+            headerWritten = true;
+        }
+
+        /**
+         * Closes the graph if a result was received, so that an aborted
+         * result does not leave a lone closing brace in the file.
+         */
+        void writeFooter()
+        {
+            if(headerWritten)
+            {
+                write(Graph.DOT_FOOTER);
+            }
+        }
+
+        @Override
+        public void vertex(String hash, AbstractVertex vertex, boolean root, int networkDepth)
+        {
+            write(Graph.exportVertex(hash, vertex));
+        }
+
+        @Override
+        public void edge(String childHash, String parentHash, Map<String, String> annotations)
+        {
+            write(Graph.exportEdge(childHash, parentHash, annotations));
+        }
+
+        @Override
+        public void text(String text)
+        {
+            write(text);
+        }
+
+        private void write(String string)
+        {
+            try
+            {
+                if(string != null)
+                {
+                    writer.write(string);
+                }
+            }
+            catch(IOException ex)
+            {
+                error = ex.getMessage();
+            }
+        }
+    }
+
+    /**
+     * Makes the server cancel the running query when the client is stopped,
+     * e.g. with Ctrl-C, instead of running it to completion.
+     */
+    private static void setupCancelHandler()
+    {
+        Runtime.getRuntime().addShutdownHook(new Thread("QueryCancel-Thread")
+        {
+            @Override
+            public void run()
+            {
+                if(queryPending && clientOutputStream != null)
+                {
+                    System.out.println("Cancelling query...");
+                    clientOutputStream.println(DigQueryCommands.QUERY_CANCEL.value);
+                    clientOutputStream.flush();
+                }
+            }
+        });
+    }
+
     private static void parseExport(String line)
     {
         try
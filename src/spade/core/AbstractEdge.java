@@ -21,9 +21,6 @@ package spade.core;
 
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
-
-import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * This is the class from which other edge classes (e.g., OPM edges) are
@@ -40,10 +37,16 @@ public abstract class AbstractEdge implements Serializable {
 	/**
      * A map containing the annotations for this edge.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
     private AbstractVertex childVertex;
     private AbstractVertex parentVertex;
 
+    /**
+     * The memoized content hash. Recomputed once the annotations of the edge
+     * or of its end points change.
+     */
+    private transient ContentHash.Digest digest;
+
     /**
      * Checks if edge is empty
      *
@@ -164,23 +167,46 @@ public abstract class AbstractEdge implements Serializable {
     }
 
     /**
-     * Computes MD5 hash of annotations in the edge and its end point vertices.
+     * Returns the 128-bit hash of annotations in the edge and its end point
+     * vertices. It is computed with the algorithm given by the 'hash_algorithm'
+     * setting (MD5 by default) and memoized until the annotations of the edge
+     * or the end points change.
+     *
+     * @return The hash digest.
+     */
+    public ContentHash.Digest bigHashDigest()
+    {
+        int version = (annotations instanceof AnnotationMap) ? ((AnnotationMap) annotations).getModifications() : -1;
+        ContentHash.Digest childDigest = (childVertex == null) ? null : childVertex.bigHashDigest();
+        ContentHash.Digest parentDigest = (parentVertex == null) ? null : parentVertex.bigHashDigest();
+        ContentHash.Digest current = digest;
+        if(current == null || version < 0 || current.version != version
+                || current.childDigest != childDigest || current.parentDigest != parentDigest)
+        {
+            current = ContentHash.ofEdge(annotations, version, childVertex, childDigest, parentVertex, parentDigest);
+            digest = current;
+        }
+        return current;
+    }
+
+    /**
+     * Computes hash of annotations in the edge and its end point vertices.
      *
-     @return A 128-bit hash digest.
+     @return A 128-bit hash digest as 32 hex digits.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return bigHashDigest().toHex();
     }
 
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Computes hash of annotations in the edge and its end point vertices.
      *
-     @return A 128-bit hash digest.
+     @return 16 element byte array of the digest.
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return bigHashDigest().toBytes();
     }
 
     @Override
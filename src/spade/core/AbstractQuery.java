@@ -3,6 +3,8 @@ package spade.core;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,8 +39,45 @@ public abstract class AbstractQuery<R, P>
 
     private boolean hasRegistered = false;
 
+    // set by whoever cancels the query running in a thread. Queries are not
+    // interrupted because an interrupt during storage I/O breaks the storage
+    private static final ThreadLocal<AtomicBoolean> cancelFlag = new ThreadLocal<>();
+
     public abstract R execute(P parameters, Integer limit);
 
+    /**
+     * Stops the query running in this thread if it was cancelled or ran past
+     * its deadline. Traversals call this before every step.
+     *
+     * @throws CancellationException if the query was cancelled.
+     */
+    public static void checkCancelled()
+    {
+        AtomicBoolean cancelled = cancelFlag.get();
+        if(cancelled != null && cancelled.get())
+        {
+            throw new CancellationException("Query cancelled");
+        }
+    }
+
+    /**
+     * Sets the flag that cancels the query run next in this thread when it is
+     * set. Null when the thread is done with the query.
+     *
+     * @param cancelled flag set when the query is cancelled.
+     */
+    public static void setCancelFlag(AtomicBoolean cancelled)
+    {
+        if(cancelled == null)
+        {
+            cancelFlag.remove();
+        }
+        else
+        {
+            cancelFlag.set(cancelled);
+        }
+    }
+
     public static void setCurrentStorage(AbstractStorage storage)
     {
         currentStorage = storage;
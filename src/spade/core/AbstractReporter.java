@@ -52,6 +52,9 @@ public abstract class AbstractReporter {
 
     /**
      * This method is called by the reporters to send vertices to the buffer.
+     * If the buffer is bounded and full, this blocks the calling reporter
+     * thread until the Kernel has drained the buffer or, depending on the
+     * overflow policy of the buffer, drops the vertex and returns false.
      *
      * @param vertex The vertex to be sent to the buffer.
      * @return True if the buffer accepted the vertex.
@@ -62,6 +65,9 @@ public abstract class AbstractReporter {
 
     /**
      * This method is called by the reporters to send edges to the buffer.
+     * If the buffer is bounded and full, this blocks the calling reporter
+     * thread until the Kernel has drained the buffer or, depending on the
+     * overflow policy of the buffer, drops the edge and returns false.
      *
      * @param edge The edge to be sent to the buffer.
      * @return True if the buffer accepted the edge.
@@ -1,15 +1,17 @@
 package spade.core;
 
-import org.apache.commons.collections.CollectionUtils;
 import spade.reporter.audit.OPMConstants;
 
 import javax.net.ssl.SSLSocket;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -28,6 +30,10 @@ public abstract class AbstractResolver implements Runnable
     public static final String DESTINATION_HOST = "destination_host";
     public static final String DESTINATION_PORT = "destination_port";
 
+    // idle connections to remote query servers kept per host, and for how long
+    private static final int MAX_IDLE_CONNECTIONS = Integer.parseInt(Settings.getProperty("resolver_max_idle_connections"));
+    private static final long IDLE_CONNECTION_MILLIS = Long.parseLong(Settings.getProperty("resolver_idle_seconds")) * 1000;
+
     // fields required to fetch and return remote parts of result graph
     protected Set<Graph> finalGraph = new HashSet<>();
     protected Graph partialGraph;
@@ -61,80 +67,241 @@ public abstract class AbstractResolver implements Runnable
      */
     protected static Graph queryNetworkVertex(AbstractVertex networkVertex, int depth, String direction)
     {
-        Graph resultGraph = null;
+        return queryNetworkVertex(networkVertex, depth, direction, 0);
+    }
+
+    /**
+     * Method used to get remote lineage of a network vertex over a pooled
+     * connection to the remote host.
+     *
+     * @param networkVertex The input network vertex.
+     * @param depth Depth of lineage.
+     * @param direction Direction of lineage.
+     * @param deadline Time in milliseconds after which the remote host is no
+     *                 longer waited for, or 0 to wait indefinitely.
+     * @return The result represented by a Graph object.
+     */
+    protected static Graph queryNetworkVertex(AbstractVertex networkVertex, int depth, String direction, long deadline)
+    {
+        String host = networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS);
+        int port;
         try
         {
-            // Establish a connection to the remote host
-            String host = networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS);
-            int port = Integer.parseInt(Settings.getProperty("dig_query_port"));
-            SSLSocket remoteSocket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
-
-            OutputStream outStream = remoteSocket.getOutputStream();
-            InputStream inStream = remoteSocket.getInputStream();
-            ObjectInputStream graphInputStream = new ObjectInputStream(inStream);
-            PrintWriter remoteSocketOut = new PrintWriter(outStream, true);
-
-            String networkVertexQuery = "GetVertex(" +
-                    OPMConstants.ARTIFACT_LOCAL_ADDRESS +
-                    OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS) +
-                    " AND " +
-                    OPMConstants.ARTIFACT_LOCAL_PORT +
-                    OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT) +
-                    " AND " +
-                    OPMConstants.ARTIFACT_REMOTE_ADDRESS +
-                    OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS) +
-                    " AND " +
-                    OPMConstants.ARTIFACT_REMOTE_PORT +
-                    OPERATORS.EQUALS +
-                    networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT) +
-                    " AND " +
-                    OPMConstants.SOURCE +
-                    OPERATORS.EQUALS +
-                    OPMConstants.SOURCE_AUDIT_NETFILTER +
-                    ", null" +
-                    ")";
-
-            remoteSocketOut.println(networkVertexQuery);
-            // Check whether the remote query server returned a vertex set in response
-            Set<AbstractVertex> vertexSet = (Set<AbstractVertex>) graphInputStream.readObject();
-            AbstractVertex targetVertex;
-            if(!CollectionUtils.isEmpty(vertexSet))
-                targetVertex = vertexSet.iterator().next();
-            else
-                return null;
-            String targetVertexHash = targetVertex.getAnnotation(PRIMARY_KEY);
-
-            String lineageQuery = "GetLineage(" +
-                    PRIMARY_KEY +
-                    OPERATORS.EQUALS +
-                    targetVertexHash +
-                    ", " +
-                    DEFAULT_MAX_LIMIT +
-                    ", " +
-                    depth +
-                    ", " +
-                    direction +
-                    ")";
-            remoteSocketOut.println(lineageQuery);
-            resultGraph = (Graph) graphInputStream.readObject();
-
-            remoteSocketOut.println("exit");
-            remoteSocketOut.close();
-            graphInputStream.close();
-            inStream.close();
-            outStream.close();
-            remoteSocket.close();
+            port = Integer.parseInt(Settings.getProperty("dig_query_port"));
         }
-        catch (NumberFormatException | IOException | ClassNotFoundException exception)
+        catch(NumberFormatException exception)
         {
             Logger.getLogger(AbstractResolver.class.getName()).log(Level.SEVERE, "Remote resolution unsuccessful!", exception);
             return null;
         }
+        for(int attempt = 0; ; attempt++)
+        {
+            RemoteConnection connection = (attempt == 0) ? RemoteConnection.acquire(host, port) : null;
+            boolean pooled = (connection != null);
+            try
+            {
+                if(connection == null)
+                {
+                    connection = RemoteConnection.open(host, port);
+                }
+                Graph resultGraph = resolve(connection, networkVertex, depth, direction, deadline);
+                // the response of a cancelled resolution may still be on its way
+                if(Thread.currentThread().isInterrupted())
+                {
+                    connection.close();
+                }
+                else
+                {
+                    connection.release();
+                }
+                return resultGraph;
+            }
+            catch(SocketTimeoutException exception)
+            {
+                connection.close();
+                Logger.getLogger(AbstractResolver.class.getName()).log(Level.WARNING, "Remote resolution timed out on " + host);
+                return null;
+            }
+            catch(IOException exception)
+            {
+                if(connection != null)
+                {
+                    connection.close();
+                }
+                // an idle connection may have been closed by the remote host in the meantime
+                if(pooled)
+                {
+                    continue;
+                }
+                Logger.getLogger(AbstractResolver.class.getName()).log(Level.SEVERE, "Remote resolution unsuccessful!", exception);
+                return null;
+            }
+        }
+    }
+
+    private static Graph resolve(RemoteConnection connection, AbstractVertex networkVertex, int depth,
+                                 String direction, long deadline) throws IOException
+    {
+        String networkVertexQuery = "GetVertex(" +
+                OPMConstants.ARTIFACT_LOCAL_ADDRESS +
+                OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS) +
+                " AND " +
+                OPMConstants.ARTIFACT_LOCAL_PORT +
+                OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT) +
+                " AND " +
+                OPMConstants.ARTIFACT_REMOTE_ADDRESS +
+                OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS) +
+                " AND " +
+                OPMConstants.ARTIFACT_REMOTE_PORT +
+                OPERATORS.EQUALS +
+                networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT) +
+                " AND " +
+                OPMConstants.SOURCE +
+                OPERATORS.EQUALS +
+                OPMConstants.SOURCE_AUDIT_NETFILTER +
+                ", null" +
+                ")";
+
+        // Check whether the remote query server returned a vertex in response
+        Graph vertexGraph = connection.query(networkVertexQuery, deadline);
+        if(vertexGraph == null || vertexGraph.vertexSet().isEmpty())
+        {
+            return null;
+        }
+        AbstractVertex targetVertex = vertexGraph.vertexSet().iterator().next();
+        String targetVertexHash = targetVertex.getAnnotation(PRIMARY_KEY);
+        if(targetVertexHash == null)
+        {
+            targetVertexHash = targetVertex.bigHashCode();
+        }
 
-        return resultGraph;
+        String lineageQuery = "GetLineage(" +
+                PRIMARY_KEY +
+                OPERATORS.EQUALS +
+                targetVertexHash +
+                ", " +
+                DEFAULT_MAX_LIMIT +
+                ", " +
+                depth +
+                ", " +
+                direction +
+                ")";
+        // vertices and edges are added as their chunks arrive
+        return connection.query(lineageQuery, deadline);
     }
-}
 
+    /**
+     * Connection to the query server of a remote host. Connections are kept
+     * for reuse by later resolutions once their queries have been answered.
+     */
+    private static class RemoteConnection
+    {
+        private static final Map<String, Deque<RemoteConnection>> idleConnections = new HashMap<>();
+
+        private final String address;
+        private final SSLSocket socket;
+        private final PrintWriter writer;
+        private final GraphStream.Reader reader;
+        private long lastUsed;
+
+        private RemoteConnection(String address, SSLSocket socket) throws IOException
+        {
+            this.address = address;
+            this.socket = socket;
+            this.writer = new PrintWriter(socket.getOutputStream(), true);
+            this.reader = new GraphStream.Reader(socket.getInputStream());
+        }
+
+        static RemoteConnection open(String host, int port) throws IOException
+        {
+            SSLSocket socket = (SSLSocket) Kernel.sslSocketFactory.createSocket(host, port);
+            return new RemoteConnection(host + ":" + port, socket);
+        }
+
+        /**
+         * Returns an idle connection to the given host, or null if there is
+         * none. Connections idle for too long are closed.
+         */
+        static RemoteConnection acquire(String host, int port)
+        {
+            long now = System.currentTimeMillis();
+            synchronized(idleConnections)
+            {
+                Deque<RemoteConnection> connections = idleConnections.get(host + ":" + port);
+                while(connections != null && !connections.isEmpty())
+                {
+                    RemoteConnection connection = connections.pollLast();
+                    if(now - connection.lastUsed < IDLE_CONNECTION_MILLIS)
+                    {
+                        return connection;
+                    }
+                    connection.close();
+                }
+            }
+            return null;
+        }
+
+        void release()
+        {
+            lastUsed = System.currentTimeMillis();
+            synchronized(idleConnections)
+            {
+                Deque<RemoteConnection> connections = idleConnections.get(address);
+                if(connections == null)
+                {
+                    connections = new ArrayDeque<>();
+                    idleConnections.put(address, connections);
+                }
+                if(connections.size() < MAX_IDLE_CONNECTIONS)
+                {
+                    connections.addLast(this);
+                    return;
+                }
+            }
+            close();
+        }
+
+        Graph query(String query, long deadline) throws IOException
+        {
+            long remaining = (deadline > 0) ? deadline - System.currentTimeMillis() : 0;
+            if(deadline > 0 && remaining <= 0)
+            {
+                throw new SocketTimeoutException("Deadline passed");
+            }
+            socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+            writer.println(query);
+            if(writer.checkError())
+            {
+                throw new IOException("Connection to " + address + " closed");
+            }
+            GraphStream.GraphBuilder builder = new GraphStream.GraphBuilder();
+            if(!reader.readResult(builder))
+            {
+                throw new EOFException("Connection to " + address + " closed");
+            }
+            if(builder.getError() != null)
+            {
+                Logger.getLogger(AbstractResolver.class.getName()).log(Level.WARNING,
+                        "Remote query failed on " + address + ": " + builder.getError());
+                return null;
+            }
+            return builder.getGraph();
+        }
+
+        void close()
+        {
+            writer.println("exit");
+            try
+            {
+                socket.close();
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(AbstractResolver.class.getName()).log(Level.FINE, "Unable to close connection", ex);
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is the base class from which concrete storage types inherit.
@@ -70,6 +71,11 @@ public abstract class AbstractStorage
      * The number of edges that this storage instance has successfully received.
      */
     long edgeCount;
+    /**
+     * Number of commits that made received vertices and edges visible to
+     * queries, for storages that commit after receiving them.
+     */
+    private final AtomicLong commitCount = new AtomicLong();
 
     /**
      * This method is invoked by the kernel to initialize the storage.
@@ -105,6 +111,33 @@ public abstract class AbstractStorage
         return vertexCount;
     }
 
+    /**
+     * This method returns a write watermark of this storage. By default it
+     * changes whenever the storage receives a vertex or an edge, which suits
+     * storages that make them visible to queries right away. Storages that
+     * only make them visible when they commit override this to return
+     * getCommitCount() and call advanceWatermark() after each commit.
+     *
+     * @return A number that changes whenever the vertices and edges visible to queries change
+     */
+    public long getWatermark(){
+        return vertexCount + edgeCount;
+    }
+
+    /**
+     * Records that a commit has made received vertices or edges visible to queries.
+     */
+    protected void advanceWatermark(){
+        commitCount.incrementAndGet();
+    }
+
+    /**
+     * @return The number of commits recorded with advanceWatermark().
+     */
+    protected long getCommitCount(){
+        return commitCount.get();
+    }
+
     /**
      * This method is triggered by the Kernel to flush transactions.
      *
@@ -195,6 +228,7 @@ public abstract class AbstractStorage
         //TODO: keep a visited array
         while(!queue.isEmpty() && depth < maxDepth)
         {
+            AbstractQuery.checkCancelled();
             currentVertex = queue.remove();
             String currentHash = currentVertex.getAnnotation("hash");
             if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
@@ -215,62 +249,74 @@ public abstract class AbstractStorage
 
 
     /**
-     * This function finds all possible paths between source and destination vertices.
+     * This function finds all paths between source and destination vertices.
      *
      * @param childVertexHash hash of the source vertex
-     * @param parentVertexHash hash of the destination vertex
+     * @param parentVertexHash hash of the destination vertex, an ancestor of the source
      * @param maxPathLength maximum length of any path to find
      *
-     * @return returns graph containing all paths between the given source and destination vertex OR NULL.
+     * @return returns graph containing all paths between the given source and destination vertex.
      */
-    @Deprecated
     public Graph getPaths(String childVertexHash, String parentVertexHash, int maxPathLength)
     {
-        Set<Graph> allPaths = new HashSet<>();
-        Stack<AbstractVertex>currentPath = new Stack<>();
-        AbstractVertex previousVertex = null;
-        AbstractVertex currentVertex = null;
-        int pathLength = 0;
-        Queue<AbstractVertex> queue = new LinkedList<>();
-        queue.add(getVertex(childVertexHash));
-        Graph children = null;
-        while(!queue.isEmpty())
+        PathSearch pathSearch = new PathSearch()
         {
-            pathLength++;
-            if(pathLength > maxPathLength)
-                children = null;
-            currentVertex = queue.remove();
-            String currentHash = currentVertex.getAnnotation("hash");
-            currentPath.push(currentVertex);
-            if(currentHash.equals(parentVertexHash))
+            @Override
+            protected Map<String, Set<String>> getParents(Set<String> hashes)
             {
-                allPaths.add(convertStackToGraph(currentPath));
-            }
-            else
-            {
-                children = getChildren(currentHash);
+                Map<String, Set<String>> parents = new HashMap<>();
+                for(String hash : hashes)
+                {
+                    parents.put(hash, vertexHashes(AbstractStorage.this.getParents(hash)));
+                }
+                return parents;
             }
 
-            if(children != null)
+            @Override
+            protected Map<String, Set<String>> getChildren(Set<String> hashes)
             {
-                queue.addAll(children.vertexSet());
-                continue;
+                Map<String, Set<String>> children = new HashMap<>();
+                for(String hash : hashes)
+                {
+                    children.put(hash, vertexHashes(AbstractStorage.this.getChildren(hash)));
+                }
+                return children;
             }
-
-            currentPath.pop();
-        }
-
-        // merge graphs for each path
+        };
+        Map<String, Set<String>> paths = pathSearch.findPaths(childVertexHash, parentVertexHash, maxPathLength);
         Graph resultGraph = new Graph();
-        for (Graph path: allPaths)
+        for(String hash : paths.keySet())
         {
-            resultGraph = Graph.union(resultGraph, path);
+            AbstractVertex vertex = getVertex(hash);
+            if(vertex != null)
+                resultGraph.putVertex(vertex);
+        }
+        for(Map.Entry<String, Set<String>> entry : paths.entrySet())
+        {
+            for(String parentHash : entry.getValue())
+            {
+                AbstractEdge edge = getEdge(entry.getKey(), parentHash);
+                if(edge != null)
+                    resultGraph.putEdge(edge);
+            }
         }
-
 
         return resultGraph;
     }
 
+    private static Set<String> vertexHashes(Graph graph)
+    {
+        Set<String> hashes = new HashSet<>();
+        if(graph != null)
+        {
+            for(AbstractVertex vertex : graph.vertexSet())
+            {
+                hashes.add(vertex.bigHashCode());
+            }
+        }
+        return hashes;
+    }
+
 
     /**
      * This helper function converts a stack of vertices into
@@ -19,13 +19,8 @@
  */
 package spade.core;
 
-import org.apache.commons.codec.digest.DigestUtils;
-
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
-
-import org.apache.commons.codec.digest.DigestUtils;
 
 /**
  * This is the class from which other vertex classes (e.g., OPM vertices) are
@@ -42,7 +37,12 @@ public abstract class AbstractVertex implements Serializable {
 	/**
      * A map containing the annotations for this vertex.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
+
+    /**
+     * The memoized content hash. Recomputed once the annotations change.
+     */
+    private transient ContentHash.Digest digest;
 
     /**
      * An integer indicating the depth of the vertex in the graph
@@ -133,23 +133,42 @@ public abstract class AbstractVertex implements Serializable {
     }
 
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Returns the 128-bit hash of annotations in the vertex. It is computed
+     * with the algorithm given by the 'hash_algorithm' setting (MD5 by default)
+     * and memoized until the annotations change.
+     *
+     * @return The hash digest.
+     */
+    public ContentHash.Digest bigHashDigest()
+    {
+        int version = (annotations instanceof AnnotationMap) ? ((AnnotationMap) annotations).getModifications() : -1;
+        ContentHash.Digest current = digest;
+        if(current == null || version < 0 || current.version != version)
+        {
+            current = ContentHash.ofVertex(annotations, version);
+            digest = current;
+        }
+        return current;
+    }
+
+    /**
+     * Computes hash of annotations in the vertex.
      *
-     @return A 128-bit hash digest.
+     @return A 128-bit hash digest as 32 hex digits.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return bigHashDigest().toHex();
     }
 
 
     /**
-     * Computes MD5 hash of annotations in the vertex
+     * Computes hash of annotations in the vertex
      * @return 16 element byte array of the digest.
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return bigHashDigest().toBytes();
     }
 
     @Override
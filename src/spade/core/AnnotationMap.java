@@ -0,0 +1,233 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Sorted annotation map of vertices and edges which counts its modifications
+ * so that hashes computed from it can be memoized.
+ *
+ * The key, value and entry views are built on the entry set, whose iterator
+ * and entries count removals and replaced values too, so that every
+ * modification of the map is counted.
+ */
+class AnnotationMap extends AbstractMap<String, String> implements Serializable
+{
+    private static final long serialVersionUID = -3311906813434125582L;
+
+    private final TreeMap<String, String> map = new TreeMap<>();
+
+    private transient int modifications = 0;
+
+    private transient Set<Map.Entry<String, String>> entrySet;
+
+    int getModifications()
+    {
+        return modifications;
+    }
+
+    @Override
+    public int size()
+    {
+        return map.size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value)
+    {
+        return map.containsValue(value);
+    }
+
+    @Override
+    public String get(Object key)
+    {
+        return map.get(key);
+    }
+
+    @Override
+    public String put(String key, String value)
+    {
+        modifications++;
+        return map.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> m)
+    {
+        modifications++;
+        map.putAll(m);
+    }
+
+    @Override
+    public String remove(Object key)
+    {
+        modifications++;
+        return map.remove(key);
+    }
+
+    @Override
+    public void clear()
+    {
+        modifications++;
+        map.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+        if(entrySet == null)
+        {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return map.equals(o);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return map.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return map.toString();
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, String>>
+    {
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator()
+        {
+            final Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+            return new Iterator<Map.Entry<String, String>>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, String> next()
+                {
+                    return new CountingEntry(iterator.next());
+                }
+
+                @Override
+                public void remove()
+                {
+                    iterator.remove();
+                    modifications++;
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return map.size();
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return map.entrySet().contains(o);
+        }
+
+        @Override
+        public void clear()
+        {
+            AnnotationMap.this.clear();
+        }
+    }
+
+    private class CountingEntry implements Map.Entry<String, String>
+    {
+        private final Map.Entry<String, String> entry;
+
+        private CountingEntry(Map.Entry<String, String> entry)
+        {
+            this.entry = entry;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return entry.getKey();
+        }
+
+        @Override
+        public String getValue()
+        {
+            return entry.getValue();
+        }
+
+        @Override
+        public String setValue(String value)
+        {
+            modifications++;
+            return entry.setValue(value);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return entry.equals(o);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return entry.hashCode();
+        }
+
+        @Override
+        public String toString()
+        {
+            return entry.toString();
+        }
+    }
+}
@@ -19,25 +19,159 @@
  */
 package spade.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This is the buffer class which is used by reporters to send provenance
  * elements to.
  *
+ * A buffer is unbounded by default. It can be bounded by a number of elements
+ * and/or by an estimated number of bytes. When a bounded buffer is full, the
+ * overflow policy decides whether the reporter is blocked until the Kernel has
+ * drained enough elements, whether the element is dropped and counted, or
+ * whether it is spilled to disk. A spilling buffer keeps the in-memory queue
+ * as its hot segment and writes all overflow, in order, to memory-mapped
+ * segment files which are replayed once the in-memory queue has been drained.
+ *
  * @author Dawood Tariq
  */
 public class Buffer {
 
+    /**
+     * What to do with an incoming element when a bounded buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the reporter until there is space in the buffer.
+         */
+        BLOCK,
+        /**
+         * Drop the element and increment the dropped element counter.
+         */
+        DROP,
+        /**
+         * Write the element to disk and replay it once the buffer has been drained.
+         */
+        SPILL
+    }
+
+    private static final Logger logger = Logger.getLogger(Buffer.class.getName());
+
+    /**
+     * Estimated fixed overhead in bytes of an element and of an annotation.
+     */
+    private static final int ELEMENT_OVERHEAD_BYTES = 64;
+    private static final int ANNOTATION_OVERHEAD_BYTES = 48;
+
     private final Queue<Object> queue;
+    private final int maxElements;
+    private final long maxBytes;
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicInteger elementCount = new AtomicInteger();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
 
     /**
-     * Empty constructor for this class.
+     * Overflow store of a spilling buffer. While it holds elements, all incoming
+     * elements are appended to it so that the order of elements is kept.
+     */
+    private final SpillStore spillStore;
+    private volatile boolean spilling = false;
+
+    /**
+     * Monitor used to wake up a consumer waiting for elements.
+     */
+    private final Object signal = new Object();
+    private volatile boolean consumerWaiting = false;
+    /**
+     * Monitor used to reserve space and to wake up producers waiting for space.
+     */
+    private final Object spaceSignal = new Object();
+    // guarded by spaceSignal
+    private int producersWaiting = 0;
+
+    /**
+     * Empty constructor for this class. Creates an unbounded buffer.
      *
      */
     public Buffer() {
-        queue = new ConcurrentLinkedQueue<>();
+        this(0, 0, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates a buffer bounded by the given number of elements and/or bytes.
+     *
+     * @param maxElements Maximum number of elements in the buffer. 0 for no limit.
+     * @param maxBytes Maximum estimated number of bytes in the buffer. 0 for no limit.
+     * @param overflowPolicy What to do with elements when the buffer is full.
+     */
+    public Buffer(int maxElements, long maxBytes, OverflowPolicy overflowPolicy) {
+        this(maxElements, maxBytes, overflowPolicy, null);
+    }
+
+    /**
+     * Creates a buffer bounded by the given number of elements and/or bytes.
+     *
+     * @param maxElements Maximum number of elements in the buffer. 0 for no limit.
+     * @param maxBytes Maximum estimated number of bytes in the buffer. 0 for no limit.
+     * @param overflowPolicy What to do with elements when the buffer is full.
+     * @param spillStore Overflow store used by the SPILL policy.
+     */
+    Buffer(int maxElements, long maxBytes, OverflowPolicy overflowPolicy, SpillStore spillStore) {
+        this.maxElements = Math.max(0, maxElements);
+        this.maxBytes = Math.max(0, maxBytes);
+        this.overflowPolicy = overflowPolicy;
+        if (this.maxElements > 0) {
+            queue = new ArrayBlockingQueue<>(this.maxElements);
+        } else {
+            queue = new ConcurrentLinkedQueue<>();
+        }
+        this.spillStore = spillStore;
+        // Elements left on disk by a previous run are older than anything new.
+        this.spilling = (spillStore != null && spillStore.pending() > 0);
+    }
+
+    /**
+     * Creates a buffer configured by the 'buffer_max_elements', 'buffer_max_bytes'
+     * and 'buffer_overflow_policy' settings. A spilling buffer keeps its segment
+     * files in a directory named after the buffer under 'buffer_spill_directory'
+     * so that undrained elements are resumed when a buffer with the same name
+     * is created again.
+     *
+     * @param name Name of the buffer, e.g. the reporter class name.
+     * @return A new buffer.
+     */
+    public static Buffer fromSettings(String name) {
+        int maxElements = Integer.parseInt(Settings.getProperty("buffer_max_elements"));
+        long maxBytes = Long.parseLong(Settings.getProperty("buffer_max_bytes"));
+        OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(Settings.getProperty("buffer_overflow_policy").toUpperCase());
+        if (overflowPolicy == OverflowPolicy.SPILL) {
+            if (maxElements == 0 && maxBytes == 0) {
+                logger.log(Level.WARNING, "Spilling buffer without a limit. Never spilling.");
+            }
+            File directory = new File(Settings.getProperty("buffer_spill_directory"), name);
+            try {
+                SpillStore spillStore = new SpillStore(directory,
+                        Integer.parseInt(Settings.getProperty("buffer_spill_segment_bytes")));
+                return new Buffer(maxElements, maxBytes, overflowPolicy, spillStore);
+            } catch (IOException exception) {
+                logger.log(Level.SEVERE, "Unable to open spill directory. Blocking instead.", exception);
+                overflowPolicy = OverflowPolicy.BLOCK;
+            }
+        }
+        return new Buffer(maxElements, maxBytes, overflowPolicy);
     }
 
     /**
@@ -50,7 +184,7 @@ public class Buffer {
         if (incomingVertex == null) {
             return false;
         } else {
-            return queue.add(incomingVertex);
+            return add(incomingVertex, (maxBytes > 0) ? estimateBytes(incomingVertex.getAnnotations()) : 0);
         }
     }
 
@@ -66,8 +200,111 @@ public class Buffer {
                 || (incomingEdge.getParentVertex() == null)) {
             return false;
         } else {
-            return queue.add(incomingEdge);
+            return add(incomingEdge, (maxBytes > 0) ? estimateBytes(incomingEdge.getAnnotations()) : 0);
+        }
+    }
+
+    private boolean add(Object element, long elementBytes) {
+        if (spillStore != null) {
+            return addOrSpill(element, elementBytes);
+        }
+        if (!reserve(elementBytes)) {
+            droppedCount.incrementAndGet();
+            return false;
         }
+        // The size of each element is kept with it so that exactly the same
+        // amount is released when it is taken out of the buffer.
+        boolean added = queue.add((maxBytes > 0) ? new SizedElement(element, elementBytes) : element);
+        signalConsumer();
+        return added;
+    }
+
+    private boolean addOrSpill(Object element, long elementBytes) {
+        synchronized (spaceSignal) {
+            if (!spilling && hasSpace(elementBytes)) {
+                elementCount.incrementAndGet();
+                byteCount.addAndGet(elementBytes);
+                queue.add((maxBytes > 0) ? new SizedElement(element, elementBytes) : element);
+            } else {
+                try {
+                    spillStore.append(element);
+                    spilling = true;
+                    spilledCount.incrementAndGet();
+                } catch (IOException exception) {
+                    logger.log(Level.SEVERE, "Unable to spill element to disk", exception);
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        signalConsumer();
+        return true;
+    }
+
+    private boolean reserve(long elementBytes) {
+        if (maxElements == 0 && maxBytes == 0) {
+            elementCount.incrementAndGet();
+            return true;
+        }
+        synchronized (spaceSignal) {
+            boolean blocked = false;
+            while (!hasSpace(elementBytes)) {
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    return false;
+                }
+                if (!blocked) {
+                    blocked = true;
+                    blockedCount.incrementAndGet();
+                }
+                producersWaiting++;
+                try {
+                    spaceSignal.wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    producersWaiting--;
+                }
+            }
+            elementCount.incrementAndGet();
+            byteCount.addAndGet(elementBytes);
+            return true;
+        }
+    }
+
+    private boolean hasSpace(long elementBytes) {
+        if (maxElements > 0 && elementCount.get() >= maxElements) {
+            return false;
+        }
+        // An element larger than the byte limit is let through when the buffer is empty.
+        long currentBytes = byteCount.get();
+        return maxBytes == 0 || currentBytes == 0 || currentBytes + elementBytes <= maxBytes;
+    }
+
+    private void release(long elementBytes) {
+        if (maxElements == 0 && maxBytes == 0) {
+            elementCount.decrementAndGet();
+            return;
+        }
+        // Released under the same lock that producers check for space under so
+        // that a producer about to wait cannot miss the wakeup.
+        synchronized (spaceSignal) {
+            elementCount.decrementAndGet();
+            if (elementBytes > 0) {
+                byteCount.addAndGet(-elementBytes);
+            }
+            if (producersWaiting > 0) {
+                spaceSignal.notifyAll();
+            }
+        }
+    }
+
+    private static long estimateBytes(Map<String, String> annotations) {
+        long bytes = ELEMENT_OVERHEAD_BYTES;
+        for (Map.Entry<String, String> entry : annotations.entrySet()) {
+            bytes += ANNOTATION_OVERHEAD_BYTES + 2L * (entry.getKey().length() + entry.getValue().length());
+        }
+        return bytes;
     }
 
     /**
@@ -76,7 +313,82 @@ public class Buffer {
      * @return The provenance element from the head of the queue.
      */
     public Object getBufferElement() {
-        return queue.poll();
+        Object element = queue.poll();
+        if (element == null && spilling) {
+            return readSpilled();
+        }
+        if (element instanceof SizedElement) {
+            SizedElement sizedElement = (SizedElement) element;
+            release(sizedElement.bytes);
+            return sizedElement.element;
+        } else if (element != null) {
+            release(0);
+        }
+        return element;
+    }
+
+    private Object readSpilled() {
+        // The in-memory queue has been drained so the oldest element is on disk.
+        Object element = spillStore.read();
+        if (element == null) {
+            synchronized (spaceSignal) {
+                element = spillStore.read();
+                if (element == null) {
+                    // Caught up with the disk. New elements go to memory again.
+                    spilling = false;
+                    element = queue.poll();
+                    if (element instanceof SizedElement) {
+                        SizedElement sizedElement = (SizedElement) element;
+                        release(sizedElement.bytes);
+                        return sizedElement.element;
+                    } else if (element != null) {
+                        release(0);
+                    }
+                }
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Releases the resources held by the buffer. Elements spilled to disk
+     * and not yet drained are kept and resumed by a future buffer.
+     */
+    public void close() {
+        if (spillStore != null) {
+            spillStore.close();
+        }
+    }
+
+    /**
+     * This method blocks the calling thread until the buffer has elements or
+     * the given timeout has passed. It is used by the Kernel's drain workers
+     * to wait for data instead of sleeping for a fixed interval.
+     *
+     * @param timeoutMillis Maximum time to wait in milliseconds.
+     * @return True if the buffer is not empty.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public boolean awaitElements(long timeoutMillis) throws InterruptedException {
+        synchronized (signal) {
+            consumerWaiting = true;
+            try {
+                if (isEmpty()) {
+                    signal.wait(timeoutMillis);
+                }
+            } finally {
+                consumerWaiting = false;
+            }
+        }
+        return !isEmpty();
+    }
+
+    private void signalConsumer() {
+        if (consumerWaiting) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
     }
 
     /**
@@ -85,16 +397,78 @@ public class Buffer {
      * @return True if the buffer is empty.
      */
     public boolean isEmpty() {
-        return queue.isEmpty();
+        return queue.isEmpty() && (spillStore == null || spillStore.pending() == 0);
     }
 
     /**
      * This method is mainly used for debugging and monitoring purposes to get
-     * the size of the internal buffer
+     * the size of the internal buffer. It runs in constant time.
      *
      * @return the number of elements in the buffer
      */
     public int size() {
-        return queue.size();
+        long size = elementCount.get();
+        if (spillStore != null) {
+            size += spillStore.pending();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Returns the estimated number of bytes held by the buffer. Only tracked
+     * when the buffer is bounded by bytes.
+     *
+     * @return the estimated number of bytes in the buffer
+     */
+    public long sizeInBytes() {
+        return byteCount.get();
+    }
+
+    /**
+     * Returns how full a bounded buffer is, as the larger of the element and
+     * byte occupancy. Always 0 for an unbounded buffer.
+     *
+     * @return occupancy between 0 and 1
+     */
+    public double occupancy() {
+        double occupancy = 0;
+        if (maxElements > 0) {
+            occupancy = (double) elementCount.get() / maxElements;
+        }
+        if (maxBytes > 0) {
+            occupancy = Math.max(occupancy, (double) byteCount.get() / maxBytes);
+        }
+        return Math.min(1, occupancy);
+    }
+
+    /**
+     * @return the number of elements dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of elements spilled to disk
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * @return the number of times a reporter was blocked because the buffer was full
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    private static final class SizedElement {
+        private final Object element;
+        private final long bytes;
+
+        private SizedElement(Object element, long bytes) {
+            this.element = element;
+            this.bytes = bytes;
+        }
     }
 }
@@ -20,31 +20,353 @@
 
 package spade.core;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * This class encapsulates the caching policy and implementation
  * for graph vertices and edges.
  *
+ * A cache maps the hashes of recently stored vertices or edges to the
+ * elements themselves and holds at most a fixed number of them. Storages
+ * use it to skip inserting elements they have already stored and to answer
+ * lookups for hot elements without a round trip to the database.
+ *
+ * The following policies are available:
+ * LRU      evicts the least recently used element.
+ * TINYLFU  like LRU but a new element is only admitted if it has been seen
+ *          more often than the element it would evict. The frequencies are
+ *          estimated with a count-min sketch which is halved periodically.
+ * BLOOM    like LRU but lookups are first checked against a bloom filter
+ *          of the cached hashes so that misses never touch the map.
+ *
  * @author Raza Ahmad
  */
-public class Cache<T> {
+public class Cache<V>
+{
+    private static final Logger logger = Logger.getLogger(Cache.class.getName());
+
+    public enum Policy {LRU, TINYLFU, BLOOM}
+
+    private static final double BLOOM_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private final Policy policy;
+    private final int maximumSize;
+    private final ConcurrentLinkedHashMap<String, V> map;
+    private final FrequencySketch sketch;
+    private final BloomFilter<String> bloomFilter;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+
+    /**
+     * @param policy The eviction and admission policy.
+     * @param maximumSize The maximum number of elements held.
+     */
+    public Cache(Policy policy, int maximumSize)
+    {
+        if(maximumSize <= 0)
+        {
+            throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+        }
+        this.policy = policy;
+        this.maximumSize = maximumSize;
+        this.map = new ConcurrentLinkedHashMap.Builder<String, V>()
+                .maximumWeightedCapacity(maximumSize)
+                .listener(new EvictionListener<String, V>()
+                {
+                    @Override
+                    public void onEviction(String key, V value)
+                    {
+                        evictionCount.incrementAndGet();
+                    }
+                })
+                .build();
+        this.sketch = (policy == Policy.TINYLFU) ? new FrequencySketch(maximumSize) : null;
+        this.bloomFilter = (policy == Policy.BLOOM) ?
+                new BloomFilter<String>(BLOOM_FALSE_POSITIVE_PROBABILITY, maximumSize) : null;
+    }
+
+    /**
+     * Creates a cache with the policy and size given by the 'storage_cache_policy'
+     * and 'storage_cache_size' settings.
+     *
+     * @return The cache, or null if caching has been disabled with a size of 0.
+     */
+    public static <V> Cache<V> fromSettings()
+    {
+        int size = Integer.parseInt(Settings.getProperty("storage_cache_size"));
+        if(size <= 0)
+        {
+            return null;
+        }
+        Policy policy;
+        try
+        {
+            policy = Policy.valueOf(Settings.getProperty("storage_cache_policy").toUpperCase());
+        }
+        catch(IllegalArgumentException exception)
+        {
+            logger.log(Level.WARNING, "Unknown cache policy. Using LRU.", exception);
+            policy = Policy.LRU;
+        }
+        return new Cache<>(policy, size);
+    }
+
+    /**
+     * This function checks for the presence of given hash in the cache.
+     * @param hash hash of the vertex or edge
+     * @return returns true if the hash is found in cache
+     */
+    public boolean isPresent(String hash)
+    {
+        return get(hash) != null;
+    }
+
+    /**
+     * Returns the element cached under the given hash.
+     * @param hash hash of the vertex or edge
+     * @return the cached element or null
+     */
+    public V get(String hash)
+    {
+        if(hash == null)
+        {
+            return null;
+        }
+        if(sketch != null)
+        {
+            sketch.increment(hash);
+        }
+        V value = null;
+        if(bloomFilter == null || bloomFilterContains(hash))
+        {
+            value = map.get(hash);
+        }
+        if(value == null)
+        {
+            missCount.incrementAndGet();
+        }
+        else
+        {
+            hitCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * This function adds an item to the cache.
+     * @param hash hash of the vertex or edge
+     * @param item the vertex or edge
+     * @return returns true if the item has been added to the cache. False if it
+     * has not been admitted by the policy.
+     */
+    public boolean addItem(String hash, V item)
+    {
+        if(hash == null || item == null)
+        {
+            return false;
+        }
+        if(sketch != null)
+        {
+            sketch.increment(hash);
+            if(map.size() >= maximumSize && !map.containsKey(hash))
+            {
+                // the map evicts its least recently used entry to make room
+                // so the newcomer has to be more popular than that entry
+                Iterator<String> victims = map.ascendingKeySetWithLimit(1).iterator();
+                if(victims.hasNext() && sketch.frequency(hash) <= sketch.frequency(victims.next()))
+                {
+                    rejectionCount.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        map.put(hash, item);
+        if(bloomFilter != null)
+        {
+            bloomFilterAdd(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the element cached under the given hash.
+     * @param hash hash of the vertex or edge
+     */
+    public void remove(String hash)
+    {
+        // the bloom filter keeps the hash until it is rebuilt, which only
+        // costs an extra map lookup
+        map.remove(hash);
+    }
+
+    /**
+     * Removes all elements from the cache. Counters are retained.
+     */
+    public void clear()
+    {
+        map.clear();
+        if(bloomFilter != null)
+        {
+            synchronized(bloomFilter)
+            {
+                bloomFilter.clear();
+            }
+        }
+    }
+
+    private boolean bloomFilterContains(String hash)
+    {
+        synchronized(bloomFilter)
+        {
+            return bloomFilter.contains(hash);
+        }
+    }
+
+    private void bloomFilterAdd(String hash)
+    {
+        synchronized(bloomFilter)
+        {
+            // evicted hashes stay in the filter so it is rebuilt from the
+            // cached hashes once it has seen more than it was sized for
+            if(bloomFilter.count() >= 2 * maximumSize)
+            {
+                bloomFilter.clear();
+                for(String key : map.keySet())
+                {
+                    bloomFilter.add(key);
+                }
+            }
+            bloomFilter.add(hash);
+        }
+    }
+
+    public Policy getPolicy()
+    {
+        return policy;
+    }
+
+    public int getMaximumSize()
+    {
+        return maximumSize;
+    }
+
+    public int size()
+    {
+        return map.size();
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
 
     /**
-     * This function checks for the presence of given object in the underlying cache(s).
-     * @param object object to check the presence of
-     * @return returns true if the object is found in cache
+     * @return The number of items not admitted by the TINYLFU policy.
      */
-    public static<T> boolean isPresent(T object)
+    public long getRejectionCount()
     {
-        return false;
+        return rejectionCount.get();
+    }
+
+    public double getHitRatio()
+    {
+        long hits = hitCount.get();
+        long requests = hits + missCount.get();
+        return (requests == 0) ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "policy=" + policy + ", size=" + size() + "/" + maximumSize
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", rejections=" + getRejectionCount()
+                + String.format(", hitRatio=%.3f", getHitRatio());
     }
 
     /**
-     * This function adds an item to the underlying cache(s).
-     * @param object object to add to the cache(s).
-     * @return returns true if the object has been successfully added to the cache
+     * Count-min sketch of 4-bit counters used to estimate how often a hash
+     * has been seen recently. All counters are halved after a number of
+     * increments proportional to the cache size so that old popularity fades.
      */
-    public static<T> boolean addItem(T object)
+    private static final class FrequencySketch
     {
-        return false;
+        private static final int DEPTH = 4;
+        private static final int MAXIMUM_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb8b8b8b9, 0x5bd1e995, 0xc2b2ae35};
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        private FrequencySketch(int maximumSize)
+        {
+            int width = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+            table = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = (maximumSize > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : 10 * maximumSize;
+        }
+
+        private static int index(int hash, int row, int mask)
+        {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private synchronized int frequency(String key)
+        {
+            int hash = key.hashCode();
+            int frequency = MAXIMUM_COUNT;
+            for(int row = 0; row < DEPTH; row++)
+            {
+                frequency = Math.min(frequency, table[row][index(hash, row, mask)]);
+            }
+            return frequency;
+        }
+
+        private synchronized void increment(String key)
+        {
+            int hash = key.hashCode();
+            for(int row = 0; row < DEPTH; row++)
+            {
+                int i = index(hash, row, mask);
+                if(table[row][i] < MAXIMUM_COUNT)
+                {
+                    table[row][i]++;
+                }
+            }
+            if(++additions >= sampleSize)
+            {
+                for(byte[] counters : table)
+                {
+                    for(int i = 0; i < counters.length; i++)
+                    {
+                        counters[i] >>= 1;
+                    }
+                }
+                additions >>= 1;
+            }
+        }
     }
 }
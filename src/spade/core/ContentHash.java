@@ -0,0 +1,533 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Computes the 128-bit content hashes of vertices and edges.
+ *
+ * The algorithm is chosen with the 'hash_algorithm' setting:
+ * md5      MD5 of the textual form of the element. This is the same hash that
+ *          has always been used so it matches hashes already in storages.
+ * murmur3  128-bit (x64) Murmur3 of a binary encoding of the sorted annotations
+ *          and, for edges, the hashes of the end points. Much faster than MD5
+ *          but not compatible with hashes computed with it.
+ *
+ * In both cases the element is encoded into a per-thread buffer which is
+ * reused, so hashing does not build intermediate strings.
+ */
+public final class ContentHash
+{
+    private static final Logger logger = Logger.getLogger(ContentHash.class.getName());
+
+    public enum Algorithm {MD5, MURMUR3}
+
+    private static final Algorithm ALGORITHM = parseAlgorithm(Settings.getProperty("hash_algorithm"));
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte VERTEX_TAG = 'V';
+    private static final byte EDGE_TAG = 'E';
+
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>()
+    {
+        @Override
+        protected Encoder initialValue()
+        {
+            return new Encoder();
+        }
+    };
+
+    private ContentHash()
+    {
+    }
+
+    private static Algorithm parseAlgorithm(String value)
+    {
+        if(value != null)
+        {
+            try
+            {
+                return Algorithm.valueOf(value.trim().toUpperCase());
+            }
+            catch(IllegalArgumentException exception)
+            {
+                logger.log(Level.WARNING, "Unknown hash algorithm: " + value + ". Using MD5.");
+            }
+        }
+        return Algorithm.MD5;
+    }
+
+    public static Algorithm getAlgorithm()
+    {
+        return ALGORITHM;
+    }
+
+    /**
+     * An immutable 128-bit hash. The hex form is computed on first use.
+     */
+    public static final class Digest
+    {
+        private final long high;
+        private final long low;
+        // state of the element when this digest was computed
+        final int version;
+        final Digest childDigest;
+        final Digest parentDigest;
+        private String hex;
+
+        private Digest(long high, long low, int version, Digest childDigest, Digest parentDigest)
+        {
+            this.high = high;
+            this.low = low;
+            this.version = version;
+            this.childDigest = childDigest;
+            this.parentDigest = parentDigest;
+        }
+
+        /**
+         * @return The first 64 bits of the hash.
+         */
+        public long getMostSignificantBits()
+        {
+            return high;
+        }
+
+        /**
+         * @return The last 64 bits of the hash.
+         */
+        public long getLeastSignificantBits()
+        {
+            return low;
+        }
+
+        /**
+         * @return The hash as 32 lower-case hex digits.
+         */
+        public String toHex()
+        {
+            String result = hex;
+            if(result == null)
+            {
+                result = ContentHash.toHex(high, low);
+                hex = result;
+            }
+            return result;
+        }
+
+        /**
+         * @return The hash as 16 bytes, most significant first.
+         */
+        public byte[] toBytes()
+        {
+            byte[] bytes = new byte[16];
+            for(int i = 0; i < 8; i++)
+            {
+                bytes[i] = (byte) (high >>> (56 - 8 * i));
+                bytes[8 + i] = (byte) (low >>> (56 - 8 * i));
+            }
+            return bytes;
+        }
+
+        boolean sameValue(Digest other)
+        {
+            return other != null && high == other.high && low == other.low;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return (other instanceof Digest) && sameValue((Digest) other);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (high ^ (high >>> 32) ^ low ^ (low >>> 32));
+        }
+
+        @Override
+        public String toString()
+        {
+            return toHex();
+        }
+    }
+
+    /**
+     * @return The 128-bit hash with the given halves as 32 lower-case hex digits.
+     */
+    static String toHex(long high, long low)
+    {
+        char[] chars = new char[32];
+        for(int i = 0; i < 16; i++)
+        {
+            chars[i] = HEX_DIGITS[(int) (high >>> (60 - 4 * i)) & 0xf];
+            chars[16 + i] = HEX_DIGITS[(int) (low >>> (60 - 4 * i)) & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static Digest ofVertex(Map<String, String> annotations, int version)
+    {
+        Encoder encoder = encoders.get();
+        encoder.reset();
+        if(ALGORITHM == Algorithm.MD5)
+        {
+            encoder.writeVertexText(annotations);
+            return encoder.md5(version, null, null);
+        }
+        encoder.writeByte(VERTEX_TAG);
+        encoder.writeAnnotations(annotations);
+        return encoder.murmur3(version, null, null);
+    }
+
+    static Digest ofEdge(Map<String, String> annotations, int version,
+                         AbstractVertex childVertex, Digest childDigest,
+                         AbstractVertex parentVertex, Digest parentDigest)
+    {
+        Encoder encoder = encoders.get();
+        encoder.reset();
+        if(ALGORITHM == Algorithm.MD5)
+        {
+            encoder.writeAscii("AbstractEdge{annotations=");
+            encoder.writeMapText(annotations);
+            encoder.writeAscii(", childVertex=");
+            encoder.writeVertexText(childVertex == null ? null : childVertex.getAnnotations());
+            encoder.writeAscii(", parentVertex=");
+            encoder.writeVertexText(parentVertex == null ? null : parentVertex.getAnnotations());
+            encoder.writeByte((byte) '}');
+            return encoder.md5(version, childDigest, parentDigest);
+        }
+        encoder.writeByte(EDGE_TAG);
+        encoder.writeAnnotations(annotations);
+        encoder.writeDigest(childDigest);
+        encoder.writeDigest(parentDigest);
+        return encoder.murmur3(version, childDigest, parentDigest);
+    }
+
+    /**
+     * Per-thread growable byte buffer that elements are encoded into.
+     */
+    private static final class Encoder
+    {
+        private byte[] buffer = new byte[1024];
+        private int length = 0;
+        private MessageDigest md5;
+
+        private void reset()
+        {
+            length = 0;
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            if(length + extra > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private void writeByte(byte b)
+        {
+            ensureCapacity(1);
+            buffer[length++] = b;
+        }
+
+        private void writeAscii(String string)
+        {
+            int n = string.length();
+            ensureCapacity(n);
+            for(int i = 0; i < n; i++)
+            {
+                buffer[length++] = (byte) string.charAt(i);
+            }
+        }
+
+        private void writeLong(long value)
+        {
+            ensureCapacity(8);
+            for(int i = 56; i >= 0; i -= 8)
+            {
+                buffer[length++] = (byte) (value >>> i);
+            }
+        }
+
+        private void writeVarInt(int value)
+        {
+            ensureCapacity(5);
+            while((value & ~0x7f) != 0)
+            {
+                buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        /**
+         * Writes the string as UTF-8 in the same way as String.getBytes(UTF_8),
+         * including the replacement of unpaired surrogates with '?'.
+         */
+        private void writeUtf8(String string)
+        {
+            if(string == null)
+            {
+                writeAscii("null");
+                return;
+            }
+            int n = string.length();
+            ensureCapacity(3 * n);
+            for(int i = 0; i < n; i++)
+            {
+                char c = string.charAt(i);
+                if(c < 0x80)
+                {
+                    buffer[length++] = (byte) c;
+                }
+                else if(c < 0x800)
+                {
+                    buffer[length++] = (byte) (0xc0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+                else if(Character.isSurrogate(c))
+                {
+                    if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(string.charAt(i + 1)))
+                    {
+                        int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                        buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+                        buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                        buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                        buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+                    }
+                    else
+                    {
+                        buffer[length++] = (byte) '?';
+                    }
+                }
+                else
+                {
+                    buffer[length++] = (byte) (0xe0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        /**
+         * Writes the annotations as they are printed by AbstractMap.toString().
+         */
+        private void writeMapText(Map<String, String> annotations)
+        {
+            writeByte((byte) '{');
+            boolean first = true;
+            for(Map.Entry<String, String> entry : annotations.entrySet())
+            {
+                if(!first)
+                {
+                    writeAscii(", ");
+                }
+                first = false;
+                writeUtf8(entry.getKey());
+                writeByte((byte) '=');
+                writeUtf8(entry.getValue());
+            }
+            writeByte((byte) '}');
+        }
+
+        /**
+         * Writes the vertex as it is printed by AbstractVertex.toString().
+         */
+        private void writeVertexText(Map<String, String> annotations)
+        {
+            if(annotations == null)
+            {
+                writeAscii("null");
+                return;
+            }
+            writeAscii("AbstractVertex{annotations=");
+            writeMapText(annotations);
+            writeByte((byte) '}');
+        }
+
+        /**
+         * Writes the annotations in their sorted order. Every string is
+         * prefixed with its length in chars so that the encoding is unambiguous.
+         */
+        private void writeAnnotations(Map<String, String> annotations)
+        {
+            writeVarInt(annotations.size());
+            for(Map.Entry<String, String> entry : annotations.entrySet())
+            {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeString(String string)
+        {
+            if(string == null)
+            {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(string.length() + 1);
+            writeUtf8(string);
+        }
+
+        private void writeDigest(Digest digest)
+        {
+            if(digest == null)
+            {
+                writeByte((byte) 0);
+                return;
+            }
+            writeByte((byte) 1);
+            writeLong(digest.high);
+            writeLong(digest.low);
+        }
+
+        private Digest md5(int version, Digest childDigest, Digest parentDigest)
+        {
+            if(md5 == null)
+            {
+                try
+                {
+                    md5 = MessageDigest.getInstance("MD5");
+                }
+                catch(NoSuchAlgorithmException exception)
+                {
+                    throw new IllegalStateException(exception);
+                }
+            }
+            md5.update(buffer, 0, length);
+            byte[] digest = md5.digest();
+            long high = 0;
+            long low = 0;
+            for(int i = 0; i < 8; i++)
+            {
+                high = (high << 8) | (digest[i] & 0xff);
+                low = (low << 8) | (digest[8 + i] & 0xff);
+            }
+            return new Digest(high, low, version, childDigest, parentDigest);
+        }
+
+        /**
+         * MurmurHash3_x64_128 with a seed of 0 over the encoded bytes.
+         */
+        @SuppressWarnings("fallthrough")
+        private Digest murmur3(int version, Digest childDigest, Digest parentDigest)
+        {
+            final long c1 = 0x87c37b91114253d5L;
+            final long c2 = 0x4cf5ad432745937fL;
+            long h1 = 0;
+            long h2 = 0;
+            int blocks = length >>> 4;
+            for(int i = 0; i < blocks; i++)
+            {
+                long k1 = getLongLittleEndian(buffer, i << 4);
+                long k2 = getLongLittleEndian(buffer, (i << 4) + 8);
+
+                k1 *= c1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= c2;
+                h1 ^= k1;
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+
+                k2 *= c2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= c1;
+                h2 ^= k2;
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+
+            int tail = blocks << 4;
+            long k1 = 0;
+            long k2 = 0;
+            switch(length & 15)
+            {
+                case 15: k2 ^= (long) (buffer[tail + 14] & 0xff) << 48;
+                case 14: k2 ^= (long) (buffer[tail + 13] & 0xff) << 40;
+                case 13: k2 ^= (long) (buffer[tail + 12] & 0xff) << 32;
+                case 12: k2 ^= (long) (buffer[tail + 11] & 0xff) << 24;
+                case 11: k2 ^= (long) (buffer[tail + 10] & 0xff) << 16;
+                case 10: k2 ^= (long) (buffer[tail + 9] & 0xff) << 8;
+                case 9:
+                    k2 ^= (long) (buffer[tail + 8] & 0xff);
+                    k2 *= c2;
+                    k2 = Long.rotateLeft(k2, 33);
+                    k2 *= c1;
+                    h2 ^= k2;
+                case 8: k1 ^= (long) (buffer[tail + 7] & 0xff) << 56;
+                case 7: k1 ^= (long) (buffer[tail + 6] & 0xff) << 48;
+                case 6: k1 ^= (long) (buffer[tail + 5] & 0xff) << 40;
+                case 5: k1 ^= (long) (buffer[tail + 4] & 0xff) << 32;
+                case 4: k1 ^= (long) (buffer[tail + 3] & 0xff) << 24;
+                case 3: k1 ^= (long) (buffer[tail + 2] & 0xff) << 16;
+                case 2: k1 ^= (long) (buffer[tail + 1] & 0xff) << 8;
+                case 1:
+                    k1 ^= (long) (buffer[tail] & 0xff);
+                    k1 *= c1;
+                    k1 = Long.rotateLeft(k1, 31);
+                    k1 *= c2;
+                    h1 ^= k1;
+                default:
+                    break;
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix64(h1);
+            h2 = fmix64(h2);
+            h1 += h2;
+            h2 += h1;
+            return new Digest(h1, h2, version, childDigest, parentDigest);
+        }
+
+        private static long getLongLittleEndian(byte[] bytes, int offset)
+        {
+            long value = 0;
+            for(int i = 7; i >= 0; i--)
+            {
+                value = (value << 8) | (bytes[offset + i] & 0xff);
+            }
+            return value;
+        }
+
+        private static long fmix64(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
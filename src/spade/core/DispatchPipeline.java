@@ -0,0 +1,457 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multi-threaded dispatch engine used by the Kernel in place of the single
+ * polling main thread.
+ *
+ * Every reporter gets its own drain worker which waits on the reporter's
+ * buffer and passes elements through the filter list in the order they were
+ * reported. Every storage gets its own commit stage: a bounded queue and a
+ * thread which is the only thread that calls putVertex, putEdge,
+ * flushTransactions and shutdown on that storage. This keeps storages that
+ * are sensitive to thread-context for their transactions (e.g. the embedded
+ * neo4j database) working, while the filter list and the storages run
+ * concurrently.
+ *
+ * Commit stages are only created for storages in the Kernel's set of active
+ * storages. Elements for a storage that is being or has been removed are
+ * dropped and counted.
+ *
+ * @author Dawood Tariq and Raza Ahmad
+ */
+public class DispatchPipeline
+{
+    private static final Logger logger = Logger.getLogger(DispatchPipeline.class.getName());
+
+    // Only every DROP_LOG_INTERVAL-th dropped element is logged
+    private static final long DROP_LOG_INTERVAL = 10000;
+
+    private final Set<AbstractReporter> reporters;
+    private final Set<AbstractReporter> removeReporters;
+    private final List<AbstractFilter> filters;
+    private final Set<AbstractStorage> storages;
+    private final int batchSize;
+    private final int storageQueueCapacity;
+    private final long idleWaitMillis;
+    private final long flushIntervalMillis;
+
+    private final Map<AbstractReporter, DrainWorker> drainWorkers = new ConcurrentHashMap<>();
+    // Guarded by itself so that creating and pruning stages cannot interleave
+    private final Map<AbstractStorage, StorageStage> storageStages = new HashMap<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean draining = true;
+
+    /**
+     * @param reporters Set of active reporters maintained by the Kernel.
+     * @param removeReporters Set of reporters marked for removal by the Kernel.
+     * @param filters The filter list. The first filter receives all elements.
+     * @param storages Set of active storages maintained by the Kernel.
+     * @param batchSize Maximum number of elements drained from a buffer at once.
+     *                  Transactions are also flushed after every batchSize committed elements.
+     * @param storageQueueCapacity Capacity of the queue in front of each storage.
+     * @param idleWaitMillis Maximum time an idle worker waits before rechecking its state.
+     * @param flushIntervalMillis Maximum time between flushes of transactions of a busy storage.
+     */
+    public DispatchPipeline(Set<AbstractReporter> reporters, Set<AbstractReporter> removeReporters,
+                            List<AbstractFilter> filters, Set<AbstractStorage> storages, int batchSize,
+                            int storageQueueCapacity, long idleWaitMillis, long flushIntervalMillis)
+    {
+        this.reporters = reporters;
+        this.removeReporters = removeReporters;
+        this.filters = filters;
+        this.storages = storages;
+        this.batchSize = batchSize;
+        this.storageQueueCapacity = storageQueueCapacity;
+        this.idleWaitMillis = idleWaitMillis;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Starts a drain worker for the given reporter if one is not already running.
+     *
+     * @param reporter The reporter whose buffer is to be drained.
+     */
+    public void ensureDrainWorker(AbstractReporter reporter)
+    {
+        if (!draining || drainWorkers.containsKey(reporter))
+        {
+            return;
+        }
+        DrainWorker worker = new DrainWorker(reporter);
+        if (drainWorkers.putIfAbsent(reporter, worker) == null)
+        {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Hands a vertex to the commit stage of every given storage.
+     * Blocks if the queue of a storage is full.
+     *
+     * @param incomingVertex The vertex to commit.
+     * @param storages The storages to commit the vertex to.
+     */
+    public void commitVertex(AbstractVertex incomingVertex, Set<AbstractStorage> storages)
+    {
+        commit(incomingVertex, storages);
+    }
+
+    /**
+     * Hands an edge to the commit stage of every given storage.
+     * Blocks if the queue of a storage is full.
+     *
+     * @param incomingEdge The edge to commit.
+     * @param storages The storages to commit the edge to.
+     */
+    public void commitEdge(AbstractEdge incomingEdge, Set<AbstractStorage> storages)
+    {
+        commit(incomingEdge, storages);
+    }
+
+    private void commit(Object element, Set<AbstractStorage> storages)
+    {
+        for (AbstractStorage storage : storages)
+        {
+            StorageStage stage = getStorageStage(storage);
+            if (stage == null || !stage.offer(element))
+            {
+                long dropped = droppedCount.incrementAndGet();
+                if (dropped % DROP_LOG_INTERVAL == 1)
+                {
+                    logger.log(Level.WARNING, "Dropped element for closed storage: {0} ({1} dropped in total)",
+                            new Object[]{storage.getClass().getSimpleName(), dropped});
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the commit stage of the given storage. A stage is created and
+     * started only if the storage is still active.
+     *
+     * @return The commit stage or null if the storage is no longer active.
+     */
+    private StorageStage getStorageStage(AbstractStorage storage)
+    {
+        synchronized (storageStages)
+        {
+            StorageStage stage = storageStages.get(storage);
+            if (stage == null && storages.contains(storage))
+            {
+                stage = new StorageStage(storage);
+                storageStages.put(storage, stage);
+                stage.thread.start();
+            }
+            return stage;
+        }
+    }
+
+    /**
+     * Commits all queued elements to the given storage and shuts it down on
+     * the thread of its commit stage. Blocks until the storage is shut down.
+     *
+     * @param storage The storage to remove.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void removeStorage(AbstractStorage storage) throws InterruptedException
+    {
+        StorageStage stage = getStorageStage(storage);
+        if (stage == null)
+        {
+            // never registered or already removed
+            return;
+        }
+        stage.close();
+        stage.thread.join();
+    }
+
+    /**
+     * Discards the commit stages of storages which have been removed from the
+     * given set of active storages.
+     *
+     * @param storages Set of active storages.
+     */
+    public void pruneStorageStages(Set<AbstractStorage> storages)
+    {
+        synchronized (storageStages)
+        {
+            storageStages.keySet().retainAll(storages);
+        }
+    }
+
+    /**
+     * Asks every commit stage to flush the transactions of its storage. The
+     * flush is done on the thread of the commit stage.
+     */
+    public void flushTransactions()
+    {
+        synchronized (storageStages)
+        {
+            for (StorageStage stage : storageStages.values())
+            {
+                stage.flushRequested = true;
+            }
+        }
+    }
+
+    /**
+     * @return The number of elements dropped because their storage was closed.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops all drain workers once their buffers are empty and waits for them
+     * to finish passing their last elements to the filter list.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void stopDrainWorkers() throws InterruptedException
+    {
+        draining = false;
+        for (DrainWorker worker : drainWorkers.values())
+        {
+            worker.thread.join();
+        }
+    }
+
+    /**
+     * Commits all queued elements and shuts down every storage on the thread
+     * of its commit stage.
+     *
+     * @param storages Set of active storages.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void shutdownStorages(Set<AbstractStorage> storages) throws InterruptedException
+    {
+        for (AbstractStorage storage : storages)
+        {
+            removeStorage(storage);
+        }
+    }
+
+    /**
+     * Returns the number of elements waiting to be committed to the given storage.
+     *
+     * @param storage The storage.
+     * @return The number of queued elements.
+     */
+    public int getStorageQueueSize(AbstractStorage storage)
+    {
+        StorageStage stage;
+        synchronized (storageStages)
+        {
+            stage = storageStages.get(storage);
+        }
+        return (stage == null) ? 0 : stage.queue.size();
+    }
+
+    private final class DrainWorker implements Runnable
+    {
+        private final AbstractReporter reporter;
+        private final Thread thread;
+
+        private DrainWorker(AbstractReporter reporter)
+        {
+            this.reporter = reporter;
+            this.thread = new Thread(this, "drain-" + reporter.getClass().getSimpleName() + "-Thread");
+        }
+
+        @Override
+        public void run()
+        {
+            Buffer buffer = reporter.getBuffer();
+            try
+            {
+                while (true)
+                {
+                    int drained = 0;
+                    Object bufferElement;
+                    while (drained < batchSize && (bufferElement = buffer.getBufferElement()) != null)
+                    {
+                        dispatch(bufferElement);
+                        drained++;
+                    }
+                    if (drained == 0)
+                    {
+                        // The buffer is empty. The reporter is done once it has been
+                        // marked for removal or is no longer known to the Kernel.
+                        if (removeReporters.remove(reporter) || !reporters.contains(reporter) || !draining)
+                        {
+                            break;
+                        }
+                        buffer.awaitElements(idleWaitMillis);
+                    }
+                }
+            }
+            catch (InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception exception)
+            {
+                logger.log(Level.SEVERE, "Error in drain worker", exception);
+            }
+            finally
+            {
+                drainWorkers.remove(reporter, this);
+            }
+        }
+
+        private void dispatch(Object bufferElement)
+        {
+            // Filters are not thread-safe so elements from different reporters
+            // are passed through the filter list one at a time. The list's own
+            // monitor is used so that adding or removing filters is also safe.
+            synchronized (filters)
+            {
+                if (bufferElement instanceof AbstractVertex)
+                {
+                    filters.get(0).putVertex((AbstractVertex) bufferElement);
+                }
+                else if (bufferElement instanceof AbstractEdge)
+                {
+                    filters.get(0).putEdge((AbstractEdge) bufferElement);
+                }
+            }
+        }
+    }
+
+    private final class StorageStage implements Runnable
+    {
+        private final AbstractStorage storage;
+        private final BlockingQueue<Object> queue;
+        private final Thread thread;
+        private volatile boolean closed = false;
+        private volatile boolean flushRequested = false;
+
+        private StorageStage(AbstractStorage storage)
+        {
+            this.storage = storage;
+            this.queue = new LinkedBlockingQueue<>(storageQueueCapacity);
+            this.thread = new Thread(this, "commit-" + storage.getClass().getSimpleName() + "-Thread");
+        }
+
+        private boolean offer(Object element)
+        {
+            try
+            {
+                while (!closed)
+                {
+                    if (queue.offer(element, idleWaitMillis, TimeUnit.MILLISECONDS))
+                    {
+                        return true;
+                    }
+                }
+            }
+            catch (InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        private void close()
+        {
+            closed = true;
+        }
+
+        @Override
+        public void run()
+        {
+            // Transactions are flushed on the thread that owns the storage whenever
+            // the queue runs dry, after every batchSize elements, after
+            // flushIntervalMillis and when the Kernel asks for it.
+            int sinceFlush = 0;
+            long lastFlushMillis = System.currentTimeMillis();
+            try
+            {
+                while (true)
+                {
+                    Object element = queue.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    if (element == null)
+                    {
+                        flushRequested = false;
+                        storage.flushTransactions();
+                        sinceFlush = 0;
+                        lastFlushMillis = System.currentTimeMillis();
+                        if (closed && queue.isEmpty())
+                        {
+                            break;
+                        }
+                        continue;
+                    }
+                    else if (element instanceof AbstractVertex)
+                    {
+                        if (storage.putVertex((AbstractVertex) element))
+                        {
+                            storage.vertexCount++;
+                        }
+                    }
+                    else if (element instanceof AbstractEdge)
+                    {
+                        if (storage.putEdge((AbstractEdge) element))
+                        {
+                            storage.edgeCount++;
+                        }
+                    }
+                    sinceFlush++;
+                    if (flushRequested || sinceFlush >= batchSize
+                            || System.currentTimeMillis() - lastFlushMillis >= flushIntervalMillis)
+                    {
+                        flushRequested = false;
+                        storage.flushTransactions();
+                        sinceFlush = 0;
+                        lastFlushMillis = System.currentTimeMillis();
+                    }
+                }
+            }
+            catch (InterruptedException exception)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception exception)
+            {
+                logger.log(Level.SEVERE, "Error in commit stage", exception);
+            }
+            finally
+            {
+                closed = true;
+                storage.shutdown();
+            }
+        }
+    }
+}
@@ -50,6 +50,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -80,17 +81,45 @@ public class Graph extends AbstractStorage implements Serializable
     private static final String DST_VERTEX_ID = "DST_VERTEX_ID";
     private static final String ID_STRING = Settings.getProperty("storage_identifier");
 
+    /**
+     * Beginning and end of a graph exported in DOT format.
+     */
+    public static final String DOT_HEADER = "digraph spade2dot {\n" + "graph [rankdir = \"RL\"];\n"
+            + "node [fontname=\"Helvetica\" fontsize=\"8\" style=\"filled\" margin=\"0.0,0.0\"];\n"
+            + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n";
+    public static final String DOT_FOOTER = "}\n";
+
     private static final Pattern nodePattern = Pattern.compile("\"(.*)\" \\[label=\"(.*)\" shape=\"(\\w*)\" fillcolor=\"(\\w*)\"", Pattern.DOTALL);
     private static final Pattern edgePattern = Pattern.compile("\"(.*)\" -> \"(.*)\" \\[label=\"(.*)\" color=\"(\\w*)\"", Pattern.DOTALL);
 
-    private transient Analyzer analyzer = new KeywordAnalyzer();
-    private transient QueryParser queryParser = new QueryParser(Version.LUCENE_35, null, analyzer);
+    /**
+     * When the Lucene index of the vertices and edges is built. LAZY graphs
+     * build it in bulk on commitIndex() or on the first listVertices() call,
+     * which most query results and intermediate graphs never make. EAGER
+     * graphs index every element as it is added.
+     */
+    public enum IndexMode {LAZY, EAGER}
+
+    private static final IndexMode DEFAULT_INDEX_MODE = "eager".equalsIgnoreCase(Settings.getProperty("graph_index_mode")) ?
+            IndexMode.EAGER : IndexMode.LAZY;
+
+    private transient Analyzer analyzer;
+    private transient QueryParser queryParser;
+    private IndexMode indexMode;
+    // Elements added since the index was last updated, in the order of their serial numbers
+    private List<Object> unindexedElements = new ArrayList<>();
     private Set<AbstractVertex> vertexSet = new LinkedHashSet<>();
     private Map<String, AbstractVertex> vertexIdentifiers = new HashMap<>();
     private Map<AbstractVertex, String> reverseVertexIdentifiers = new HashMap<>();
     private Set<AbstractEdge> edgeSet = new LinkedHashSet<>();
     private Map<String, AbstractEdge> edgeIdentifiers = new HashMap<>();
     private Map<AbstractEdge, String> reverseEdgeIdentifiers = new HashMap<>();
+    /**
+     * Adjacency indexes of the edges added with putEdge, keyed by the hash of
+     * the parent and of the child vertex respectively.
+     */
+    private Map<String, Set<AbstractEdge>> childEdges = new HashMap<>();
+    private Map<String, Set<AbstractEdge>> parentEdges = new HashMap<>();
     private Map<AbstractVertex, Integer> networkMap = new HashMap<>();
     private int serial_number = 1;
     /**
@@ -117,19 +146,97 @@ public class Graph extends AbstractStorage implements Serializable
     }
 
     /**
-     * An empty constructor.
+     * An empty constructor. The index mode is given by the 'graph_index_mode'
+     * setting and is lazy by default.
      */
     public Graph() {
-        // Lucene initialization
-        try {
+        this(DEFAULT_INDEX_MODE);
+    }
+
+    /**
+     * @param indexMode When to build the Lucene index of this graph.
+     */
+    public Graph(IndexMode indexMode) {
+        this.indexMode = indexMode;
+    }
+
+    public IndexMode getIndexMode() {
+        return indexMode;
+    }
+
+    /**
+     * Opens the Lucene index and its writers if they are not open yet.
+     */
+    private void openIndex() throws IOException {
+        if (analyzer == null) {
+            analyzer = new KeywordAnalyzer();
+        }
+        if (vertexIndex == null) {
             vertexIndex = new RAMDirectory();
             edgeIndex = new RAMDirectory();
+        }
+        if (vertexIndexWriter == null) {
             vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
             edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(Version.LUCENE_35, analyzer));
-            queryParser.setAllowLeadingWildcard(true);
+        }
+    }
+
+    /**
+     * Adds the documents of all elements added since the last update to the
+     * Lucene index.
+     */
+    private void updateIndex() {
+        if (unindexedElements.isEmpty()) {
+            return;
+        }
+        int serial = serial_number - unindexedElements.size();
+        try {
+            openIndex();
+            for (Object element : unindexedElements) {
+                if (element instanceof AbstractVertex) {
+                    vertexIndexWriter.addDocument(createDocument((AbstractVertex) element, serial));
+                } else {
+                    edgeIndexWriter.addDocument(createDocument((AbstractEdge) element, serial));
+                }
+                serial++;
+            }
         } catch (Exception exception) {
             logger.log(Level.SEVERE, null, exception);
         }
+        unindexedElements.clear();
+    }
+
+    private Document createDocument(AbstractVertex vertex, int serial) {
+        Document doc = new Document();
+        for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        doc.add(new Field(ID_STRING, Integer.toString(serial), Field.Store.YES, Field.Index.ANALYZED));
+        return doc;
+    }
+
+    private Document createDocument(AbstractEdge edge, int serial) {
+        Document doc = new Document();
+        for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet()) {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key.equals(ID_STRING)) {
+                continue;
+            }
+            doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        doc.add(new Field(ID_STRING, Integer.toString(serial), Field.Store.YES, Field.Index.ANALYZED));
+        String childVertexId = reverseVertexIdentifiers.get(edge.getChildVertex());
+        String parentVertexId = reverseVertexIdentifiers.get(edge.getParentVertex());
+        if (childVertexId != null) {
+            doc.add(new Field(SRC_VERTEX_ID, childVertexId, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        if (parentVertexId != null) {
+            doc.add(new Field(DST_VERTEX_ID, parentVertexId, Field.Store.YES, Field.Index.ANALYZED));
+        }
+        return doc;
     }
 
     public String getHash(AbstractVertex vertex)
@@ -168,29 +275,16 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
+        String hashCode = incomingVertex.bigHashCode();
+        vertexIdentifiers.put(hashCode, incomingVertex);
+        reverseVertexIdentifiers.put(incomingVertex, hashCode);
+        vertexSet.add(incomingVertex);
+        serial_number++;
         // Add vertex to Lucene index
-        try
+        unindexedElements.add(incomingVertex);
+        if (indexMode == IndexMode.EAGER)
         {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            vertexIndexWriter.addDocument(doc);
-            // vertexIndexWriter.commit();
-
-            String hashCode = incomingVertex.bigHashCode();
-            vertexIdentifiers.put(hashCode, incomingVertex);
-            reverseVertexIdentifiers.put(incomingVertex, hashCode);
-            vertexSet.add(incomingVertex);
-            serial_number++;
-        }
-        catch (Exception exception)
-        {
-            logger.log(Level.SEVERE, null, exception);
+            updateIndex();
         }
         return true;
     }
@@ -215,30 +309,23 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add edge to Lucene index
         try
         {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key.equals(ID_STRING)) {
-                    continue;
-                }
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(ID_STRING, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(SRC_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getChildVertex()), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(DST_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getParentVertex()), Field.Store.YES, Field.Index.ANALYZED));
-            edgeIndexWriter.addDocument(doc);
-            // edgeIndexWriter.commit();
-
-            String hashCode = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
+            String childHash = incomingEdge.getChildVertex().bigHashCode();
+            String parentHash = incomingEdge.getParentVertex().bigHashCode();
+            String hashCode = childHash + parentHash;
             edgeIdentifiers.put(hashCode, incomingEdge);
             reverseEdgeIdentifiers.put(incomingEdge, hashCode);
             edgeSet.add(incomingEdge);
+            addToIndex(childEdges, parentHash, incomingEdge);
+            addToIndex(parentEdges, childHash, incomingEdge);
             serial_number++;
+            // Add edge to Lucene index
+            unindexedElements.add(incomingEdge);
+            if (indexMode == IndexMode.EAGER)
+            {
+                updateIndex();
+            }
         }
         catch (Exception exception)
         {
@@ -247,8 +334,48 @@ public class Graph extends AbstractStorage implements Serializable
         return true;
     }
 
+    private static void addToIndex(Map<String, Set<AbstractEdge>> index, String vertexHash, AbstractEdge edge)
+    {
+        Set<AbstractEdge> edges = index.get(vertexHash);
+        if(edges == null)
+        {
+            edges = new LinkedHashSet<>();
+            index.put(vertexHash, edges);
+        }
+        edges.add(edge);
+    }
+
+    /**
+     * Returns the edges added to this graph whose parent is the given vertex.
+     *
+     * @param parentVertexHash hash of the parent vertex
+     * @return an unmodifiable set of edges, empty if there are none.
+     */
+    public Set<AbstractEdge> getChildEdges(String parentVertexHash)
+    {
+        Set<AbstractEdge> edges = childEdges.get(parentVertexHash);
+        return (edges == null) ? Collections.<AbstractEdge>emptySet() : Collections.unmodifiableSet(edges);
+    }
+
+    /**
+     * Returns the edges added to this graph whose child is the given vertex.
+     *
+     * @param childVertexHash hash of the child vertex
+     * @return an unmodifiable set of edges, empty if there are none.
+     */
+    public Set<AbstractEdge> getParentEdges(String childVertexHash)
+    {
+        Set<AbstractEdge> edges = parentEdges.get(childVertexHash);
+        return (edges == null) ? Collections.<AbstractEdge>emptySet() : Collections.unmodifiableSet(edges);
+    }
+
+    /**
+     * Indexes all elements that have not been indexed yet and commits the index.
+     */
     public void commitIndex() {
+        updateIndex();
         try {
+            openIndex();
             vertexIndexWriter.commit();
             edgeIndexWriter.commit();
         } catch (Exception exception) {
@@ -328,12 +455,13 @@ public class Graph extends AbstractStorage implements Serializable
     }
 
     /**
-     * Returns the set containing the edges.
+     * Returns the set containing the edges. Edges are added with putEdge so
+     * that they are indexed by their vertices.
      *
-     * @return The set containing edges.
+     * @return An unmodifiable view of the set containing edges.
      */
     public Set<AbstractEdge> edgeSet() {
-        return edgeSet;
+        return Collections.unmodifiableSet(edgeSet);
     }
 
     /**
@@ -372,7 +500,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -402,7 +529,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -431,7 +557,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -537,8 +662,7 @@ public class Graph extends AbstractStorage implements Serializable
         StringBuilder outputString = new StringBuilder(500);
         try
         {
-            outputString.append("digraph spade2dot {\n" + "graph [rankdir = \"RL\"];\n" + "node [fontname=\"Helvetica\" fontsize=\"8\" style=\"filled\" margin=\"0.0,0.0\"];\n"
-                    + "edge [fontname=\"Helvetica\" fontsize=\"8\"];\n");
+            outputString.append(DOT_HEADER);
 
             for (AbstractVertex vertex : vertexSet)
             {
@@ -549,7 +673,7 @@ public class Graph extends AbstractStorage implements Serializable
                 outputString.append(exportEdge(edge));
             }
 
-            outputString.append("}\n");
+            outputString.append(DOT_FOOTER);
         }
         catch (Exception exception)
         {
@@ -588,16 +712,25 @@ public class Graph extends AbstractStorage implements Serializable
         }
     }
 
-    private String exportVertex(AbstractVertex vertex)
+    private static String exportVertex(AbstractVertex vertex)
+    {
+        return exportVertex(vertex.bigHashCode(), vertex);
+    }
+
+    /**
+     * @return The DOT statement for the given vertex with the given hash as
+     * its id.
+     */
+    public static String exportVertex(String key, AbstractVertex vertex)
     {
         try
         {
             StringBuilder annotationString = new StringBuilder();
             for (Map.Entry<String, String> currentEntry : vertex.getAnnotations().entrySet())
             {
-                String key = currentEntry.getKey();
+                String annotationKey = currentEntry.getKey();
                 String value = currentEntry.getValue();
-                annotationString.append(key.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
+                annotationString.append(annotationKey.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
             }
             String vertexString = annotationString.substring(0, annotationString.length() - 2);
             String shape = "box";
@@ -625,7 +758,6 @@ public class Graph extends AbstractStorage implements Serializable
                 }
             }
 
-            String key = vertex.bigHashCode();
             String outputString = "\"" + key + "\" [label=\"" + vertexString.replace("\"", "'") + "\" shape=\"" + shape + "\" fillcolor=\"" + color + "\"];\n";
             return outputString;
         }
@@ -636,19 +768,29 @@ public class Graph extends AbstractStorage implements Serializable
         }
     }
 
-    private String exportEdge(AbstractEdge edge)
+    private static String exportEdge(AbstractEdge edge)
+    {
+        return exportEdge(edge.getChildVertex().bigHashCode(), edge.getParentVertex().bigHashCode(),
+                edge.getAnnotations());
+    }
+
+    /**
+     * @return The DOT statement for the edge with the given annotations between
+     * the vertices with the given hashes.
+     */
+    public static String exportEdge(String childKey, String parentKey, Map<String, String> annotations)
     {
         try
         {
             StringBuilder annotationString = new StringBuilder();
-            for (Map.Entry<String, String> currentEntry : edge.getAnnotations().entrySet())
+            for (Map.Entry<String, String> currentEntry : annotations.entrySet())
             {
                 String key = currentEntry.getKey();
                 String value = currentEntry.getValue();
                 annotationString.append(key.replace("\\", "\\\\")).append(":").append(value.replace("\\", "\\\\")).append("\\n");
             }
             String color = "black";
-            String type = edge.getAnnotation("type");
+            String type = annotations.get("type");
             if (type.equalsIgnoreCase("Used"))
             {
                 color = "green";
@@ -670,14 +812,12 @@ public class Graph extends AbstractStorage implements Serializable
                 color = "orange";
             }
             String style = "solid";
-            if (edge.getAnnotation("success") != null && edge.getAnnotation("success").equals("false"))
+            if ("false".equals(annotations.get("success")))
             {
                 style = "dashed";
             }
 
             String edgeString = "(" + annotationString.substring(0, annotationString.length() - 2) + ")";
-            String childKey = edge.getChildVertex().bigHashCode();
-            String parentKey = edge.getParentVertex().bigHashCode();
             String outputString = "\"" + childKey + "\" -> \"" + parentKey + "\" [label=\"" + edgeString.replace("\"", "'") + "\" color=\"" + color + "\" style=\"" + style + "\"];\n";
             return outputString;
         }
@@ -699,7 +839,12 @@ public class Graph extends AbstractStorage implements Serializable
     }
 
     public List<Integer> listVertices(String expression) {
+        commitIndex();
         try {
+            if (queryParser == null) {
+                queryParser = new QueryParser(Version.LUCENE_35, null, analyzer);
+                queryParser.setAllowLeadingWildcard(true);
+            }
             List<Integer> results = new ArrayList<>();
             IndexReader reader = IndexReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
@@ -766,16 +911,11 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getChildren(String parentVertexHash)
     {
         Graph result = new Graph();
-        for(Map.Entry<String, AbstractEdge> entry: edgeIdentifiers.entrySet())
+        for(AbstractEdge edge: getChildEdges(parentVertexHash))
         {
-            AbstractEdge edge = entry.getValue();
-            AbstractVertex parentVertex = edge.getParentVertex();
-            if(parentVertex.bigHashCode().equals(parentVertexHash))
-            {
-                result.putVertex(parentVertex);
-                result.putVertex(edge.getChildVertex());
-                result.putEdge(edge);
-            }
+            result.putVertex(edge.getParentVertex());
+            result.putVertex(edge.getChildVertex());
+            result.putEdge(edge);
         }
 
         return result;
@@ -793,15 +933,76 @@ public class Graph extends AbstractStorage implements Serializable
     public Graph getParents(String childVertexHash)
     {
         Graph result = new Graph();
-        for(Map.Entry<String, AbstractEdge> entry: edgeIdentifiers.entrySet())
+        for(AbstractEdge edge: getParentEdges(childVertexHash))
         {
-            AbstractEdge edge = entry.getValue();
-            AbstractVertex childVertex = edge.getChildVertex();
-            if(childVertex.bigHashCode().equals(childVertexHash))
+            result.putVertex(edge.getChildVertex());
+            result.putVertex(edge.getParentVertex());
+            result.putEdge(edge);
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the vertices and edges of this graph on the paths of at most
+     * maxPathLength edges from a vertex to one of its ancestors.
+     *
+     * @param childVertexHash hash of the source vertex
+     * @param parentVertexHash hash of the destination vertex
+     * @param maxPathLength maximum length of any path to find
+     * @return returns graph containing all paths between the given source and destination vertex.
+     */
+    @Override
+    public Graph getPaths(String childVertexHash, String parentVertexHash, int maxPathLength)
+    {
+        PathSearch pathSearch = new PathSearch()
+        {
+            @Override
+            protected Map<String, Set<String>> getParents(Set<String> hashes)
             {
-                result.putVertex(childVertex);
-                result.putVertex(edge.getParentVertex());
-                result.putEdge(edge);
+                Map<String, Set<String>> parents = new HashMap<>();
+                for(String hash : hashes)
+                {
+                    Set<String> parentHashes = new HashSet<>();
+                    for(AbstractEdge edge : getParentEdges(hash))
+                    {
+                        parentHashes.add(edge.getParentVertex().bigHashCode());
+                    }
+                    parents.put(hash, parentHashes);
+                }
+                return parents;
+            }
+
+            @Override
+            protected Map<String, Set<String>> getChildren(Set<String> hashes)
+            {
+                Map<String, Set<String>> children = new HashMap<>();
+                for(String hash : hashes)
+                {
+                    Set<String> childHashes = new HashSet<>();
+                    for(AbstractEdge edge : getChildEdges(hash))
+                    {
+                        childHashes.add(edge.getChildVertex().bigHashCode());
+                    }
+                    children.put(hash, childHashes);
+                }
+                return children;
+            }
+        };
+        Map<String, Set<String>> paths = pathSearch.findPaths(childVertexHash, parentVertexHash, maxPathLength);
+        Graph result = new Graph();
+        for(Map.Entry<String, Set<String>> entry : paths.entrySet())
+        {
+            AbstractVertex vertex = getVertex(entry.getKey());
+            if(vertex != null)
+                result.putVertex(vertex);
+            for(AbstractEdge edge : getParentEdges(entry.getKey()))
+            {
+                if(entry.getValue().contains(edge.getParentVertex().bigHashCode()))
+                {
+                    result.putVertex(edge.getParentVertex());
+                    result.putEdge(edge);
+                }
             }
         }
 
@@ -817,8 +1018,11 @@ public class Graph extends AbstractStorage implements Serializable
         AbstractVertex startingVertex = getVertex(hash);
         remainingVertices.add(startingVertex.bigHashCode());
         startingVertex.setDepth(0);
+        result.putVertex(startingVertex);
         result.setRootVertex(startingVertex);
         result.setMaxDepth(maxDepth);
+        boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+        boolean descendants = DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase());
         Set<String> visitedVertices = new HashSet<>();
         while(!remainingVertices.isEmpty() && current_depth < maxDepth)
         {
@@ -826,29 +1030,35 @@ public class Graph extends AbstractStorage implements Serializable
             Set<String> currentSet = new HashSet<>();
             for(String vertexHash: remainingVertices)
             {
-                Graph neighbors = null;
-                if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+                AbstractQuery.checkCancelled();
+                // walk the adjacency index directly instead of building a
+                // neighbor graph for every vertex in the frontier
+                Set<AbstractEdge> edges;
+                if(ancestors)
                 {
-                    neighbors = getParents(vertexHash);
+                    edges = getParentEdges(vertexHash);
                 }
-                else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+                else if(descendants)
                 {
-                    neighbors = getChildren(vertexHash);
+                    edges = getChildEdges(vertexHash);
+                }
+                else
+                {
+                    continue;
                 }
-                if(neighbors != null)
+                for(AbstractEdge edge: edges)
                 {
-                	for(AbstractVertex V: neighbors.vertexSet())
-                		V.setDepth(current_depth+1);
-                    result.vertexSet().addAll(neighbors.vertexSet());
-                    result.edgeSet().addAll(neighbors.edgeSet());
-                    for(AbstractVertex vertex: neighbors.vertexSet())
+                    AbstractVertex vertex = ancestors ? edge.getParentVertex() : edge.getChildVertex();
+                    String hashCode = vertex.bigHashCode();
+                    if(!visitedVertices.contains(hashCode))
                     {
-                        String hashCode = vertex.bigHashCode();
-                        if(!visitedVertices.contains(hashCode))
+                        if(currentSet.add(hashCode))
                         {
-                            currentSet.add(hashCode);
+                            vertex.setDepth(current_depth + 1);
                         }
                     }
+                    result.putVertex(vertex);
+                    result.putEdge(edge);
                 }
             }
             remainingVertices.clear();
@@ -0,0 +1,588 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary protocol for sending query results over a connection.
+ *
+ * A result is a sequence of chunks. Each chunk is a 4-byte big-endian length
+ * followed by that many bytes of whole records, and a chunk of length 0 ends
+ * the result. The writer sends a chunk as soon as it holds chunkSize bytes so
+ * the receiver can start consuming the result before it is complete, and
+ * neither side holds more than a chunk of encoded records.
+ *
+ * Records start with a tag byte. Lengths and counts are unsigned varints and
+ * strings are UTF-8. Annotation keys are sent once per result and referred to
+ * by their index after that. Edges refer to their end points by hash so that
+ * a receiver does not need to keep the vertices it has consumed.
+ *
+ * @author raza
+ */
+public final class GraphStream
+{
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final byte RETURN_TYPE = 1;
+    private static final byte GRAPH = 2;
+    private static final byte VERTEX = 3;
+    private static final byte EDGE = 4;
+    private static final byte TEXT = 5;
+    private static final byte ERROR = 6;
+
+    private static final int ROOT_FLAG = 1;
+    private static final int NETWORK_FLAG = 2;
+
+    private GraphStream()
+    {
+    }
+
+    /**
+     * Writes results to a connection. Not thread-safe.
+     */
+    public static class Writer
+    {
+        private static final int HEADER_SIZE = 4;
+
+        private final OutputStream outputStream;
+        private final int chunkSize;
+        private byte[] chunk;
+        private int position = HEADER_SIZE;
+        private final Map<String, Integer> keyIndexes = new HashMap<>();
+
+        public Writer(OutputStream outputStream)
+        {
+            this(outputStream, DEFAULT_CHUNK_SIZE);
+        }
+
+        public Writer(OutputStream outputStream, int chunkSize)
+        {
+            this.outputStream = outputStream;
+            this.chunkSize = chunkSize;
+            this.chunk = new byte[HEADER_SIZE + chunkSize + 1024];
+        }
+
+        /**
+         * Starts a new result.
+         *
+         * @param returnType Name of the type of the result.
+         */
+        public void beginResult(String returnType) throws IOException
+        {
+            keyIndexes.clear();
+            writeByte(RETURN_TYPE);
+            writeString(returnType);
+            endRecord();
+        }
+
+        /**
+         * Writes the vertices and then the edges of the graph.
+         */
+        public void writeGraph(Graph graph) throws IOException
+        {
+            writeByte(GRAPH);
+            writeVarint(graph.getMaxDepth());
+            writeString(graph.getComputeTime());
+            writeString(graph.getHostName());
+            endRecord();
+            Map<AbstractVertex, Integer> networkMap = graph.networkMap();
+            for(AbstractVertex vertex : graph.vertexSet())
+            {
+                Integer networkDepth = networkMap.get(vertex);
+                writeVertex(vertex, vertex == graph.getRootVertex(), (networkDepth == null) ? -1 : networkDepth);
+            }
+            for(AbstractEdge edge : graph.edgeSet())
+            {
+                writeEdge(edge);
+            }
+        }
+
+        /**
+         * Writes the vertices and edges in the collection, and the string
+         * form of anything else. The end points of edges are written before
+         * the edges.
+         */
+        public void writeCollection(Collection<?> elements) throws IOException
+        {
+            Set<ContentHash.Digest> written = new HashSet<>();
+            for(Object element : elements)
+            {
+                if(element instanceof AbstractVertex)
+                {
+                    AbstractVertex vertex = (AbstractVertex) element;
+                    if(written.add(vertex.bigHashDigest()))
+                        writeVertex(vertex);
+                }
+                else if(element instanceof AbstractEdge)
+                {
+                    AbstractEdge edge = (AbstractEdge) element;
+                    if(written.add(edge.getChildVertex().bigHashDigest()))
+                        writeVertex(edge.getChildVertex());
+                    if(written.add(edge.getParentVertex().bigHashDigest()))
+                        writeVertex(edge.getParentVertex());
+                    writeEdge(edge);
+                }
+                else
+                {
+                    writeText(String.valueOf(element));
+                }
+            }
+        }
+
+        public void writeVertex(AbstractVertex vertex) throws IOException
+        {
+            writeVertex(vertex, false, -1);
+        }
+
+        private void writeVertex(AbstractVertex vertex, boolean root, int networkDepth) throws IOException
+        {
+            writeByte(VERTEX);
+            writeVarint((root ? ROOT_FLAG : 0) | (networkDepth >= 0 ? NETWORK_FLAG : 0));
+            writeVarint(vertex.getDepth());
+            if(networkDepth >= 0)
+                writeVarint(networkDepth);
+            writeDigest(vertex.bigHashDigest());
+            writeAnnotations(vertex.getAnnotations());
+            endRecord();
+        }
+
+        public void writeEdge(AbstractEdge edge) throws IOException
+        {
+            writeByte(EDGE);
+            writeDigest(edge.getChildVertex().bigHashDigest());
+            writeDigest(edge.getParentVertex().bigHashDigest());
+            writeAnnotations(edge.getAnnotations());
+            endRecord();
+        }
+
+        public void writeText(String text) throws IOException
+        {
+            writeByte(TEXT);
+            writeString(text);
+            endRecord();
+        }
+
+        /**
+         * Tells the receiver that the result could not be computed. Any
+         * records already written remain part of the result.
+         */
+        public void writeError(String message) throws IOException
+        {
+            writeByte(ERROR);
+            writeString(message);
+            endRecord();
+        }
+
+        /**
+         * Sends the last chunk of the result followed by the end marker.
+         */
+        public void endResult() throws IOException
+        {
+            if(position > HEADER_SIZE)
+                sendChunk();
+            sendChunk();
+            outputStream.flush();
+        }
+
+        private void endRecord() throws IOException
+        {
+            if(position - HEADER_SIZE >= chunkSize)
+            {
+                sendChunk();
+                outputStream.flush();
+            }
+        }
+
+        /**
+         * Sends the buffered records, or the end marker if there are none.
+         */
+        private void sendChunk() throws IOException
+        {
+            int length = position - HEADER_SIZE;
+            chunk[0] = (byte) (length >>> 24);
+            chunk[1] = (byte) (length >>> 16);
+            chunk[2] = (byte) (length >>> 8);
+            chunk[3] = (byte) length;
+            outputStream.write(chunk, 0, position);
+            position = HEADER_SIZE;
+        }
+
+        private void writeAnnotations(Map<String, String> annotations)
+        {
+            writeVarint(annotations.size());
+            for(Map.Entry<String, String> entry : annotations.entrySet())
+            {
+                Integer index = keyIndexes.get(entry.getKey());
+                if(index == null)
+                {
+                    // a new key is sent as the next index followed by the key
+                    index = keyIndexes.size();
+                    keyIndexes.put(entry.getKey(), index);
+                    writeVarint(index);
+                    writeString(entry.getKey());
+                }
+                else
+                {
+                    writeVarint(index);
+                }
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeDigest(ContentHash.Digest digest)
+        {
+            writeLong(digest.getMostSignificantBits());
+            writeLong(digest.getLeastSignificantBits());
+        }
+
+        private void writeString(String string)
+        {
+            if(string == null)
+            {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            // 0 is null so lengths are sent plus one
+            writeVarint(bytes.length + 1);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, chunk, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void writeLong(long value)
+        {
+            ensureCapacity(8);
+            for(int i = 56; i >= 0; i -= 8)
+            {
+                chunk[position++] = (byte) (value >>> i);
+            }
+        }
+
+        private void writeVarint(int value)
+        {
+            ensureCapacity(5);
+            while((value & ~0x7f) != 0)
+            {
+                chunk[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            chunk[position++] = (byte) value;
+        }
+
+        private void writeByte(byte value)
+        {
+            ensureCapacity(1);
+            chunk[position++] = value;
+        }
+
+        private void ensureCapacity(int length)
+        {
+            if(position + length > chunk.length)
+            {
+                byte[] larger = new byte[Math.max(chunk.length * 2, position + length)];
+                System.arraycopy(chunk, 0, larger, 0, position);
+                chunk = larger;
+            }
+        }
+    }
+
+    /**
+     * Receives the parts of a result as they are read.
+     */
+    public static abstract class Handler
+    {
+        public void returnType(String returnType)
+        {
+        }
+
+        public void graph(int maxDepth, String computeTime, String hostName)
+        {
+        }
+
+        /**
+         * @param root         Whether the vertex is the root of the graph.
+         * @param networkDepth Depth of the network vertex to resolve remotely,
+         *                     or -1 if there is none.
+         */
+        public void vertex(String hash, AbstractVertex vertex, boolean root, int networkDepth)
+        {
+        }
+
+        public void edge(String childHash, String parentHash, Map<String, String> annotations)
+        {
+        }
+
+        public void text(String text)
+        {
+        }
+
+        public void error(String message)
+        {
+        }
+    }
+
+    /**
+     * Collects the records of a result into a graph.
+     */
+    public static class GraphBuilder extends Handler
+    {
+        private final Graph graph = new Graph();
+        private final Map<String, AbstractVertex> vertices = new HashMap<>();
+        private String returnType;
+        private String error;
+
+        @Override
+        public void returnType(String returnType)
+        {
+            this.returnType = returnType;
+        }
+
+        @Override
+        public void graph(int maxDepth, String computeTime, String hostName)
+        {
+            graph.setMaxDepth(maxDepth);
+            graph.setComputeTime(computeTime);
+            graph.setHostName(hostName);
+        }
+
+        @Override
+        public void vertex(String hash, AbstractVertex vertex, boolean root, int networkDepth)
+        {
+            vertices.put(hash, vertex);
+            graph.putVertex(vertex);
+            if(root)
+                graph.setRootVertex(vertex);
+            if(networkDepth >= 0)
+                graph.putNetworkVertex(vertex, networkDepth);
+        }
+
+        @Override
+        public void edge(String childHash, String parentHash, Map<String, String> annotations)
+        {
+            AbstractVertex childVertex = vertices.get(childHash);
+            AbstractVertex parentVertex = vertices.get(parentHash);
+            if(childVertex == null || parentVertex == null)
+                return;
+            AbstractEdge edge = new Edge(childVertex, parentVertex);
+            edge.addAnnotations(annotations);
+            graph.putEdge(edge);
+        }
+
+        @Override
+        public void error(String message)
+        {
+            error = message;
+        }
+
+        public Graph getGraph()
+        {
+            return graph;
+        }
+
+        public String getReturnType()
+        {
+            return returnType;
+        }
+
+        /**
+         * @return The error sent instead of the result, or null if there was none.
+         */
+        public String getError()
+        {
+            return error;
+        }
+    }
+
+    /**
+     * Reads results from a connection. Not thread-safe.
+     */
+    public static class Reader
+    {
+        private final DataInputStream inputStream;
+        private byte[] chunk = new byte[DEFAULT_CHUNK_SIZE];
+        private int position;
+        private final List<String> keys = new ArrayList<>();
+
+        public Reader(InputStream inputStream)
+        {
+            this.inputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        }
+
+        /**
+         * Reads the next result, passing each record to the handler as soon as
+         * its chunk has arrived.
+         *
+         * @return false if the connection was closed before the result began.
+         */
+        public boolean readResult(Handler handler) throws IOException
+        {
+            keys.clear();
+            boolean begun = false;
+            while(true)
+            {
+                int length;
+                try
+                {
+                    length = inputStream.readInt();
+                }
+                catch(EOFException ex)
+                {
+                    if(begun)
+                        throw ex;
+                    return false;
+                }
+                begun = true;
+                if(length == 0)
+                    return true;
+                if(chunk.length < length)
+                    chunk = new byte[length];
+                inputStream.readFully(chunk, 0, length);
+                position = 0;
+                while(position < length)
+                {
+                    readRecord(handler);
+                }
+            }
+        }
+
+        /**
+         * Reads the next result into a graph.
+         *
+         * @return The graph, or null if the connection was closed or the
+         * result is an error.
+         */
+        public Graph readGraph() throws IOException
+        {
+            GraphBuilder builder = new GraphBuilder();
+            if(!readResult(builder) || builder.getError() != null)
+                return null;
+            return builder.getGraph();
+        }
+
+        private void readRecord(Handler handler) throws IOException
+        {
+            byte tag = chunk[position++];
+            switch(tag)
+            {
+                case RETURN_TYPE:
+                    handler.returnType(readString());
+                    break;
+                case GRAPH:
+                    int maxDepth = readVarint();
+                    String computeTime = readString();
+                    handler.graph(maxDepth, computeTime, readString());
+                    break;
+                case VERTEX:
+                    int flags = readVarint();
+                    int depth = readVarint();
+                    int networkDepth = ((flags & NETWORK_FLAG) != 0) ? readVarint() : -1;
+                    String hash = readHash();
+                    AbstractVertex vertex = new Vertex();
+                    vertex.addAnnotations(readAnnotations());
+                    vertex.setDepth(depth);
+                    handler.vertex(hash, vertex, (flags & ROOT_FLAG) != 0, networkDepth);
+                    break;
+                case EDGE:
+                    String childHash = readHash();
+                    String parentHash = readHash();
+                    handler.edge(childHash, parentHash, readAnnotations());
+                    break;
+                case TEXT:
+                    handler.text(readString());
+                    break;
+                case ERROR:
+                    handler.error(readString());
+                    break;
+                default:
+                    throw new IOException("Unknown record type: " + tag);
+            }
+        }
+
+        private Map<String, String> readAnnotations()
+        {
+            int count = readVarint();
+            Map<String, String> annotations = new LinkedHashMap<>();
+            for(int i = 0; i < count; i++)
+            {
+                int index = readVarint();
+                if(index == keys.size())
+                    keys.add(readString());
+                annotations.put(keys.get(index), readString());
+            }
+            return annotations;
+        }
+
+        private String readHash()
+        {
+            return ContentHash.toHex(readLong(), readLong());
+        }
+
+        private String readString()
+        {
+            int length = readVarint() - 1;
+            if(length < 0)
+                return null;
+            String string = new String(chunk, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return string;
+        }
+
+        private long readLong()
+        {
+            long value = 0;
+            for(int i = 0; i < 8; i++)
+            {
+                value = (value << 8) | (chunk[position++] & 0xff);
+            }
+            return value;
+        }
+
+        private int readVarint()
+        {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = chunk[position++];
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
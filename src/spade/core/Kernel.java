@@ -167,6 +167,11 @@ public class Kernel
     private static Set<AbstractReporter> removeReporters;
     private static Set<AbstractStorage> removeStorages;
     private static Set<AbstractAnalyzer> removeAnalyzers;
+    /**
+     * Dispatch engine used in place of the single main thread when the
+     * 'dispatch_mode' setting is 'pipelined'. Null otherwise.
+     */
+    private static DispatchPipeline dispatchPipeline;
 
     private static final int BATCH_BUFFER_ELEMENTS = 1000000;
     private static final int MAIN_THREAD_SLEEP_DELAY = 10;
@@ -339,6 +344,16 @@ public class Kernel
         commitFilter.sketches = sketches;
         filters.add(commitFilter);
 
+        if ("pipelined".equalsIgnoreCase(Settings.getProperty("dispatch_mode")))
+        {
+            dispatchPipeline = new DispatchPipeline(reporters, removeReporters, filters, storages,
+                    Integer.parseInt(Settings.getProperty("dispatch_batch_size")),
+                    Integer.parseInt(Settings.getProperty("dispatch_storage_queue_capacity")),
+                    Long.parseLong(Settings.getProperty("dispatch_idle_wait_millis")),
+                    Long.parseLong(Settings.getProperty("dispatch_flush_interval_millis")));
+            commitFilter.pipeline = dispatchPipeline;
+        }
+
         // The final transformer is used to send vertex and edge objects to
         // their corresponding result Graph.
         // FinalTransformer finalTransformer = new FinalTransformer();
@@ -358,6 +373,11 @@ public class Kernel
      */
     private static void registerMainThread()
     {
+        if (dispatchPipeline != null)
+        {
+            registerSupervisorThread();
+            return;
+        }
         Runnable mainRunnable = new Runnable()
         {
             @Override
@@ -448,6 +468,71 @@ public class Kernel
         mainThread.start();
     }
 
+    /**
+     * Initialize the supervisor thread used with the dispatch pipeline.
+     * Provenance objects are moved by the drain workers and commit stages of
+     * the pipeline. This thread only starts drain workers for newly added
+     * reporters and removes storages and analyzers marked for removal. Storages
+     * are shut down by their own commit stage once all queued elements have
+     * been committed.
+     */
+    private static void registerSupervisorThread()
+    {
+        Runnable supervisorRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        if (flushTransactions)
+                        {
+                            // Forwarded to the commit stages which flush on the
+                            // thread that owns their storage.
+                            dispatchPipeline.flushTransactions();
+                            flushTransactions = false;
+                        }
+                        if (!removeStorages.isEmpty())
+                        {
+                            Iterator<AbstractStorage> iterator = removeStorages.iterator();
+                            while(iterator.hasNext())
+                            {
+                                AbstractStorage currentStorage = iterator.next();
+                                dispatchPipeline.removeStorage(currentStorage);
+                                iterator.remove();
+                            }
+                        }
+                        if (!removeAnalyzers.isEmpty())
+                        {
+                            Iterator<AbstractAnalyzer> iterator = removeAnalyzers.iterator();
+                            while(iterator.hasNext())
+                            {
+                                AbstractAnalyzer currentAnalyzer = iterator.next();
+                                currentAnalyzer.shutdown();
+                                iterator.remove();
+                            }
+                        }
+
+                        for (AbstractReporter reporter : reporters)
+                        {
+                            dispatchPipeline.ensureDrainWorker(reporter);
+                        }
+                        dispatchPipeline.pruneStorageStages(storages);
+                        Thread.sleep(MAIN_THREAD_SLEEP_DELAY);
+                    }
+                }
+                catch (Exception exception)
+                {
+                    logger.log(Level.SEVERE, "Error registering Supervisor Thread", exception);
+                }
+            }
+        };
+        Thread supervisorThread = new Thread(supervisorRunnable, "mainSPADE-Thread");
+        supervisorThread.start();
+    }
+
     /**
      * Register a SHUTDOWN hook to terminate gracefully
      */
@@ -799,7 +884,7 @@ public class Kernel
                     return;
                 }
                 // Create a new buffer and allocate it to this reporter.
-                Buffer buffer = new Buffer();
+                Buffer buffer = Buffer.fromSettings(className);
                 reporter.setBuffer(buffer);
                 if (reporter.launch(arguments))
                 {
@@ -1263,6 +1348,7 @@ public class Kernel
                                 Thread.sleep(REMOVE_WAIT_DELAY);
                             }
                             reporterIterator.remove();
+                            reporter.getBuffer().close();
                             logger.log(Level.INFO, "Reporter shut down: {0}", className);
                             outputStream.println("done");
                             break;
@@ -1472,6 +1558,7 @@ public class Kernel
                 Buffer currentBuffer = currentReporter.getBuffer();
                 if (currentBuffer.isEmpty()) {
                     reporterIterator.remove();
+                    currentBuffer.close();
                 }
             }
             try {
@@ -1481,15 +1568,43 @@ public class Kernel
             }
         }
 
+        if (dispatchPipeline != null)
+        {
+            // Wait for the drain workers to pass their last elements to the filters.
+            try
+            {
+                dispatchPipeline.stopDrainWorkers();
+            }
+            catch (InterruptedException ex)
+            {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+
         // Shut down filters.
         for (int i = 0; i < filters.size() - 1; i++)
         {
             filters.get(i).shutdown();
         }
         // Shut down storages.
-        for (AbstractStorage storage : storages)
+        if (dispatchPipeline != null)
+        {
+            // Storages are shut down by their commit stages after committing all queued elements.
+            try
+            {
+                dispatchPipeline.shutdownStorages(storages);
+            }
+            catch (InterruptedException ex)
+            {
+                logger.log(Level.WARNING, null, ex);
+            }
+        }
+        else
         {
-            storage.shutdown();
+            for (AbstractStorage storage : storages)
+            {
+                storage.shutdown();
+            }
         }
 
         // Shut down server sockets.
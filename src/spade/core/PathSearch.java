@@ -0,0 +1,219 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Finds the vertices and edges on the paths from a source vertex to a
+ * destination vertex among its ancestors, with a breadth first search from
+ * both ends.
+ *
+ * The search walks up from the source over parents and down from the
+ * destination over children, always expanding the smaller of the two
+ * frontiers, until the two depths add up to the maximum path length or one
+ * side has no more vertices. Every path of at most that length then consists
+ * of edges seen by one of the two searches, so the vertices and edges on the
+ * paths are selected from the edges seen without reading anything else.
+ *
+ * Subclasses provide the neighbors of a whole frontier at once so that
+ * storages can fetch them in bulk.
+ *
+ * @author raza
+ */
+public abstract class PathSearch
+{
+    /**
+     * @param hashes hashes of the vertices whose parents to get
+     * @return the hashes of the parents of each given vertex that has any
+     */
+    protected abstract Map<String, Set<String>> getParents(Set<String> hashes);
+
+    /**
+     * @param hashes hashes of the vertices whose children to get
+     * @return the hashes of the children of each given vertex that has any
+     */
+    protected abstract Map<String, Set<String>> getChildren(Set<String> hashes);
+
+    /**
+     * Finds the vertices and edges on the paths of at most maxLength edges
+     * from the source vertex to the destination vertex, following edges from
+     * child to parent.
+     *
+     * @param sourceHash hash of the source vertex
+     * @param destinationHash hash of the destination vertex
+     * @param maxLength maximum number of edges in a path
+     * @return the parents on paths of each vertex on paths, with an empty set
+     * for the destination. Empty if there is no such path.
+     */
+    public Map<String, Set<String>> findPaths(String sourceHash, String destinationHash, int maxLength)
+    {
+        if(sourceHash.equals(destinationHash))
+        {
+            return Collections.singletonMap(destinationHash, Collections.<String>emptySet());
+        }
+        // edges seen by either search, from child to parents
+        Map<String, Set<String>> edges = new HashMap<>();
+        Set<String> forwardVisited = new HashSet<>();
+        Set<String> backwardVisited = new HashSet<>();
+        Set<String> forwardFrontier = new HashSet<>();
+        Set<String> backwardFrontier = new HashSet<>();
+        forwardFrontier.add(sourceHash);
+        forwardVisited.add(sourceHash);
+        backwardFrontier.add(destinationHash);
+        backwardVisited.add(destinationHash);
+        boolean met = false;
+        int depth = 0;
+        while(depth < maxLength && !forwardFrontier.isEmpty() && !backwardFrontier.isEmpty())
+        {
+            AbstractQuery.checkCancelled();
+            Set<String> next = new HashSet<>();
+            if(forwardFrontier.size() <= backwardFrontier.size())
+            {
+                for(Map.Entry<String, Set<String>> entry : getParents(forwardFrontier).entrySet())
+                {
+                    for(String parent : entry.getValue())
+                    {
+                        addEdge(edges, entry.getKey(), parent);
+                        if(forwardVisited.add(parent))
+                            next.add(parent);
+                    }
+                }
+                forwardFrontier = next;
+                met |= containsAny(backwardVisited, next);
+            }
+            else
+            {
+                for(Map.Entry<String, Set<String>> entry : getChildren(backwardFrontier).entrySet())
+                {
+                    for(String child : entry.getValue())
+                    {
+                        addEdge(edges, child, entry.getKey());
+                        if(backwardVisited.add(child))
+                            next.add(child);
+                    }
+                }
+                backwardFrontier = next;
+                met |= containsAny(forwardVisited, next);
+            }
+            depth++;
+        }
+        if(!met)
+        {
+            return Collections.emptyMap();
+        }
+        return selectPaths(edges, sourceHash, destinationHash, maxLength);
+    }
+
+    private static boolean containsAny(Set<String> set, Set<String> elements)
+    {
+        for(String element : elements)
+        {
+            if(set.contains(element))
+                return true;
+        }
+        return false;
+    }
+
+    private static void addEdge(Map<String, Set<String>> edges, String child, String parent)
+    {
+        Set<String> parents = edges.get(child);
+        if(parents == null)
+        {
+            parents = new LinkedHashSet<>();
+            edges.put(child, parents);
+        }
+        parents.add(parent);
+    }
+
+    /**
+     * Keeps the edges from a child at distance d from the source to a parent at
+     * distance e from the destination where d + 1 + e is at most maxLength.
+     */
+    private static Map<String, Set<String>> selectPaths(Map<String, Set<String>> edges, String sourceHash,
+                                                        String destinationHash, int maxLength)
+    {
+        Map<String, Set<String>> reverseEdges = new HashMap<>();
+        for(Map.Entry<String, Set<String>> entry : edges.entrySet())
+        {
+            for(String parent : entry.getValue())
+            {
+                addEdge(reverseEdges, parent, entry.getKey());
+            }
+        }
+        Map<String, Integer> sourceDistance = distances(edges, sourceHash, maxLength);
+        Map<String, Integer> destinationDistance = distances(reverseEdges, destinationHash, maxLength);
+
+        Map<String, Set<String>> paths = new LinkedHashMap<>();
+        for(Map.Entry<String, Integer> entry : sourceDistance.entrySet())
+        {
+            String child = entry.getKey();
+            Set<String> parents = edges.get(child);
+            if(parents == null)
+                continue;
+            for(String parent : parents)
+            {
+                Integer distance = destinationDistance.get(parent);
+                if(distance != null && entry.getValue() + 1 + distance <= maxLength)
+                {
+                    addEdge(paths, child, parent);
+                }
+            }
+        }
+        if(!paths.isEmpty())
+        {
+            paths.put(destinationHash, Collections.<String>emptySet());
+        }
+        return paths;
+    }
+
+    private static Map<String, Integer> distances(Map<String, Set<String>> edges, String start, int maxDistance)
+    {
+        Map<String, Integer> distances = new HashMap<>();
+        distances.put(start, 0);
+        Queue<String> queue = new ArrayDeque<>();
+        queue.add(start);
+        while(!queue.isEmpty())
+        {
+            String hash = queue.remove();
+            int distance = distances.get(hash);
+            Set<String> neighbors = edges.get(hash);
+            if(neighbors == null || distance == maxDistance)
+                continue;
+            for(String neighbor : neighbors)
+            {
+                if(!distances.containsKey(neighbor))
+                {
+                    distances.put(neighbor, distance + 1);
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return distances;
+    }
+}
@@ -0,0 +1,615 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Caches query results so that queries run again while the storages have not
+ * changed are answered without traversing them.
+ *
+ * Results are keyed by the query function, its parameters and the result
+ * limit. An entry is only served while the write watermarks of the storages
+ * are the ones it was computed at. Storages that commit vertices and edges
+ * after receiving them advance their watermark when they commit, so an entry
+ * computed before a commit is not served after it.
+ *
+ * Lineage results are kept once per start vertex and direction at the
+ * largest depth computed. A shallower request is answered by cutting the
+ * cached lineage, and a deeper one by continuing the traversal from the
+ * vertices at the cached depth when there are few of them.
+ *
+ * Callers get copies of the cached results, which they are free to change.
+ * The total number of vertices and edges held is bounded and the least
+ * recently used entries are evicted first.
+ *
+ * @author raza
+ */
+public class QueryCache
+{
+    private static final String GET_LINEAGE = "GetLineage";
+    // lineages are continued from at most this many vertices
+    private static final int MAX_FRONTIER_SIZE = 64;
+
+    /**
+     * Computes the result of a query from the storage.
+     */
+    public interface Loader
+    {
+        Object load(Map<String, List<String>> parameters) throws Exception;
+    }
+
+    private static class Entry
+    {
+        final Object result;
+        final Map<AbstractStorage, Long> watermark;
+        final long size;
+        // depth of a lineage result, -1 for all other results
+        final int depth;
+
+        Entry(Object result, Map<AbstractStorage, Long> watermark, long size, int depth)
+        {
+            this.result = result;
+            this.watermark = watermark;
+            this.size = size;
+            this.depth = depth;
+        }
+    }
+
+    private final long maximumSize;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private Map<AbstractStorage, Long> lastWatermark = Collections.emptyMap();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong extensionCount = new AtomicLong();
+
+    /**
+     * @param maximumSize The maximum number of vertices and edges held.
+     */
+    public QueryCache(long maximumSize)
+    {
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return The cache, or null if it has been disabled with a size of 0.
+     */
+    public static QueryCache fromSettings()
+    {
+        long size = Long.parseLong(Settings.getProperty("query_cache_size"));
+        if(size <= 0)
+        {
+            return null;
+        }
+        return new QueryCache(size);
+    }
+
+    /**
+     * Returns the result of the query from the cache, or loads it and caches
+     * it.
+     *
+     * @param functionName Name of the query function.
+     * @param parameters   Parameters of the query.
+     * @param limit        Limit on the size of the result.
+     * @param loader       Computes the result of a query.
+     * @return A copy of the result.
+     */
+    public Object get(String functionName, Map<String, List<String>> parameters, Integer limit, Loader loader)
+            throws Exception
+    {
+        boolean lineage = GET_LINEAGE.equals(functionName) && parameters.containsKey(MAX_DEPTH)
+                && parameters.containsKey(DIRECTION);
+        int depth = lineage ? Integer.parseInt(parameters.get(MAX_DEPTH).get(0)) : -1;
+        String key = toKey(functionName, parameters, limit);
+        Map<AbstractStorage, Long> watermark = getWatermark();
+        Entry entry;
+        synchronized(this)
+        {
+            observe(watermark);
+            entry = entries.get(key);
+            if(entry != null && !entry.watermark.equals(watermark))
+            {
+                remove(key);
+                entry = null;
+            }
+        }
+
+        if(entry != null)
+        {
+            if(entry.depth == depth)
+            {
+                hitCount.incrementAndGet();
+                return serve(copy(entry.result));
+            }
+            if(!(entry.result instanceof Graph))
+            {
+                // served only at the same depth
+            }
+            else if(entry.depth > depth)
+            {
+                Graph cut = cutLineage((Graph) entry.result, parameters, depth);
+                if(cut != null)
+                {
+                    hitCount.incrementAndGet();
+                    return serve(cut);
+                }
+            }
+            else
+            {
+                Graph extended = extendLineage((Graph) entry.result, entry.depth, parameters, depth, loader);
+                if(extended != null)
+                {
+                    extensionCount.incrementAndGet();
+                    put(key, extended, watermark, depth);
+                    return serve(copy(extended));
+                }
+            }
+        }
+
+        missCount.incrementAndGet();
+        Object result = loader.load(parameters);
+        put(key, result, watermark, depth);
+        return copy(result);
+    }
+
+    private void put(String key, Object result, Map<AbstractStorage, Long> watermark, int depth)
+    {
+        if(result == null || !(result instanceof Graph || result instanceof Collection))
+            return;
+        // writes during the query may or may not be part of the result
+        if(!watermark.equals(getWatermark()))
+            return;
+        long resultSize = sizeOf(result);
+        if(resultSize > maximumSize)
+            return;
+        synchronized(this)
+        {
+            Entry existing = entries.get(key);
+            if(existing != null)
+            {
+                if(existing.watermark.equals(watermark) && existing.depth > depth)
+                    return;
+                remove(key);
+            }
+            entries.put(key, new Entry(result, watermark, resultSize, depth));
+            size += resultSize;
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while(size > maximumSize && iterator.hasNext())
+            {
+                size -= iterator.next().getValue().size;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void remove(String key)
+    {
+        Entry entry = entries.remove(key);
+        if(entry != null)
+        {
+            size -= entry.size;
+        }
+    }
+
+    /**
+     * Records the current watermark. Entries at an older watermark can no
+     * longer be served and are dropped.
+     */
+    private void observe(Map<AbstractStorage, Long> watermark)
+    {
+        if(!watermark.equals(lastWatermark))
+        {
+            lastWatermark = watermark;
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * @return The write watermark of each storage.
+     */
+    protected Map<AbstractStorage, Long> getWatermark()
+    {
+        Map<AbstractStorage, Long> watermark = new HashMap<>();
+        if(Kernel.storages != null)
+        {
+            synchronized(Kernel.storages)
+            {
+                for(AbstractStorage storage : Kernel.storages)
+                {
+                    watermark.put(storage, storage.getWatermark());
+                }
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * The key of a query. The depth of lineage queries is left out since
+     * their entries serve all depths.
+     */
+    private static String toKey(String functionName, Map<String, List<String>> parameters, Integer limit)
+    {
+        StringBuilder key = new StringBuilder(functionName.trim()).append('(');
+        for(Map.Entry<String, List<String>> parameter : parameters.entrySet())
+        {
+            if(MAX_DEPTH.equals(parameter.getKey()) && GET_LINEAGE.equals(functionName))
+                continue;
+            key.append(parameter.getKey().trim());
+            if(DIRECTION.equals(parameter.getKey()))
+            {
+                key.append('=').append(normalizeDirection(parameter.getValue().get(0)));
+            }
+            else
+            {
+                for(String value : parameter.getValue())
+                {
+                    key.append(' ').append((value == null) ? "" : value.trim());
+                }
+            }
+            key.append(';');
+        }
+        return key.append(") ").append(limit).toString();
+    }
+
+    private static String normalizeDirection(String direction)
+    {
+        if(direction == null)
+            return null;
+        String lowerCase = direction.trim().toLowerCase();
+        if(!lowerCase.isEmpty() && DIRECTION_ANCESTORS.startsWith(lowerCase))
+            return DIRECTION_ANCESTORS;
+        if(!lowerCase.isEmpty() && DIRECTION_DESCENDANTS.startsWith(lowerCase))
+            return DIRECTION_DESCENDANTS;
+        return lowerCase;
+    }
+
+    /**
+     * @return The start vertex of a lineage result, or null if it is not known.
+     */
+    private static AbstractVertex findRoot(Graph graph, Map<String, List<String>> parameters)
+    {
+        if(graph.getRootVertex() != null)
+            return graph.getRootVertex();
+        List<String> selection = parameters.get(PRIMARY_KEY);
+        if(selection == null || selection.size() < 2 || !AbstractQuery.OPERATORS.EQUALS.equals(selection.get(0)))
+            return null;
+        String hash = selection.get(1);
+        for(AbstractVertex vertex : graph.vertexSet())
+        {
+            if(hash.equals(hashOf(vertex)))
+                return vertex;
+        }
+        return null;
+    }
+
+    private static String hashOf(AbstractVertex vertex)
+    {
+        String hash = vertex.getAnnotation(PRIMARY_KEY);
+        return (hash != null) ? hash : vertex.bigHashCode();
+    }
+
+    /**
+     * @return The distance of each vertex of the lineage from its start
+     * vertex, or null if the start vertex or the direction is not known.
+     */
+    private static Map<AbstractVertex, Integer> distances(Graph graph, Map<String, List<String>> parameters)
+    {
+        AbstractVertex root = findRoot(graph, parameters);
+        String direction = normalizeDirection(parameters.get(DIRECTION).get(0));
+        boolean ancestors = DIRECTION_ANCESTORS.equals(direction);
+        if(root == null || !(ancestors || DIRECTION_DESCENDANTS.equals(direction)))
+            return null;
+        Map<AbstractVertex, List<AbstractVertex>> neighbors = new HashMap<>();
+        for(AbstractEdge edge : graph.edgeSet())
+        {
+            AbstractVertex from = ancestors ? edge.getChildVertex() : edge.getParentVertex();
+            AbstractVertex to = ancestors ? edge.getParentVertex() : edge.getChildVertex();
+            List<AbstractVertex> list = neighbors.get(from);
+            if(list == null)
+            {
+                list = new ArrayList<>();
+                neighbors.put(from, list);
+            }
+            list.add(to);
+        }
+        Map<AbstractVertex, Integer> distances = new HashMap<>();
+        distances.put(root, 0);
+        Queue<AbstractVertex> queue = new ArrayDeque<>();
+        queue.add(root);
+        while(!queue.isEmpty())
+        {
+            AbstractVertex vertex = queue.remove();
+            List<AbstractVertex> list = neighbors.get(vertex);
+            if(list == null)
+                continue;
+            for(AbstractVertex neighbor : list)
+            {
+                if(!distances.containsKey(neighbor))
+                {
+                    distances.put(neighbor, distances.get(vertex) + 1);
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * @return A copy of the part of the lineage within the given depth, or
+     * null if it cannot be cut.
+     */
+    private static Graph cutLineage(Graph lineage, Map<String, List<String>> parameters, int depth)
+    {
+        Map<AbstractVertex, Integer> distances = distances(lineage, parameters);
+        if(distances == null)
+            return null;
+        boolean ancestors = DIRECTION_ANCESTORS.equals(normalizeDirection(parameters.get(DIRECTION).get(0)));
+        Graph result = new Graph();
+        Map<AbstractVertex, AbstractVertex> copies = new HashMap<>();
+        for(AbstractVertex vertex : lineage.vertexSet())
+        {
+            Integer distance = distances.get(vertex);
+            if(distance != null && distance <= depth)
+            {
+                copies.put(vertex, copyVertex(vertex, distance, result));
+            }
+        }
+        for(AbstractEdge edge : lineage.edgeSet())
+        {
+            // the edges followed from the vertices before the last level
+            Integer distance = distances.get(ancestors ? edge.getChildVertex() : edge.getParentVertex());
+            if(distance != null && distance < depth)
+            {
+                copyEdge(edge, copies, result);
+            }
+        }
+        copyProperties(lineage, copies, result, depth);
+        return result;
+    }
+
+    /**
+     * Computes a deeper lineage from a cached one by traversing from the
+     * vertices at its last level.
+     *
+     * @return The deeper lineage, or null if it is not worth computing this way.
+     */
+    private static Graph extendLineage(Graph lineage, int cachedDepth, Map<String, List<String>> parameters,
+                                       int depth, Loader loader) throws Exception
+    {
+        Map<AbstractVertex, Integer> distances = distances(lineage, parameters);
+        if(distances == null)
+            return null;
+        List<AbstractVertex> frontier = new ArrayList<>();
+        for(Map.Entry<AbstractVertex, Integer> entry : distances.entrySet())
+        {
+            if(entry.getValue() == cachedDepth)
+                frontier.add(entry.getKey());
+        }
+        if(frontier.size() > MAX_FRONTIER_SIZE)
+            return null;
+
+        Graph result = new Graph();
+        Map<AbstractVertex, AbstractVertex> copies = new HashMap<>();
+        for(AbstractVertex vertex : lineage.vertexSet())
+        {
+            Integer distance = distances.get(vertex);
+            copies.put(vertex, copyVertex(vertex, (distance == null) ? vertex.getDepth() : distance, result));
+        }
+        for(AbstractEdge edge : lineage.edgeSet())
+        {
+            copyEdge(edge, copies, result);
+        }
+        copyProperties(lineage, copies, result, depth);
+
+        for(AbstractVertex vertex : frontier)
+        {
+            AbstractQuery.checkCancelled();
+            Map<String, List<String>> frontierParameters = new LinkedHashMap<>();
+            frontierParameters.put(PRIMARY_KEY, Arrays.asList(AbstractQuery.OPERATORS.EQUALS, hashOf(vertex), null));
+            frontierParameters.put(DIRECTION, parameters.get(DIRECTION));
+            frontierParameters.put(MAX_DEPTH, Collections.singletonList(String.valueOf(depth - cachedDepth)));
+            Object partial = loader.load(frontierParameters);
+            if(!(partial instanceof Graph))
+                return null;
+            Graph partialLineage = (Graph) partial;
+            for(AbstractVertex partialVertex : partialLineage.vertexSet())
+            {
+                // vertices are equal when their annotations are so the
+                // copies also map the vertices already in the result
+                if(!copies.containsKey(partialVertex))
+                    copies.put(partialVertex, copyVertex(partialVertex, cachedDepth + partialVertex.getDepth(), result));
+            }
+            for(AbstractEdge edge : partialLineage.edgeSet())
+            {
+                copyEdge(edge, copies, result);
+            }
+            for(Map.Entry<AbstractVertex, Integer> networkEntry : partialLineage.networkMap().entrySet())
+            {
+                AbstractVertex copy = copies.get(networkEntry.getKey());
+                if(copy != null)
+                    result.putNetworkVertex(copy, cachedDepth + networkEntry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static AbstractVertex copyVertex(AbstractVertex vertex, int depth, Graph result)
+    {
+        AbstractVertex copy = new Vertex();
+        copy.addAnnotations(vertex.getAnnotations());
+        copy.setDepth(depth);
+        result.putVertex(copy);
+        return copy;
+    }
+
+    private static void copyEdge(AbstractEdge edge, Map<AbstractVertex, AbstractVertex> copies, Graph result)
+    {
+        AbstractVertex childVertex = copies.get(edge.getChildVertex());
+        AbstractVertex parentVertex = copies.get(edge.getParentVertex());
+        if(childVertex == null || parentVertex == null)
+            return;
+        AbstractEdge copy = new Edge(childVertex, parentVertex);
+        copy.addAnnotations(edge.getAnnotations());
+        result.putEdge(copy);
+    }
+
+    private static void copyProperties(Graph graph, Map<AbstractVertex, AbstractVertex> copies, Graph result,
+                                       int maxDepth)
+    {
+        result.setMaxDepth(maxDepth);
+        result.setComputeTime(graph.getComputeTime());
+        result.setHostName(graph.getHostName());
+        result.setRootVertex(copies.get(graph.getRootVertex()));
+        copyNetworkVertices(graph, copies, result, maxDepth);
+    }
+
+    /**
+     * Copies the network vertices of the graph reached before maxDepth.
+     */
+    private static void copyNetworkVertices(Graph graph, Map<AbstractVertex, AbstractVertex> copies, Graph result,
+                                            int maxDepth)
+    {
+        for(Map.Entry<AbstractVertex, Integer> entry : graph.networkMap().entrySet())
+        {
+            AbstractVertex copy = copies.get(entry.getKey());
+            if(copy != null && entry.getValue() < maxDepth)
+                result.putNetworkVertex(copy, entry.getValue());
+        }
+    }
+
+    /**
+     * A result served from the cache needs the remote resolution that
+     * computing it would have asked for.
+     */
+    private static Object serve(Object result)
+    {
+        if(result instanceof Graph && !((Graph) result).networkMap().isEmpty())
+        {
+            AbstractAnalyzer.setRemoteResolutionRequired();
+        }
+        return result;
+    }
+
+    /**
+     * Copies a result so that the cached one is not changed by the caller.
+     */
+    private static Object copy(Object result)
+    {
+        if(result instanceof Graph)
+        {
+            Graph graph = (Graph) result;
+            Graph copy = new Graph();
+            Map<AbstractVertex, AbstractVertex> copies = new HashMap<>();
+            for(AbstractVertex vertex : graph.vertexSet())
+            {
+                copies.put(vertex, copyVertex(vertex, vertex.getDepth(), copy));
+            }
+            for(AbstractEdge edge : graph.edgeSet())
+            {
+                copyEdge(edge, copies, copy);
+            }
+            copyNetworkVertices(graph, copies, copy, Integer.MAX_VALUE);
+            copy.setMaxDepth(graph.getMaxDepth());
+            copy.setComputeTime(graph.getComputeTime());
+            copy.setHostName(graph.getHostName());
+            copy.setRootVertex(copies.get(graph.getRootVertex()));
+            return copy;
+        }
+        if(result instanceof Collection)
+        {
+            Collection<Object> copy = (result instanceof List) ? new ArrayList<>() : new LinkedHashSet<>();
+            for(Object element : (Collection<?>) result)
+            {
+                if(element instanceof AbstractVertex)
+                {
+                    AbstractVertex vertex = new Vertex();
+                    vertex.addAnnotations(((AbstractVertex) element).getAnnotations());
+                    vertex.setDepth(((AbstractVertex) element).getDepth());
+                    copy.add(vertex);
+                }
+                else
+                {
+                    copy.add(element);
+                }
+            }
+            return copy;
+        }
+        return result;
+    }
+
+    private static long sizeOf(Object result)
+    {
+        if(result instanceof Graph)
+            return ((Graph) result).vertexSet().size() + ((Graph) result).edgeSet().size();
+        return ((Collection<?>) result).size();
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * @return The number of lineages computed by continuing a cached one.
+     */
+    public long getExtensionCount()
+    {
+        return extensionCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QueryCache{entries=" + getEntryCount() + ", hits=" + hitCount + ", misses=" + missCount
+                + ", extensions=" + extensionCount + "}";
+    }
+}
@@ -53,6 +53,48 @@ public class Settings
         setProperty("storage_identifier", "storageID");
         setProperty("default_query_storage", "Neo4j");
         setProperty("neo4j_webserver", "true");
+        // 'serial' uses the single main thread, 'pipelined' uses a drain worker
+        // per reporter and a commit stage per storage
+        setProperty("dispatch_mode", "serial");
+        setProperty("dispatch_batch_size", "10000");
+        setProperty("dispatch_storage_queue_capacity", "100000");
+        setProperty("dispatch_idle_wait_millis", "10");
+        // maximum time between flushes of transactions of a busy storage in 'pipelined' mode
+        setProperty("dispatch_flush_interval_millis", "1000");
+        // reporter buffer limits (0 for no limit) and what to do when they are reached: 'block', 'drop' or 'spill'
+        setProperty("buffer_max_elements", "0");
+        setProperty("buffer_max_bytes", "0");
+        setProperty("buffer_overflow_policy", "block");
+        setProperty("buffer_spill_directory", "tmp/buffer");
+        setProperty("buffer_spill_segment_bytes", "67108864");
+        // cache of recently stored vertices and edges in storages: 'lru', 'tinylfu' or 'bloom'. A size of 0 disables it
+        setProperty("storage_cache_policy", "lru");
+        setProperty("storage_cache_size", "100000");
+        // hash of vertices and edges: 'md5' (compatible with existing storages) or 'murmur3'
+        setProperty("hash_algorithm", "md5");
+        // 'lazy' builds the Lucene index of a Graph only when it is searched, 'eager' on every insertion
+        setProperty("graph_index_mode", "lazy");
+        // number of vertices with new neighbors, and time, after which the scaffold write-back cache is flushed
+        setProperty("scaffold_write_cache_size", "100000");
+        setProperty("scaffold_flush_interval_millis", "5000");
+        // scaffold backend: 'berkeleydb' stores the neighbor hashes of each vertex, 'compact' sorted lists of vertex ids
+        setProperty("scaffold_backend", "berkeleydb");
+        // number of vertex hash to id mappings cached by the compact scaffold backend
+        setProperty("scaffold_id_cache_size", "1000000");
+        // query server: connections served at once, threads running queries, queries waiting for a thread
+        // and seconds after which a query is cancelled (0 for no limit)
+        setProperty("query_max_connections", "64");
+        setProperty("query_threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        setProperty("query_queue_size", "64");
+        setProperty("query_timeout_seconds", "600");
+        // query result cache: vertices and edges held (0 disables it)
+        setProperty("query_cache_size", "1000000");
+        // remote resolution of network vertices: threads querying remote hosts, seconds after which the parts not
+        // yet resolved are given up on (0 for no limit), and idle connections kept per host and for how many seconds
+        setProperty("resolver_threads", "16");
+        setProperty("resolver_timeout_seconds", "300");
+        setProperty("resolver_max_idle_connections", "4");
+        setProperty("resolver_idle_seconds", "60");
 
         // override certain settings if the settings file is present
         try
@@ -0,0 +1,492 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Constructor;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only, memory-mapped overflow store for a Buffer.
+ *
+ * Elements are written in order to fixed-size segment files and read back in
+ * the same order. Each record is an int length followed by a compact encoding
+ * of the element (class name, annotations and, for edges, both end points).
+ * A record is marked as consumed by negating its length in place, and a
+ * segment file is deleted once all of its records have been consumed. This
+ * allows a restarted buffer to resume from the first unconsumed record.
+ *
+ * @author Dawood Tariq and Raza Ahmad
+ */
+class SpillStore
+{
+    private static final Logger logger = Logger.getLogger(SpillStore.class.getName());
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final byte VERTEX_RECORD = 'V';
+    private static final byte EDGE_RECORD = 'E';
+
+    private final File directory;
+    private final int segmentBytes;
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private long nextSegmentNumber = 0;
+    private long pendingCount = 0;
+
+    private byte[] encodeBuffer = new byte[4096];
+    private int encodePosition;
+    private final Map<String, Constructor<?>> constructors = new HashMap<>();
+
+    /**
+     * Opens the store in the given directory and resumes any unconsumed
+     * records left behind by a previous run.
+     *
+     * @param directory Directory for the segment files.
+     * @param segmentBytes Size of each segment file.
+     * @throws IOException If the directory or existing segments cannot be opened.
+     */
+    SpillStore(File directory, int segmentBytes) throws IOException
+    {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create spill directory: " + directory.getAbsolutePath());
+        }
+        resume();
+    }
+
+    private void resume() throws IOException
+    {
+        TreeMap<Long, File> existing = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                {
+                    try
+                    {
+                        existing.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())), file);
+                    }
+                    catch (NumberFormatException exception)
+                    {
+                        logger.log(Level.WARNING, "Ignoring unknown file in spill directory: {0}", name);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Long, File> entry : existing.entrySet())
+        {
+            Segment segment = new Segment(entry.getValue(), (int) entry.getValue().length());
+            segment.scan();
+            nextSegmentNumber = entry.getKey() + 1;
+            if (segment.unconsumed == 0)
+            {
+                segment.delete();
+            }
+            else
+            {
+                pendingCount += segment.unconsumed;
+                segments.add(segment);
+            }
+        }
+        if (pendingCount > 0)
+        {
+            logger.log(Level.INFO, "Resuming {0} spilled elements from {1}",
+                    new Object[]{pendingCount, directory.getAbsolutePath()});
+        }
+    }
+
+    /**
+     * @return The number of elements written but not yet read.
+     */
+    synchronized long pending()
+    {
+        return pendingCount;
+    }
+
+    /**
+     * Appends a vertex or an edge to the end of the store.
+     *
+     * @param element The element to append.
+     * @throws IOException If a new segment cannot be created.
+     */
+    synchronized void append(Object element) throws IOException
+    {
+        encodePosition = 0;
+        if (element instanceof AbstractVertex)
+        {
+            writeByte(VERTEX_RECORD);
+            writeVertex((AbstractVertex) element);
+        }
+        else
+        {
+            AbstractEdge edge = (AbstractEdge) element;
+            writeByte(EDGE_RECORD);
+            writeAnnotated(edge.getClass().getName(), edge.getAnnotations());
+            writeVertex(edge.getChildVertex());
+            writeVertex(edge.getParentVertex());
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.hasRoom(encodePosition))
+        {
+            if (tail != null)
+            {
+                tail.sealed = true;
+            }
+            File file = new File(directory, SEGMENT_PREFIX + (nextSegmentNumber++) + SEGMENT_SUFFIX);
+            // A record larger than a segment gets a segment of its own.
+            tail = new Segment(file, Math.max(segmentBytes, encodePosition + 8));
+            segments.add(tail);
+        }
+        tail.write(encodeBuffer, encodePosition);
+        pendingCount++;
+    }
+
+    /**
+     * Reads and consumes the oldest element in the store.
+     *
+     * @return The oldest element, or null if the store is empty.
+     */
+    synchronized Object read()
+    {
+        while (!segments.isEmpty())
+        {
+            Segment head = segments.peekFirst();
+            byte[] record = head.read();
+            if (record != null)
+            {
+                pendingCount--;
+                return decode(record);
+            }
+            if (head.sealed || segments.size() > 1)
+            {
+                segments.removeFirst();
+                head.delete();
+            }
+            else
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Releases the mapped segments. Unconsumed records stay on disk.
+     */
+    synchronized void close()
+    {
+        for (Segment segment : segments)
+        {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private void writeVertex(AbstractVertex vertex)
+    {
+        writeAnnotated(vertex.getClass().getName(), vertex.getAnnotations());
+    }
+
+    private void writeAnnotated(String className, Map<String, String> annotations)
+    {
+        writeString(className);
+        writeVarint(annotations.size());
+        for (Map.Entry<String, String> entry : annotations.entrySet())
+        {
+            writeString(entry.getKey());
+            writeString(entry.getValue());
+        }
+    }
+
+    private void writeString(String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, encodeBuffer, encodePosition, bytes.length);
+        encodePosition += bytes.length;
+    }
+
+    private void writeVarint(int value)
+    {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0)
+        {
+            encodeBuffer[encodePosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        encodeBuffer[encodePosition++] = (byte) value;
+    }
+
+    private void writeByte(byte value)
+    {
+        ensureCapacity(1);
+        encodeBuffer[encodePosition++] = value;
+    }
+
+    private void ensureCapacity(int length)
+    {
+        if (encodePosition + length > encodeBuffer.length)
+        {
+            encodeBuffer = Arrays.copyOf(encodeBuffer, Math.max(encodeBuffer.length * 2, encodePosition + length));
+        }
+    }
+
+    private Object decode(byte[] record)
+    {
+        int[] position = {1};
+        if (record[0] == VERTEX_RECORD)
+        {
+            return readVertex(record, position);
+        }
+        String className = readString(record, position);
+        Map<String, String> annotations = readAnnotations(record, position);
+        AbstractVertex childVertex = readVertex(record, position);
+        AbstractVertex parentVertex = readVertex(record, position);
+        AbstractEdge edge = newEdge(className, childVertex, parentVertex);
+        edge.getAnnotations().clear();
+        edge.addAnnotations(annotations);
+        return edge;
+    }
+
+    private AbstractVertex readVertex(byte[] record, int[] position)
+    {
+        String className = readString(record, position);
+        AbstractVertex vertex = newVertex(className);
+        vertex.getAnnotations().clear();
+        vertex.addAnnotations(readAnnotations(record, position));
+        return vertex;
+    }
+
+    private Map<String, String> readAnnotations(byte[] record, int[] position)
+    {
+        int count = readVarint(record, position);
+        Map<String, String> annotations = new TreeMap<>();
+        for (int i = 0; i < count; i++)
+        {
+            String key = readString(record, position);
+            annotations.put(key, readString(record, position));
+        }
+        return annotations;
+    }
+
+    private static String readString(byte[] record, int[] position)
+    {
+        int length = readVarint(record, position);
+        String value = new String(record, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return value;
+    }
+
+    private static int readVarint(byte[] record, int[] position)
+    {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do
+        {
+            current = record[position[0]++];
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((current & 0x80) != 0);
+        return value;
+    }
+
+    private AbstractVertex newVertex(String className)
+    {
+        try
+        {
+            Constructor<?> constructor = constructors.get(className);
+            if (constructor == null)
+            {
+                constructor = Class.forName(className).getConstructor();
+                constructors.put(className, constructor);
+            }
+            return (AbstractVertex) constructor.newInstance();
+        }
+        catch (Exception exception)
+        {
+            logger.log(Level.WARNING, "Unable to recreate vertex of class " + className, exception);
+            return new Vertex();
+        }
+    }
+
+    private AbstractEdge newEdge(String className, AbstractVertex childVertex, AbstractVertex parentVertex)
+    {
+        String key = className + ':' + childVertex.getClass().getName() + ':' + parentVertex.getClass().getName();
+        try
+        {
+            Constructor<?> constructor = constructors.get(key);
+            if (constructor == null)
+            {
+                // Edge classes take their end points, typed by the model, as constructor arguments.
+                for (Constructor<?> candidate : Class.forName(className).getConstructors())
+                {
+                    Class<?>[] types = candidate.getParameterTypes();
+                    if (types.length == 2 && types[0].isInstance(childVertex) && types[1].isInstance(parentVertex))
+                    {
+                        constructor = candidate;
+                        break;
+                    }
+                }
+                if (constructor == null)
+                {
+                    throw new NoSuchMethodException("No end point constructor in " + className);
+                }
+                constructors.put(key, constructor);
+            }
+            return (AbstractEdge) constructor.newInstance(childVertex, parentVertex);
+        }
+        catch (Exception exception)
+        {
+            logger.log(Level.WARNING, "Unable to recreate edge of class " + className, exception);
+            return new Edge(childVertex, parentVertex);
+        }
+    }
+
+    private static final class Segment
+    {
+        private final File file;
+        private final RandomAccessFile randomAccessFile;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+        private int readPosition = 0;
+        private long unconsumed = 0;
+        private boolean sealed = false;
+
+        private Segment(File file, int size) throws IOException
+        {
+            this.file = file;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Finds the write position and the first unconsumed record of an
+         * existing segment. A zero length marks the end of the written records.
+         */
+        private void scan()
+        {
+            int position = 0;
+            boolean foundUnconsumed = false;
+            while (position + 4 <= buffer.capacity())
+            {
+                int length = buffer.getInt(position);
+                if (length == 0)
+                {
+                    break;
+                }
+                if (length > 0)
+                {
+                    if (!foundUnconsumed)
+                    {
+                        readPosition = position;
+                        foundUnconsumed = true;
+                    }
+                    unconsumed++;
+                }
+                position += 4 + Math.abs(length);
+            }
+            writePosition = position;
+            if (!foundUnconsumed)
+            {
+                readPosition = position;
+            }
+            // Appending to a resumed segment is not allowed so that a partially
+            // written record from a crash is never followed by new records.
+            sealed = true;
+        }
+
+        private boolean hasRoom(int length)
+        {
+            // Keep room for the zero length which terminates the segment.
+            return !sealed && writePosition + 4 + length + 4 <= buffer.capacity();
+        }
+
+        private void write(byte[] record, int length)
+        {
+            buffer.position(writePosition + 4);
+            buffer.put(record, 0, length);
+            // The length is written last so that a reader never sees a partial record.
+            buffer.putInt(writePosition, length);
+            writePosition += 4 + length;
+            unconsumed++;
+        }
+
+        private byte[] read()
+        {
+            while (readPosition < writePosition)
+            {
+                int length = buffer.getInt(readPosition);
+                if (length < 0)
+                {
+                    readPosition += 4 - length;
+                    continue;
+                }
+                byte[] record = new byte[length];
+                buffer.position(readPosition + 4);
+                buffer.get(record);
+                buffer.putInt(readPosition, -length);
+                readPosition += 4 + length;
+                unconsumed--;
+                return record;
+            }
+            return null;
+        }
+
+        private void close()
+        {
+            try
+            {
+                randomAccessFile.close();
+            }
+            catch (IOException exception)
+            {
+                logger.log(Level.WARNING, "Unable to close spill segment " + file.getName(), exception);
+            }
+        }
+
+        private void delete()
+        {
+            close();
+            if (!file.delete())
+            {
+                logger.log(Level.WARNING, "Unable to delete spill segment {0}", file.getName());
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractSketch;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
+import spade.core.DispatchPipeline;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -33,15 +34,23 @@ public class FinalCommitFilter extends AbstractFilter {
     // Reference to the set of storages maintained by the Kernel.
     public Set<AbstractStorage> storages = new HashSet<>();
     public Set<AbstractSketch> sketches = new HashSet<>();
+    // Reference to the dispatch pipeline of the Kernel. If set, elements are
+    // handed to the commit stage of each storage instead of being committed
+    // on the calling thread.
+    public DispatchPipeline pipeline = null;
 
     // This filter is the last filter in the list so any vertices or edges
     // received by it need to be passed to the storages. On receiving any
     // provenance elements, it is passed to all storages.
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
-        for (AbstractStorage storage : storages) {
-            if (storage.putVertex(incomingVertex)) {
-                incrementStorageVertexCount(storage);
+        if (pipeline != null) {
+            pipeline.commitVertex(incomingVertex, storages);
+        } else {
+            for (AbstractStorage storage : storages) {
+                if (storage.putVertex(incomingVertex)) {
+                    incrementStorageVertexCount(storage);
+                }
             }
         }
         for (AbstractSketch sketch : sketches) {
@@ -51,9 +60,13 @@ public class FinalCommitFilter extends AbstractFilter {
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
-        for (AbstractStorage storage : storages) {
-            if (storage.putEdge(incomingEdge)) {
-                incrementStorageEdgeCount(storage);
+        if (pipeline != null) {
+            pipeline.commitEdge(incomingEdge, storages);
+        } else {
+            for (AbstractStorage storage : storages) {
+                if (storage.putEdge(incomingEdge)) {
+                    incrementStorageEdgeCount(storage);
+                }
             }
         }
         for (AbstractSketch sketch : sketches) {
@@ -50,6 +50,16 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
         //TODO: support both directions too
         try
         {
+            if(currentStorage instanceof spade.storage.SQL)
+            {
+                // expands a whole level per query instead of querying per vertex and edge
+                return new spade.query.sql.postgresql.GetLineage().execute(parameters, limit);
+            }
+            if(currentStorage instanceof spade.storage.Neo4j)
+            {
+                // traverses the database in one transaction
+                return new spade.query.neo4j.GetLineage().execute(parameters, limit);
+            }
             Graph result = new Graph();
             String storage = currentStorage.getClass().getSimpleName().toLowerCase();
             if(storage.contains("sql"))
@@ -101,6 +111,7 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
                 Set<String> currentSet = new HashSet<>();
                 for(String vertexHash: remainingVertices)
                 {
+                    checkCancelled();
                     Graph neighbors;
                     Map<String, List<String>> params = new HashMap<>();
                     if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
@@ -117,7 +128,10 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
                 		V.setDepth(current_depth+1);
                     result.vertexSet().addAll(neighbors.vertexSet());
                     // empty right now. TODO: make getParents and getChildren return edges too
-                    result.edgeSet().addAll(neighbors.edgeSet());
+                    for(AbstractEdge edge : neighbors.edgeSet())
+                    {
+                        result.putEdge(edge);
+                    }
                     for(AbstractVertex vertex : neighbors.vertexSet())
                     {
                         String neighborHash = vertex.bigHashCode();
@@ -143,7 +157,10 @@ public class GetLineage extends AbstractQuery<Graph, Map<String, List<String>>>
                             edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
                         }
                         Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, DEFAULT_MAX_LIMIT);
-                        result.edgeSet().addAll(edgeSet);
+                        for(AbstractEdge edge : edgeSet)
+                        {
+                            result.putEdge(edge);
+                        }
                     }
                 }
                 remainingVertices.clear();
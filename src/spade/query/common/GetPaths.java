@@ -3,11 +3,18 @@ package spade.query.common;
 import spade.core.AbstractQuery;
 import spade.core.Graph;
 
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
 
 /**
+ * Finds the paths from the vertex given by CHILD_VERTEX_KEY to its ancestor
+ * given by PARENT_VERTEX_KEY of at most 'maxLength' edges.
+ *
  * @author raza
  */
 public class GetPaths extends AbstractQuery<Graph, Map<String, List<String>>>
@@ -20,13 +27,25 @@ public class GetPaths extends AbstractQuery<Graph, Map<String, List<String>>>
     @Override
     public Graph execute(Map<String, List<String>> parameters, Integer limit)
     {
-        //TODO: order of hashes need to be changed here
-        GetLineage getLineage = new GetLineage();
-        parameters.put("direction", Collections.singletonList(DIRECTION_ANCESTORS));
-        Graph ancestorLineage = getLineage.execute(parameters, limit);
-        parameters.put("direction", Collections.singletonList(DIRECTION_DESCENDANTS));
-        Graph descendantLineage = getLineage.execute(parameters, limit);
-
-        return Graph.union(ancestorLineage, descendantLineage);
+        try
+        {
+            if(currentStorage instanceof spade.storage.SQL)
+            {
+                return new spade.query.sql.postgresql.GetPaths().execute(parameters, limit);
+            }
+            if(currentStorage instanceof spade.storage.Neo4j)
+            {
+                return new spade.query.neo4j.GetPaths().execute(parameters, limit);
+            }
+            String sourceHash = parameters.get(CHILD_VERTEX_KEY).get(COL_VALUE);
+            String destinationHash = parameters.get(PARENT_VERTEX_KEY).get(COL_VALUE);
+            int maxLength = Integer.parseInt(parameters.get("maxLength").get(0));
+            return currentStorage.getPaths(sourceHash, destinationHash, maxLength);
+        }
+        catch(Exception ex)
+        {
+            Logger.getLogger(GetPaths.class.getName()).log(Level.SEVERE, "Error executing GetPaths!", ex);
+            return null;
+        }
     }
 }
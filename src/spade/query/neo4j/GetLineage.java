@@ -0,0 +1,205 @@
+package spade.query.neo4j;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.Uniqueness;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractAnalyzer.setRemoteResolutionRequired;
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+import static spade.storage.Neo4j.NodeTypes;
+import static spade.storage.Neo4j.RelationshipTypes;
+import static spade.storage.Neo4j.convertNodeToVertex;
+
+/**
+ * Computes the lineage of a vertex with a breadth first traversal of the
+ * embedded database in a single read transaction. Every relationship within
+ * the maximum depth is visited once and vertices get the depth at which they
+ * are first reached. The result is the same as that of
+ * spade.query.common.GetLineage, which delegates to this for Neo4j.
+ *
+ * @author raza
+ */
+public class GetLineage extends Neo4j<Graph, Map<String, List<String>>>
+{
+    private static final Logger logger = Logger.getLogger(GetLineage.class.getName());
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        String direction = parameters.get(DIRECTION).get(0);
+        int maxDepth = Integer.parseInt(parameters.get(MAX_DEPTH).get(0));
+        GraphDatabaseService graphDb = ((spade.storage.Neo4j) currentStorage).getGraphDatabase();
+        if(graphDb == null)
+        {
+            logger.log(Level.SEVERE, "Neo4j storage cannot be queried");
+            return null;
+        }
+        try(Transaction tx = graphDb.beginTx())
+        {
+            Node startNode = findStartNode(graphDb, parameters);
+            if(startNode == null)
+                return null;
+            Graph result = new Graph();
+            result.setMaxDepth(maxDepth);
+            Map<Long, AbstractVertex> vertices = new HashMap<>();
+            traverse(graphDb, startNode, toDirection(direction), maxDepth, result, vertices);
+            result.setRootVertex(vertices.get(startNode.getId()));
+            result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+            tx.success();
+            return result;
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error executing GetLineage!", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Edges point from the child to the parent vertex so ancestors are
+     * reached over outgoing relationships.
+     */
+    static Direction toDirection(String direction)
+    {
+        return DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) ? Direction.OUTGOING : Direction.INCOMING;
+    }
+
+    /**
+     * Finds the first vertex matching the vertex selections in the parameters.
+     * Must be called within a transaction.
+     *
+     * @return The node or null if none matches.
+     */
+    static Node findStartNode(GraphDatabaseService graphDb, Map<String, List<String>> parameters)
+    {
+        Map<String, List<String>> selections = new HashMap<>(parameters);
+        selections.remove(DIRECTION);
+        selections.remove(MAX_DEPTH);
+        // an equality selection is answered by an index or label scan
+        // and the others are checked on its results
+        String indexedKey = null;
+        for(Map.Entry<String, List<String>> entry : selections.entrySet())
+        {
+            if(OPERATORS.EQUALS.equals(entry.getValue().get(COMPARISON_OPERATOR)))
+            {
+                indexedKey = entry.getKey();
+                break;
+            }
+        }
+        ResourceIterator<Node> candidates = (indexedKey == null) ?
+                graphDb.findNodes(NodeTypes.VERTEX) :
+                graphDb.findNodes(NodeTypes.VERTEX, indexedKey, selections.get(indexedKey).get(COL_VALUE));
+        try
+        {
+            while(candidates.hasNext())
+            {
+                Node node = candidates.next();
+                if(matches(node, selections))
+                    return node;
+            }
+        }
+        finally
+        {
+            candidates.close();
+        }
+        return null;
+    }
+
+    private static boolean matches(Node node, Map<String, List<String>> selections)
+    {
+        for(Map.Entry<String, List<String>> entry : selections.entrySet())
+        {
+            Object property = node.getProperty(entry.getKey(), null);
+            if(property == null)
+                return false;
+            int comparison = String.valueOf(property).compareTo(entry.getValue().get(COL_VALUE));
+            boolean match;
+            switch(entry.getValue().get(COMPARISON_OPERATOR))
+            {
+                case OPERATORS.EQUALS: match = comparison == 0; break;
+                case OPERATORS.NOT_EQUALS: match = comparison != 0; break;
+                case OPERATORS.LESS_THAN: match = comparison < 0; break;
+                case OPERATORS.LESS_THAN_EQUALS: match = comparison <= 0; break;
+                case OPERATORS.GREATER_THAN: match = comparison > 0; break;
+                case OPERATORS.GREATER_THAN_EQUALS: match = comparison >= 0; break;
+                default: match = false;
+            }
+            if(!match)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the vertices and edges reachable from the start node in the given
+     * direction within maxDepth to the result. Must be called within a
+     * transaction.
+     *
+     * @param vertices vertices already in the result by node id. Updated with
+     *                 the vertices added.
+     */
+    static void traverse(GraphDatabaseService graphDb, Node startNode, Direction direction, int maxDepth,
+                         Graph result, Map<Long, AbstractVertex> vertices)
+    {
+        Iterator<Path> paths = graphDb.traversalDescription()
+                .breadthFirst()
+                .relationships(RelationshipTypes.EDGE, direction)
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .evaluator(Evaluators.toDepth(maxDepth))
+                .traverse(startNode)
+                .iterator();
+        while(paths.hasNext())
+        {
+            checkCancelled();
+            Path path = paths.next();
+            Node node = path.endNode();
+            AbstractVertex vertex = vertices.get(node.getId());
+            if(vertex == null)
+            {
+                vertex = convertNodeToVertex(node);
+                vertex.setDepth(path.length());
+                vertices.put(node.getId(), vertex);
+                result.putVertex(vertex);
+                if(path.length() > 0 && vertex.isNetworkVertex())
+                {
+                    setRemoteResolutionRequired();
+                    result.putNetworkVertex(vertex, path.length() - 1);
+                }
+            }
+            Relationship relationship = path.lastRelationship();
+            if(relationship != null)
+            {
+                // both ends have been reached by now
+                AbstractEdge edge = new Edge(vertices.get(relationship.getStartNode().getId()),
+                        vertices.get(relationship.getEndNode().getId()));
+                for(String key : relationship.getPropertyKeys())
+                {
+                    if(!PRIMARY_KEY.equals(key))
+                        edge.addAnnotation(key, String.valueOf(relationship.getProperty(key)));
+                }
+                result.putEdge(edge);
+            }
+        }
+    }
+}
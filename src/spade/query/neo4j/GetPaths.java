@@ -0,0 +1,139 @@
+package spade.query.neo4j;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.PathSearch;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+import static spade.storage.Neo4j.NodeTypes;
+import static spade.storage.Neo4j.RelationshipTypes;
+import static spade.storage.Neo4j.convertNodeToVertex;
+
+/**
+ * Finds the paths from the vertex given by CHILD_VERTEX_KEY to its ancestor
+ * given by PARENT_VERTEX_KEY of at most 'maxLength' edges, searching from both
+ * ends in a single read transaction.
+ *
+ * @author raza
+ */
+public class GetPaths extends Neo4j<Graph, Map<String, List<String>>>
+{
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        String sourceHash = parameters.get(CHILD_VERTEX_KEY).get(COL_VALUE);
+        String destinationHash = parameters.get(PARENT_VERTEX_KEY).get(COL_VALUE);
+        int maxLength = Integer.parseInt(parameters.get("maxLength").get(0));
+        final GraphDatabaseService graphDb = ((spade.storage.Neo4j) currentStorage).getGraphDatabase();
+        if(graphDb == null)
+        {
+            Logger.getLogger(GetPaths.class.getName()).log(Level.SEVERE, "Neo4j storage cannot be queried");
+            return null;
+        }
+        try(Transaction tx = graphDb.beginTx())
+        {
+            final Map<String, Node> nodes = new HashMap<>();
+            PathSearch pathSearch = new PathSearch()
+            {
+                @Override
+                protected Map<String, Set<String>> getParents(Set<String> hashes)
+                {
+                    return getNeighbors(graphDb, nodes, hashes, Direction.OUTGOING);
+                }
+
+                @Override
+                protected Map<String, Set<String>> getChildren(Set<String> hashes)
+                {
+                    return getNeighbors(graphDb, nodes, hashes, Direction.INCOMING);
+                }
+            };
+            Map<String, Set<String>> paths = pathSearch.findPaths(sourceHash, destinationHash, maxLength);
+
+            Graph result = new Graph();
+            Map<String, AbstractVertex> vertices = new HashMap<>();
+            for(String hash : paths.keySet())
+            {
+                AbstractVertex vertex = convertNodeToVertex(findNode(graphDb, nodes, hash));
+                vertices.put(hash, vertex);
+                result.putVertex(vertex);
+            }
+            for(Map.Entry<String, Set<String>> entry : paths.entrySet())
+            {
+                for(Relationship relationship : findNode(graphDb, nodes, entry.getKey())
+                        .getRelationships(RelationshipTypes.EDGE, Direction.OUTGOING))
+                {
+                    String parentHash = (String) relationship.getEndNode().getProperty(PRIMARY_KEY);
+                    if(!entry.getValue().contains(parentHash))
+                        continue;
+                    AbstractEdge edge = new Edge(vertices.get(entry.getKey()), vertices.get(parentHash));
+                    for(String key : relationship.getPropertyKeys())
+                    {
+                        if(!PRIMARY_KEY.equals(key))
+                            edge.addAnnotation(key, String.valueOf(relationship.getProperty(key)));
+                    }
+                    result.putEdge(edge);
+                }
+            }
+            result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+            tx.success();
+            return result;
+        }
+        catch(Exception ex)
+        {
+            Logger.getLogger(GetPaths.class.getName()).log(Level.SEVERE, "Error executing GetPaths!", ex);
+            return null;
+        }
+    }
+
+    private static Node findNode(GraphDatabaseService graphDb, Map<String, Node> nodes, String hash)
+    {
+        Node node = nodes.get(hash);
+        if(node == null && !nodes.containsKey(hash))
+        {
+            node = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY, hash);
+            nodes.put(hash, node);
+        }
+        return node;
+    }
+
+    private static Map<String, Set<String>> getNeighbors(GraphDatabaseService graphDb, Map<String, Node> nodes,
+                                                         Set<String> hashes, Direction direction)
+    {
+        Map<String, Set<String>> neighbors = new HashMap<>();
+        for(String hash : hashes)
+        {
+            Node node = findNode(graphDb, nodes, hash);
+            if(node == null)
+                continue;
+            Set<String> neighborHashes = new LinkedHashSet<>();
+            for(Relationship relationship : node.getRelationships(RelationshipTypes.EDGE, direction))
+            {
+                Node neighbor = relationship.getOtherNode(node);
+                String neighborHash = (String) neighbor.getProperty(PRIMARY_KEY);
+                nodes.put(neighborHash, neighbor);
+                neighborHashes.add(neighborHash);
+            }
+            neighbors.put(hash, neighborHashes);
+        }
+        return neighbors;
+    }
+}
@@ -0,0 +1,702 @@
+package spade.query.scaffold;
+
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
+import spade.core.AbstractEdge;
+import spade.core.Cache;
+import spade.core.Settings;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractQuery.checkCancelled;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+
+/**
+ * Scaffold backend which stores the adjacency of vertices as sorted lists of
+ * dense ids instead of sets of hashes.
+ *
+ * Every vertex hash is interned to a 64-bit id, assigned in order of first
+ * appearance. The parents and the children of a vertex are stored under
+ * separate key ranges of the adjacency database, keyed by a direction byte
+ * followed by the big-endian id, as a count followed by the varint-encoded
+ * differences between consecutive ids. Lineage queries look up a whole
+ * frontier at a time in id order with a single cursor so that neighboring
+ * keys are read from the same B-tree nodes, and keep the visited vertices in
+ * sorted id arrays. Hashes are only resolved once for the final result.
+ *
+ * @author raza
+ */
+public class CompactScaffold extends Scaffold
+{
+    private static final Logger logger = Logger.getLogger(CompactScaffold.class.getName());
+
+    private static final byte PARENTS_RANGE = 0;
+    private static final byte CHILDREN_RANGE = 1;
+    private static final long[] NO_IDS = new long[0];
+
+    private static final int WRITE_CACHE_SIZE = Integer.parseInt(Settings.getProperty("scaffold_write_cache_size"));
+    private static final long FLUSH_INTERVAL_MILLIS = Long.parseLong(Settings.getProperty("scaffold_flush_interval_millis"));
+    private static final int ID_CACHE_SIZE = Integer.parseInt(Settings.getProperty("scaffold_id_cache_size"));
+
+    private Environment environment;
+    // hash -> id
+    private Database idDatabase;
+    // id -> hash
+    private Database hashDatabase;
+    // direction byte + id -> encoded neighbor ids
+    private Database adjacencyDatabase;
+
+    private long nextId = 1;
+    private Cache<Long> idCache;
+    // ids assigned since the last flush, in both directions
+    private final Map<String, Long> pendingIds = new LinkedHashMap<>();
+    private final Map<Long, String> pendingHashes = new HashMap<>();
+    // neighbors added since the last flush, by direction and id
+    private final Map<Long, LongList> pendingParents = new HashMap<>();
+    private final Map<Long, LongList> pendingChildren = new HashMap<>();
+    private long lastFlushTime = System.currentTimeMillis();
+
+    @Override
+    public boolean initialize(String arguments)
+    {
+        try
+        {
+            EnvironmentConfig envConfig = new EnvironmentConfig();
+            envConfig.setAllowCreate(true);
+            envConfig.setTransactional(true);
+            environment = new Environment(new File(arguments), envConfig);
+
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setAllowCreate(true);
+            dbConfig.setTransactional(true);
+            idDatabase = environment.openDatabase(null, "scaffold_ids", dbConfig);
+            hashDatabase = environment.openDatabase(null, "scaffold_hashes", dbConfig);
+            adjacencyDatabase = environment.openDatabase(null, "scaffold_adjacency", dbConfig);
+
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            Cursor cursor = hashDatabase.openCursor(null, null);
+            try
+            {
+                if(cursor.getLast(key, data, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+                {
+                    nextId = idFromKey(key.getData(), key.getOffset()) + 1;
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+            idCache = (ID_CACHE_SIZE > 0) ? new Cache<Long>(Cache.Policy.LRU, ID_CACHE_SIZE) : null;
+            return true;
+        }
+        catch(DatabaseException ex)
+        {
+            logger.log(Level.WARNING, null, ex);
+        }
+
+        return false;
+    }
+
+    /**
+     * Prints the hashes of at most limit vertices in the order of their ids.
+     */
+    @Override
+    public synchronized void readData(int limit)
+    {
+        flush();
+        Cursor cursor = hashDatabase.openCursor(null, null);
+        try
+        {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            int i = 0;
+            while(i < limit && cursor.getNext(key, data, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+            {
+                String hash = new String(data.getData(), data.getOffset(), data.getSize(), StandardCharsets.UTF_8);
+                System.out.println("hash: " + hash);
+                i++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized boolean shutdown()
+    {
+        try
+        {
+            flush();
+            if(adjacencyDatabase != null)
+                adjacencyDatabase.close();
+            if(hashDatabase != null)
+                hashDatabase.close();
+            if(idDatabase != null)
+                idDatabase.close();
+            if(environment != null)
+                environment.close();
+            return true;
+        }
+        catch(DatabaseException ex)
+        {
+            logger.log(Level.SEVERE, "Database closure error!", ex);
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized boolean insertEntry(AbstractEdge incomingEdge)
+    {
+        String childHash = incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY) ?
+                incomingEdge.getAnnotation(CHILD_VERTEX_KEY) : incomingEdge.getChildVertex().bigHashCode();
+        String parentHash = incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY) ?
+                incomingEdge.getAnnotation(PARENT_VERTEX_KEY) : incomingEdge.getParentVertex().bigHashCode();
+        try
+        {
+            long childId = intern(childHash);
+            long parentId = intern(parentHash);
+            addPending(pendingParents, childId, parentId);
+            addPending(pendingChildren, parentId, childId);
+            if(pendingParents.size() + pendingChildren.size() >= WRITE_CACHE_SIZE)
+            {
+                flush();
+            }
+            else
+            {
+                flushTransactions();
+            }
+            return true;
+        }
+        catch(DatabaseException ex)
+        {
+            logger.log(Level.SEVERE, "Scaffold entry insertion error!", ex);
+        }
+
+        return false;
+    }
+
+    private static void addPending(Map<Long, LongList> pending, long id, long neighborId)
+    {
+        LongList neighbors = pending.get(id);
+        if(neighbors == null)
+        {
+            neighbors = new LongList();
+            pending.put(id, neighbors);
+        }
+        neighbors.add(neighborId);
+    }
+
+    /**
+     * @return The id of the given hash, which is assigned if the hash is new.
+     */
+    private long intern(String hash)
+    {
+        long id = lookupId(hash);
+        if(id < 0)
+        {
+            id = nextId++;
+            pendingIds.put(hash, id);
+            pendingHashes.put(id, hash);
+            if(idCache != null)
+            {
+                idCache.addItem(hash, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return The id of the given hash or -1 if it has none.
+     */
+    private long lookupId(String hash)
+    {
+        Long id = (idCache == null) ? null : idCache.get(hash);
+        if(id == null)
+        {
+            id = pendingIds.get(hash);
+        }
+        if(id == null)
+        {
+            DatabaseEntry data = new DatabaseEntry();
+            if(idDatabase.get(null, new DatabaseEntry(hash.getBytes(StandardCharsets.UTF_8)), data,
+                    LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS)
+            {
+                return -1;
+            }
+            id = new TupleInput(data.getData(), data.getOffset(), data.getSize()).readPackedLong();
+            if(idCache != null)
+            {
+                idCache.addItem(hash, id);
+            }
+        }
+        return id;
+    }
+
+    @Override
+    public synchronized boolean flushTransactions()
+    {
+        if(System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS)
+        {
+            return flush();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the new ids and merges the pending neighbors into the stored
+     * lists in a single transaction, in key order.
+     *
+     * @return True if the flush succeeded.
+     */
+    @Override
+    public synchronized boolean flush()
+    {
+        lastFlushTime = System.currentTimeMillis();
+        if(adjacencyDatabase == null || (pendingIds.isEmpty() && pendingParents.isEmpty() && pendingChildren.isEmpty()))
+        {
+            return true;
+        }
+        Transaction transaction = null;
+        try
+        {
+            transaction = environment.beginTransaction(null, null);
+            TupleOutput output = new TupleOutput();
+            for(Map.Entry<String, Long> entry : pendingIds.entrySet())
+            {
+                byte[] hash = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                output.reset();
+                output.writePackedLong(entry.getValue());
+                idDatabase.put(transaction, new DatabaseEntry(hash), new DatabaseEntry(output.toByteArray()));
+                hashDatabase.put(transaction, new DatabaseEntry(idKey(entry.getValue())), new DatabaseEntry(hash));
+            }
+            mergePending(transaction, PARENTS_RANGE, pendingParents, output);
+            mergePending(transaction, CHILDREN_RANGE, pendingChildren, output);
+            transaction.commit();
+            transaction = null;
+            pendingIds.clear();
+            pendingHashes.clear();
+            pendingParents.clear();
+            pendingChildren.clear();
+            return true;
+        }
+        catch(DatabaseException ex)
+        {
+            logger.log(Level.SEVERE, "Scaffold flush error!", ex);
+            return false;
+        }
+        finally
+        {
+            if(transaction != null)
+            {
+                transaction.abort();
+            }
+        }
+    }
+
+    private void mergePending(Transaction transaction, byte range, Map<Long, LongList> pending, TupleOutput output)
+    {
+        long[] ids = new long[pending.size()];
+        int i = 0;
+        for(Long id : pending.keySet())
+        {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        for(long id : ids)
+        {
+            key.setData(adjacencyKey(range, id));
+            long[] added = pending.get(id).toSortedSet();
+            long[] neighbors = added;
+            if(adjacencyDatabase.get(transaction, key, data, LockMode.RMW) == OperationStatus.SUCCESS)
+            {
+                neighbors = union(decode(data), added);
+            }
+            output.reset();
+            encode(neighbors, output);
+            data.setData(output.getBufferBytes(), 0, output.getBufferLength());
+            adjacencyDatabase.put(transaction, key, data);
+        }
+    }
+
+    @Override
+    public Set<String> getChildren(String parentHash)
+    {
+        return getNeighborHashes(parentHash, CHILDREN_RANGE);
+    }
+
+    @Override
+    public Set<String> getParents(String childHash)
+    {
+        return getNeighborHashes(childHash, PARENTS_RANGE);
+    }
+
+    private synchronized Set<String> getNeighborHashes(String hash, byte range)
+    {
+        long id = lookupId(hash);
+        if(id < 0)
+        {
+            return null;
+        }
+        long[] neighbors = getNeighborIds(range, new long[]{id})[0];
+        Map<Long, String> hashes = resolveHashes(neighbors);
+        Set<String> result = new LinkedHashSet<>();
+        for(long neighbor : neighbors)
+        {
+            result.add(hashes.get(neighbor));
+        }
+        return result;
+    }
+
+    @Override
+    protected Map<String, Set<String>> getParents(Set<String> hashes)
+    {
+        return getNeighborHashes(hashes, PARENTS_RANGE);
+    }
+
+    @Override
+    protected Map<String, Set<String>> getChildren(Set<String> hashes)
+    {
+        return getNeighborHashes(hashes, CHILDREN_RANGE);
+    }
+
+    private synchronized Map<String, Set<String>> getNeighborHashes(Set<String> hashes, byte range)
+    {
+        LongList ids = new LongList();
+        for(String hash : hashes)
+        {
+            long id = lookupId(hash);
+            if(id >= 0)
+                ids.add(id);
+        }
+        long[] sortedIds = ids.toSortedSet();
+        long[][] neighbors = getNeighborIds(range, sortedIds);
+        LongList allIds = new LongList();
+        allIds.addAll(sortedIds);
+        for(long[] list : neighbors)
+        {
+            allIds.addAll(list);
+        }
+        Map<Long, String> resolved = resolveHashes(allIds.toSortedSet());
+        Map<String, Set<String>> result = new HashMap<>();
+        for(int i = 0; i < sortedIds.length; i++)
+        {
+            Set<String> neighborHashes = new LinkedHashSet<>();
+            for(long neighbor : neighbors[i])
+            {
+                neighborHashes.add(resolved.get(neighbor));
+            }
+            result.put(resolved.get(sortedIds[i]), neighborHashes);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the ancestors or descendants of the given vertex within maxDepth
+     * levels, as a map from each vertex visited to its parents or children.
+     *
+     * @return The lineage or null if the vertex is not in the scaffold.
+     */
+    @Override
+    public synchronized Map<String, Set<String>> getLineage(String hash, String direction, int maxDepth)
+    {
+        try
+        {
+            long id = lookupId(hash);
+            if(id < 0)
+            {
+                return null;
+            }
+            byte range = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) ? PARENTS_RANGE : CHILDREN_RANGE;
+            List<long[]> frontiers = new ArrayList<>();
+            List<long[][]> neighborLists = new ArrayList<>();
+            long[] frontier = new long[]{id};
+            long[] visited = frontier;
+            for(int depth = 0; depth < maxDepth && frontier.length > 0; depth++)
+            {
+                checkCancelled();
+                long[][] neighbors = getNeighborIds(range, frontier);
+                frontiers.add(frontier);
+                neighborLists.add(neighbors);
+                LongList next = new LongList();
+                for(long[] list : neighbors)
+                {
+                    next.addAll(list);
+                }
+                frontier = difference(next.toSortedSet(), visited);
+                visited = union(visited, frontier);
+            }
+
+            Map<Long, String> hashes = resolveHashes(visited);
+            Map<String, Set<String>> lineageMap = new HashMap<>();
+            for(int level = 0; level < frontiers.size(); level++)
+            {
+                long[] levelIds = frontiers.get(level);
+                long[][] levelNeighbors = neighborLists.get(level);
+                for(int i = 0; i < levelIds.length; i++)
+                {
+                    Set<String> neighborHashes = new LinkedHashSet<>();
+                    for(long neighbor : levelNeighbors[i])
+                    {
+                        neighborHashes.add(hashes.get(neighbor));
+                    }
+                    lineageMap.put(hashes.get(levelIds[i]), neighborHashes);
+                }
+            }
+            return lineageMap;
+        }
+        catch(DatabaseException ex)
+        {
+            logger.log(Level.SEVERE, "Scaffold Get Lineage error!", ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * Looks up the neighbor lists of all given vertices with one cursor, merged
+     * with the pending neighbors.
+     *
+     * @param ids ids in ascending order
+     * @return the sorted neighbor ids of each vertex, in the order of ids
+     */
+    private long[][] getNeighborIds(byte range, long[] ids)
+    {
+        Map<Long, LongList> pending = (range == PARENTS_RANGE) ? pendingParents : pendingChildren;
+        long[][] neighbors = new long[ids.length][];
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        Cursor cursor = adjacencyDatabase.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try
+        {
+            for(int i = 0; i < ids.length; i++)
+            {
+                key.setData(adjacencyKey(range, ids[i]));
+                neighbors[i] = (cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) ?
+                        decode(data) : NO_IDS;
+                LongList added = pending.get(ids[i]);
+                if(added != null)
+                {
+                    neighbors[i] = union(neighbors[i], added.toSortedSet());
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return neighbors;
+    }
+
+    /**
+     * @param ids ids in ascending order
+     * @return the hashes of the given ids
+     */
+    private Map<Long, String> resolveHashes(long[] ids)
+    {
+        Map<Long, String> hashes = new HashMap<>(2 * ids.length);
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        Cursor cursor = hashDatabase.openCursor(null, CursorConfig.READ_UNCOMMITTED);
+        try
+        {
+            for(long id : ids)
+            {
+                String hash = pendingHashes.get(id);
+                if(hash != null)
+                {
+                    hashes.put(id, hash);
+                    continue;
+                }
+                key.setData(idKey(id));
+                if(cursor.getSearchKey(key, data, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS)
+                {
+                    hashes.put(id, new String(data.getData(), data.getOffset(), data.getSize(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return hashes;
+    }
+
+    private static byte[] idKey(long id)
+    {
+        byte[] key = new byte[8];
+        writeId(key, 0, id);
+        return key;
+    }
+
+    private static byte[] adjacencyKey(byte range, long id)
+    {
+        byte[] key = new byte[9];
+        key[0] = range;
+        writeId(key, 1, id);
+        return key;
+    }
+
+    // big-endian so that the byte order of keys is the order of ids
+    private static void writeId(byte[] key, int offset, long id)
+    {
+        for(int i = 7; i >= 0; i--)
+        {
+            key[offset + i] = (byte) id;
+            id >>>= 8;
+        }
+    }
+
+    private static long idFromKey(byte[] key, int offset)
+    {
+        long id = 0;
+        for(int i = 0; i < 8; i++)
+        {
+            id = (id << 8) | (key[offset + i] & 0xff);
+        }
+        return id;
+    }
+
+    private static void encode(long[] sortedIds, TupleOutput output)
+    {
+        output.writePackedInt(sortedIds.length);
+        long previous = 0;
+        for(long id : sortedIds)
+        {
+            output.writePackedLong(id - previous);
+            previous = id;
+        }
+    }
+
+    private static long[] decode(DatabaseEntry data)
+    {
+        TupleInput input = new TupleInput(data.getData(), data.getOffset(), data.getSize());
+        long[] ids = new long[input.readPackedInt()];
+        long previous = 0;
+        for(int i = 0; i < ids.length; i++)
+        {
+            previous += input.readPackedLong();
+            ids[i] = previous;
+        }
+        return ids;
+    }
+
+    /**
+     * @return the union of two ascending arrays without duplicates
+     */
+    private static long[] union(long[] a, long[] b)
+    {
+        if(b.length == 0)
+            return a;
+        if(a.length == 0)
+            return b;
+        long[] result = new long[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while(i < a.length && j < b.length)
+        {
+            if(a[i] < b[j])
+                result[n++] = a[i++];
+            else if(a[i] > b[j])
+                result[n++] = b[j++];
+            else
+            {
+                result[n++] = a[i++];
+                j++;
+            }
+        }
+        while(i < a.length)
+            result[n++] = a[i++];
+        while(j < b.length)
+            result[n++] = b[j++];
+        return (n == result.length) ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return the ids of the ascending array a which are not in the ascending array b
+     */
+    private static long[] difference(long[] a, long[] b)
+    {
+        long[] result = new long[a.length];
+        int j = 0, n = 0;
+        for(long id : a)
+        {
+            while(j < b.length && b[j] < id)
+                j++;
+            if(j == b.length || b[j] != id)
+                result[n++] = id;
+        }
+        return (n == result.length) ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Growable array of ids.
+     */
+    private static final class LongList
+    {
+        private long[] values = new long[4];
+        private int size = 0;
+
+        private void add(long value)
+        {
+            if(size == values.length)
+            {
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            values[size++] = value;
+        }
+
+        private void addAll(long[] added)
+        {
+            if(size + added.length > values.length)
+            {
+                values = Arrays.copyOf(values, Math.max(2 * values.length, size + added.length));
+            }
+            System.arraycopy(added, 0, values, size, added.length);
+            size += added.length;
+        }
+
+        /**
+         * @return the values in ascending order without duplicates
+         */
+        private long[] toSortedSet()
+        {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            int n = 0;
+            for(int i = 0; i < sorted.length; i++)
+            {
+                if(n == 0 || sorted[i] != sorted[n - 1])
+                    sorted[n++] = sorted[i];
+            }
+            return (n == sorted.length) ? sorted : Arrays.copyOf(sorted, n);
+        }
+    }
+}
@@ -3,6 +3,9 @@ package spade.query.scaffold;
 import com.sleepycat.bind.EntryBinding;
 import com.sleepycat.bind.serial.SerialBinding;
 import com.sleepycat.bind.serial.StoredClassCatalog;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
@@ -12,18 +15,25 @@ import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.Transaction;
 import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.PathSearch;
+import spade.core.Settings;
 import spade.core.Vertex;
 import spade.query.sql.postgresql.PostgreSQL;
 
 import java.io.File;
+import java.io.ObjectStreamConstants;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -32,6 +42,7 @@ import java.util.HashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static spade.core.AbstractQuery.checkCancelled;
 import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
 import static spade.core.AbstractStorage.DIRECTION;
 import static spade.core.AbstractStorage.MAX_DEPTH;
@@ -54,6 +65,32 @@ public class Scaffold extends AbstractQuery
     private static final String PARENTS = "parents";
     private static final String CHILDREN = "children";
 
+    /**
+     * Write-back cache of the neighbors added since the last flush, keyed by
+     * vertex hash. It is written to the database in a single transaction once
+     * it holds WRITE_CACHE_SIZE vertices or FLUSH_INTERVAL_MILLIS have passed
+     * since the last flush. Reads merge it with the stored neighbors.
+     */
+    private static final int WRITE_CACHE_SIZE = Integer.parseInt(Settings.getProperty("scaffold_write_cache_size"));
+    private static final long FLUSH_INTERVAL_MILLIS = Long.parseLong(Settings.getProperty("scaffold_flush_interval_millis"));
+    private final Map<String, Neighbors> pendingNeighbors = new HashMap<>();
+    private long lastFlushTime = System.currentTimeMillis();
+    private final EntryBinding<Neighbors> neighborBinding = new NeighborsBinding();
+
+    /**
+     * Creates the scaffold backend selected by the 'scaffold_backend' setting.
+     *
+     * @return a CompactScaffold for 'compact', a Scaffold otherwise.
+     */
+    public static Scaffold create()
+    {
+        if("compact".equalsIgnoreCase(Settings.getProperty("scaffold_backend")))
+        {
+            return new CompactScaffold();
+        }
+        return new Scaffold();
+    }
+
     public void readData(int limit)
     {
         Cursor cursor = scaffoldDatabase.openCursor(null, null);
@@ -87,10 +124,12 @@ public class Scaffold extends AbstractQuery
         {
             EnvironmentConfig envConfig = new EnvironmentConfig();
             envConfig.setAllowCreate(true);
+            envConfig.setTransactional(true);
             scaffoldDbEnvironment = new Environment(new File(directoryPath), envConfig);
 
             DatabaseConfig dbConfig = new DatabaseConfig();
             dbConfig.setAllowCreate(true);
+            dbConfig.setTransactional(true);
             scaffoldDatabase = scaffoldDbEnvironment.openDatabase(null, "scaffold_berkeleydb", dbConfig);
 
             // databases to store class information
@@ -113,10 +152,13 @@ public class Scaffold extends AbstractQuery
      *
      * @return True if the storage was shut down successfully.
      */
-    public boolean shutdown()
+    public synchronized boolean shutdown()
     {
         try
         {
+            flush();
+            if (neighborDatabase != null)
+                neighborDatabase.close();
             if (scaffoldDatabase != null)
                 scaffoldDatabase.close();
             if (scaffoldDbEnvironment != null)
@@ -133,54 +175,48 @@ public class Scaffold extends AbstractQuery
 
     public Set<String> getChildren(String parentHash)
     {
-        try
-        {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(parentHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            if(operationStatus != OperationStatus.NOTFOUND)
-            {
-                Neighbors neighbors = neighborBinding.entryToObject(data);
-                return neighbors.children;
-            }
-        }
-        catch (UnsupportedEncodingException ex)
-        {
-            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold entry insertion error!", ex);
-        }
-        return null;
+        Neighbors neighbors = getNeighborsEntry(parentHash);
+        return (neighbors == null) ? null : neighbors.children;
     }
 
     public Set<String> getParents(String childHash)
     {
-        try
+        Neighbors neighbors = getNeighborsEntry(childHash);
+        return (neighbors == null) ? null : neighbors.parents;
+    }
+
+    /**
+     * Returns the stored neighbors of the given vertex merged with the ones
+     * waiting in the write-back cache.
+     *
+     * @param hash hash of the vertex
+     * @return the neighbors OR NULL if the vertex is not in the scaffold.
+     */
+    private synchronized Neighbors getNeighborsEntry(String hash)
+    {
+        Neighbors neighbors = readNeighbors(null, hash);
+        Neighbors pending = pendingNeighbors.get(hash);
+        if(pending != null)
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(childHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            if(operationStatus != OperationStatus.NOTFOUND)
+            if(neighbors == null)
             {
-                Neighbors neighbors = neighborBinding.entryToObject(data);
-                return neighbors.parents;
+                neighbors = new Neighbors();
             }
+            neighbors.parents.addAll(pending.parents);
+            neighbors.children.addAll(pending.children);
         }
-        catch (UnsupportedEncodingException ex)
+        return neighbors;
+    }
+
+    private Neighbors readNeighbors(Transaction transaction, String hash)
+    {
+        DatabaseEntry key = new DatabaseEntry(hash.getBytes(StandardCharsets.UTF_8));
+        DatabaseEntry data = new DatabaseEntry();
+        LockMode lockMode = (transaction == null) ? LockMode.DEFAULT : LockMode.RMW;
+        OperationStatus operationStatus = scaffoldDatabase.get(transaction, key, data, lockMode);
+        if(operationStatus == OperationStatus.SUCCESS)
         {
-            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold entry insertion error!", ex);
+            return neighborBinding.entryToObject(data);
         }
         return null;
     }
@@ -196,17 +232,7 @@ public class Scaffold extends AbstractQuery
     {
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(hash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            if(operationStatus != OperationStatus.NOTFOUND)
+            if(getNeighborsEntry(hash) != null)
             {
                 Set<String> remainingVertices = new HashSet<>();
                 Set<String> visitedVertices = new HashSet<>();
@@ -219,6 +245,7 @@ public class Scaffold extends AbstractQuery
                     Set<String> currentSet = new HashSet<>();
                     for(String current_hash: remainingVertices)
                     {
+                        checkCancelled();
                         Set<String> neighbors = null;
                         if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
                             neighbors = getParents(current_hash);
@@ -245,7 +272,7 @@ public class Scaffold extends AbstractQuery
                 return lineageMap;
             }
         }
-        catch(UnsupportedEncodingException ex)
+        catch(DatabaseException ex)
         {
             Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold Get Lineage error!", ex);
         }
@@ -253,39 +280,81 @@ public class Scaffold extends AbstractQuery
         return null;
     }
 
+    /**
+     * Finds the paths of at most maxLength edges from the source vertex to the
+     * destination vertex among its ancestors.
+     *
+     * @return the parents on paths of each vertex on paths. Empty if there is no path.
+     */
     public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
     {
-
-        Map<String, Set<String>> lineageUp = getLineage(source_hash, DIRECTION_ANCESTORS, maxLength);
-        Map<String, Set<String>> lineageDown = getLineage(destination_hash, DIRECTION_DESCENDANTS, maxLength);
-        Map<String, Set<String>> paths = new HashMap<>();
-        Set<String> keys = lineageUp.keySet();
-        keys.retainAll(lineageDown.keySet());
-
-        for(String key: keys)
+        PathSearch pathSearch = new PathSearch()
         {
-            Set<String> pathEntry = paths.get(key);
-            if(pathEntry == null)
+            @Override
+            protected Map<String, Set<String>> getParents(Set<String> hashes)
             {
-                pathEntry = new HashSet<>();
+                return Scaffold.this.getParents(hashes);
             }
-            pathEntry.addAll(lineageUp.get(key));
-            pathEntry.addAll(lineageDown.get(key));
+
+            @Override
+            protected Map<String, Set<String>> getChildren(Set<String> hashes)
+            {
+                return Scaffold.this.getChildren(hashes);
+            }
+        };
+        try
+        {
+            return pathSearch.findPaths(source_hash, destination_hash, maxLength);
+        }
+        catch(DatabaseException ex)
+        {
+            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold Get Paths error!", ex);
         }
 
-        return paths;
+        return null;
+    }
+
+    /**
+     * @return the parents of each of the given vertices in the scaffold
+     */
+    protected Map<String, Set<String>> getParents(Set<String> hashes)
+    {
+        Map<String, Set<String>> parents = new HashMap<>();
+        for(String hash : hashes)
+        {
+            Set<String> neighbors = getParents(hash);
+            if(neighbors != null)
+                parents.put(hash, neighbors);
+        }
+        return parents;
+    }
+
+    /**
+     * @return the children of each of the given vertices in the scaffold
+     */
+    protected Map<String, Set<String>> getChildren(Set<String> hashes)
+    {
+        Map<String, Set<String>> children = new HashMap<>();
+        for(String hash : hashes)
+        {
+            Set<String> neighbors = getChildren(hash);
+            if(neighbors != null)
+                children.put(hash, neighbors);
+        }
+        return children;
     }
 
 
     /**
      * This function inserts hashes of the end vertices of given edge
-     * into the scaffold storage.
+     * into the scaffold storage. The hashes are added to the write-back
+     * cache and written to the database by the next flush.
      *
      * @param incomingEdge edge whose end points to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
      * not successful if the vertex is already present in the storage.
      */
-    public boolean insertEntry(AbstractEdge incomingEdge)
+    public synchronized boolean insertEntry(AbstractEdge incomingEdge)
     {
         AbstractVertex childVertex = incomingEdge.getChildVertex();
         AbstractVertex parentVertex = incomingEdge.getParentVertex();
@@ -295,23 +364,17 @@ public class Scaffold extends AbstractQuery
                 incomingEdge.getAnnotation(PARENT_VERTEX_KEY) : parentVertex.bigHashCode();
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
-            // Create DatabaseEntry for the key
-            DatabaseEntry key = new DatabaseEntry(childHash.getBytes("UTF-8"));
-            // Create the DatabaseEntry for the data.
-            DatabaseEntry data = new DatabaseEntry();
-            // query database to get the key-value
-            OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            addItem(operationStatus, PARENTS , key, data, neighborBinding, parentHash);
-
+            addItem(childHash, PARENTS, parentHash);
             // now do the reverse too
-            key = new DatabaseEntry(parentHash.getBytes("UTF-8"));
-            data = new DatabaseEntry();
-            operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
-            addItem(operationStatus, CHILDREN, key, data, neighborBinding, childHash);
+            addItem(parentHash, CHILDREN, childHash);
+            if(pendingNeighbors.size() >= WRITE_CACHE_SIZE)
+            {
+                flush();
+            }
+            else
+            {
+                flushTransactions();
+            }
 
             // stats calculation
             serial_number++;
@@ -325,7 +388,7 @@ public class Scaffold extends AbstractQuery
 
             return true;
         }
-        catch (UnsupportedEncodingException ex)
+        catch (DatabaseException ex)
         {
             Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold entry insertion error!", ex);
         }
@@ -334,34 +397,95 @@ public class Scaffold extends AbstractQuery
     }
 
     /**
-     * Helper method to add an item to the storage
-     * @param status status of last get operation at the caller
+     * Helper method to add an item to the write-back cache
+     * @param key hash of the vertex to add the neighbor to
      * @param direction wither parent or children
-     * @param key key of the element to insert data into
-     * @param neighborBinding binding object to bind the data object to
      * @param hash hash of the parent or child to add to the data list
      */
-    private void addItem(OperationStatus status, String direction, DatabaseEntry key, DatabaseEntry data,
-                         EntryBinding<Neighbors> neighborBinding, String hash)
+    private void addItem(String key, String direction, String hash)
     {
-        Neighbors neighbors;
-        if(status == OperationStatus.NOTFOUND)
+        Neighbors neighbors = pendingNeighbors.get(key);
+        if(neighbors == null)
         {
-            // if key is not present, add a new object
             neighbors = new Neighbors();
-        }
-        else
-        {
-            // if key is present, retrieve corresponding data object
-            neighbors = neighborBinding.entryToObject(data);
+            pendingNeighbors.put(key, neighbors);
         }
         if(direction.equalsIgnoreCase(PARENTS))
             neighbors.parents.add(hash);
         else if(direction.equalsIgnoreCase(CHILDREN))
             neighbors.children.add(hash);
-        data = new DatabaseEntry();
-        neighborBinding.objectToEntry(neighbors, data);
-        scaffoldDatabase.put(null, key, data);
+    }
+
+    /**
+     * Flushes the write-back cache if FLUSH_INTERVAL_MILLIS have passed
+     * since the last flush.
+     *
+     * @return True if nothing had to be flushed or the flush succeeded.
+     */
+    public synchronized boolean flushTransactions()
+    {
+        if(System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS)
+        {
+            return flush();
+        }
+        return true;
+    }
+
+    /**
+     * Merges the write-back cache into the stored neighbors. Keys are written
+     * in sorted order within a single transaction so that the B-tree is
+     * traversed sequentially. If the transaction fails, the cache is kept and
+     * retried by the next flush.
+     *
+     * @return True if the flush succeeded.
+     */
+    public synchronized boolean flush()
+    {
+        lastFlushTime = System.currentTimeMillis();
+        if(pendingNeighbors.isEmpty() || scaffoldDatabase == null)
+        {
+            return true;
+        }
+        List<String> keys = new ArrayList<>(pendingNeighbors.keySet());
+        Collections.sort(keys);
+        Transaction transaction = null;
+        try
+        {
+            transaction = scaffoldDbEnvironment.beginTransaction(null, null);
+            DatabaseEntry data = new DatabaseEntry();
+            for(String hash : keys)
+            {
+                Neighbors neighbors = readNeighbors(transaction, hash);
+                Neighbors pending = pendingNeighbors.get(hash);
+                if(neighbors == null)
+                {
+                    neighbors = pending;
+                }
+                else
+                {
+                    neighbors.parents.addAll(pending.parents);
+                    neighbors.children.addAll(pending.children);
+                }
+                neighborBinding.objectToEntry(neighbors, data);
+                scaffoldDatabase.put(transaction, new DatabaseEntry(hash.getBytes(StandardCharsets.UTF_8)), data);
+            }
+            transaction.commit();
+            transaction = null;
+            pendingNeighbors.clear();
+            return true;
+        }
+        catch(DatabaseException ex)
+        {
+            Logger.getLogger(Scaffold.class.getName()).log(Level.SEVERE, "Scaffold flush error!", ex);
+            return false;
+        }
+        finally
+        {
+            if(transaction != null)
+            {
+                transaction.abort();
+            }
+        }
     }
 
     public Graph queryManager(Map<String, List<String>> params)
@@ -441,7 +565,10 @@ public class Scaffold extends AbstractQuery
                 Logger.getLogger(Scaffold.class.getName()).log(Level.INFO, "Following query: " + vertexQueryBuilder.toString());
                 Logger.getLogger(Scaffold.class.getName()).log(Level.INFO, "Following query: " + edgeQueryBuilder.toString());
                 Set<AbstractEdge> edgeSet = PostgreSQL.prepareEdgeSetFromSQLResult(edgeQueryBuilder.toString());
-                result.edgeSet().addAll(edgeSet);
+                for(AbstractEdge edge : edgeSet)
+                {
+                    result.putEdge(edge);
+                }
             }
         }
         catch(Exception ex)
@@ -520,8 +647,8 @@ public class Scaffold extends AbstractQuery
 
     private static class Neighbors implements Serializable
     {
-        public Set<String> parents = new HashSet<>();
-        public Set<String> children = new HashSet<>();
+        public Set<String> parents = new LinkedHashSet<>();
+        public Set<String> children = new LinkedHashSet<>();
 
         @Override
         public boolean equals(Object otherObject)
@@ -560,6 +687,118 @@ public class Scaffold extends AbstractQuery
         }
     }
 
+    /**
+     * Compact binding of Neighbors: a format byte followed by the parent and
+     * the child hash lists, each prefixed with its size. Hashes of 32 hex
+     * digits are stored as their 16 bytes, any other hash as its length and
+     * its UTF-8 bytes. Entries written with the Java serialization binding
+     * used before are still read.
+     */
+    private static class NeighborsBinding extends TupleBinding<Neighbors>
+    {
+        private static final int FORMAT = 1;
+        private static final int BINARY_HASH = -16;
+
+        private EntryBinding<Neighbors> serialBinding;
+
+        @Override
+        public Neighbors entryToObject(DatabaseEntry entry)
+        {
+            if(entry.getSize() > 0 && entry.getData()[entry.getOffset()] == ObjectStreamConstants.TC_OBJECT)
+            {
+                if(serialBinding == null)
+                {
+                    serialBinding = new SerialBinding<>(new StoredClassCatalog(neighborDatabase), Neighbors.class);
+                }
+                return serialBinding.entryToObject(entry);
+            }
+            return super.entryToObject(entry);
+        }
+
+        @Override
+        public Neighbors entryToObject(TupleInput input)
+        {
+            input.readFast();   // format
+            Neighbors neighbors = new Neighbors();
+            readHashes(input, neighbors.parents);
+            readHashes(input, neighbors.children);
+            return neighbors;
+        }
+
+        @Override
+        public void objectToEntry(Neighbors neighbors, TupleOutput output)
+        {
+            output.writeFast(FORMAT);
+            writeHashes(output, neighbors.parents);
+            writeHashes(output, neighbors.children);
+        }
+
+        private static void readHashes(TupleInput input, Set<String> hashes)
+        {
+            int count = input.readPackedInt();
+            for(int i = 0; i < count; i++)
+            {
+                int length = input.readPackedInt();
+                if(length == BINARY_HASH)
+                {
+                    byte[] bytes = new byte[16];
+                    input.readFast(bytes);
+                    char[] chars = new char[32];
+                    for(int j = 0; j < 16; j++)
+                    {
+                        chars[2 * j] = Character.forDigit((bytes[j] >> 4) & 0xf, 16);
+                        chars[2 * j + 1] = Character.forDigit(bytes[j] & 0xf, 16);
+                    }
+                    hashes.add(new String(chars));
+                }
+                else
+                {
+                    byte[] bytes = new byte[length];
+                    input.readFast(bytes);
+                    hashes.add(new String(bytes, StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private static void writeHashes(TupleOutput output, Set<String> hashes)
+        {
+            output.writePackedInt(hashes.size());
+            for(String hash : hashes)
+            {
+                if(isLowerCaseHex(hash))
+                {
+                    output.writePackedInt(BINARY_HASH);
+                    for(int j = 0; j < 32; j += 2)
+                    {
+                        output.writeFast((Character.digit(hash.charAt(j), 16) << 4) | Character.digit(hash.charAt(j + 1), 16));
+                    }
+                }
+                else
+                {
+                    byte[] bytes = hash.getBytes(StandardCharsets.UTF_8);
+                    output.writePackedInt(bytes.length);
+                    output.writeFast(bytes);
+                }
+            }
+        }
+
+        private static boolean isLowerCaseHex(String hash)
+        {
+            if(hash.length() != 32)
+            {
+                return false;
+            }
+            for(int i = 0; i < 32; i++)
+            {
+                char c = hash.charAt(i);
+                if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
 
 
@@ -0,0 +1,251 @@
+package spade.query.sql.postgresql;
+
+import org.apache.commons.collections.CollectionUtils;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractAnalyzer.setRemoteResolutionRequired;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Computes the lineage of a vertex breadth first, one level at a time. The
+ * edges leaving all vertices of a level are fetched with a single query and
+ * so are the vertices they lead to, instead of issuing queries per vertex
+ * and per edge. The result is the same as that of spade.query.common.GetLineage.
+ *
+ * It is not registered as a query function since spade.query.common.GetLineage
+ * delegates to it for SQL storages.
+ *
+ * @author raza
+ */
+public class GetLineage extends PostgreSQL<Graph, Map<String, List<String>>>
+{
+    private static final Logger logger = Logger.getLogger(GetLineage.class.getName());
+
+    // maximum number of hashes in one IN list
+    private static final int BATCH_SIZE = 1000;
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        String direction = parameters.get(DIRECTION).get(0);
+        int maxDepth = Integer.parseInt(parameters.get(MAX_DEPTH).get(0));
+        boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+        // the frontier is matched against one end of the edges and the
+        // neighbors are found at the other
+        String frontierColumn = ancestors ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+        String neighborColumn = ancestors ? PARENT_VERTEX_KEY : CHILD_VERTEX_KEY;
+
+        Map<String, List<String>> vertexParams = new HashMap<>(parameters);
+        vertexParams.remove(DIRECTION);
+        vertexParams.remove(MAX_DEPTH);
+        Set<AbstractVertex> startingVertexSet = new GetVertex().execute(vertexParams, DEFAULT_MIN_LIMIT);
+        if(CollectionUtils.isEmpty(startingVertexSet))
+            return null;
+
+        Graph result = new Graph();
+        result.setMaxDepth(maxDepth);
+        AbstractVertex startingVertex = startingVertexSet.iterator().next();
+        startingVertex.setDepth(0);
+        result.setRootVertex(startingVertex);
+        result.putVertex(startingVertex);
+
+        // vertices found so far by hash
+        Map<String, AbstractVertex> vertices = new HashMap<>();
+        vertices.put(startingVertex.bigHashCode(), startingVertex);
+        Set<String> frontier = new HashSet<>();
+        frontier.add(startingVertex.bigHashCode());
+        int currentDepth = 0;
+        try
+        {
+            while(!frontier.isEmpty() && currentDepth < maxDepth)
+            {
+                List<Map<String, String>> edgeRows = new ArrayList<>();
+                for(List<String> batch : partition(frontier))
+                {
+                    String query = "SELECT * FROM " + EDGE_TABLE + " WHERE " + frontierColumn + " IN("
+                            + toInList(batch) + ");";
+                    edgeRows.addAll(readRows(query));
+                }
+
+                Set<String> newHashes = new LinkedHashSet<>();
+                for(Map<String, String> row : edgeRows)
+                {
+                    String neighborHash = toHash(row.get(neighborColumn));
+                    if(!vertices.containsKey(neighborHash))
+                    {
+                        newHashes.add(neighborHash);
+                    }
+                }
+                for(List<String> batch : partition(newHashes))
+                {
+                    String query = "SELECT * FROM " + VERTEX_TABLE + " WHERE " + PRIMARY_KEY + " IN("
+                            + toInList(batch) + ");";
+                    for(Map<String, String> row : readRows(query))
+                    {
+                        String hash = toHash(row.remove(PRIMARY_KEY));
+                        AbstractVertex vertex = new Vertex();
+                        vertex.addAnnotations(row);
+                        vertex.setDepth(currentDepth + 1);
+                        vertices.put(hash, vertex);
+                        result.putVertex(vertex);
+                        if(vertex.isNetworkVertex())
+                        {
+                            setRemoteResolutionRequired();
+                            result.putNetworkVertex(vertex, currentDepth);
+                        }
+                    }
+                }
+
+                for(Map<String, String> row : edgeRows)
+                {
+                    AbstractVertex childVertex = vertices.get(toHash(row.get(CHILD_VERTEX_KEY)));
+                    AbstractVertex parentVertex = vertices.get(toHash(row.get(PARENT_VERTEX_KEY)));
+                    if(childVertex == null || parentVertex == null)
+                        continue;
+                    row.remove(PRIMARY_KEY);
+                    AbstractEdge edge = new Edge(childVertex, parentVertex);
+                    edge.addAnnotations(row);
+                    result.putEdge(edge);
+                }
+
+                frontier.clear();
+                for(String hash : newHashes)
+                {
+                    if(vertices.containsKey(hash))
+                    {
+                        frontier.add(hash);
+                    }
+                }
+                currentDepth++;
+            }
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.SEVERE, "Error executing GetLineage!", ex);
+            return null;
+        }
+        result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+
+        return result;
+    }
+
+    /**
+     * Reads all rows of the result of the given query. Columns are keyed by
+     * the names used by the storage regardless of the case the database
+     * reports them in, and NULL or empty values are left out. Stops if the
+     * query has been cancelled.
+     */
+    static List<Map<String, String>> readRows(String query) throws SQLException
+    {
+        checkCancelled();
+        logger.log(Level.FINE, "Following query: " + query);
+        List<Map<String, String>> rows = new ArrayList<>();
+        ResultSet result = (ResultSet) currentStorage.executeQuery(query);
+        if(result == null)
+            return rows;
+        try
+        {
+            ResultSetMetaData metadata = result.getMetaData();
+            int columnCount = metadata.getColumnCount();
+            String[] columnLabels = new String[columnCount + 1];
+            for(int i = 1; i <= columnCount; i++)
+            {
+                columnLabels[i] = toStorageColumn(metadata.getColumnName(i));
+            }
+            while(result.next())
+            {
+                Map<String, String> row = new HashMap<>();
+                for(int i = 1; i <= columnCount; i++)
+                {
+                    String value = result.getString(i);
+                    if(columnLabels[i] != null && value != null && !value.isEmpty())
+                    {
+                        row.put(columnLabels[i], value);
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        finally
+        {
+            Statement statement = result.getStatement();
+            result.close();
+            if(statement != null)
+                statement.close();
+        }
+
+        return rows;
+    }
+
+    private static String toStorageColumn(String columnName)
+    {
+        for(String key : new String[]{PRIMARY_KEY, CHILD_VERTEX_KEY, PARENT_VERTEX_KEY})
+        {
+            if(key.equalsIgnoreCase(columnName))
+                return key;
+        }
+        return columnName;
+    }
+
+    /**
+     * Converts a hash read from the database, where it is stored as a UUID,
+     * back to the hash of the vertex.
+     */
+    static String toHash(String value)
+    {
+        return (value == null) ? null : value.replace("-", "");
+    }
+
+    static String toInList(List<String> hashes)
+    {
+        StringBuilder inList = new StringBuilder(hashes.size() * 35);
+        for(String hash : hashes)
+        {
+            if(inList.length() > 0)
+                inList.append(',');
+            inList.append('\'').append(hash).append('\'');
+        }
+        return inList.toString();
+    }
+
+    static List<List<String>> partition(Set<String> hashes)
+    {
+        List<List<String>> batches = new ArrayList<>();
+        Iterator<String> iterator = hashes.iterator();
+        while(iterator.hasNext())
+        {
+            List<String> batch = new ArrayList<>(Math.min(BATCH_SIZE, hashes.size()));
+            while(iterator.hasNext() && batch.size() < BATCH_SIZE)
+            {
+                batch.add(iterator.next());
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+}
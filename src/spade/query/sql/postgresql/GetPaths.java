@@ -0,0 +1,147 @@
+package spade.query.sql.postgresql;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.PathSearch;
+import spade.core.Vertex;
+
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+import static spade.query.sql.postgresql.GetLineage.partition;
+import static spade.query.sql.postgresql.GetLineage.readRows;
+import static spade.query.sql.postgresql.GetLineage.toHash;
+import static spade.query.sql.postgresql.GetLineage.toInList;
+
+/**
+ * Finds the paths from the vertex given by CHILD_VERTEX_KEY to its ancestor
+ * given by PARENT_VERTEX_KEY of at most 'maxLength' edges. The neighbors of a
+ * whole frontier are fetched with one query and only the vertices and edges
+ * on the paths are read in full.
+ *
+ * It is not registered as a query function since spade.query.common.GetPaths
+ * delegates to it for SQL storages.
+ *
+ * @author raza
+ */
+public class GetPaths extends PostgreSQL<Graph, Map<String, List<String>>>
+{
+    private static final Logger logger = Logger.getLogger(GetPaths.class.getName());
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        String sourceHash = toHash(parameters.get(CHILD_VERTEX_KEY).get(COL_VALUE));
+        String destinationHash = toHash(parameters.get(PARENT_VERTEX_KEY).get(COL_VALUE));
+        int maxLength = Integer.parseInt(parameters.get("maxLength").get(0));
+        PathSearch pathSearch = new PathSearch()
+        {
+            @Override
+            protected Map<String, Set<String>> getParents(Set<String> hashes)
+            {
+                return getNeighbors(hashes, CHILD_VERTEX_KEY, PARENT_VERTEX_KEY);
+            }
+
+            @Override
+            protected Map<String, Set<String>> getChildren(Set<String> hashes)
+            {
+                return getNeighbors(hashes, PARENT_VERTEX_KEY, CHILD_VERTEX_KEY);
+            }
+        };
+        try
+        {
+            Map<String, Set<String>> paths = pathSearch.findPaths(sourceHash, destinationHash, maxLength);
+            Graph result = toGraph(paths);
+            result.setComputeTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z").format(new Date()));
+            return result;
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error executing GetPaths!", ex);
+            return null;
+        }
+    }
+
+    private static Map<String, Set<String>> getNeighbors(Set<String> hashes, String vertexColumn, String neighborColumn)
+    {
+        Map<String, Set<String>> neighbors = new HashMap<>();
+        try
+        {
+            for(List<String> batch : partition(hashes))
+            {
+                String query = "SELECT " + vertexColumn + ", " + neighborColumn + " FROM " + EDGE_TABLE
+                        + " WHERE " + vertexColumn + " IN(" + toInList(batch) + ");";
+                for(Map<String, String> row : readRows(query))
+                {
+                    String hash = toHash(row.get(vertexColumn));
+                    Set<String> vertexNeighbors = neighbors.get(hash);
+                    if(vertexNeighbors == null)
+                    {
+                        vertexNeighbors = new LinkedHashSet<>();
+                        neighbors.put(hash, vertexNeighbors);
+                    }
+                    vertexNeighbors.add(toHash(row.get(neighborColumn)));
+                }
+            }
+        }
+        catch(SQLException ex)
+        {
+            throw new IllegalStateException("Unable to get neighbors", ex);
+        }
+        return neighbors;
+    }
+
+    /**
+     * Reads the vertices and edges on the given paths.
+     */
+    private static Graph toGraph(Map<String, Set<String>> paths) throws SQLException
+    {
+        Graph result = new Graph();
+        Map<String, AbstractVertex> vertices = new HashMap<>();
+        for(List<String> batch : partition(paths.keySet()))
+        {
+            String query = "SELECT * FROM " + VERTEX_TABLE + " WHERE " + PRIMARY_KEY + " IN(" + toInList(batch) + ");";
+            for(Map<String, String> row : readRows(query))
+            {
+                String hash = toHash(row.remove(PRIMARY_KEY));
+                AbstractVertex vertex = new Vertex();
+                vertex.addAnnotations(row);
+                vertices.put(hash, vertex);
+                result.putVertex(vertex);
+            }
+        }
+        for(List<String> batch : partition(paths.keySet()))
+        {
+            String query = "SELECT * FROM " + EDGE_TABLE + " WHERE " + CHILD_VERTEX_KEY + " IN(" + toInList(batch) + ");";
+            for(Map<String, String> row : readRows(query))
+            {
+                String childHash = toHash(row.get(CHILD_VERTEX_KEY));
+                String parentHash = toHash(row.get(PARENT_VERTEX_KEY));
+                if(!paths.get(childHash).contains(parentHash))
+                    continue;
+                AbstractVertex childVertex = vertices.get(childHash);
+                AbstractVertex parentVertex = vertices.get(parentHash);
+                if(childVertex == null || parentVertex == null)
+                    continue;
+                row.remove(PRIMARY_KEY);
+                AbstractEdge edge = new Edge(childVertex, parentVertex);
+                edge.addAnnotations(row);
+                result.putEdge(edge);
+            }
+        }
+        return result;
+    }
+}
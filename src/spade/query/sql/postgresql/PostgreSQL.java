@@ -108,26 +108,13 @@ public abstract class PostgreSQL<R, P> extends SQL<R, P>
                         }
                     }
                 }
-                GetVertex getVertex = new GetVertex();
-                Map<String, List<String>> childMap = new HashMap<>();
                 // Note: implicit assumption that CHILD_VERTEX_KEY and PARENT_VERTEX_KEY are present in annotations
-                childMap.put(PRIMARY_KEY, new ArrayList<>(
-                        Arrays.asList(OPERATORS.EQUALS, annotations.get(CHILD_VERTEX_KEY.toLowerCase()), null)));
-                Set<AbstractVertex> childVertexSet = getVertex.execute(childMap, null);
-                AbstractVertex childVertex;
-                if(!CollectionUtils.isEmpty(childVertexSet))
-                    childVertex = childVertexSet.iterator().next();
-                else
+                AbstractVertex childVertex = getVertexByHash(annotations.get(CHILD_VERTEX_KEY.toLowerCase()));
+                if(childVertex == null)
                     continue;
 
-                Map<String, List<String>> parentMap = new HashMap<>();
-                parentMap.put(PRIMARY_KEY, new ArrayList<>(
-                        Arrays.asList(OPERATORS.EQUALS, annotations.get(PARENT_VERTEX_KEY.toLowerCase()), null)));
-                Set<AbstractVertex> parentVertexSet = getVertex.execute(parentMap, null);
-                AbstractVertex parentVertex;
-                if(!CollectionUtils.isEmpty(parentVertexSet))
-                    parentVertex = parentVertexSet.iterator().next();
-                else
+                AbstractVertex parentVertex = getVertexByHash(annotations.get(PARENT_VERTEX_KEY.toLowerCase()));
+                if(parentVertex == null)
                     continue;
 
                 AbstractEdge edge = new Edge(childVertex, parentVertex);
@@ -142,4 +129,30 @@ public abstract class PostgreSQL<R, P> extends SQL<R, P>
 
         return edgeSet;
     }
+
+    /**
+     * Returns the vertex with the given hash from the cache of the SQL storage
+     * if it has been stored recently, and from the database otherwise.
+     *
+     * @param hash hash of the vertex as stored in the database
+     * @return the vertex OR NULL if not found.
+     */
+    private static AbstractVertex getVertexByHash(String hash)
+    {
+        if(hash == null)
+            return null;
+        if(currentStorage instanceof spade.storage.SQL)
+        {
+            // hashes are stored as UUIDs so the dashes are removed to get the vertex hash
+            AbstractVertex vertex = ((spade.storage.SQL) currentStorage).getCachedVertex(hash.replace("-", ""));
+            if(vertex != null)
+                return vertex;
+        }
+        Map<String, List<String>> vertexMap = new HashMap<>();
+        vertexMap.put(PRIMARY_KEY, new ArrayList<>(Arrays.asList(OPERATORS.EQUALS, hash, null)));
+        Set<AbstractVertex> vertexSet = new GetVertex().execute(vertexMap, null);
+        if(!CollectionUtils.isEmpty(vertexSet))
+            return vertexSet.iterator().next();
+        return null;
+    }
 }
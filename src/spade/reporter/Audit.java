@@ -26,7 +26,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -56,10 +55,12 @@ import spade.edge.opm.WasGeneratedBy;
 import spade.edge.opm.WasTriggeredBy;
 import spade.reporter.audit.ArtifactIdentifier;
 import spade.reporter.audit.ArtifactProperties;
+import spade.reporter.audit.AuditEvent;
 import spade.reporter.audit.AuditEventReader;
 import spade.reporter.audit.DescriptorManager;
 import spade.reporter.audit.FileIdentifier;
 import spade.reporter.audit.IdentifierWithPath;
+import spade.reporter.audit.MappedAuditLogReader;
 import spade.reporter.audit.MemoryIdentifier;
 import spade.reporter.audit.NamedPipeIdentifier;
 import spade.reporter.audit.NetworkSocketIdentifier;
@@ -203,6 +204,7 @@ public class Audit extends AbstractReporter {
 	private boolean PROCFS = false;
 	private boolean UNIX_SOCKETS = false;
 	private boolean WAIT_FOR_LOG_END = true;
+	private boolean MMAP_INPUT = false;
 	private boolean AGENTS = false;
 	private boolean CONTROL = true;
 	private boolean USE_MEMORY_SYSCALLS = true;
@@ -228,6 +230,9 @@ public class Audit extends AbstractReporter {
 	/********************** BEHAVIOR FLAGS - END *************************/
 
 	private String spadeAuditBridgeProcessPid = null;
+	// reads the input logs instead of spadeAuditBridge when 'mmap' is true
+	private MappedAuditLogReader mappedAuditLogReader = null;
+	private final long DEFAULT_MMAP_BYTES = 256L * 1024 * 1024;
 	// true if live audit, false if log file. null not set.
 	private Boolean isLiveAudit = null;
 	// a flag to block on shutdown call if buffers are being emptied and events are still being read
@@ -457,6 +462,14 @@ public class Audit extends AbstractReporter {
 			return false;
 		}
 		
+		argValue = args.get("mmap");
+		if(isValidBoolean(argValue)){
+			MMAP_INPUT = parseBoolean(argValue, MMAP_INPUT);
+		}else{
+			logger.log(Level.SEVERE, "Invalid flag value for 'mmap': " + argValue);
+			return false;
+		}
+		
 		argValue = args.get("memorySyscalls");
 		if(isValidBoolean(argValue)){
 			USE_MEMORY_SYSCALLS = parseBoolean(argValue, USE_MEMORY_SYSCALLS);
@@ -725,7 +738,7 @@ public class Audit extends AbstractReporter {
 			if(NETFILTER_RULES){
 				removeIptablesRules(iptablesRules);
 			}
-		}else{
+		}else if(logListFile != null){
 			deleteFile(logListFile);
 		}
 		if(KEEP_ARTIFACT_PROPERTIES_MAP){
@@ -743,6 +756,7 @@ public class Audit extends AbstractReporter {
 		String spadeAuditBridgeCommand = null;
 		String rulesType = null;
 		String logListFile = null;
+		List<String> inputAuditLogFiles = null;
 		
 		Map<String, String> argsMap = CommonFunctions.parseKeyValPairs(arguments);
 		Map<String, String> configMap = readDefaultConfigMap();
@@ -791,6 +805,18 @@ public class Audit extends AbstractReporter {
 
 		String inputLogDirectoryArgument = argsMap.get("inputDir");
 		String inputAuditLogFileArgument = argsMap.get("inputLog");
+		
+		if(MMAP_INPUT){
+			// The logs are read in place of spadeAuditBridge which is the one that creates units
+			if(inputAuditLogFileArgument == null){
+				logger.log(Level.SEVERE, "Flag 'mmap' can only be used with 'inputLog'");
+				return false;
+			}
+			if(CREATE_BEEP_UNITS){
+				logger.log(Level.SEVERE, "Flag 'mmap' cannot be used with 'units'");
+				return false;
+			}
+		}
 		if(inputAuditLogFileArgument != null || inputLogDirectoryArgument != null){
 			// is log playback
 			isLiveAudit = false;
@@ -824,26 +850,28 @@ public class Audit extends AbstractReporter {
 					return false;
 				}
 	
-				List<String> inputAuditLogFiles = getListOfInputAuditLogs(inputAuditLogFileArgument, rotate);
+				inputAuditLogFiles = getListOfInputAuditLogs(inputAuditLogFileArgument, rotate);
 	
 				logger.log(Level.INFO, "Total logs to process: " + inputAuditLogFiles.size() + " and list = " + inputAuditLogFiles);
-	
-				// Only needed in case of audit log files and not in case of live audit
-				String tempDirPath = configMap.get("tempDir");
-				if(!setupTempDirectory(tempDirPath)){
-					return false;
-				}
-				// Create the input file for spadeAuditBridge to read the audit logs from 
-				logListFile = createLogListFileForSpadeAuditBridge(spadeAuditBridgeBinaryName, inputAuditLogFiles, tempDirPath);
-				if(logListFile == null){
-					return false;
-				}
 				
-				// Build the command to use
-				spadeAuditBridgeCommand = spadeAuditBridgeBinaryPath + 
-								((CREATE_BEEP_UNITS) ? " -u" : "") + 
-								((WAIT_FOR_LOG_END) ? " -w" : "") + 
-								" -f " + logListFile;
+				if(!MMAP_INPUT){ // mapped and read in place of spadeAuditBridge otherwise
+					// Only needed in case of audit log files and not in case of live audit
+					String tempDirPath = configMap.get("tempDir");
+					if(!setupTempDirectory(tempDirPath)){
+						return false;
+					}
+					// Create the input file for spadeAuditBridge to read the audit logs from
+					logListFile = createLogListFileForSpadeAuditBridge(spadeAuditBridgeBinaryName, inputAuditLogFiles, tempDirPath);
+					if(logListFile == null){
+						return false;
+					}
+
+					// Build the command to use
+					spadeAuditBridgeCommand = spadeAuditBridgeBinaryPath +
+									((CREATE_BEEP_UNITS) ? " -u" : "") +
+									((WAIT_FOR_LOG_END) ? " -w" : "") +
+									" -f " + logListFile;
+				}
 			}else{
 				// Input log directory section
 				
@@ -938,6 +966,27 @@ public class Audit extends AbstractReporter {
 				}
 			}
 			
+			if(MMAP_INPUT){
+				
+				Long mmapBytes = CommonFunctions.parseLong(configMap.get("mmapBytes"), DEFAULT_MMAP_BYTES);
+				mappedAuditLogReader = new MappedAuditLogReader(inputAuditLogFiles, mmapBytes,
+						reportingEnabled ? reportEveryMs : 0);
+				
+				AuditEventReader auditEventReader = getAuditEventReader(inputAuditLogFileArgument,
+						mappedAuditLogReader, outputLogFilePath, recordsToRotateOutputLogAfter);
+				
+				if(auditEventReader == null){
+					throw new Exception("Null audit event reader");
+				}
+				
+				Thread auditEventReaderThread = getAuditEventReaderThread(MappedAuditLogReader.class.getSimpleName(), 
+						auditEventReader, 
+						isLiveAudit, rulesType, logListFile);
+				auditEventReaderThread.start();
+				
+				return true;
+			}
+			
 			// Letting NPE to be thrown in case some object's initialization fails
 			java.lang.Process spadeAuditBridgeProcess = runSpadeAuditBridge(spadeAuditBridgeCommand);
 
@@ -971,6 +1020,9 @@ public class Audit extends AbstractReporter {
 			
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to start Audit", e);
+			if(mappedAuditLogReader != null){
+				mappedAuditLogReader.close();
+			}
 			doCleanup(isLiveAudit, rulesType, logListFile);
 			return false;
 		}
@@ -1009,6 +1061,23 @@ public class Audit extends AbstractReporter {
 		}
 	}
 	
+	private AuditEventReader getAuditEventReader(String streamId, 
+			MappedAuditLogReader logReader,
+			String outputLogFilePath,
+			Long recordsToRotateOutputLogAfter){
+		
+		try{
+			AuditEventReader auditEventReader = new AuditEventReader(streamId, logReader);
+			if(outputLogFilePath != null){
+				auditEventReader.setOutputLog(outputLogFilePath, recordsToRotateOutputLogAfter);
+			}
+			return auditEventReader;
+		}catch(Exception e){
+			logger.log(Level.SEVERE, "Failed to create audit event reader", e);
+			return null;
+		}
+	}
+	
 	private boolean sendSignalToPid(String pid, String signal){
 		try{
 			Runtime.getRuntime().exec("kill -" + signal + " " + pid);
@@ -1072,9 +1141,11 @@ public class Audit extends AbstractReporter {
 				}
 				
 				try{
-					Map<String, String> eventData = null;
+					AuditEvent eventData = null;
 					while((eventData = auditEventReader.readEventData()) != null){
 						finishEvent(eventData);
+						// handlers copy what they keep so the event can be filled in again
+						auditEventReader.recycle(eventData);
 					}
 				}catch(Exception e){
 					logger.log(Level.WARNING, "Stopped reading event stream. ", e);
@@ -1609,9 +1680,16 @@ public class Audit extends AbstractReporter {
 	@Override
 	public boolean shutdown() {
 		
-		// Send an interrupt to the spadeAuditBridgeProcess
-		
-		sendSignalToPid(spadeAuditBridgeProcessPid, "2");
+		if(mappedAuditLogReader != null){
+			// Same as spadeAuditBridge. Keep reading till the end of the logs if told to wait for it
+			if(!WAIT_FOR_LOG_END){
+				mappedAuditLogReader.stop();
+			}
+		}else{
+			// Send an interrupt to the spadeAuditBridgeProcess
+			
+			sendSignalToPid(spadeAuditBridgeProcessPid, "2");
+		}
 		
 		// Return. The event reader thread and the error reader thread will exit on their own.
 		// The event reader thread will do the state cleanup
@@ -1654,7 +1732,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void finishEvent(Map<String, String> eventData){
+	private void finishEvent(AuditEvent eventData){
 
 		printStats(false);
 
@@ -1691,7 +1769,7 @@ public class Audit extends AbstractReporter {
 	 * 3) Any of the dependent unit could not have been sent (if yes then need to send the edge too)
 	 * 
 	 */
-	private void handleUnitDependencies(Map<String, String> eventData){
+	private void handleUnitDependencies(AuditEvent eventData){
 		String time = "0"; // no time and event id
 		String eventId = "0"; // no time and event id
 		Integer unitDependencyCount = CommonFunctions.parseInt(eventData.get(AuditEventReader.UNIT_DEPS_COUNT), 0);
@@ -1765,7 +1843,7 @@ public class Audit extends AbstractReporter {
 	}
 	
 	// assumption: no nested loops
-	private void handleUnitExit(Map<String, String> eventData){
+	private void handleUnitExit(AuditEvent eventData){
 		String pid = eventData.get(AuditEventReader.PID);
 		if(processUnitStack.get(pid) != null && processUnitStack.get(pid).size() > 1){
 			Process containingProcess = processUnitStack.get(pid).removeFirst();
@@ -1780,7 +1858,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 	
-	private void handleUnitEntry(Map<String, String> eventData){
+	private void handleUnitEntry(AuditEvent eventData){
 		String time = eventData.get(AuditEventReader.TIME);
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 //		String pid = eventData.get(AuditEventReader.PID);
@@ -1836,11 +1914,11 @@ public class Audit extends AbstractReporter {
 	 * 
 	 * @param eventId id of the event against which the key value maps are saved
 	 */
-	private void handleSyscallEvent(Map<String, String> eventData) {
+	private void handleSyscallEvent(AuditEvent eventData) {
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		try {
 
-			int syscallNum = CommonFunctions.parseInt(eventData.get(AuditEventReader.SYSCALL), -1);
+			int syscallNum = eventData.getSyscallNumber();
 
 			int arch = -1;
 			if(ARCH_32BIT){
@@ -1856,8 +1934,7 @@ public class Audit extends AbstractReporter {
 
 			SYSCALL syscall = SYSCALL.getSyscall(syscallNum, arch);
 
-			if("1".equals(AUDITCTL_SYSCALL_SUCCESS_FLAG) 
-					&& AuditEventReader.SUCCESS_NO.equals(eventData.get(AuditEventReader.SUCCESS))){
+			if("1".equals(AUDITCTL_SYSCALL_SUCCESS_FLAG) && eventData.isFailure()){
 				//if only log successful events but the current event had success no then only monitor the following calls.
 				if(syscall == SYSCALL.KILL 
 						|| syscall == SYSCALL.EXIT || syscall == SYSCALL.EXIT_GROUP
@@ -1870,133 +1947,174 @@ public class Audit extends AbstractReporter {
 				}
 			}
 
-			//convert all arguments from hexadecimal format to decimal format and replace them. done for convenience here and to avoid issues. 
+			SyscallHandler syscallHandler = syscallHandlers[syscall.ordinal()];
+			if(syscallHandler == null){ //SYSCALL.UNSUPPORTED or not handled
+				//log(Level.INFO, "Unsupported syscall '"+syscallNum+"'", null, eventData.get("time"), eventId, syscall);
+				return;
+			}
+
+			// arguments are parsed from hexadecimal format once and handlers get them with getArgument
 			for(int argumentNumber = 0; argumentNumber<4; argumentNumber++){ //only 4 arguments received from linux audit
-				try{
-					eventData.put("a"+argumentNumber, String.valueOf(new BigInteger(eventData.get("a"+argumentNumber), 16).longValue()));
-				}catch(Exception e){
+				if(!eventData.hasArgument(argumentNumber)){
 					logger.log(Level.INFO, "Missing/Non-numerical argument#" + argumentNumber + " for event id '"+eventId+"'");
 				}
 			}
 
-			switch (syscall) {
-			case FCNTL:
+			syscallHandler.handle(eventData, syscall);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Error processing finish syscall event with eventid '"+eventId+"'", e);
+		}
+	}
+
+	/**
+	 * Handles the event of a system call
+	 */
+	private interface SyscallHandler{
+		void handle(AuditEvent eventData, SYSCALL syscall);
+	}
+
+	/**
+	 * Handlers by the ordinal of the system call. Null for system calls that aren't handled
+	 */
+	private final SyscallHandler[] syscallHandlers = createSyscallHandlers();
+
+	private SyscallHandler[] createSyscallHandlers(){
+		SyscallHandler[] handlers = new SyscallHandler[SYSCALL.values().length];
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleFcntl(eventData, syscall);
-				break;
-			case EXIT:
-			case EXIT_GROUP:
+			}
+		}, SYSCALL.FCNTL);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleExit(eventData, syscall);
-				break;
-			case READ: 
-			case READV:
-			case PREAD:
-			case PREADV:
-			case WRITE: 
-			case WRITEV:
-			case PWRITE:
-			case PWRITEV:
-			case SENDMSG: 
-			case RECVMSG: 
-			case SENDTO: 
-			case RECVFROM: 
-				handleIOEvent(syscall, eventData, eventData.get(AuditEventReader.ARG0));
-				break;
-			case MMAP:
-			case MMAP2:
+			}
+		}, SYSCALL.EXIT, SYSCALL.EXIT_GROUP);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
+				handleIOEvent(syscall, eventData, eventData.getDecimalArgument(0));
+			}
+		}, SYSCALL.READ, SYSCALL.READV, SYSCALL.PREAD, SYSCALL.PREADV, 
+				SYSCALL.WRITE, SYSCALL.WRITEV, SYSCALL.PWRITE, SYSCALL.PWRITEV, 
+				SYSCALL.SENDMSG, SYSCALL.RECVMSG, SYSCALL.SENDTO, SYSCALL.RECVFROM);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleMmap(eventData, syscall);
-				break;
-			case MPROTECT:
+			}
+		}, SYSCALL.MMAP, SYSCALL.MMAP2);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleMprotect(eventData, syscall);
-				break;
-			case SYMLINK:
-			case LINK:
-			case SYMLINKAT:
-			case LINKAT:
+			}
+		}, SYSCALL.MPROTECT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleLinkSymlink(eventData, syscall);
-				break;
-			case UNLINK:
-			case UNLINKAT:
+			}
+		}, SYSCALL.SYMLINK, SYSCALL.LINK, SYSCALL.SYMLINKAT, SYSCALL.LINKAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleUnlink(eventData, syscall);
-				break;
-			case VFORK:
-			case FORK:
-			case CLONE:
+			}
+		}, SYSCALL.UNLINK, SYSCALL.UNLINKAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleForkClone(eventData, syscall);
-				break;
-			case EXECVE:
+			}
+		}, SYSCALL.VFORK, SYSCALL.FORK, SYSCALL.CLONE);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleExecve(eventData);
-				break;
-			case OPEN:
+			}
+		}, SYSCALL.EXECVE);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleOpen(eventData, syscall);
-				break;
-			case CLOSE:
+			}
+		}, SYSCALL.OPEN);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleClose(eventData);
-				break;
-			case CREAT:
+			}
+		}, SYSCALL.CLOSE);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleCreat(eventData);
-				break;
-			case OPENAT:
+			}
+		}, SYSCALL.CREAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleOpenat(eventData);
-				break;
-			case MKNODAT:
+			}
+		}, SYSCALL.OPENAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleMknodat(eventData);
-				break;
-			case MKNOD:
+			}
+		}, SYSCALL.MKNODAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleMknod(eventData, syscall);
-				break;
-			case DUP:
-			case DUP2:
-			case DUP3:
+			}
+		}, SYSCALL.MKNOD);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleDup(eventData, syscall);
-				break;
-			case SOCKET:
+			}
+		}, SYSCALL.DUP, SYSCALL.DUP2, SYSCALL.DUP3);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleSocket(eventData, syscall);
-				break;
-			case BIND:
+			}
+		}, SYSCALL.SOCKET);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleBind(eventData, syscall);
-				break;
-			case ACCEPT4:
-			case ACCEPT:
+			}
+		}, SYSCALL.BIND);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleAccept(eventData, syscall);
-				break;
-			case CONNECT:
+			}
+		}, SYSCALL.ACCEPT4, SYSCALL.ACCEPT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleConnect(eventData);
-				break;
-			case KILL:
-				//handleKill(eventData);
-				break;
-			case RENAME:
-			case RENAMEAT:
+			}
+		}, SYSCALL.CONNECT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleRename(eventData, syscall);
-				break;
-			case SETUID:
-			case SETREUID:
-			case SETRESUID:
-			case SETFSUID:
-			case SETGID:
-			case SETREGID:
-			case SETRESGID:
-			case SETFSGID:
+			}
+		}, SYSCALL.RENAME, SYSCALL.RENAMEAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleSetuidAndSetgid(eventData, syscall);
-				break; 
-			case CHMOD:
-			case FCHMOD:
-			case FCHMODAT:
+			}
+		}, SYSCALL.SETUID, SYSCALL.SETREUID, SYSCALL.SETRESUID, SYSCALL.SETFSUID, 
+				SYSCALL.SETGID, SYSCALL.SETREGID, SYSCALL.SETRESGID, SYSCALL.SETFSGID);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleChmod(eventData, syscall);
-				break;
-			case PIPE:
-			case PIPE2:
+			}
+		}, SYSCALL.CHMOD, SYSCALL.FCHMOD, SYSCALL.FCHMODAT);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handlePipe(eventData, syscall);
-				break;
-			case TRUNCATE:
-			case FTRUNCATE:
+			}
+		}, SYSCALL.PIPE, SYSCALL.PIPE2);
+		setSyscallHandler(handlers, new SyscallHandler(){
+			public void handle(AuditEvent eventData, SYSCALL syscall){
 				handleTruncate(eventData, syscall);
-				break;
-			default: //SYSCALL.UNSUPPORTED
-				//log(Level.INFO, "Unsupported syscall '"+syscallNum+"'", null, eventData.get("time"), eventId, syscall);
 			}
-		} catch (Exception e) {
-			logger.log(Level.WARNING, "Error processing finish syscall event with eventid '"+eventId+"'", e);
+		}, SYSCALL.TRUNCATE, SYSCALL.FTRUNCATE);
+		// SYSCALL.KILL isn't handled
+		return handlers;
+	}
+
+	private static void setSyscallHandler(SyscallHandler[] handlers, SyscallHandler handler, SYSCALL... syscalls){
+		for(SYSCALL syscall : syscalls){
+			handlers[syscall.ordinal()] = handler;
 		}
 	}
 
@@ -2009,7 +2127,7 @@ public class Audit extends AbstractReporter {
 	 * @param eventData audit event data gotten in the log
 	 * @param fd the file descriptor number
 	 */
-	private void handleIOEvent(SYSCALL syscall, Map<String, String> eventData, String fd){
+	private void handleIOEvent(SYSCALL syscall, AuditEvent eventData, String fd){
 		String pid = eventData.get(AuditEventReader.PID);
 		String saddr = eventData.get(AuditEventReader.SADDR);
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
@@ -2197,7 +2315,7 @@ public class Audit extends AbstractReporter {
 		return returnValue;
 	}
 	
-	private void handleNetworkIOEvent(SYSCALL syscall, Map<String, String> eventData){
+	private void handleNetworkIOEvent(SYSCALL syscall, AuditEvent eventData){
 		if(USE_SOCK_SEND_RCV){
 			if(isSockWriteSyscall(syscall)){
 				handleSend(eventData, syscall);
@@ -2210,7 +2328,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleFileIOEvent(SYSCALL syscall, Map<String, String> eventData){
+	private void handleFileIOEvent(SYSCALL syscall, AuditEvent eventData){
 		if(USE_READ_WRITE){
 			if(isFileReadSyscall(syscall)){
 				handleRead(eventData, syscall);
@@ -2223,7 +2341,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleUnlink(Map<String, String> eventData, SYSCALL syscall){
+	private void handleUnlink(AuditEvent eventData, SYSCALL syscall){
 		// unlink() and unlinkat() receive the following messages(s):
 		// - SYSCALL
 		// - PATH with PARENT nametype
@@ -2250,7 +2368,7 @@ public class Audit extends AbstractReporter {
 			if(syscall == SYSCALL.UNLINK){
 				path = constructAbsolutePath(path, cwd, pid);
 			}else if(syscall == SYSCALL.UNLINKAT){
-				path = constructPathSpecial(path, eventData.get(AuditEventReader.ARG0), cwd, pid, time, eventId, syscall); 		
+				path = constructPathSpecial(path, eventData.getDecimalArgument(0), cwd, pid, time, eventId, syscall); 		
 			}else{
 				log(Level.INFO, "Unexpected syscall '"+syscall+"' in UNLINK handler", null, time, eventId, syscall);
 				return;
@@ -2270,7 +2388,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 	
-	private void handleFcntl(Map<String, String> eventData, SYSCALL syscall){
+	private void handleFcntl(AuditEvent eventData, SYSCALL syscall){
 		// fcntl() receives the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -2281,12 +2399,10 @@ public class Audit extends AbstractReporter {
 		}
 		
 		String pid = eventData.get(AuditEventReader.PID);
-		String fd = eventData.get(AuditEventReader.ARG0);
-		String cmdString = eventData.get(AuditEventReader.ARG1);
-		String flagsString = eventData.get(AuditEventReader.ARG2);
+		String fd = eventData.getDecimalArgument(0);
 		
-		int cmd = CommonFunctions.parseInt(cmdString, -1);
-		int flags = CommonFunctions.parseInt(flagsString, -1);
+		int cmd = (int)eventData.getArgument(1, -1);
+		int flags = (int)eventData.getArgument(2, -1);
 		
 		if(cmd == F_DUPFD || cmd == F_DUPFD_CLOEXEC){
 			// In eventData, there should be a pid, a0 should be fd, and exit should be the new fd 
@@ -2305,7 +2421,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 	
-	private void handleExit(Map<String, String> eventData, SYSCALL syscall){
+	private void handleExit(AuditEvent eventData, SYSCALL syscall){
 		// exit(), and exit_group() receives the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -2330,7 +2446,7 @@ public class Audit extends AbstractReporter {
 		
 	}
 
-	private void handleMmap(Map<String, String> eventData, SYSCALL syscall){
+	private void handleMmap(AuditEvent eventData, SYSCALL syscall){
 		// mmap() receive the following message(s):
 		// - MMAP
 		// - SYSCALL
@@ -2343,11 +2459,11 @@ public class Audit extends AbstractReporter {
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String pid = eventData.get(AuditEventReader.PID);
 		String time = eventData.get(AuditEventReader.TIME);
-		String address = new BigInteger(eventData.get(AuditEventReader.EXIT)).toString(16); //convert to hexadecimal
-		String length = new BigInteger(eventData.get(AuditEventReader.ARG1)).toString(16); //convert to hexadecimal
-		String protection = new BigInteger(eventData.get(AuditEventReader.ARG2)).toString(16); //convert to hexadecimal
+		String address = Long.toString(eventData.getExit(), 16); //convert to hexadecimal
+		String length = Long.toString(eventData.getArgument(1), 16); //convert to hexadecimal
+		String protection = Long.toString(eventData.getArgument(2), 16); //convert to hexadecimal
 		
-		int flags = CommonFunctions.parseInt(eventData.get(AuditEventReader.ARG3), 0);
+		int flags = (int)eventData.getArgument(3, 0);
 		
 		// Put Process, Memory artifact and WasGeneratedBy edge always but return if flag
 		// is MAP_ANONYMOUS
@@ -2398,7 +2514,7 @@ public class Audit extends AbstractReporter {
 
 	}
 
-	private void handleMprotect(Map<String, String> eventData, SYSCALL syscall){
+	private void handleMprotect(AuditEvent eventData, SYSCALL syscall){
 		// mprotect() receive the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -2410,9 +2526,9 @@ public class Audit extends AbstractReporter {
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String pid = eventData.get(AuditEventReader.PID);
 		String time = eventData.get(AuditEventReader.TIME);
-		String address = new BigInteger(eventData.get(AuditEventReader.ARG0)).toString(16);
-		String length = new BigInteger(eventData.get(AuditEventReader.ARG1)).toString(16);
-		String protection = new BigInteger(eventData.get(AuditEventReader.ARG2)).toString(16);
+		String address = Long.toString(eventData.getArgument(0), 16);
+		String length = Long.toString(eventData.getArgument(1), 16);
+		String protection = Long.toString(eventData.getArgument(2), 16);
 
 		String tgid = pidToTgidForMemoryArtifactsOnly.get(pid) == null 
 				? pid 
@@ -2445,7 +2561,7 @@ public class Audit extends AbstractReporter {
 		pidToTgidForMemoryArtifactsOnly.remove(pid); // Remove mapping to thread group id
 	}
 
-	private void handleForkClone(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleForkClone(AuditEvent eventData, SYSCALL syscall) {
 		// fork() and clone() receive the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -2458,7 +2574,7 @@ public class Audit extends AbstractReporter {
 		// Clearing process state of the newPID which might have existed before
 		clearProcessState(newPID);
 
-		Long flags = CommonFunctions.parseLong(eventData.get(AuditEventReader.ARG0), 0L);
+		long flags = eventData.getArgument(0, 0L);
 		if(syscall == SYSCALL.CLONE){
 			//source: http://www.makelinux.net/books/lkd2/ch03lev1sec3
 			if((flags & SIGCHLD) == SIGCHLD && (flags & CLONE_VM) == CLONE_VM && (flags & CLONE_VFORK) == CLONE_VFORK){ //is vfork
@@ -2510,7 +2626,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleExecve(Map<String, String> eventData) {
+	private void handleExecve(AuditEvent eventData) {
 		// execve() receives the following message(s):
 		// - SYSCALL
 		// - EXECVE
@@ -2595,7 +2711,7 @@ public class Audit extends AbstractReporter {
 		pidToTgidForMemoryArtifactsOnly.remove(pid);
 	}
 
-	private void handleCreat(Map<String, String> eventData){
+	private void handleCreat(AuditEvent eventData){
 		//creat() receives the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -2608,7 +2724,7 @@ public class Audit extends AbstractReporter {
 
 		//modify the eventData as expected by open syscall and call open syscall function
 		eventData.put(AuditEventReader.ARG2, eventData.get(AuditEventReader.ARG1)); //set mode to argument 3 (in open) from 2 (in creat)
-		eventData.put(AuditEventReader.ARG1, String.valueOf(defaultFlags)); //flags is argument 2 in open
+		eventData.setArgument(1, defaultFlags); //flags is argument 2 in open
 
 		handleOpen(eventData, SYSCALL.CREATE); //TODO change to creat. kept as create to keep current CDM data consistent
 
@@ -2622,7 +2738,7 @@ public class Audit extends AbstractReporter {
 	 * @param eventData audit log event data as key values
 	 * @return path/null
 	 */
-	private PathRecord getPathWithCreateOrNormalNametype(Map<String, String> eventData){
+	private PathRecord getPathWithCreateOrNormalNametype(AuditEvent eventData){
 		PathRecord pathRecord = getFirstPathWithNametype(eventData, AuditEventReader.NAMETYPE_CREATE);
 		if(pathRecord != null){
 			return pathRecord;
@@ -2632,7 +2748,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleOpenat(Map<String, String> eventData){
+	private void handleOpenat(AuditEvent eventData){
 		//openat() receives the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -2653,7 +2769,7 @@ public class Audit extends AbstractReporter {
 		String path = pathRecord.getPath();
 		// If not absolute then only run the following logic according to the manpage
 		if(!path.startsWith(File.separator)){
-			Long dirFd = CommonFunctions.parseLong(eventData.get(AuditEventReader.ARG0), -1L);
+			long dirFd = eventData.getArgument(0, -1L);
 	
 			//according to manpage if following true then use cwd if path not absolute, which is already handled by open
 			if(dirFd != AT_FDCWD){ //checking if cwd needs to be replaced by dirFd's path
@@ -2680,7 +2796,7 @@ public class Audit extends AbstractReporter {
 		handleOpen(eventData, SYSCALL.OPENAT);
 	}
 
-	private void handleOpen(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleOpen(AuditEvent eventData, SYSCALL syscall) {
 		// open() receives the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -2690,8 +2806,8 @@ public class Audit extends AbstractReporter {
 
 		//three syscalls can come here: OPEN (for files and pipes), OPENAT (for files and pipes), CREAT (only for files)
 
-		Long flags = CommonFunctions.parseLong(eventData.get(AuditEventReader.ARG1), 0L);
-		Long modeArg = CommonFunctions.parseLong(eventData.get(AuditEventReader.ARG2), 0L);
+		long flags = eventData.getArgument(1, 0L);
+		long modeArg = eventData.getArgument(2, 0L);
 		
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String pid = eventData.get(AuditEventReader.PID);
@@ -2800,12 +2916,12 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleClose(Map<String, String> eventData) {
+	private void handleClose(AuditEvent eventData) {
 		// close() receives the following message(s):
 		// - SYSCALL
 		// - EOE
 		String pid = eventData.get(AuditEventReader.PID);
-		String fd = String.valueOf(CommonFunctions.parseLong(eventData.get(AuditEventReader.ARG0), -1L));
+		String fd = String.valueOf(eventData.getArgument(0, -1L));
 		ArtifactIdentifier closedArtifactIdentifier = descriptors.removeDescriptor(pid, fd);
 		
 		if(CONTROL){
@@ -2842,19 +2958,19 @@ public class Audit extends AbstractReporter {
 		//handling epoch at opened/created in all cases
 	}
 
-	private void handleRead(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleRead(AuditEvent eventData, SYSCALL syscall) {
 		// read() receives the following message(s):
 		// - SYSCALL
 		// - EOE
 		String time = eventData.get(AuditEventReader.TIME);
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String pid = eventData.get(AuditEventReader.PID);
-		String fd = eventData.get(AuditEventReader.ARG0);
+		String fd = eventData.getDecimalArgument(0);
 		String bytesRead = eventData.get(AuditEventReader.EXIT);
 		String offset = null;
 		
 		if(syscall == SYSCALL.PREAD || syscall == SYSCALL.PREADV){
-			offset = eventData.get(AuditEventReader.ARG3);
+			offset = eventData.getDecimalArgument(3);
 		}
 		
 		Process process = putProcess(eventData, time, eventId);
@@ -2875,19 +2991,19 @@ public class Audit extends AbstractReporter {
 
 	}
 
-	private void handleWrite(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleWrite(AuditEvent eventData, SYSCALL syscall) {
 		// write() receives the following message(s):
 		// - SYSCALL
 		// - EOE
 		String time = eventData.get(AuditEventReader.TIME);
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String pid = eventData.get(AuditEventReader.PID);
-		String fd = eventData.get(AuditEventReader.ARG0);
+		String fd = eventData.getDecimalArgument(0);
 		String bytesWritten = eventData.get(AuditEventReader.EXIT);
 		String offset = null;
 		
 		if(syscall == SYSCALL.PWRITE || syscall == SYSCALL.PWRITEV){
-			offset = eventData.get(AuditEventReader.ARG3);
+			offset = eventData.getDecimalArgument(3);
 		}
 
 		Process process = putProcess(eventData, time, eventId);
@@ -2910,7 +3026,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleTruncate(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleTruncate(AuditEvent eventData, SYSCALL syscall) {
 		// write() receives the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -2937,7 +3053,7 @@ public class Audit extends AbstractReporter {
 			artifactIdentifier = getArtifactIdentifierFromPathMode(path, pathRecord.getPathType());
 			permissions = pathRecord.getPermissions();
 		} else if (syscall == SYSCALL.FTRUNCATE) {
-			String fd = eventData.get(AuditEventReader.ARG0);
+			String fd = eventData.getDecimalArgument(0);
 
 			if(descriptors.getDescriptor(pid, fd) == null){
 				descriptors.addUnknownDescriptor(pid, fd);
@@ -2962,13 +3078,13 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleDup(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleDup(AuditEvent eventData, SYSCALL syscall) {
 		// dup(), dup2(), and dup3() receive the following message(s):
 		// - SYSCALL
 		// - EOE
 		String pid = eventData.get(AuditEventReader.PID);
 
-		String fd = eventData.get(AuditEventReader.ARG0);
+		String fd = eventData.getDecimalArgument(0);
 		String newFD = eventData.get(AuditEventReader.EXIT); //new fd returned in all: dup, dup2, dup3
 
 		if(!fd.equals(newFD)){ //if both fds same then it succeeds in case of dup2 and it does nothing so do nothing here too
@@ -2980,7 +3096,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 	
-	private void handleSetuidAndSetgid(Map<String, String> eventData, SYSCALL syscall){
+	private void handleSetuidAndSetgid(AuditEvent eventData, SYSCALL syscall){
 		// setuid(), setreuid(), setresuid(), setfsuid(), 
 		// setgid(), setregid(), setresgid(), and setfsgid() receive the following message(s):
 		// - SYSCALL
@@ -3236,7 +3352,7 @@ public class Audit extends AbstractReporter {
 		return null;
 	}
 
-	private void handleRename(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleRename(AuditEvent eventData, SYSCALL syscall) {
 		// rename(), renameat(), and renameat2() receive the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -3266,8 +3382,8 @@ public class Audit extends AbstractReporter {
 			oldFilePath = constructAbsolutePath(oldFilePath, cwd, pid);
 			newFilePath = constructAbsolutePath(newFilePath, cwd, pid);
 		}else if(syscall == SYSCALL.RENAMEAT){
-			oldFilePath = constructPathSpecial(oldFilePath, eventData.get(AuditEventReader.ARG0), cwd, pid, time, eventId, syscall);        	
-			newFilePath = constructPathSpecial(newFilePath, eventData.get(AuditEventReader.ARG2), cwd, pid, time, eventId, syscall);        	
+			oldFilePath = constructPathSpecial(oldFilePath, eventData.getDecimalArgument(0), cwd, pid, time, eventId, syscall);        	
+			newFilePath = constructPathSpecial(newFilePath, eventData.getDecimalArgument(2), cwd, pid, time, eventId, syscall);        	
 		}else{
 			log(Level.WARNING, "Unexpected syscall '"+syscall+"' in RENAME handler", null, time, eventId, syscall);
 			return;
@@ -3281,7 +3397,7 @@ public class Audit extends AbstractReporter {
 		handleSpecialSyscalls(eventData, syscall, oldFilePath, newFilePath, oldFilePathModeStr, newFilePathModeStr);
 	}
 
-	private void handleMknodat(Map<String, String> eventData){
+	private void handleMknodat(AuditEvent eventData){
 		//mknodat() receives the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -3304,7 +3420,7 @@ public class Audit extends AbstractReporter {
 		
 		// If not absolute then only run the following logic according to the manpage
 		if(!path.startsWith(File.separator)){
-			String fd = eventData.get(AuditEventReader.ARG0);
+			String fd = eventData.getDecimalArgument(0);
 			Long fdLong = CommonFunctions.parseLong(fd, null);
 
 			ArtifactIdentifier artifactIdentifier = null;
@@ -3331,7 +3447,7 @@ public class Audit extends AbstractReporter {
 		handleMknod(eventData, SYSCALL.MKNODAT);
 	}
 	
-	private void handleMknod(Map<String, String> eventData, SYSCALL syscall){
+	private void handleMknod(AuditEvent eventData, SYSCALL syscall){
 		//mknod() receives the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -3339,7 +3455,7 @@ public class Audit extends AbstractReporter {
 		// - PATH of the created file with nametype=CREATE
 		// - EOE
 
-		String modeString = eventData.get(AuditEventReader.ARG1);
+		String modeString = eventData.getDecimalArgument(1);
 		String time = eventData.get(AuditEventReader.TIME);
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 
@@ -3371,7 +3487,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleLinkSymlink(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleLinkSymlink(AuditEvent eventData, SYSCALL syscall) {
 		// link(), symlink(), linkat(), and symlinkat() receive the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -3393,11 +3509,11 @@ public class Audit extends AbstractReporter {
 			srcPath = constructAbsolutePath(srcPath, cwd, pid);
 			dstPath = constructAbsolutePath(dstPath, cwd, pid);
 		}else if(syscall == SYSCALL.LINKAT){
-			srcPath = constructPathSpecial(srcPath, eventData.get(AuditEventReader.ARG0), cwd, pid, time, eventId, syscall);
-			dstPath = constructPathSpecial(dstPath, eventData.get(AuditEventReader.ARG2), cwd, pid, time, eventId, syscall);
+			srcPath = constructPathSpecial(srcPath, eventData.getDecimalArgument(0), cwd, pid, time, eventId, syscall);
+			dstPath = constructPathSpecial(dstPath, eventData.getDecimalArgument(2), cwd, pid, time, eventId, syscall);
 		}else if(syscall == SYSCALL.SYMLINKAT){
 			srcPath = constructAbsolutePath(srcPath, cwd, pid);
-			dstPath = constructPathSpecial(dstPath, eventData.get(AuditEventReader.ARG1), cwd, pid, time, eventId, syscall);
+			dstPath = constructPathSpecial(dstPath, eventData.getDecimalArgument(1), cwd, pid, time, eventId, syscall);
 		}else{
 			log(Level.WARNING, "Unexpected syscall '"+syscall+"' in LINK SYMLINK handler", null, time, eventId, syscall);
 			return;
@@ -3426,7 +3542,7 @@ public class Audit extends AbstractReporter {
 	 * @param srcPath path of the file being linked
 	 * @param dstPath path of the link
 	 */
-	private void handleSpecialSyscalls(Map<String, String> eventData, SYSCALL syscall, 
+	private void handleSpecialSyscalls(AuditEvent eventData, SYSCALL syscall, 
 			String srcPath, String dstPath,
 			String srcPathMode, String dstPathMode){
 
@@ -3497,7 +3613,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleChmod(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleChmod(AuditEvent eventData, SYSCALL syscall) {
 		// chmod(), fchmod(), and fchmodat() receive the following message(s):
 		// - SYSCALL
 		// - CWD
@@ -3507,7 +3623,7 @@ public class Audit extends AbstractReporter {
 		String time = eventData.get(AuditEventReader.TIME);
 		String pid = eventData.get(AuditEventReader.PID);
 		Process process = putProcess(eventData, time, eventId);
-		String modeArgument = null;
+		int modeArgumentIndex = -1;
 		// if syscall is chmod, then path is <path0> relative to <cwd>
 		// if syscall is fchmod, look up file descriptor which is <a0>
 		// if syscall is fchmodat, loop up the directory fd and build a path using the path in the audit log
@@ -3525,10 +3641,10 @@ public class Audit extends AbstractReporter {
 				return;
 			}
 			artifactIdentifier = getArtifactIdentifierFromPathMode(path, pathRecord.getPathType());
-			modeArgument = eventData.get(AuditEventReader.ARG1);
+			modeArgumentIndex = 1;
 		} else if (syscall == SYSCALL.FCHMOD) {
 
-			String fd = eventData.get(AuditEventReader.ARG0);
+			String fd = eventData.getDecimalArgument(0);
 
 			if(descriptors.getDescriptor(pid, fd) == null){
 				descriptors.addUnknownDescriptor(pid, fd);
@@ -3536,7 +3652,7 @@ public class Audit extends AbstractReporter {
 			}
 
 			artifactIdentifier = descriptors.getDescriptor(pid, fd);
-			modeArgument = eventData.get(AuditEventReader.ARG1);
+			modeArgumentIndex = 1;
 		}else if(syscall == SYSCALL.FCHMODAT){
 			PathRecord pathRecord = getFirstPathWithNametype(eventData, AuditEventReader.NAMETYPE_NORMAL);
 			if(pathRecord == null){
@@ -3544,14 +3660,14 @@ public class Audit extends AbstractReporter {
 				return;
 			}
 			String path = pathRecord.getPath();
-			path = constructPathSpecial(path, eventData.get(AuditEventReader.ARG0), 
+			path = constructPathSpecial(path, eventData.getDecimalArgument(0), 
 					eventData.get(AuditEventReader.CWD), pid, time, eventId, syscall);
 			if(path == null){
 				log(Level.INFO, "Failed to create path", null, time, eventId, syscall);
 				return;
 			}
 			artifactIdentifier = getArtifactIdentifierFromPathMode(path, pathRecord.getPathType());
-			modeArgument = eventData.get(AuditEventReader.ARG2);
+			modeArgumentIndex = 2;
 		}else{
 			log(Level.INFO, "Unexpected syscall '"+syscall+"' in CHMOD handler", null, time, eventId, syscall);
 			return;
@@ -3562,7 +3678,7 @@ public class Audit extends AbstractReporter {
 			return;
 		}
 		
-		String mode = new BigInteger(modeArgument).toString(8);
+		String mode = Long.toString(eventData.getArgument(modeArgumentIndex), 8);
 		mode = PathRecord.parsePermissions(mode);
 		Artifact vertex = putArtifact(eventData, artifactIdentifier, mode, true);
 		WasGeneratedBy wgb = new WasGeneratedBy(vertex, process);
@@ -3570,7 +3686,7 @@ public class Audit extends AbstractReporter {
 		putEdge(wgb, getOperation(syscall), time, eventId, AUDIT_SYSCALL_SOURCE);
 	}
 
-	private void handlePipe(Map<String, String> eventData, SYSCALL syscall) {
+	private void handlePipe(AuditEvent eventData, SYSCALL syscall) {
 		// pipe() receives the following message(s):
 		// - SYSCALL
 		// - FD_PAIR
@@ -3588,7 +3704,7 @@ public class Audit extends AbstractReporter {
 		markNewEpochForArtifact(writePipeIdentifier);
 	}
 
-	private void handleNetfilterPacketEvent(Map<String, String> eventData){
+	private void handleNetfilterPacketEvent(AuditEvent eventData){
 //      Refer to the following link for protocol numbers
 //    	http://www.iana.org/assignments/protocol-numbers/protocol-numbers.xhtml
     	if(REFINE_NET){
@@ -3674,12 +3790,12 @@ public class Audit extends AbstractReporter {
     	}
     }
 		
-	private void handleSocket(Map<String, String> eventData, SYSCALL syscall){
+	private void handleSocket(AuditEvent eventData, SYSCALL syscall){
 		// socket() receives the following message(s):
 		// - SYSCALL
 		// - EOE
 		String sockFd = eventData.get(AuditEventReader.EXIT);
-		int protocolNumber = CommonFunctions.parseInt(eventData.get(AuditEventReader.ARG2), -1);
+		int protocolNumber = (int)eventData.getArgument(2, -1);
 		String protocolName = OPMConstants.getProtocolName(protocolNumber);
 		
 		if(protocolName != null){
@@ -3694,7 +3810,7 @@ public class Audit extends AbstractReporter {
 		
 	}
 	
-	private void handleBind(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleBind(AuditEvent eventData, SYSCALL syscall) {
 		// bind() receives the following message(s):
 		// - SYSCALL
 		// - SADDR
@@ -3702,7 +3818,7 @@ public class Audit extends AbstractReporter {
 		String time = eventData.get(AuditEventReader.TIME);
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String saddr = eventData.get(AuditEventReader.SADDR);
-		String sockFd = eventData.get(AuditEventReader.ARG0);
+		String sockFd = eventData.getDecimalArgument(0);
 		String pid = eventData.get(AuditEventReader.PID);
 		
 		if(isNetlinkSaddr(saddr)){
@@ -3728,7 +3844,7 @@ public class Audit extends AbstractReporter {
 		}
 	}
 
-	private void handleConnect(Map<String, String> eventData) {
+	private void handleConnect(AuditEvent eventData) {
 		//connect() receives the following message(s):
 		// - SYSCALL
 		// - SADDR
@@ -3738,7 +3854,7 @@ public class Audit extends AbstractReporter {
 		String time = eventData.get(AuditEventReader.TIME);
 		String pid = eventData.get(AuditEventReader.PID);
 		String saddr = eventData.get(AuditEventReader.SADDR);
-		String sockFd = eventData.get(AuditEventReader.ARG0);
+		String sockFd = eventData.getDecimalArgument(0);
 		
 		Integer exit = CommonFunctions.parseInt(eventData.get(AuditEventReader.EXIT), null);
 		if(exit == null){
@@ -3786,7 +3902,7 @@ public class Audit extends AbstractReporter {
 		return saddr != null && (saddr.startsWith(IPV4_NETWORK_SOCKET_SADDR_PREFIX) || saddr.startsWith(IPV6_NETWORK_SOCKET_SADDR_PREFIX));
 	}
 
-	private void handleAccept(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleAccept(AuditEvent eventData, SYSCALL syscall) {
 		//accept() & accept4() receive the following message(s):
 		// - SYSCALL
 		// - SADDR
@@ -3794,7 +3910,7 @@ public class Audit extends AbstractReporter {
 		String eventId = eventData.get(AuditEventReader.EVENT_ID);
 		String time = eventData.get(AuditEventReader.TIME);
 		String pid = eventData.get(AuditEventReader.PID);
-		String sockFd = eventData.get(AuditEventReader.ARG0); //the fd on which the connection was accepted, not the fd of the connection
+		String sockFd = eventData.getDecimalArgument(0); //the fd on which the connection was accepted, not the fd of the connection
 		String fd = eventData.get(AuditEventReader.EXIT); //fd of the connection
 		String saddr = eventData.get(AuditEventReader.SADDR);
 
@@ -4006,7 +4122,7 @@ public class Audit extends AbstractReporter {
 		return added;
 	}
 
-	private void handleSend(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleSend(AuditEvent eventData, SYSCALL syscall) {
 		// sendto()/sendmsg() receive the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -4015,7 +4131,7 @@ public class Audit extends AbstractReporter {
 		String pid = eventData.get(AuditEventReader.PID);
 		Process process = putProcess(eventData, time, eventId);
 
-		String fd = eventData.get(AuditEventReader.ARG0);
+		String fd = eventData.getDecimalArgument(0);
 		String bytesSent = eventData.get(AuditEventReader.EXIT);
 		String saddr = eventData.get(AuditEventReader.SADDR);
 		
@@ -4052,7 +4168,7 @@ public class Audit extends AbstractReporter {
 		}        
 	}
 
-	private void handleRecv(Map<String, String> eventData, SYSCALL syscall) {
+	private void handleRecv(AuditEvent eventData, SYSCALL syscall) {
 		// recvfrom()/recvmsg() receive the following message(s):
 		// - SYSCALL
 		// - EOE
@@ -4061,7 +4177,7 @@ public class Audit extends AbstractReporter {
 		String pid = eventData.get(AuditEventReader.PID);
 		Process process = putProcess(eventData, time, eventId);
 
-		String fd = eventData.get(AuditEventReader.ARG0);
+		String fd = eventData.getDecimalArgument(0);
 		String bytesReceived = eventData.get(AuditEventReader.EXIT);
 		String saddr = eventData.get(AuditEventReader.SADDR);
 		
@@ -4676,16 +4792,17 @@ public class Audit extends AbstractReporter {
 	 * @param nametypeValue one of the above-mentioned values. Case sensitive compare operation on nametypeValue
 	 * @return returns a list PathRecord objects sorted by their index in ascending order
 	 */
-	private List<PathRecord> getPathsWithNametype(Map<String, String> eventData, String nametypeValue){
+	private List<PathRecord> getPathsWithNametype(AuditEvent eventData, String nametypeValue){
 		List<PathRecord> pathRecords = new ArrayList<PathRecord>();
 		if(eventData != null && nametypeValue != null){
-			Long items = CommonFunctions.parseLong(eventData.get(AuditEventReader.ITEMS), 0L);
+			long items = Math.min(CommonFunctions.parseLong(eventData.get(AuditEventReader.ITEMS), 0L), 
+					eventData.getPathCount());
 			for(int itemcount = 0; itemcount < items; itemcount++){
-				if(nametypeValue.equals(eventData.get(AuditEventReader.NAMETYPE_PREFIX+itemcount))){
+				if(nametypeValue.equals(eventData.getPathNametype(itemcount))){
 					PathRecord pathRecord = new PathRecord(itemcount, 
-							eventData.get(AuditEventReader.PATH_PREFIX+itemcount), 
-							eventData.get(AuditEventReader.NAMETYPE_PREFIX+itemcount), 
-							eventData.get(AuditEventReader.MODE_PREFIX+itemcount));
+							eventData.getPathName(itemcount), 
+							eventData.getPathNametype(itemcount), 
+							eventData.getPathMode(itemcount));
 					pathRecords.add(pathRecord);
 				}
 			}
@@ -4703,7 +4820,7 @@ public class Audit extends AbstractReporter {
 	 * @param nametypeValue one of the above-mentioned values. Case sensitive compare operation on nametypeValue
 	 * @return returns the PathRecord object with the lowest index
 	 */
-	private PathRecord getFirstPathWithNametype(Map<String, String> eventData, String nametypeValue){
+	private PathRecord getFirstPathWithNametype(AuditEvent eventData, String nametypeValue){
 		List<PathRecord> pathRecords = getPathsWithNametype(eventData, nametypeValue);
 		if(pathRecords == null || pathRecords.size() == 0){
 			return null;
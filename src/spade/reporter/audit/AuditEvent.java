@@ -0,0 +1,602 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Key values of all the records of an audit event.
+ *
+ * Filled in by AuditEventReader and reused for later events once the reader gets it back
+ * through {@link AuditEventReader#recycle(AuditEvent) recycle}.
+ *
+ * The keys present in most events are kept in an array indexed by field, and the PATH
+ * records in arrays indexed by their item number. All other keys are kept in a map that
+ * is cleared between events. Values are kept as they appear in the records i.e. the
+ * arguments a0-a3 are in hexadecimal.
+ *
+ * The values used to dispatch and handle system calls are also available as primitives:
+ * the system call number, the success flag, the exit value and the arguments. Each is
+ * parsed at most once per event.
+ *
+ * Implements Map so that the handlers which only need the values as strings can use it
+ * like the maps it replaces. Null values are not kept.
+ *
+ * Not thread-safe.
+ */
+public class AuditEvent extends AbstractMap<String, String>{
+
+	private static final String[] FIELD_KEYS = {
+			AuditEventReader.RECORD_TYPE_KEY,
+			AuditEventReader.EVENT_ID,
+			AuditEventReader.TIME,
+			AuditEventReader.SYSCALL,
+			AuditEventReader.SUCCESS,
+			AuditEventReader.EXIT,
+			AuditEventReader.ARG0,
+			AuditEventReader.ARG1,
+			AuditEventReader.ARG2,
+			AuditEventReader.ARG3,
+			AuditEventReader.ITEMS,
+			AuditEventReader.PID,
+			AuditEventReader.PPID,
+			AuditEventReader.COMM,
+			AuditEventReader.CWD,
+			AuditEventReader.UID,
+			AuditEventReader.EUID,
+			AuditEventReader.SUID,
+			AuditEventReader.FSUID,
+			AuditEventReader.GID,
+			AuditEventReader.EGID,
+			AuditEventReader.SGID,
+			AuditEventReader.FSGID,
+			AuditEventReader.FD,
+			AuditEventReader.SADDR
+	};
+
+	// indices in FIELD_KEYS of the fields that are also parsed
+	private static final int SYSCALL = 3, SUCCESS = 4, EXIT = 5, ARG0 = 6;
+
+	private static final int ARGUMENT_COUNT = 4;
+
+	private static final Map<String, Integer> FIELD_INDICES = new HashMap<String, Integer>();
+
+	static{
+		for(int a = 0; a < FIELD_KEYS.length; a++){
+			FIELD_INDICES.put(FIELD_KEYS[a], a);
+		}
+	}
+
+	private static final String[] PATH_PREFIXES = {
+			AuditEventReader.PATH_PREFIX, AuditEventReader.NAMETYPE_PREFIX, AuditEventReader.MODE_PREFIX
+	};
+
+	// indices in PATH_PREFIXES
+	private static final int PATH_NAME = 0, PATH_NAMETYPE = 1, PATH_MODE = 2;
+
+	/**
+	 * PATH records with larger item numbers are kept with the other key values
+	 */
+	static final int MAX_PATH_ITEMS = 64;
+
+	private final String[] fields = new String[FIELD_KEYS.length];
+
+	/**
+	 * Name, nametype and mode of the PATH records by item number
+	 */
+	private String[][] paths = new String[PATH_PREFIXES.length][4];
+
+	/**
+	 * One more than the highest item number of the PATH records
+	 */
+	private int pathCount = 0;
+
+	private final Map<String, String> others = new HashMap<String, String>();
+
+	/*
+	 * Parsed values. A field is parsed when first asked for after it was set
+	 */
+	private int syscallNumber;
+	private long exit;
+	private final long[] arguments = new long[ARGUMENT_COUNT];
+	// bits by field index
+	private long parsed = 0, valid = 0;
+
+	private final Set<Map.Entry<String, String>> entrySet = new EntrySet();
+
+	/**
+	 * @return system call number, or -1 if missing or not numerical
+	 */
+	public int getSyscallNumber(){
+		if(parse(SYSCALL)){
+			return syscallNumber;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the value of 'success' is 'no'
+	 */
+	public boolean isFailure(){
+		return AuditEventReader.SUCCESS_NO.equals(fields[SUCCESS]);
+	}
+
+	/**
+	 * @return exit value of the system call
+	 * @throws NumberFormatException if missing or not numerical
+	 */
+	public long getExit(){
+		if(parse(EXIT)){
+			return exit;
+		}
+		throw new NumberFormatException("Missing/Non-numerical exit '" + fields[EXIT] + "'");
+	}
+
+	/**
+	 * @param index argument number from 0 to 3
+	 * @return true if the argument is present and is a hexadecimal number
+	 */
+	public boolean hasArgument(int index){
+		return parse(ARG0 + index);
+	}
+
+	/**
+	 * Same as new BigInteger(hex, 16).longValue() of the argument
+	 *
+	 * @param index argument number from 0 to 3
+	 * @return lower 64 bits of the argument
+	 * @throws NumberFormatException if missing or not a hexadecimal number
+	 */
+	public long getArgument(int index){
+		if(parse(ARG0 + index)){
+			return arguments[index];
+		}
+		throw new NumberFormatException("Missing/Non-numerical argument#" + index + " '" + fields[ARG0 + index] + "'");
+	}
+
+	/**
+	 * @param index argument number from 0 to 3
+	 * @param defaultValue value to return if the argument is missing or not numerical
+	 * @return lower 64 bits of the argument or the default value
+	 */
+	public long getArgument(int index, long defaultValue){
+		return parse(ARG0 + index) ? arguments[index] : defaultValue;
+	}
+
+	/**
+	 * @param index argument number from 0 to 3
+	 * @return the argument in decimal, or the value as in the record if it is missing or not
+	 * numerical
+	 */
+	public String getDecimalArgument(int index){
+		return parse(ARG0 + index) ? String.valueOf(arguments[index]) : fields[ARG0 + index];
+	}
+
+	/**
+	 * @param index argument number from 0 to 3
+	 * @param value the new value of the argument
+	 */
+	public void setArgument(int index, long value){
+		int field = ARG0 + index;
+		fields[field] = Long.toHexString(value);
+		arguments[index] = value;
+		parsed |= 1L << field;
+		valid |= 1L << field;
+	}
+
+	/**
+	 * @return one more than the highest item number of the PATH records
+	 */
+	public int getPathCount(){
+		return pathCount;
+	}
+
+	/**
+	 * @param item item number of the PATH record
+	 * @return value of 'name' decoded if it was in hexadecimal, or null
+	 */
+	public String getPathName(int item){
+		return getPath(PATH_NAME, item);
+	}
+
+	/**
+	 * @param item item number of the PATH record
+	 * @return value of 'nametype', or null
+	 */
+	public String getPathNametype(int item){
+		return getPath(PATH_NAMETYPE, item);
+	}
+
+	/**
+	 * @param item item number of the PATH record
+	 * @return value of 'mode', or null
+	 */
+	public String getPathMode(int item){
+		return getPath(PATH_MODE, item);
+	}
+
+	/**
+	 * @param item item number of the PATH record
+	 * @param name value of 'name' decoded if it was in hexadecimal
+	 * @param nametype value of 'nametype'
+	 * @param mode value of 'mode'
+	 * @throws IllegalArgumentException if the item number is negative or not less than
+	 * MAX_PATH_ITEMS
+	 */
+	public void setPathRecord(int item, String name, String nametype, String mode){
+		if(item < 0 || item >= MAX_PATH_ITEMS){
+			throw new IllegalArgumentException("Invalid PATH record item number: " + item);
+		}
+		setPath(PATH_NAME, item, name);
+		setPath(PATH_NAMETYPE, item, nametype);
+		setPath(PATH_MODE, item, mode);
+	}
+
+	private String getPath(int part, int item){
+		return (item >= 0 && item < pathCount) ? paths[part][item] : null;
+	}
+
+	private String setPath(int part, int item, String value){
+		if(item >= pathCount){
+			if(value == null){
+				return null;
+			}
+			if(item >= paths[part].length){
+				int length = Math.max(item + 1, paths[part].length * 2);
+				for(int a = 0; a < paths.length; a++){
+					paths[a] = Arrays.copyOf(paths[a], length);
+				}
+			}
+			pathCount = item + 1;
+		}
+		String previous = paths[part][item];
+		paths[part][item] = value;
+		return previous;
+	}
+
+	private boolean parse(int field){
+		long bit = 1L << field;
+		if((parsed & bit) == 0){
+			parsed |= bit;
+			String value = fields[field];
+			if(value != null){
+				try{
+					if(field == SYSCALL){
+						syscallNumber = Integer.parseInt(value);
+					}else if(field == EXIT){
+						exit = Long.parseLong(value);
+					}else{
+						arguments[field - ARG0] = parseHex(value);
+					}
+					valid |= bit;
+				}catch(NumberFormatException e){
+					// not valid
+				}
+			}
+		}
+		return (valid & bit) != 0;
+	}
+
+	/**
+	 * Same as new BigInteger(hex, 16).longValue() without creating the BigInteger
+	 */
+	private static long parseHex(String hex){
+		int index = 0;
+		boolean negative = false;
+		if(hex.length() > 0 && (hex.charAt(0) == '-' || hex.charAt(0) == '+')){
+			negative = hex.charAt(0) == '-';
+			index = 1;
+		}
+		if(index == hex.length()){
+			throw new NumberFormatException("Zero length argument");
+		}
+		long value = 0;
+		for(; index < hex.length(); index++){
+			int digit = Character.digit(hex.charAt(index), 16);
+			if(digit < 0){
+				throw new NumberFormatException("Illegal digit in argument '"+hex+"'");
+			}
+			value = (value << 4) | digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return the item number if the key is the prefix followed by digits, otherwise -1
+	 */
+	private static int getPathItem(String key, String prefix){
+		int length = key.length();
+		if(length == prefix.length() || length > prefix.length() + 2 || !key.startsWith(prefix)){
+			return -1;
+		}
+		int item = 0;
+		for(int a = prefix.length(); a < length; a++){
+			char c = key.charAt(a);
+			if(c < '0' || c > '9'){
+				return -1;
+			}
+			item = item * 10 + (c - '0');
+		}
+		return item < MAX_PATH_ITEMS ? item : -1;
+	}
+
+	/**
+	 * @return index of the part in PATH_PREFIXES in the upper bits and the item number in the
+	 * lower bits, or -1 if the key is not of a PATH record
+	 */
+	private static int getPathSlot(String key){
+		if(key.isEmpty()){
+			return -1;
+		}
+		char first = key.charAt(0);
+		for(int part = 0; part < PATH_PREFIXES.length; part++){
+			if(PATH_PREFIXES[part].charAt(0) == first){
+				int item = getPathItem(key, PATH_PREFIXES[part]);
+				return item < 0 ? -1 : (part << 16) | item;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String get(Object key){
+		if(!(key instanceof String)){
+			return null;
+		}
+		Integer field = FIELD_INDICES.get(key);
+		if(field != null){
+			return fields[field];
+		}
+		int slot = getPathSlot((String)key);
+		if(slot >= 0){
+			return getPath(slot >>> 16, slot & 0xFFFF);
+		}
+		return others.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		return get(key) != null;
+	}
+
+	@Override
+	public String put(String key, String value){
+		Integer field = FIELD_INDICES.get(key);
+		if(field != null){
+			String previous = fields[field];
+			fields[field] = value;
+			parsed &= ~(1L << field);
+			valid &= ~(1L << field);
+			return previous;
+		}
+		int slot = getPathSlot(key);
+		if(slot >= 0){
+			return setPath(slot >>> 16, slot & 0xFFFF, value);
+		}
+		if(value == null){
+			return others.remove(key);
+		}
+		return others.put(key, value);
+	}
+
+	@Override
+	public String remove(Object key){
+		if(!(key instanceof String)){
+			return null;
+		}
+		return put((String)key, null);
+	}
+
+	@Override
+	public int size(){
+		int size = others.size();
+		for(String value : fields){
+			if(value != null){
+				size++;
+			}
+		}
+		for(String[] part : paths){
+			for(int item = 0; item < pathCount; item++){
+				if(part[item] != null){
+					size++;
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Removes all key values so that the event can be reused
+	 */
+	@Override
+	public void clear(){
+		Arrays.fill(fields, null);
+		for(String[] part : paths){
+			Arrays.fill(part, 0, pathCount, null);
+		}
+		pathCount = 0;
+		others.clear();
+		parsed = 0;
+		valid = 0;
+	}
+
+	/**
+	 * The entries are backed by the event. Removing through the iterator and setting values
+	 * of the entries changes the event.
+	 */
+	@Override
+	public Set<Map.Entry<String, String>> entrySet(){
+		return entrySet;
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, String>>{
+		@Override
+		public Iterator<Map.Entry<String, String>> iterator(){
+			return new EntryIterator();
+		}
+
+		@Override
+		public int size(){
+			return AuditEvent.this.size();
+		}
+
+		@Override
+		public void clear(){
+			AuditEvent.this.clear();
+		}
+	}
+
+	/**
+	 * Walks the fields, then the PATH records, then the other key values
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, String>>{
+		// position in the fields followed by the PATH records by part and item
+		private int next = -1;
+		private String lastKey = null;
+		private Iterator<Map.Entry<String, String>> othersIterator = null;
+
+		private EntryIterator(){
+			next = findNext(0);
+		}
+
+		private int getPositionCount(){
+			return fields.length + PATH_PREFIXES.length * pathCount;
+		}
+
+		private int findNext(int from){
+			for(int a = from; a < getPositionCount(); a++){
+				if(getAt(a) != null){
+					return a;
+				}
+			}
+			return -1;
+		}
+
+		private String getAt(int at){
+			if(at < fields.length){
+				return fields[at];
+			}
+			at -= fields.length;
+			return paths[at / pathCount][at % pathCount];
+		}
+
+		private String getKeyAt(int at){
+			if(at < fields.length){
+				return FIELD_KEYS[at];
+			}
+			at -= fields.length;
+			return PATH_PREFIXES[at / pathCount] + (at % pathCount);
+		}
+
+		@Override
+		public boolean hasNext(){
+			if(next >= 0){
+				return true;
+			}
+			if(othersIterator == null){
+				othersIterator = others.entrySet().iterator();
+			}
+			return othersIterator.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String, String> next(){
+			if(next >= 0){
+				lastKey = getKeyAt(next);
+				next = findNext(next + 1);
+				return new Entry(lastKey);
+			}
+			if(!hasNext()){
+				throw new NoSuchElementException();
+			}
+			lastKey = null;
+			return othersIterator.next();
+		}
+
+		@Override
+		public void remove(){
+			if(lastKey != null){
+				put(lastKey, null);
+				lastKey = null;
+			}else if(othersIterator != null){
+				othersIterator.remove();
+			}else{
+				throw new IllegalStateException();
+			}
+		}
+	}
+
+	private class Entry implements Map.Entry<String, String>{
+		private final String key;
+
+		private Entry(String key){
+			this.key = key;
+		}
+
+		@Override
+		public String getKey(){
+			return key;
+		}
+
+		@Override
+		public String getValue(){
+			return get(key);
+		}
+
+		@Override
+		public String setValue(String value){
+			if(value == null){
+				throw new NullPointerException("Null values are not kept");
+			}
+			return put(key, value);
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Map.Entry)){
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>)o;
+			return key.equals(other.getKey()) && eq(getValue(), other.getValue());
+		}
+
+		@Override
+		public int hashCode(){
+			String value = getValue();
+			return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString(){
+			return key + "=" + getValue();
+		}
+	}
+
+	private static boolean eq(Object a, Object b){
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -21,22 +21,25 @@ package spade.reporter.audit;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import spade.core.Settings;
 import spade.utility.CommonFunctions;
@@ -129,34 +132,49 @@ public class AuditEventReader {
 	private long startTime, lastReportedTime;
 	private long lastReportedRecordCount, recordCount;
 
-	// Group 1: pid
-	// Group 2: unitid
-	// Group 3: iteration
-	// Group 4: time
-	// Group 5: count
-	private final Pattern pattern_unit = 
-			Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
-	
-	// Group 1: key
-	// Group 2: value
-	private final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
-
-	// Group 1: node
-	// Group 2: type
-	// Group 3: time
-	// Group 4: recordid
-	private final Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(.+) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
-
-	// Group 1: cwd
-	//cwd is either a quoted string or an unquoted string in which case it is in hex format
-	private final Pattern pattern_cwd = Pattern.compile("cwd=(\".+\"|[a-zA-Z0-9]+)");
-
-	// Group 1: item number
-	// Group 2: name
-	// Group 3: mode
-	// Group 4: nametype
-	//name is either a quoted string or an unquoted string in which case it is in hex format
-//	private static final Pattern pattern_path = Pattern.compile("item=([0-9]*) name=(\".+\"|[a-zA-Z0-9]+|\\(null\\)) .*(?:mode=([0-9]+) ).*nametype=([a-zA-Z]*)");
+	/**
+	 * Parser of the records of events. One for each thread that parses events
+	 */
+	private final ThreadLocal<RecordParser> recordParser = new ThreadLocal<RecordParser>(){
+		@Override
+		protected RecordParser initialValue(){
+			return new RecordParser();
+		}
+	};
+
+	/*
+	 * Pipelined parsing. If there is more than one parser thread then the records are grouped
+	 * into events on the grouping thread, the events are parsed by the parser threads, and the
+	 * reorder buffer hands them out in the order in which they were read.
+	 */
+	private int parserThreads = 1;
+	private int parserQueueSize = 1024;
+	private Thread groupingThread;
+	private ExecutorService parserExecutor;
+	/**
+	 * Limits the events being parsed or waiting in the reorder buffer to its size
+	 */
+	private Semaphore reorderPermits;
+	/**
+	 * Parsed events, or the exceptions thrown while parsing them, by sequence number
+	 */
+	private Object[] reorderBuffer;
+	private volatile long groupedEventCount, parsedEventCount, handedOutEventCount;
+	private long lastReportedGroupedEventCount, lastReportedHandedOutEventCount;
+	/**
+	 * Set by the grouping thread when it stops. The exception, if any, is thrown after the
+	 * events before it have been handed out
+	 */
+	private boolean groupingDone = false;
+	private Exception groupingException = null;
+	private boolean groupingRunning = false;
+	private boolean closed = false;
+
+	/**
+	 * Events handed back through {@link #recycle(AuditEvent) recycle} to fill in again. As
+	 * large as the number of events that can be in the reorder buffer at once
+	 */
+	private BlockingQueue<AuditEvent> eventPool;
 
 	/**
 	 * Buffers all the records for the current event being read
@@ -178,6 +196,11 @@ public class AuditEventReader {
 	 */
 	private BufferedReader stream;
 	
+	/**
+	 * The memory-mapped log files to read from by this class instead of the stream
+	 */
+	private MappedAuditLogReader logReader;
+	
 	private long rotateAfterRecordCount = 0;
 	private String outputLogFile = null;
 	private PrintWriter outputLogWriter = null;
@@ -209,10 +232,32 @@ public class AuditEventReader {
 			throw new IllegalArgumentException("The stream to read from cannot be NULL");
 		}
 
+		this.streamId = streamId;
 		stream = new BufferedReader(new InputStreamReader(streamToReadFrom));
 
 		setGlobalsFromConfig();
 	}
+	
+	/**
+	 * Create instance of the class that reads from the given memory-mapped log files
+	 * 
+	 * @param streamId An identifier to read the audit logs from
+	 * @param logReader The log files to read from
+	 * @throws Exception IllegalArgumentException
+	 */
+	public AuditEventReader(String streamId, MappedAuditLogReader logReader) throws Exception{
+		if(streamId == null){
+			throw new IllegalArgumentException("Stream ID cannot be NULL");
+		}
+		if(logReader == null){
+			throw new IllegalArgumentException("The log reader to read from cannot be NULL");
+		}
+		
+		this.streamId = streamId;
+		this.logReader = logReader;
+		
+		setGlobalsFromConfig();
+	}
 
 	private void setGlobalsFromConfig(){
 		String defaultConfigFilePath = Settings.getDefaultConfigFilePath(this.getClass());
@@ -220,6 +265,8 @@ public class AuditEventReader {
 			if(new File(defaultConfigFilePath).exists()){
 				Map<String, String> properties = FileUtility.readConfigFileAsKeyValueMap(defaultConfigFilePath, "=");
 				if(properties != null && properties.size() > 0){
+					parserThreads = CommonFunctions.parseInt(properties.get("parserThreads"), parserThreads);
+					parserQueueSize = Math.max(1, CommonFunctions.parseInt(properties.get("parserQueueSize"), parserQueueSize));
 					Long reportingInterval = CommonFunctions.parseLong(properties.get("reportingIntervalSeconds"), null);
 					if(reportingInterval != null){
 						if(reportingInterval < 1){ //at least 1 ms
@@ -236,6 +283,7 @@ public class AuditEventReader {
 		}catch(Exception e){
 			logger.log(Level.SEVERE, "Failed to read config file '"+defaultConfigFilePath+"'");
 		}
+		eventPool = new ArrayBlockingQueue<AuditEvent>(parserQueueSize + 1);
 	}
 
 	/**
@@ -281,8 +329,32 @@ public class AuditEventReader {
 			float intervalRecordVolume = (float) (recordCount - lastReportedRecordCount) / intervalTime; // # records/sec
 			logger.log(Level.INFO, "Overall rate: {0} records/sec in {1} seconds. Interval rate: {2} records/sec in {3} seconds.", 
 					new Object[]{overallRecordVolume, overallTime, intervalRecordVolume, intervalTime});
+			if(parserExecutor != null){
+				long grouped = groupedEventCount, parsed = parsedEventCount, handedOut = handedOutEventCount;
+				float groupedRate = (float) (grouped - lastReportedGroupedEventCount) / intervalTime; // # events/sec
+				float handedOutRate = (float) (handedOut - lastReportedHandedOutEventCount) / intervalTime; // # events/sec
+				logger.log(Level.INFO, "Interval rates: {0} events/sec grouped, {1} events/sec handed out. "
+						+ "Queue depths: {2} events to parse, {3} events in reorder buffer.",
+						new Object[]{groupedRate, handedOutRate, grouped - parsed, parsed - handedOut});
+				lastReportedGroupedEventCount = grouped;
+				lastReportedHandedOutEventCount = handedOut;
+			}
 		}
 	}
+
+	/**
+	 * @return number of events grouped from records but not parsed yet. 0 if parsing is not pipelined
+	 */
+	public long getParseQueueDepth(){
+		return groupedEventCount - parsedEventCount;
+	}
+
+	/**
+	 * @return number of parsed events waiting to be handed out in order. 0 if parsing is not pipelined
+	 */
+	public long getReorderBufferDepth(){
+		return parsedEventCount - handedOutEventCount;
+	}
 	
 	/**
 	 * Returns the event id from the audit record.
@@ -329,10 +401,150 @@ public class AuditEventReader {
 	 * 
 	 * Reads on the assumption that all records for an event are contiguously placed
 	 * 
-	 * @return map of key values of the read audit event
+	 * The returned event can be handed back through {@link #recycle(AuditEvent) recycle}
+	 * once it is no longer used
+	 * 
+	 * @return key values of the read audit event
 	 * @throws Exception IOException
 	 */
-	public Map<String, String> readEventData() throws Exception{
+	public AuditEvent readEventData() throws Exception{
+		if(parserThreads <= 1){
+			Set<String> records = readEventRecords();
+			return records == null ? null : recordParser.get().getEvent(records);
+		}
+		if(groupingThread == null){
+			startGrouping();
+		}
+		Object eventData;
+		synchronized(reorderBuffer){
+			int slot = (int)(handedOutEventCount % reorderBuffer.length);
+			while(reorderBuffer[slot] == null){
+				if(groupingDone && handedOutEventCount >= groupedEventCount){
+					if(groupingException != null){
+						Exception exception = groupingException;
+						groupingException = null;
+						throw exception;
+					}
+					return null;
+				}
+				reorderBuffer.wait();
+			}
+			eventData = reorderBuffer[slot];
+			reorderBuffer[slot] = null;
+			handedOutEventCount++;
+		}
+		reorderPermits.release();
+		if(eventData instanceof Exception){
+			throw (Exception)eventData;
+		}
+		return (AuditEvent)eventData;
+	}
+
+	/**
+	 * Hands back an event returned by {@link #readEventData() readEventData} so that it
+	 * is filled in again for a later event. The event must not be used after this
+	 * 
+	 * @param event event to reuse
+	 */
+	public void recycle(AuditEvent event){
+		if(event != null){
+			event.clear();
+			eventPool.offer(event);
+		}
+	}
+
+	private void startGrouping(){
+		reorderBuffer = new Object[parserQueueSize];
+		reorderPermits = new Semaphore(parserQueueSize);
+		parserExecutor = Executors.newFixedThreadPool(parserThreads, new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger(0);
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "AuditEventReader-Parser-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		groupingRunning = true;
+		groupingThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				Exception exception = null;
+				try{
+					Set<String> records;
+					while(!isClosed() && (records = readEventRecords()) != null){
+						reorderPermits.acquire();
+						parserExecutor.execute(new ParseTask(groupedEventCount, records));
+						groupedEventCount++;
+					}
+				}catch(InterruptedException e){
+					// closed
+				}catch(Exception e){
+					exception = e;
+				}finally{
+					synchronized(reorderBuffer){
+						groupingDone = true;
+						groupingException = exception;
+						reorderBuffer.notifyAll();
+					}
+					boolean closeStreams;
+					synchronized(AuditEventReader.this){
+						groupingRunning = false;
+						closeStreams = closed;
+					}
+					if(closeStreams){
+						closeStreams();
+					}
+				}
+			}
+		}, "AuditEventReader-Grouping");
+		groupingThread.setDaemon(true);
+		groupingThread.start();
+	}
+
+	private synchronized boolean isClosed(){
+		return closed;
+	}
+
+	/**
+	 * Parses an event on a parser thread and puts it in the reorder buffer
+	 */
+	private class ParseTask implements Runnable{
+		private final long sequence;
+		private final Set<String> records;
+
+		private ParseTask(long sequence, Set<String> records){
+			this.sequence = sequence;
+			this.records = records;
+		}
+
+		@Override
+		public void run(){
+			Object eventData;
+			try{
+				eventData = recordParser.get().getEvent(records);
+			}catch(Exception e){
+				eventData = e;
+			}
+			synchronized(reorderBuffer){
+				reorderBuffer[(int)(sequence % reorderBuffer.length)] = eventData;
+				parsedEventCount++;
+				if(sequence == handedOutEventCount){
+					reorderBuffer.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the records of the next event that is read from the stream
+	 * 
+	 * Null return value means EOF
+	 * 
+	 * @return records of the read audit event
+	 * @throws Exception IOException
+	 */
+	private Set<String> readEventRecords() throws Exception{
 
 		if(reportingEnabled){
 			long currentTime = System.currentTimeMillis();
@@ -364,30 +576,30 @@ public class AuditEventReader {
 		if(EOF){
 			return null;
 		}else{
-			Map<String, String> eventData = null;
-			
 			if(pendingUBSIEvent){
-				eventData = getEventMap(currentEventRecords);
+				Set<String> records = new HashSet<String>(currentEventRecords);
 				currentEventId = -1L;
 				pendingUBSIEvent = false;
 				currentEventRecords.clear();
+				return records;
 			}else{
 				String line = null;
 				
-				while((line = stream.readLine()) != null){
+				while((line = readLine()) != null){
 					writeToOutputLog(line);
 					if(reportingEnabled){
 						recordCount++;
 					}
-					if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_PROCTITLE) || 
-							line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UNKNOWN_PREFIX) || 
-							line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_EOE)){
+					int typeStart = AuditRecordTokenizer.getTypeStart(line);
+					if(line.startsWith(RECORD_TYPE_PROCTITLE, typeStart) || 
+							line.startsWith(RECORD_TYPE_UNKNOWN_PREFIX, typeStart) || 
+							line.startsWith(RECORD_TYPE_EOE, typeStart)){
 						continue; // ignore these records
 					}else{
 						String UBSIRecord = null;
-						if(line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_EXIT) ||
-								line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_DEP) || 
-								line.contains(RECORD_TYPE_KEY+"=" + RECORD_TYPE_UBSI_ENTRY)){
+						if(line.startsWith(RECORD_TYPE_UBSI_EXIT, typeStart) ||
+								line.startsWith(RECORD_TYPE_UBSI_DEP, typeStart) || 
+								line.startsWith(RECORD_TYPE_UBSI_ENTRY, typeStart)){
 							UBSIRecord = line;
 						}
 						
@@ -407,8 +619,7 @@ public class AuditEventReader {
 										Set<String> records = new HashSet<String>(currentEventRecords);
 										currentEventRecords.clear();
 										currentEventRecords.add(line); //add the next event record
-										eventData = getEventMap(records);
-										break;
+										return records;
 									}else{ //if they are equal
 										currentEventRecords.add(line);
 										continue;
@@ -422,8 +633,7 @@ public class AuditEventReader {
 							records.add(UBSIRecord);
 							currentEventId = -1L;
 							pendingUBSIEvent = false;
-							eventData = getEventMap(records);
-							break;
+							return records;
 						}else if(UBSIRecord != null && !currentEventRecords.isEmpty()){
 							// Has a pending event. add the UBSI record to pending and return the existing event
 							Set<String> records = new HashSet<String>(currentEventRecords);
@@ -431,8 +641,7 @@ public class AuditEventReader {
 							currentEventRecords.add(UBSIRecord);
 							currentEventId = -1L;
 							pendingUBSIEvent = true;
-							eventData = getEventMap(records);
-							break;
+							return records;
 						}
 					}
 				}
@@ -446,39 +655,43 @@ public class AuditEventReader {
 						currentEventRecords.clear();
 						currentEventId = -1L;
 						pendingUBSIEvent = false;
-						return getEventMap(records);
+						return records;
 					}
 				}
+				return null;
 			}
-			return eventData;
 		}
 	}
 	
 	/**
-	 * Passes all the records through the function {@link #parseEventLine(String) parseEventLine}
-	 * and returns a map which contains keys and values for all the records
-	 * 
-	 * @param records records of a single event
-	 * @return map of key values
+	 * Closes the stream and the output log. If the records are still being grouped then the
+	 * grouping thread closes them once it stops.
 	 */
-	private Map<String, String> getEventMap(Set<String> records){
-		Map<String, String> eventMap = new HashMap<String, String>();
-		for(String record : records){
-			eventMap.putAll(parseEventLine(record));
-		}
-		return eventMap;
-	}
-
 	public void close(){
 		if(reportingEnabled){
 			printStats();
 		}
+		if(groupingThread != null){
+			parserExecutor.shutdownNow();
+			groupingThread.interrupt();
+			synchronized(this){
+				closed = true;
+				if(groupingRunning){
+					return;
+				}
+			}
+		}
+		closeStreams();
+	}
+
+	private synchronized void closeStreams(){
 		if(outputLogWriter != null){
 			try{
 				outputLogWriter.close();
 			}catch(Exception e){
 				logger.log(Level.SEVERE, "Failed to close output log writer", e);
 			}
+			outputLogWriter = null;
 		}
 		if(stream != null){
 			try{
@@ -486,260 +699,263 @@ public class AuditEventReader {
 			}catch(Exception e){
 				logger.log(Level.SEVERE, "Failed to close the stream '"+streamId+"'", e);
 			}
+			stream = null;
+		}
+		if(logReader != null){
+			logReader.close();
+			logReader = null;
+		}
+	}
+	
+	private String readLine() throws IOException{
+		if(logReader != null){
+			return logReader.readLine();
 		}
+		return stream.readLine();
 	}
 
 	/**
-	 * Parses the line to get unit information out of it.
-	 * 
-	 * Expected format for unit information ...'(pid=1 unitid=2 iteration=3 time=4 count=5)'...
-	 * 
-	 * Returns a map which contains the keys in the above-given format but the keys are
-	 * defined as constants in this class.
-	 * 
-	 * @param line audit record with unit information
-	 * @return map of key values for a unit
+	 * Parses the records of events. Not thread-safe
 	 */
-	private List<Map<String, String>> parseUnitsKeyValues(String line){
-		List<Map<String, String>> unitsKeyValues = new ArrayList<Map<String, String>>();
-		Matcher matcher2 = pattern_unit.matcher(line);
-		while(matcher2.find()){
-			String pid = matcher2.group(1);
-			String thread_start_time = matcher2.group(2);
-			String unitid = matcher2.group(3);
-			String iteration = matcher2.group(4);
-			String time = matcher2.group(5);
-			String count = matcher2.group(6);
-			
-			Map<String, String> unitKeyValues = new HashMap<String, String>();
-			unitKeyValues.put(UNIT_PID, pid);
-			unitKeyValues.put(UNIT_THREAD_START_TIME, thread_start_time);
-			unitKeyValues.put(UNIT_UNITID, unitid);
-			unitKeyValues.put(UNIT_ITERATION, iteration);
-			unitKeyValues.put(UNIT_TIME, time);
-			unitKeyValues.put(UNIT_COUNT, count);
-			unitsKeyValues.add(unitKeyValues);
+	private class RecordParser{
+
+		/**
+		 * Tokenizer for the records of the event being parsed
+		 */
+		private final AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+
+		/**
+		 * Values of a unit in the order pid, thread_time, unitid, iteration, time and count
+		 */
+		private final String[] unitValues = new String[6];
+
+		/**
+		 * Passes all the records through the function {@link #parseEventLine(String, AuditEvent) parseEventLine}
+		 * and returns an event, reused if there is one in the pool, which contains keys and values
+		 * for all the records
+		 * 
+		 * @param records records of a single event
+		 * @return key values of the event
+		 */
+		private AuditEvent getEvent(Set<String> records){
+			AuditEvent event = eventPool.poll();
+			if(event == null){
+				event = new AuditEvent();
+			}
+			for(String record : records){
+				parseEventLine(record, event);
+			}
+			return event;
+		}
+
+		/**
+		 * Parses the line to get unit information out of it.
+		 * 
+		 * Expected format for unit information ...'(pid=1 thread_time=2.000 unitid=3 iteration=4 time=5.000 count=6)'...
+		 * 
+		 * Returns a map which contains the keys in the above-given format but the keys are
+		 * defined as constants in this class.
+		 * 
+		 * @param line audit record with unit information
+		 * @return map of key values for a unit
+		 */
+		private List<Map<String, String>> parseUnitsKeyValues(String line){
+			List<Map<String, String>> unitsKeyValues = new ArrayList<Map<String, String>>();
+			int index = 0;
+			while((index = AuditRecordTokenizer.findUnit(line, index, unitValues)) >= 0){
+				Map<String, String> unitKeyValues = new HashMap<String, String>();
+				unitKeyValues.put(UNIT_PID, unitValues[0]);
+				unitKeyValues.put(UNIT_THREAD_START_TIME, unitValues[1]);
+				unitKeyValues.put(UNIT_UNITID, unitValues[2]);
+				unitKeyValues.put(UNIT_ITERATION, unitValues[3]);
+				unitKeyValues.put(UNIT_TIME, unitValues[4]);
+				unitKeyValues.put(UNIT_COUNT, unitValues[5]);
+				unitsKeyValues.add(unitKeyValues);
+			}
+			return unitsKeyValues;
 		}
-		return unitsKeyValues;
-	}
 	
-	/**
-	 * Creates a map with key values as needed by the Audit reporter from audit records of an event
-	 * 
-	 * @param line event record to parse
-	 * @return map of key values for the argument record
-	 */
-	private Map<String, String> parseEventLine(String line) {
+		/**
+		 * Adds the key values as needed by the Audit reporter from an audit record of an event
+		 * 
+		 * @param line event record to parse
+		 * @param auditRecordKeyValues key values of the event to add to
+		 */
+		private void parseEventLine(String line, AuditEvent auditRecordKeyValues) {
 
-		Map<String, String> auditRecordKeyValues = new HashMap<String, String>();
+			int typeStart = AuditRecordTokenizer.getTypeStart(line);
 		
-		if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_DAEMON_START)){
-			auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_DAEMON_START);
-			return auditRecordKeyValues;
-		}
+			if(line.startsWith(RECORD_TYPE_DAEMON_START, typeStart)){
+				auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_DAEMON_START);
+				return;
+			}
 
-		boolean isUBSIEvent = false;
+			boolean isUBSIEvent = false;
 		
-		// There will be time and eventid in this one
-		if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_ENTRY)){
+			// There will be time and eventid in this one
+			if(line.startsWith(RECORD_TYPE_UBSI_ENTRY, typeStart)){
 			
-			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
-			if(unitsKeyValues.size() != 1){ // there should be only one unit's information
-				logger.log(Level.WARNING, "Malformed record '"+line+"'");
-			}else{
-				// Add all the units key values
-				auditRecordKeyValues.putAll(unitsKeyValues.get(0));
-			}
+				List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
+				if(unitsKeyValues.size() != 1){ // there should be only one unit's information
+					logger.log(Level.WARNING, "Malformed record '"+line+"'");
+				}else{
+					// Add all the units key values
+					auditRecordKeyValues.putAll(unitsKeyValues.get(0));
+				}
 			
-			Long UBSIEntryEventId = getEventId(line);
-			String UBSIEntryTime = getEventTime(line);
+				Long UBSIEntryEventId = getEventId(line);
+				String UBSIEntryTime = getEventTime(line);
 			
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_ENTRY);
-			auditRecordKeyValues.put(TIME, UBSIEntryTime);
-			auditRecordKeyValues.put(EVENT_ID, String.valueOf(UBSIEntryEventId));
+				auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_ENTRY);
+				auditRecordKeyValues.put(TIME, UBSIEntryTime);
+				auditRecordKeyValues.put(EVENT_ID, String.valueOf(UBSIEntryEventId));
 			
-			isUBSIEvent = true;
+				isUBSIEvent = true;
 			
-		}else if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_EXIT)){
-			// no time and event id
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_EXIT);
+			}else if(line.startsWith(RECORD_TYPE_UBSI_EXIT, typeStart)){
+				// no time and event id
+				auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_EXIT);
 						
-			isUBSIEvent = true;
+				isUBSIEvent = true;
 			
-		}else if(line.contains(RECORD_TYPE_KEY+"="+RECORD_TYPE_UBSI_DEP)){
-			// no time and event id
-			List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
-			if(unitsKeyValues.size() == 0){ // there should be only one or more unit's information
-				logger.log(Level.WARNING, "Malformed record '"+line+"'");
-			}else{
-				// Add all the units key values
+			}else if(line.startsWith(RECORD_TYPE_UBSI_DEP, typeStart)){
+				// no time and event id
+				List<Map<String, String>> unitsKeyValues = parseUnitsKeyValues(line);
+				if(unitsKeyValues.size() == 0){ // there should be only one or more unit's information
+					logger.log(Level.WARNING, "Malformed record '"+line+"'");
+				}else{
+					// Add all the units key values
 				
-				// Last one is the acting unit
-				Map<String, String> actingUnitKeyValues = unitsKeyValues.remove(unitsKeyValues.size() - 1);
-				auditRecordKeyValues.putAll(actingUnitKeyValues);
+					// Last one is the acting unit
+					Map<String, String> actingUnitKeyValues = unitsKeyValues.remove(unitsKeyValues.size() - 1);
+					auditRecordKeyValues.putAll(actingUnitKeyValues);
 				
-				for(int a = 0; a<unitsKeyValues.size(); a++){
-					Map<String, String> unitKeyValues = unitsKeyValues.get(a);
-					for(Map.Entry<String, String> entry : unitKeyValues.entrySet()){
-						auditRecordKeyValues.put(entry.getKey() + a, entry.getValue());
+					for(int a = 0; a<unitsKeyValues.size(); a++){
+						Map<String, String> unitKeyValues = unitsKeyValues.get(a);
+						for(Map.Entry<String, String> entry : unitKeyValues.entrySet()){
+							auditRecordKeyValues.put(entry.getKey() + a, entry.getValue());
+						}
 					}
-				}
 				
-				auditRecordKeyValues.put(UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
+					auditRecordKeyValues.put(UNIT_DEPS_COUNT, String.valueOf(unitsKeyValues.size()));
 								
-			}
+				}
 			
-			auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_DEP);
-			isUBSIEvent = true;
+				auditRecordKeyValues.put(AuditEventReader.RECORD_TYPE_KEY, RECORD_TYPE_UBSI_DEP);
+				isUBSIEvent = true;
 			
-		}
+			}
 		
-		if(isUBSIEvent){
+			if(isUBSIEvent){
 			
-			String msgData = line.substring(line.indexOf(" ppid="));
-			auditRecordKeyValues.putAll(CommonFunctions.parseKeyValPairs(msgData));
+				int msgDataStart = line.indexOf(" ppid=");
+				if(msgDataStart < 0){
+					logger.log(Level.WARNING, "Malformed record '"+line+"'");
+					return;
+				}
+				tokenizer.reset(line, msgDataStart);
+				while(tokenizer.next()){
+					auditRecordKeyValues.put(tokenizer.getKey(), tokenizer.getTrimmedValue());
+				}
 			
-		}else{
-		
-			Matcher event_start_matcher = pattern_message_start.matcher(line);
-			if (event_start_matcher.find()) {
-				String type = event_start_matcher.group(2);
-				String time = event_start_matcher.group(3);
-				String eventId = event_start_matcher.group(4);
-				String messageData = line.substring(event_start_matcher.end());
-	
-				auditRecordKeyValues.put(EVENT_ID, eventId);
-				auditRecordKeyValues.put(RECORD_TYPE_KEY, type);
-	
-				if (type.equals(RECORD_TYPE_SYSCALL)) {
-					Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
-					if(messageData.contains(COMM + "=") && !messageData.contains(COMM + "=\"")
-							&& !"(null)".equals(eventData.get(COMM))){ // comm has a hex encoded value
+			}else if(tokenizer.parseHeader(line)){
+			
+				auditRecordKeyValues.put(EVENT_ID, tokenizer.getEventId());
+				auditRecordKeyValues.put(RECORD_TYPE_KEY, tokenizer.getType());
+
+				if (tokenizer.isType(RECORD_TYPE_SYSCALL)) {
+					String time = tokenizer.getTime();
+					String comm = null;
+					boolean commQuoted = false;
+					while(tokenizer.next()){
+						String value = tokenizer.getTrimmedValue();
+						if(tokenizer.isKey(COMM)){
+							comm = value;
+							commQuoted = tokenizer.isValueQuoted();
+						}
+						auditRecordKeyValues.put(tokenizer.getKey(), value);
+					}
+					if(comm != null && !commQuoted && !"(null)".equals(comm)){ // comm has a hex encoded value
 						// decode and replace value
-						eventData.put(COMM, parseHexStringToUTF8(eventData.get(COMM)));
+						auditRecordKeyValues.put(COMM, AuditRecordTokenizer.decodeHex(comm));
 					}
-					eventData.put(TIME, time);
-					auditRecordKeyValues.putAll(eventData);
-				} else if (type.equals(RECORD_TYPE_CWD)) {
-					Matcher cwd_matcher = pattern_cwd.matcher(messageData);
-					if (cwd_matcher.find()) {
-						String cwd = cwd_matcher.group(1);
-						cwd = cwd.trim();
-						if(cwd.startsWith("\"") && cwd.endsWith("\"")){ //is a string path
-							cwd = cwd.substring(1, cwd.length()-1);
-						}else{ //is in hex format
-							try{
-								cwd = parseHexStringToUTF8(cwd);
-							}catch(Exception e){
-								//failed to parse
+					auditRecordKeyValues.put(TIME, time);
+				} else if (tokenizer.isType(RECORD_TYPE_CWD)) {
+					//cwd is either a quoted string or an unquoted string in which case it is in hex format
+					while(tokenizer.next()){
+						if(tokenizer.isKey(CWD)){
+							String cwd = tokenizer.getValue();
+							if(!tokenizer.isValueQuoted()){ //is in hex format
+								if("(null)".equals(cwd)){
+									break;
+								}
+								try{
+									cwd = AuditRecordTokenizer.decodeHex(cwd);
+								}catch(Exception e){
+									//failed to parse
+								}
 							}
-						}                    
-						auditRecordKeyValues.put(CWD, cwd);
+							auditRecordKeyValues.put(CWD, cwd);
+							break;
+						}
+					}
+				} else if (tokenizer.isType(RECORD_TYPE_PATH)) {
+					String itemNumber = null, name = null, mode = null, nametype = null;
+					boolean nameQuoted = false;
+					while(tokenizer.next()){
+						if(tokenizer.isKey("item")){
+							itemNumber = tokenizer.getTrimmedValue();
+						}else if(tokenizer.isKey("name")){
+							name = tokenizer.getTrimmedValue();
+							nameQuoted = tokenizer.isValueQuoted();
+						}else if(tokenizer.isKey("mode")){
+							mode = tokenizer.getTrimmedValue();
+						}else if(tokenizer.isKey("nametype")){
+							nametype = tokenizer.getTrimmedValue();
+						}
 					}
-				} else if (type.equals(RECORD_TYPE_PATH)) {
-					Map<String, String> pathKeyValues = CommonFunctions.parseKeyValPairs(messageData);
-					String itemNumber = pathKeyValues.get("item");
-					String name = pathKeyValues.get("name");
-					String mode = pathKeyValues.get("mode");
 					mode = mode == null ? "0" : mode;
-					String nametype = pathKeyValues.get("nametype");
-					
-					name = name.trim();
-					if(messageData.contains(" name=") && 
-							!messageData.contains(" name=\"") &&
-							!messageData.contains(" name=(null)")){ 
+				
+					if(name != null && !nameQuoted && !"(null)".equals(name)){ 
 						//is a hex path if the value of the key name doesn't start with double quotes
 						try{
-							name = parseHexStringToUTF8(name);
+							name = AuditRecordTokenizer.decodeHex(name);
 						}catch(Exception e){
 							//failed to parse
 						}
 					}
-					
-					auditRecordKeyValues.put(PATH_PREFIX + itemNumber, name);
-					auditRecordKeyValues.put(NAMETYPE_PREFIX + itemNumber, nametype);
-					auditRecordKeyValues.put(MODE_PREFIX + itemNumber, mode);
-				} else if (type.equals(RECORD_TYPE_EXECVE)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(EXECVE_PREFIX + key_value_matcher.group(1), key_value_matcher.group(2));
+				
+					int item = CommonFunctions.parseInt(itemNumber, -1);
+					if(item >= 0 && item < AuditEvent.MAX_PATH_ITEMS){
+						auditRecordKeyValues.setPathRecord(item, name, nametype, mode);
+					}else{
+						auditRecordKeyValues.put(PATH_PREFIX + itemNumber, name);
+						auditRecordKeyValues.put(NAMETYPE_PREFIX + itemNumber, nametype);
+						auditRecordKeyValues.put(MODE_PREFIX + itemNumber, mode);
 					}
-				} else if (type.equals(RECORD_TYPE_FD_PAIR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
+				} else if (tokenizer.isType(RECORD_TYPE_EXECVE)) {
+					while (tokenizer.next()) {
+						auditRecordKeyValues.put(EXECVE_PREFIX + tokenizer.getKey(), tokenizer.getValue());
 					}
-				} else if (type.equals(RECORD_TYPE_SOCKETCALL)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put("socketcall_" + key_value_matcher.group(1), key_value_matcher.group(2));
+				} else if (tokenizer.isType(RECORD_TYPE_SOCKETCALL)) {
+					while (tokenizer.next()) {
+						auditRecordKeyValues.put("socketcall_" + tokenizer.getKey(), tokenizer.getValue());
 					}
-				} else if (type.equals(RECORD_TYPE_SOCKADDR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
+				} else if (tokenizer.isType(RECORD_TYPE_FD_PAIR) || tokenizer.isType(RECORD_TYPE_SOCKADDR)
+						|| tokenizer.isType(RECORD_TYPE_MMAP)) {
+					while (tokenizer.next()) {
+						auditRecordKeyValues.put(tokenizer.getKey(), tokenizer.getValue());
 					}
-				} else if(type.equals(RECORD_TYPE_NETFILTER_PKT)){
-					auditRecordKeyValues.put(TIME, time); // add time
-					auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_NETFILTER_PKT); // type
+				} else if(tokenizer.isType(RECORD_TYPE_NETFILTER_PKT)){
+					auditRecordKeyValues.put(TIME, tokenizer.getTime()); // add time
 					// rest of the keys as is below
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
-				} else if (type.equals(RECORD_TYPE_MMAP)){
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
+					while (tokenizer.next()) {
+						auditRecordKeyValues.put(tokenizer.getKey(), tokenizer.getValue());
 					}
-				} else if(type.equals(RECORD_TYPE_PROCTITLE)){
+				} else if(tokenizer.isType(RECORD_TYPE_PROCTITLE)){
 					//record type not being handled at the moment. 
-				} else{
-					//            	if(!seenTypesOfUnsupportedRecords.contains(type)){
-					//            		seenTypesOfUnsupportedRecords.add(type);
-					//            		logger.log(Level.WARNING, "Unknown type {0} for message: {1}. Won't output to log a message for this type again.", new Object[]{type, line});
-					//            	}                
 				}
-	
-			} else {
-	
-			}
-		}
-
-		return auditRecordKeyValues;
-	}
-	
-	/**
-	 * Converts hex string as UTF-8
-	 * 
-	 * @param hexString string to parse
-	 * @return parsed string
-	 */
-	private String parseHexStringToUTF8(String hexString){
-		if(hexString == null){
-			return null;
-		}
-
-		//find the null char i.e. the end of the string
-		for(int a = 0; a<=hexString.length()-2; a+=2){
-			String hexByte = hexString.substring(a,a+2);
-			Integer intByte = Integer.parseInt(hexByte, 16);
-			char c = (char)(intByte.intValue());
-			if(c == 0){ //null char
-				hexString = hexString.substring(0, a);
-				break;
 			}
 		}
-
-		ByteBuffer bytes = ByteBuffer.allocate(hexString.length()/2);
-		for(int a = 0; a<=hexString.length()-2; a+=2){
-			bytes.put((byte)Integer.parseInt(hexString.substring(a, a+2), 16));
-
-		}
-		bytes.rewind();
-		Charset cs = Charset.forName("UTF-8");
-		CharBuffer cb = cs.decode(bytes);
-		return cb.toString();
 	}
-	
 }
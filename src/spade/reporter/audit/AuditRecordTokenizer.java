@@ -0,0 +1,380 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.nio.charset.Charset;
+
+/**
+ * Single pass tokenizer for audit records.
+ *
+ * Recognizes the record header 'type=TYPE msg=audit(TIME:EVENTID):' and the
+ * key=value pairs after it in the same way as the regular expressions it
+ * replaces:
+ *
+ * 		(?:node=(\S+) )?type=(.+) msg=audit\(([0-9\.]+)\:([0-9]+)\):\s*
+ * 		(\w+)="*((?<=")[^"]+(?=")|([^\s]+))"*
+ *
+ * Keys are shared between records and values are only copied out of the
+ * record when they are asked for.
+ *
+ * Not thread-safe. Each reader uses its own instance.
+ */
+public class AuditRecordTokenizer{
+
+	private static final String TYPE_PREFIX = "type=";
+	private static final String MESSAGE_PREFIX = " msg=audit(";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int KEY_CACHE_SIZE = 256;
+
+	/**
+	 * Keys seen in previous records by the hash of their characters
+	 */
+	private final String[] keyCache = new String[KEY_CACHE_SIZE];
+
+	private String line;
+	private int position;
+	private int end;
+
+	// header of the current record
+	private int typeStart, typeEnd, timeStart, timeEnd, eventIdStart, eventIdEnd, messageStart;
+
+	// current key value pair
+	private int keyStart, keyEnd, valueStart, valueEnd;
+	private boolean valueQuoted;
+
+	/**
+	 * Returns the index at which the record type starts in the line.
+	 *
+	 * @param line audit record
+	 * @return index after the first 'type=', or -1 if there is none
+	 */
+	public static int getTypeStart(String line){
+		int index = line.indexOf(TYPE_PREFIX);
+		return index < 0 ? -1 : index + TYPE_PREFIX.length();
+	}
+
+	/**
+	 * Parses the header of the record and positions the tokenizer at the first key value pair
+	 * after it.
+	 *
+	 * @param line audit record
+	 * @return false if the line has no 'type=TYPE msg=audit(TIME:EVENTID):' header
+	 */
+	public boolean parseHeader(String line){
+		this.line = line;
+		this.end = line.length();
+		this.position = end;
+		int typeIndex = getTypeStart(line);
+		if(typeIndex < 0){
+			return false;
+		}
+		// the type is greedy so the last well formed message start is the one that ends it
+		int messageIndex = end;
+		while((messageIndex = line.lastIndexOf(MESSAGE_PREFIX, messageIndex - 1)) > typeIndex){
+			int timeIndex = messageIndex + MESSAGE_PREFIX.length();
+			int timeIndexEnd = timeIndex;
+			while(timeIndexEnd < end && (isDigit(line.charAt(timeIndexEnd)) || line.charAt(timeIndexEnd) == '.')){
+				timeIndexEnd++;
+			}
+			if(timeIndexEnd == timeIndex || timeIndexEnd >= end || line.charAt(timeIndexEnd) != ':'){
+				continue;
+			}
+			int eventIdIndex = timeIndexEnd + 1;
+			int eventIdIndexEnd = skipDigits(line, eventIdIndex, end);
+			if(eventIdIndexEnd == eventIdIndex || !line.startsWith("):", eventIdIndexEnd)){
+				continue;
+			}
+			typeStart = typeIndex;
+			typeEnd = messageIndex;
+			timeStart = timeIndex;
+			timeEnd = timeIndexEnd;
+			eventIdStart = eventIdIndex;
+			eventIdEnd = eventIdIndexEnd;
+			messageStart = eventIdIndexEnd + 2;
+			while(messageStart < end && isWhitespace(line.charAt(messageStart))){
+				messageStart++;
+			}
+			position = messageStart;
+			return true;
+		}
+		return false;
+	}
+
+	public String getType(){
+		return line.substring(typeStart, typeEnd);
+	}
+
+	/**
+	 * @param type record type
+	 * @return true if the record type of the parsed header is the given one
+	 */
+	public boolean isType(String type){
+		return typeEnd - typeStart == type.length() && line.startsWith(type, typeStart);
+	}
+
+	public String getTime(){
+		return line.substring(timeStart, timeEnd);
+	}
+
+	public String getEventId(){
+		return line.substring(eventIdStart, eventIdEnd);
+	}
+
+	/**
+	 * Positions the tokenizer to read key value pairs from the given index in the line
+	 *
+	 * @param line audit record
+	 * @param start index of the first character to read
+	 */
+	public void reset(String line, int start){
+		this.line = line;
+		this.end = line.length();
+		this.position = Math.max(0, Math.min(start, end));
+	}
+
+	/**
+	 * Advances to the next key value pair.
+	 *
+	 * A value is either the text between the quotes after the key or everything till the
+	 * next whitespace.
+	 *
+	 * @return false if there are no more key value pairs in the record
+	 */
+	public boolean next(){
+		while(position < end){
+			if(!isWordChar(line.charAt(position))){
+				position++;
+				continue;
+			}
+			int keyIndexEnd = position + 1;
+			while(keyIndexEnd < end && isWordChar(line.charAt(keyIndexEnd))){
+				keyIndexEnd++;
+			}
+			if(keyIndexEnd >= end || line.charAt(keyIndexEnd) != '='){
+				position = keyIndexEnd;
+				continue;
+			}
+			int quotesStart = keyIndexEnd + 1;
+			int quotesEnd = quotesStart;
+			while(quotesEnd < end && line.charAt(quotesEnd) == '"'){
+				quotesEnd++;
+			}
+			if(quotesEnd > quotesStart){
+				int closingQuote = line.indexOf('"', quotesEnd);
+				if(closingQuote >= 0){
+					setPair(position, keyIndexEnd, quotesEnd, closingQuote, true);
+					position = closingQuote;
+					while(position < end && line.charAt(position) == '"'){
+						position++;
+					}
+				}else{
+					// unterminated quote. keeps the last opening quote if nothing follows it
+					int start = (quotesEnd < end && !isWhitespace(line.charAt(quotesEnd))) ? quotesEnd : quotesEnd - 1;
+					setPair(position, keyIndexEnd, start, skipNonWhitespace(start), true);
+					position = valueEnd;
+				}
+				return true;
+			}
+			if(quotesStart >= end || isWhitespace(line.charAt(quotesStart))){
+				position = quotesStart;
+				continue;
+			}
+			setPair(position, keyIndexEnd, quotesStart, skipNonWhitespace(quotesStart), false);
+			position = valueEnd;
+			return true;
+		}
+		return false;
+	}
+
+	public String getKey(){
+		int hash = 0;
+		for(int a = keyStart; a < keyEnd; a++){
+			hash = 31 * hash + line.charAt(a);
+		}
+		int slot = (hash ^ (hash >>> 16)) & (KEY_CACHE_SIZE - 1);
+		String key = keyCache[slot];
+		int length = keyEnd - keyStart;
+		if(key == null || key.length() != length || !line.regionMatches(keyStart, key, 0, length)){
+			key = line.substring(keyStart, keyEnd);
+			keyCache[slot] = key;
+		}
+		return key;
+	}
+
+	/**
+	 * @param key key to compare with
+	 * @return true if the current key is the given one
+	 */
+	public boolean isKey(String key){
+		return keyEnd - keyStart == key.length() && line.startsWith(key, keyStart);
+	}
+
+	public String getValue(){
+		return line.substring(valueStart, valueEnd);
+	}
+
+	/**
+	 * @return the value without leading and trailing whitespace
+	 */
+	public String getTrimmedValue(){
+		int start = valueStart;
+		int stop = valueEnd;
+		while(start < stop && line.charAt(start) <= ' '){
+			start++;
+		}
+		while(stop > start && line.charAt(stop - 1) <= ' '){
+			stop--;
+		}
+		return line.substring(start, stop);
+	}
+
+	/**
+	 * @return true if the value was in quotes i.e. not hex encoded
+	 */
+	public boolean isValueQuoted(){
+		return valueQuoted;
+	}
+
+	/**
+	 * Reads the unit '(pid=1 thread_time=2.000 unitid=3 iteration=4 time=5.000 count=6)' at
+	 * or after the given index.
+	 *
+	 * @param line audit record
+	 * @param from index to start looking from
+	 * @param values array of size 6 to put pid, thread_time, unitid, iteration, time and count in
+	 * @return index after the unit, or -1 if there is no unit
+	 */
+	public static int findUnit(String line, int from, String[] values){
+		int end = line.length();
+		int index;
+		while((index = line.indexOf("(pid=", from)) >= 0){
+			from = index + 1;
+			int pidEnd = skipDigits(line, index + 5, end);
+			if(pidEnd == index + 5 || !line.startsWith(" thread_time=", pidEnd)){
+				continue;
+			}
+			int threadTimeStart = pidEnd + 13;
+			int threadTimeEnd = skipDecimal(line, threadTimeStart, end);
+			if(threadTimeEnd < 0 || !line.startsWith(" unitid=", threadTimeEnd)){
+				continue;
+			}
+			int unitIdEnd = skipDigits(line, threadTimeEnd + 8, end);
+			if(unitIdEnd == threadTimeEnd + 8 || !line.startsWith(" iteration=", unitIdEnd)){
+				continue;
+			}
+			int iterationEnd = skipDigits(line, unitIdEnd + 11, end);
+			if(iterationEnd == unitIdEnd + 11 || !line.startsWith(" time=", iterationEnd)){
+				continue;
+			}
+			int timeEnd = skipDecimal(line, iterationEnd + 6, end);
+			if(timeEnd < 0 || !line.startsWith(" count=", timeEnd)){
+				continue;
+			}
+			int countEnd = skipDigits(line, timeEnd + 7, end);
+			if(countEnd == timeEnd + 7 || countEnd >= end || line.charAt(countEnd) != ')'){
+				continue;
+			}
+			values[0] = line.substring(index + 5, pidEnd);
+			values[1] = line.substring(threadTimeStart, threadTimeEnd);
+			values[2] = line.substring(threadTimeEnd + 8, unitIdEnd);
+			values[3] = line.substring(unitIdEnd + 11, iterationEnd);
+			values[4] = line.substring(iterationEnd + 6, timeEnd);
+			values[5] = line.substring(timeEnd + 7, countEnd);
+			return countEnd + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Converts hex string as UTF-8 till the first null character
+	 *
+	 * @param hexString string to parse
+	 * @return parsed string
+	 * @throws NumberFormatException if a character before the null character is not hex
+	 */
+	public static String decodeHex(String hexString){
+		if(hexString == null){
+			return null;
+		}
+		int length = hexString.length() / 2;
+		byte[] bytes = new byte[length];
+		int count = 0;
+		for(int a = 0; a < length; a++){
+			int high = Character.digit(hexString.charAt(2 * a), 16);
+			int low = Character.digit(hexString.charAt(2 * a + 1), 16);
+			if(high < 0 || low < 0){
+				throw new NumberFormatException("For input string: \"" + hexString.substring(2 * a, 2 * a + 2) + "\"");
+			}
+			if(high == 0 && low == 0){ //null char
+				break;
+			}
+			bytes[count++] = (byte)((high << 4) | low);
+		}
+		return new String(bytes, 0, count, UTF_8);
+	}
+
+	private void setPair(int keyStart, int keyEnd, int valueStart, int valueEnd, boolean valueQuoted){
+		this.keyStart = keyStart;
+		this.keyEnd = keyEnd;
+		this.valueStart = valueStart;
+		this.valueEnd = valueEnd;
+		this.valueQuoted = valueQuoted;
+	}
+
+	private int skipNonWhitespace(int index){
+		while(index < end && !isWhitespace(line.charAt(index))){
+			index++;
+		}
+		return index;
+	}
+
+	private static int skipDigits(String line, int index, int end){
+		while(index < end && isDigit(line.charAt(index))){
+			index++;
+		}
+		return index;
+	}
+
+	/**
+	 * @return index after digits.digits at the given index, or -1 if there is no such number
+	 */
+	private static int skipDecimal(String line, int index, int end){
+		int pointIndex = skipDigits(line, index, end);
+		if(pointIndex == index || pointIndex >= end || line.charAt(pointIndex) != '.'){
+			return -1;
+		}
+		int decimalEnd = skipDigits(line, pointIndex + 1, end);
+		return decimalEnd == pointIndex + 1 ? -1 : decimalEnd;
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWordChar(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	// same as \s in regular expressions
+	private static boolean isWhitespace(char c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+}
@@ -0,0 +1,471 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads audit log files, in the given order, by memory-mapping them.
+ *
+ * Records are split on newlines in the mapped bytes. Records that are never used (EOE,
+ * PROCTITLE and UNKNOWN) are skipped without being decoded.
+ *
+ * Records are handed out in the same order as spadeAuditBridge hands them out when it is
+ * not creating units i.e. grouped by event id, and in ascending order of event id within
+ * a window of buffered events. The window is flushed on DAEMON_START records and at the end.
+ *
+ * The next log file is mapped and loaded into memory on a separate thread while the
+ * current one is being read.
+ *
+ * Not thread-safe except for {@link #stop() stop}.
+ */
+public class MappedAuditLogReader{
+
+	private static final Logger logger = Logger.getLogger(MappedAuditLogReader.class.getName());
+
+	/**
+	 * Number of events buffered for reordering. Same as spadeAuditBridge
+	 */
+	public static final int REORDERING_WINDOW = 10000;
+
+	private static final byte[] TYPE_PREFIX = bytes("type="),
+			TYPE_EOE = bytes("EOE"),
+			TYPE_PROCTITLE = bytes("PROCTITLE"),
+			TYPE_UNKNOWN_PREFIX = bytes("UNKNOWN["),
+			TYPE_DAEMON_START = bytes("DAEMON_START");
+
+	private final List<String> logFilePaths;
+	private final long mapBytes;
+	private final long reportEveryMs;
+	private final Charset charset = Charset.defaultCharset();
+
+	/**
+	 * Maps the next log file on a separate thread
+	 */
+	private final ExecutorService prefetcher;
+	private Future<MappedLogFile> nextLogFile;
+	private int nextLogFileIndex = 0;
+	private MappedLogFile currentLogFile;
+
+	/**
+	 * Copy of the current record that is decoded
+	 */
+	private byte[] recordBytes = new byte[4096];
+
+	/**
+	 * Records of the events buffered for reordering by event id
+	 */
+	private final TreeMap<Long, List<String>> bufferedEvents = new TreeMap<Long, List<String>>();
+	/**
+	 * Records that can be handed out
+	 */
+	private final LinkedList<String> readyRecords = new LinkedList<String>();
+
+	private boolean EOF = false;
+	private volatile boolean stopped = false;
+
+	//Reporting variables
+	private long bytesRead = 0, recordsRead = 0;
+	private long startTime, lastReportedTime, lastReportedBytes, lastReportedRecords;
+
+	/**
+	 * Create instance of the class that reads the given log files
+	 *
+	 * @param logFilePaths paths of the log files in the order to read them in
+	 * @param mapBytes bytes of a log file mapped at a time. A record must be shorter than this
+	 * @param reportEveryMs interval at which to log the rates of reading. 0 to not log
+	 * @throws IOException if the first log file could not be mapped
+	 */
+	public MappedAuditLogReader(List<String> logFilePaths, long mapBytes, long reportEveryMs) throws IOException{
+		if(logFilePaths == null || logFilePaths.isEmpty()){
+			throw new IllegalArgumentException("No log files to read");
+		}
+		if(mapBytes < 1 || mapBytes > Integer.MAX_VALUE){
+			throw new IllegalArgumentException("Bytes to map must be between 1 and " + Integer.MAX_VALUE);
+		}
+		this.logFilePaths = new ArrayList<String>(logFilePaths);
+		this.mapBytes = mapBytes;
+		this.reportEveryMs = reportEveryMs;
+		this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "MappedAuditLogReader-Prefetch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		startTime = lastReportedTime = System.currentTimeMillis();
+		try{
+			prefetchNextLogFile();
+			openNextLogFile();
+		}catch(IOException e){
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the next record or null when all the log files have been read or the reader
+	 * was stopped
+	 *
+	 * @return record without the line terminator or null
+	 * @throws IOException if a log file could not be read
+	 */
+	public String readLine() throws IOException{
+		while(true){
+			if(!readyRecords.isEmpty()){
+				return readyRecords.removeFirst();
+			}
+			if(EOF){
+				return null;
+			}
+			if(stopped || !readRecord()){
+				flushBufferedEvents();
+				EOF = true;
+				printStats(true);
+			}
+		}
+	}
+
+	/**
+	 * Makes the reader stop at the next record. The events buffered for reordering are still
+	 * handed out
+	 */
+	public void stop(){
+		stopped = true;
+	}
+
+	public long getBytesRead(){
+		return bytesRead;
+	}
+
+	public long getRecordsRead(){
+		return recordsRead;
+	}
+
+	public void close(){
+		prefetcher.shutdownNow();
+		if(currentLogFile != null){
+			currentLogFile.close();
+			currentLogFile = null;
+		}
+		if(nextLogFile != null){
+			try{
+				if(nextLogFile.isDone() && !nextLogFile.isCancelled()){
+					nextLogFile.get().close();
+				}
+			}catch(Exception e){
+				// failed to map. nothing to close
+			}
+			nextLogFile = null;
+		}
+	}
+
+	/**
+	 * Reads the next record from the log files and either buffers it or adds it to the
+	 * ready records
+	 *
+	 * @return false if all the log files have been read
+	 * @throws IOException if a log file could not be read
+	 */
+	private boolean readRecord() throws IOException{
+		while(currentLogFile != null){
+			if(currentLogFile.nextRecord(mapBytes)){
+				MappedByteBuffer buffer = currentLogFile.buffer;
+				int start = currentLogFile.recordStart;
+				int end = currentLogFile.recordEnd;
+				bytesRead += currentLogFile.recordBytes;
+				recordsRead++;
+				if(reportEveryMs > 0){
+					printStats(false);
+				}
+				if(start < end){
+					bufferRecord(buffer, start, end);
+				}
+				return true;
+			}
+			logger.log(Level.INFO, "Finished reading log file: " + currentLogFile.path);
+			currentLogFile.close();
+			currentLogFile = null;
+			openNextLogFile();
+		}
+		return false;
+	}
+
+	private void bufferRecord(MappedByteBuffer buffer, int start, int end){
+		int typeStart = indexOf(buffer, start, end, TYPE_PREFIX);
+		if(typeStart >= 0){
+			typeStart += TYPE_PREFIX.length;
+			if(startsWith(buffer, typeStart, end, TYPE_EOE)
+					|| startsWith(buffer, typeStart, end, TYPE_PROCTITLE)
+					|| startsWith(buffer, typeStart, end, TYPE_UNKNOWN_PREFIX)){
+				return; // ignored by the event reader
+			}
+			if(startsWith(buffer, typeStart, end, TYPE_DAEMON_START)){
+				flushBufferedEvents();
+			}
+		}
+		String record = decode(buffer, start, end);
+		long eventId = getEventId(buffer, start, end);
+		if(eventId < 0){
+			// the event reader discards it. keep it in order with the events handed out
+			readyRecords.add(record);
+			return;
+		}
+		List<String> eventRecords = bufferedEvents.get(eventId);
+		if(eventRecords == null){
+			eventRecords = new ArrayList<String>(4);
+			bufferedEvents.put(eventId, eventRecords);
+		}
+		eventRecords.add(record);
+		while(bufferedEvents.size() > REORDERING_WINDOW){
+			readyRecords.addAll(bufferedEvents.pollFirstEntry().getValue());
+		}
+	}
+
+	private void flushBufferedEvents(){
+		for(Map.Entry<Long, List<String>> entry : bufferedEvents.entrySet()){
+			readyRecords.addAll(entry.getValue());
+		}
+		bufferedEvents.clear();
+	}
+
+	private String decode(MappedByteBuffer buffer, int start, int end){
+		int length = end - start;
+		if(recordBytes.length < length){
+			recordBytes = new byte[Math.max(length, recordBytes.length * 2)];
+		}
+		for(int i = 0; i < length; i++){
+			recordBytes[i] = buffer.get(start + i);
+		}
+		return new String(recordBytes, 0, length, charset);
+	}
+
+	/**
+	 * Expected format of record -> "type='TYPE' msg=audit('time':'eventid'):"
+	 *
+	 * @return event id or -1 if not found
+	 */
+	private static long getEventId(MappedByteBuffer buffer, int start, int end){
+		int index = start;
+		while(index < end && buffer.get(index) != ':'){
+			index++;
+		}
+		long eventId = 0;
+		int digitsStart = ++index;
+		for(; index < end; index++){
+			byte b = buffer.get(index);
+			if(b >= '0' && b <= '9'){
+				eventId = eventId * 10 + (b - '0');
+			}else{
+				break;
+			}
+		}
+		if(index == digitsStart || index == end || buffer.get(index) != ')'){
+			return -1;
+		}
+		return eventId;
+	}
+
+	private static int indexOf(MappedByteBuffer buffer, int start, int end, byte[] bytes){
+		for(int i = start; i <= end - bytes.length; i++){
+			if(startsWith(buffer, i, end, bytes)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean startsWith(MappedByteBuffer buffer, int start, int end, byte[] bytes){
+		if(end - start < bytes.length){
+			return false;
+		}
+		for(int i = 0; i < bytes.length; i++){
+			if(buffer.get(start + i) != bytes[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void prefetchNextLogFile(){
+		if(nextLogFileIndex < logFilePaths.size()){
+			final String path = logFilePaths.get(nextLogFileIndex++);
+			nextLogFile = prefetcher.submit(new Callable<MappedLogFile>(){
+				@Override
+				public MappedLogFile call() throws Exception{
+					MappedLogFile logFile = new MappedLogFile(path, mapBytes);
+					// bring the first mapped bytes into memory before they are needed
+					logFile.buffer.load();
+					return logFile;
+				}
+			});
+		}else{
+			nextLogFile = null;
+		}
+	}
+
+	private void openNextLogFile() throws IOException{
+		if(nextLogFile == null){
+			return;
+		}
+		try{
+			currentLogFile = nextLogFile.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while mapping log file", e);
+		}catch(ExecutionException e){
+			throw new IOException("Failed to map log file", e.getCause());
+		}
+		logger.log(Level.INFO, "Reading log file: " + currentLogFile.path);
+		prefetchNextLogFile();
+	}
+
+	private void printStats(boolean forcePrint){
+		long currentTime = System.currentTimeMillis();
+		if(forcePrint || (currentTime - lastReportedTime) >= reportEveryMs){
+			float intervalSeconds = Math.max(1, currentTime - lastReportedTime) / 1000f;
+			float totalSeconds = Math.max(1, currentTime - startTime) / 1000f;
+			logger.log(Level.INFO, String.format("Log bytes read: %d (%.3f MB/sec, %.3f MB/sec overall), "
+					+ "records read: %d (%.3f records/sec, %.3f records/sec overall)",
+					bytesRead, (bytesRead - lastReportedBytes) / (1024f * 1024f) / intervalSeconds,
+					bytesRead / (1024f * 1024f) / totalSeconds,
+					recordsRead, (recordsRead - lastReportedRecords) / intervalSeconds,
+					recordsRead / totalSeconds));
+			lastReportedTime = currentTime;
+			lastReportedBytes = bytesRead;
+			lastReportedRecords = recordsRead;
+		}
+	}
+
+	private static byte[] bytes(String string){
+		return string.getBytes(Charset.forName("US-ASCII"));
+	}
+
+	/**
+	 * A log file mapped into memory mapBytes at a time
+	 */
+	private static class MappedLogFile{
+
+		private final String path;
+		private final FileChannel channel;
+		private final long size;
+
+		/**
+		 * Mapped part of the file and its offset in the file
+		 */
+		private MappedByteBuffer buffer;
+		private long bufferOffset;
+
+		/**
+		 * Current record in the buffer without the line terminator and the bytes it took
+		 * in the file with the line terminator
+		 */
+		private int recordStart, recordEnd, recordBytes;
+
+		private MappedLogFile(String path, long mapBytes) throws IOException{
+			this.path = path;
+			this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+			try{
+				this.size = channel.size();
+				map(0, mapBytes);
+			}catch(IOException e){
+				close();
+				throw e;
+			}
+		}
+
+		private void map(long offset, long mapBytes) throws IOException{
+			bufferOffset = offset;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(mapBytes, size - offset));
+		}
+
+		/**
+		 * Finds the next record after the current one. Maps the rest of the file when the
+		 * record isn't completely in the mapped part
+		 *
+		 * @return false if the file has been read completely
+		 * @throws IOException if the file could not be mapped or a record is longer than mapBytes
+		 */
+		private boolean nextRecord(long mapBytes) throws IOException{
+			int start = recordStart + recordBytes;
+			while(true){
+				int limit = buffer.limit();
+				int index = start;
+				while(index < limit && buffer.get(index) != '\n'){
+					index++;
+				}
+				if(index < limit){
+					setRecord(start, index, index + 1 - start);
+					return true;
+				}
+				long recordOffset = bufferOffset + start;
+				if(bufferOffset + limit < size){
+					if(start == 0){
+						throw new IOException("Record longer than " + mapBytes + " bytes at offset "
+								+ recordOffset + " in log file: " + path);
+					}
+					map(recordOffset, mapBytes);
+					start = 0;
+					recordStart = recordBytes = 0;
+				}else if(start < limit){
+					// last record without a line terminator
+					setRecord(start, limit, limit - start);
+					return true;
+				}else{
+					return false;
+				}
+			}
+		}
+
+		private void setRecord(int start, int newLineIndex, int bytes){
+			recordStart = start;
+			recordEnd = (newLineIndex > start && buffer.get(newLineIndex - 1) == '\r') ? newLineIndex - 1 : newLineIndex;
+			recordBytes = bytes;
+		}
+
+		private void close(){
+			buffer = null;
+			try{
+				channel.close();
+			}catch(IOException e){
+				logger.log(Level.WARNING, "Failed to close log file: " + path, e);
+			}
+		}
+	}
+}
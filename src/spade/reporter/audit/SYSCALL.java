@@ -48,11 +48,25 @@ public enum SYSCALL {
 	PIPE, PIPE2, 
 	UNSUPPORTED; // Used for system calls not in this enum (not an actual system call)
 	
+	/**
+	 * System calls by number, filled from the tables below once
+	 */
+	private static final SYSCALL[] SYSCALLS_32BIT = new SYSCALL[512], SYSCALLS_64BIT = new SYSCALL[512];
+	
+	static{
+		for(int syscallNum = 0; syscallNum < SYSCALLS_32BIT.length; syscallNum++){
+			SYSCALLS_32BIT[syscallNum] = get32BitSyscall(syscallNum);
+			SYSCALLS_64BIT[syscallNum] = get64BitSyscall(syscallNum);
+		}
+	}
+	
 	public static SYSCALL getSyscall(int syscallNum, int arch){
 		if(arch == 32){
-			return get32BitSyscall(syscallNum);
+			return (syscallNum >= 0 && syscallNum < SYSCALLS_32BIT.length) ? 
+					SYSCALLS_32BIT[syscallNum] : get32BitSyscall(syscallNum);
 		}else if(arch == 64){
-			return get64BitSyscall(syscallNum);
+			return (syscallNum >= 0 && syscallNum < SYSCALLS_64BIT.length) ? 
+					SYSCALLS_64BIT[syscallNum] : get64BitSyscall(syscallNum);
 		}
 		return null;
 	}
@@ -3,16 +3,51 @@ package spade.resolver;
 import spade.core.AbstractResolver;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.core.Settings;
+import spade.reporter.audit.OPMConstants;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Resolves the network vertices of a graph level by level, querying the remote
+ * hosts of each level concurrently.
+ *
  * @author raza
  */
 public class Recursive extends AbstractResolver
 {
+    private static final Logger logger = Logger.getLogger(Recursive.class.getName());
+    private static final long TIMEOUT_MILLIS = Long.parseLong(Settings.getProperty("resolver_timeout_seconds")) * 1000;
+    // shared by all resolutions so that the remote hosts are queried by a bounded number of threads
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Integer.parseInt(Settings.getProperty("resolver_threads")), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "Recursive-Resolver-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     public Recursive(Graph pgraph, String func, int d, String dir)
     {
         super(pgraph, func, d, dir);
@@ -21,47 +56,112 @@ public class Recursive extends AbstractResolver
     @Override
     public void run()
     {
+        final long deadline = (TIMEOUT_MILLIS > 0) ? System.currentTimeMillis() + TIMEOUT_MILLIS : 0;
+        // connections already resolved, or being resolved, by this resolver
+        Set<String> resolvedConnections = new HashSet<>();
         Map<AbstractVertex, Integer> currentNetworkMap = partialGraph.networkMap();
+        Map<Future<Graph>, Integer> pendingDepths = new HashMap<>();
         try
         {
             // Perform remote queries until the network map is exhausted
-            while (!currentNetworkMap.isEmpty())
+            while(!currentNetworkMap.isEmpty())
             {
-                // Perform remote query on current network vertex and union
-                // the result with the remoteGraph. This also adds the network
-                // vertexes to the remoteGraph as well, so that deeper level
-                // network queries are resolved iteratively.
-                Graph remoteGraph = null;
-                for (Map.Entry<AbstractVertex, Integer> currentEntry : currentNetworkMap.entrySet())
+                CompletionService<Graph> completionService = new ExecutorCompletionService<>(executor);
+                for(Map.Entry<AbstractVertex, Integer> currentEntry : currentNetworkMap.entrySet())
                 {
-                    AbstractVertex networkVertex = currentEntry.getKey();
-                    int currentDepth = currentEntry.getValue();
-                    // Execute remote query
-                    remoteGraph = queryNetworkVertex(networkVertex, depth - currentDepth, direction);
-                    // Update the depth values of all network artifacts in the
-                    // remote network map to reflect current level of iteration
-                    if(remoteGraph != null)
+                    final AbstractVertex networkVertex = currentEntry.getKey();
+                    final int currentDepth = currentEntry.getValue();
+                    if(!resolvedConnections.add(getConnectionKey(networkVertex)))
+                    {
+                        continue;
+                    }
+                    Future<Graph> future = completionService.submit(new Callable<Graph>()
                     {
-                        for(Map.Entry<AbstractVertex, Integer> currentNetworkEntry : remoteGraph.networkMap().entrySet())
+                        @Override
+                        public Graph call()
                         {
-                            AbstractVertex tempNetworkVertex = currentNetworkEntry.getKey();
-                            int updatedDepth = currentDepth + currentNetworkEntry.getValue();
-                            remoteGraph.putNetworkVertex(tempNetworkVertex, updatedDepth);
+                            return queryNetworkVertex(networkVertex, depth - currentDepth, direction, deadline);
                         }
-                    }
+                    });
+                    pendingDepths.put(future, currentDepth);
                 }
-                currentNetworkMap.clear();
-                if(remoteGraph != null)
+
+                // Union the remote graphs of this level with the final graph.
+                // Their network vertices, at depths relative to this level,
+                // make up the next level.
+                Map<AbstractVertex, Integer> nextNetworkMap = new HashMap<>();
+                while(!pendingDepths.isEmpty())
                 {
+                    Future<Graph> future;
+                    if(deadline > 0)
+                    {
+                        future = completionService.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    }
+                    else
+                    {
+                        future = completionService.take();
+                    }
+                    if(future == null)
+                    {
+                        logger.log(Level.WARNING, "Remote resolution timed out with " + pendingDepths.size()
+                                + " network vertices unresolved");
+                        return;
+                    }
+                    int currentDepth = pendingDepths.remove(future);
+                    Graph remoteGraph;
+                    try
+                    {
+                        remoteGraph = future.get();
+                    }
+                    catch(ExecutionException ex)
+                    {
+                        logger.log(Level.SEVERE, "Remote resolution unsuccessful!", ex.getCause());
+                        continue;
+                    }
+                    if(remoteGraph == null)
+                    {
+                        continue;
+                    }
+                    for(Map.Entry<AbstractVertex, Integer> currentNetworkEntry : remoteGraph.networkMap().entrySet())
+                    {
+                        AbstractVertex tempNetworkVertex = currentNetworkEntry.getKey();
+                        int updatedDepth = currentDepth + currentNetworkEntry.getValue();
+                        remoteGraph.putNetworkVertex(tempNetworkVertex, updatedDepth);
+                        nextNetworkMap.put(tempNetworkVertex, updatedDepth);
+                    }
                     finalGraph.add(remoteGraph);
-                    // Set the networkMap to network vertexes of the newly create remoteGraph
-                    currentNetworkMap = remoteGraph.networkMap();
                 }
+                currentNetworkMap = nextNetworkMap;
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            // the query that needs the remote parts was cancelled
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            for(Future<Graph> future : pendingDepths.keySet())
+            {
+                future.cancel(true);
             }
         }
-        catch(Exception ex)
+    }
+
+    /**
+     * Returns the same key for the network vertices at both ends of a
+     * connection so that a connection is only resolved once.
+     */
+    private static String getConnectionKey(AbstractVertex networkVertex)
+    {
+        String localEndpoint = networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_ADDRESS) + ":"
+                + networkVertex.getAnnotation(OPMConstants.ARTIFACT_LOCAL_PORT);
+        String remoteEndpoint = networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_ADDRESS) + ":"
+                + networkVertex.getAnnotation(OPMConstants.ARTIFACT_REMOTE_PORT);
+        if(localEndpoint.compareTo(remoteEndpoint) < 0)
         {
-            Logger.getLogger(Recursive.class.getName()).log(Level.SEVERE, null, ex);
+            return localEndpoint + "-" + remoteEndpoint;
         }
+        return remoteEndpoint + "-" + localEndpoint;
     }
 }
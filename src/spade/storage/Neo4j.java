@@ -24,6 +24,7 @@ import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.QueryExecutionException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
@@ -32,19 +33,34 @@ import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.TransactionTerminatedException;
 import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Cache;
 import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.ContentHash;
 import spade.core.Vertex;
+import spade.utility.CommonFunctions;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,6 +77,14 @@ public class Neo4j extends AbstractStorage
 
     public static void index(String path, boolean b) {}
 
+    /**
+     * @return The embedded database, or null in the batch ingest mode.
+     */
+    public GraphDatabaseService getGraphDatabase()
+    {
+        return graphDb;
+    }
+
     public enum RelationshipTypes implements RelationshipType {EDGE}
 
     public enum NodeTypes implements Label {VERTEX}
@@ -78,18 +102,73 @@ public class Neo4j extends AbstractStorage
     private final int MAX_WAIT_TIME_BEFORE_FLUSH = 15000; // ms
     private Transaction globalTx;
     private int globalTxCount = 0;
+    // whether the global transaction has created vertices or edges
+    private boolean globalTxHasWrites = false;
     private Date lastFlushTime;
+    // Recently stored vertices and edges. Null if disabled in the settings.
+    private Cache<AbstractVertex> vertexCache;
+    private Cache<AbstractEdge> edgeCache;
+    // Node ids of recently stored vertices so that edge endpoints are resolved
+    // without an index lookup. Null if disabled with a size of 0.
+    private NodeIdCache nodeIdCache;
+    private static final int DEFAULT_NODE_ID_CACHE_SIZE = 1 << 20;
+    private static final long INDEX_ONLINE_TIMEOUT_SECONDS = 600;
+    private final AtomicLong nodeIdCacheHits = new AtomicLong();
+    private final AtomicLong nodeIdCacheFallbacks = new AtomicLong();
+    private final AtomicLong missingEndpoints = new AtomicLong();
+    // Set in the offline bulk-load mode in which graphDb is not opened and
+    // elements are written without transactions.
+    private BatchInserter batchInserter;
+    // Node ids of all vertices written by the batch inserter
+    private NodeIdMap batchNodeIds;
 
+    /**
+     * @param arguments The path of the database directory, optionally followed
+     *                  by 'key=value' tokens:
+     *                  nodeIdCacheSize=N  number of vertex hash to node id mappings
+     *                                     kept to resolve edge endpoints. 0 disables it.
+     *                  ingestMode=batch   load into a new database with the Neo4j batch
+     *                                     inserter instead of transactions. The database
+     *                                     cannot be queried and is not durable until
+     *                                     shutdown, at which point the index on vertex
+     *                                     hashes is built. All vertex node ids are kept
+     *                                     in memory.
+     * @return  returns true if the database has been opened.
+     */
     @Override
     public boolean initialize(String arguments)
     {
         try
         {
-            neo4jDatabaseDirectoryPath = arguments;
-            if (neo4jDatabaseDirectoryPath == null)
+            if (arguments == null)
             {
                 return false;
             }
+            List<String> pathTokens = new ArrayList<>();
+            StringBuilder options = new StringBuilder();
+            for (String token : arguments.trim().split("\\s+"))
+            {
+                if (token.contains("="))
+                {
+                    options.append(token).append(' ');
+                }
+                else
+                {
+                    pathTokens.add(token);
+                }
+            }
+            neo4jDatabaseDirectoryPath = String.join(" ", pathTokens);
+            if (neo4jDatabaseDirectoryPath.isEmpty())
+            {
+                return false;
+            }
+            Map<String, String> optionMap = CommonFunctions.parseKeyValPairs(options.toString());
+            int nodeIdCacheSize = CommonFunctions.parseInt(optionMap.get("nodeIdCacheSize"),
+                    DEFAULT_NODE_ID_CACHE_SIZE);
+            if ("batch".equalsIgnoreCase(optionMap.get("ingestMode")))
+            {
+                return initializeBatchInserter();
+            }
             GraphDatabaseBuilder graphDbBuilder = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(neo4jDatabaseDirectoryPath);
             try
             {
@@ -103,6 +182,11 @@ public class Neo4j extends AbstractStorage
             }
 
             graphDb = graphDbBuilder.newGraphDatabase();
+            createHashIndex();
+            vertexCache = Cache.fromSettings();
+            edgeCache = Cache.fromSettings();
+            nodeIdCache = (nodeIdCacheSize > 0) ? new NodeIdCache(nodeIdCacheSize) : null;
+            lastFlushTime = Calendar.getInstance().getTime();
         }
         catch (Exception exception)
         {
@@ -113,8 +197,101 @@ public class Neo4j extends AbstractStorage
         return true;
     }
 
+    private boolean initializeBatchInserter() throws Exception
+    {
+        Map<String, String> config;
+        try
+        {
+            config = MapUtil.load(new File(NEO4J_CONFIG_FILE));
+            logger.log(Level.INFO, "Neo4j configurations loaded from config file.");
+        }
+        catch (Exception exception)
+        {
+            config = new HashMap<>();
+            logger.log(Level.INFO, "Default Neo4j configurations loaded.");
+        }
+        // rejected by the batch inserter, which cannot upgrade stores
+        config.remove("allow_store_upgrade");
+        File storeDirectory = new File(neo4jDatabaseDirectoryPath);
+        String[] existingFiles = storeDirectory.list();
+        if (existingFiles != null && existingFiles.length > 0)
+        {
+            // vertices already in the database are not known to batchNodeIds
+            // and would be duplicated
+            logger.log(Level.WARNING, "Batch ingest mode is meant for a new database. Existing vertices in '"
+                    + neo4jDatabaseDirectoryPath + "' are not deduplicated");
+        }
+        batchInserter = BatchInserters.inserter(neo4jDatabaseDirectoryPath, config);
+        batchNodeIds = new NodeIdMap();
+        edgeCache = Cache.fromSettings();
+        logger.log(Level.INFO, "Neo4j batch ingest mode. The database is written at shutdown.");
+        return true;
+    }
+
+    /**
+     * Creates a unique constraint, and with it an index, on the hash of vertices
+     * unless one exists already and waits for it to come online. Without it
+     * every vertex lookup by hash is a label scan.
+     */
+    private void createHashIndex()
+    {
+        try (Transaction tx = graphDb.beginTx())
+        {
+            Schema schema = graphDb.schema();
+            boolean indexed = false;
+            for (ConstraintDefinition constraint : schema.getConstraints(NodeTypes.VERTEX))
+            {
+                for (String key : constraint.getPropertyKeys())
+                {
+                    indexed |= PRIMARY_KEY.equals(key);
+                }
+            }
+            for (IndexDefinition index : schema.getIndexes(NodeTypes.VERTEX))
+            {
+                for (String key : index.getPropertyKeys())
+                {
+                    indexed |= PRIMARY_KEY.equals(key);
+                }
+            }
+            if (!indexed)
+            {
+                schema.constraintFor(NodeTypes.VERTEX).assertPropertyIsUnique(PRIMARY_KEY).create();
+                logger.log(Level.INFO, "Creating unique index on vertex " + PRIMARY_KEY);
+            }
+            tx.success();
+        }
+        catch (Exception exception)
+        {
+            // e.g. existing duplicate vertices. Lookups still work, only slower.
+            logger.log(Level.WARNING, "Unable to create unique index on vertex " + PRIMARY_KEY, exception);
+            return;
+        }
+        try (Transaction tx = graphDb.beginTx())
+        {
+            graphDb.schema().awaitIndexesOnline(INDEX_ONLINE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            tx.success();
+        }
+        catch (IllegalStateException exception)
+        {
+            logger.log(Level.WARNING, "Index on vertex " + PRIMARY_KEY + " not online yet", exception);
+        }
+    }
+
+    /**
+     * Vertices and edges only become visible to queries when the global
+     * transaction is committed.
+     */
+    @Override
+    public long getWatermark()
+    {
+        return getCommitCount();
+    }
+
     @Override
     public boolean flushTransactions() {
+        if (batchInserter != null) {
+            return true;
+        }
         if (Calendar.getInstance().getTime().getTime() - lastFlushTime.getTime() > MAX_WAIT_TIME_BEFORE_FLUSH) {
             globalTxCheckin(true);
             lastFlushTime = Calendar.getInstance().getTime();
@@ -125,14 +302,44 @@ public class Neo4j extends AbstractStorage
     @Override
     public boolean shutdown()
     {
+        if (batchInserter != null)
+        {
+            return shutdownBatchInserter();
+        }
         // Flush all transactions before shutting down the database
         // make sure buffers are done, and stop and join all threads
         globalTxFinalize();
+        if (vertexCache != null)
+        {
+            logger.log(Level.INFO, "Vertex cache: " + vertexCache);
+            logger.log(Level.INFO, "Edge cache: " + edgeCache);
+        }
+        logger.log(Level.INFO, "Edge endpoints: " + getNodeIdCacheHits() + " resolved from node id cache, "
+                + getNodeIdCacheFallbacks() + " looked up by hash, " + getMissingEndpoints() + " missing");
         graphDb.shutdown(); // look at register shutdownhook in http://neo4j.com/docs/stable/tutorials-java-embedded-setup.html
 
         return true;
     }
 
+    private boolean shutdownBatchInserter()
+    {
+        logger.log(Level.INFO, "Batch inserted " + batchNodeIds.size() + " vertices. Missing edge endpoints: "
+                + getMissingEndpoints());
+        batchNodeIds = null;
+        try
+        {
+            batchInserter.createDeferredConstraint(NodeTypes.VERTEX).assertPropertyIsUnique(PRIMARY_KEY).create();
+        }
+        catch (Exception exception)
+        {
+            logger.log(Level.WARNING, "Unable to create unique index on vertex " + PRIMARY_KEY, exception);
+        }
+        // builds the deferred indexes and writes the store
+        batchInserter.shutdown();
+        logger.log(Level.INFO, "Neo4j batch ingest complete");
+        return true;
+    }
+
     private void globalTxCheckin()
     {
         globalTxCheckin(false);
@@ -155,13 +362,30 @@ public class Neo4j extends AbstractStorage
             try
             {
                 globalTx.success();
+                globalTx.close();
+                if (globalTxHasWrites)
+                {
+                    advanceWatermark();
+                }
             }
-            finally
+            catch (RuntimeException exception)
             {
-                globalTx.close();
+                logger.log(Level.SEVERE, "Neo4j transaction not committed", exception);
+                // the cached node ids may refer to nodes that were rolled back
+                if (nodeIdCache != null)
+                {
+                    nodeIdCache.clear();
+                }
+                if (vertexCache != null)
+                {
+                    vertexCache.clear();
+                    edgeCache.clear();
+                }
             }
+            globalTx = null;
         }
         globalTxCount = 0;
+        globalTxHasWrites = false;
     }
 
     /**
@@ -175,12 +399,30 @@ public class Neo4j extends AbstractStorage
     @Override
     public boolean putVertex(AbstractVertex incomingVertex)
     {
+        if (batchInserter != null)
+        {
+            return batchPutVertex(incomingVertex);
+        }
         String hashCode = incomingVertex.bigHashCode();
-        if (Cache.isPresent(hashCode))
+        ContentHash.Digest digest = incomingVertex.bigHashDigest();
+        if (nodeIdCache != null && nodeIdCache.get(digest) >= 0)
+            return true;
+        if (vertexCache != null && vertexCache.isPresent(hashCode))
             return true;
 
         globalTxCheckin();
+        // a duplicate would violate the unique index and fail the whole transaction
+        Node existingVertex = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY, hashCode);
+        if (existingVertex != null)
+        {
+            if (nodeIdCache != null)
+            {
+                nodeIdCache.put(digest, existingVertex.getId());
+            }
+            return true;
+        }
         Node newVertex = graphDb.createNode(NodeTypes.VERTEX);
+        globalTxHasWrites = true;
         newVertex.setProperty(PRIMARY_KEY, hashCode);
         for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
         {
@@ -188,14 +430,148 @@ public class Neo4j extends AbstractStorage
             String value = currentEntry.getValue();
             newVertex.setProperty(key, value);
         }
+        if (vertexCache != null)
+        {
+            vertexCache.addItem(hashCode, incomingVertex);
+        }
+        if (nodeIdCache != null)
+        {
+            nodeIdCache.put(digest, newVertex.getId());
+        }
+
+        return true;
+    }
+
+    private synchronized boolean batchPutVertex(AbstractVertex incomingVertex)
+    {
+        ContentHash.Digest digest = incomingVertex.bigHashDigest();
+        if (batchNodeIds.get(digest) >= 0)
+        {
+            return true;
+        }
+        Map<String, Object> properties = new HashMap<>();
+        properties.putAll(incomingVertex.getAnnotations());
+        properties.put(PRIMARY_KEY, digest.toHex());
+        batchNodeIds.put(digest, batchInserter.createNode(properties, NodeTypes.VERTEX));
+
+        return true;
+    }
+
+    private synchronized boolean batchPutEdge(AbstractEdge incomingEdge)
+    {
+        String hashCode = incomingEdge.bigHashCode();
+        if (edgeCache != null && edgeCache.isPresent(hashCode))
+        {
+            return true;
+        }
+        long srcNodeId = batchNodeIds.get(incomingEdge.getChildVertex().bigHashDigest());
+        long dstNodeId = batchNodeIds.get(incomingEdge.getParentVertex().bigHashDigest());
+        if (srcNodeId < 0 || dstNodeId < 0)
+        {
+            missingEndpoints.incrementAndGet();
+            logger.log(Level.WARNING, "Edge endpoint not found. Edge not stored: " + hashCode);
+            return false;
+        }
+        Map<String, Object> properties = new HashMap<>();
+        properties.putAll(incomingEdge.getAnnotations());
+        properties.put(PRIMARY_KEY, hashCode);
+        batchInserter.createRelationship(srcNodeId, dstNodeId, RelationshipTypes.EDGE, properties);
+        if (edgeCache != null)
+        {
+            edgeCache.addItem(hashCode, incomingEdge);
+        }
 
         return true;
     }
 
+    /**
+     * The embedded database is not opened in the batch ingest mode so none of
+     * the read paths can be served.
+     *
+     * @return True if queries cannot be executed, after logging why.
+     */
+    private boolean isQueryUnavailable()
+    {
+        if (batchInserter != null)
+        {
+            logger.log(Level.SEVERE, "Neo4j queries unavailable in batch ingest mode");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the node of a vertex, from the node id cache if possible.
+     *
+     * @return The node or null if the vertex has not been stored.
+     */
+    private Node findVertexNode(AbstractVertex vertex)
+    {
+        if (nodeIdCache != null)
+        {
+            long nodeId = nodeIdCache.get(vertex.bigHashDigest());
+            if (nodeId >= 0)
+            {
+                try
+                {
+                    Node node = graphDb.getNodeById(nodeId);
+                    nodeIdCacheHits.incrementAndGet();
+                    return node;
+                }
+                catch (NotFoundException exception)
+                {
+                    // deleted since it was cached
+                }
+            }
+        }
+        nodeIdCacheFallbacks.incrementAndGet();
+        Node node = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY, vertex.bigHashCode());
+        if (node != null && nodeIdCache != null)
+        {
+            nodeIdCache.put(vertex.bigHashDigest(), node.getId());
+        }
+        return node;
+    }
+
+    /**
+     * @return The number of edge endpoints resolved through the node id cache.
+     */
+    public long getNodeIdCacheHits()
+    {
+        return nodeIdCacheHits.get();
+    }
+
+    /**
+     * @return The number of edge endpoints looked up by hash in the index.
+     */
+    public long getNodeIdCacheFallbacks()
+    {
+        return nodeIdCacheFallbacks.get();
+    }
+
+    /**
+     * @return The number of edge endpoints not found in the database.
+     */
+    public long getMissingEndpoints()
+    {
+        return missingEndpoints.get();
+    }
+
+    public double getNodeIdCacheHitRatio()
+    {
+        long hits = nodeIdCacheHits.get();
+        long lookups = hits + nodeIdCacheFallbacks.get();
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
     @Override
     public Result executeQuery(String query)
     {
         Result result = null;
+        if (isQueryUnavailable())
+        {
+            return null;
+        }
         globalTxCheckin();
         try
         {
@@ -223,16 +599,25 @@ public class Neo4j extends AbstractStorage
     @Override
     public boolean putEdge(AbstractEdge incomingEdge)
     {
+        if (batchInserter != null)
+        {
+            return batchPutEdge(incomingEdge);
+        }
         String hashCode = incomingEdge.bigHashCode();
-        if (Cache.isPresent(hashCode))
+        if (edgeCache != null && edgeCache.isPresent(hashCode))
             return true;
 
         globalTxCheckin();
-        Node srcNode = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY,
-                incomingEdge.getChildVertex().bigHashCode());
-        Node dstNode = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY,
-                incomingEdge.getParentVertex().bigHashCode());
+        Node srcNode = findVertexNode(incomingEdge.getChildVertex());
+        Node dstNode = findVertexNode(incomingEdge.getParentVertex());
+        if (srcNode == null || dstNode == null)
+        {
+            missingEndpoints.incrementAndGet();
+            logger.log(Level.WARNING, "Edge endpoint not found. Edge not stored: " + hashCode);
+            return false;
+        }
         Relationship newEdge = srcNode.createRelationshipTo(dstNode, RelationshipTypes.EDGE);
+        globalTxHasWrites = true;
         newEdge.setProperty(PRIMARY_KEY, hashCode);
         for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
         {
@@ -240,6 +625,10 @@ public class Neo4j extends AbstractStorage
             String value = currentEntry.getValue();
             newEdge.setProperty(key, value);
         }
+        if (edgeCache != null)
+        {
+            edgeCache.addItem(hashCode, incomingEdge);
+        }
 
         return true;
     }
@@ -257,6 +646,10 @@ public class Neo4j extends AbstractStorage
     public AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
     {
         AbstractEdge edge = null;
+        if (isQueryUnavailable())
+        {
+            return null;
+        }
         try (Transaction tx = graphDb.beginTx())
         {
             Node srcNode = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY, childVertexHash);
@@ -291,7 +684,15 @@ public class Neo4j extends AbstractStorage
     @Override
     public AbstractVertex getVertex(String hash)
     {
-        AbstractVertex vertex = null;
+        AbstractVertex vertex = (vertexCache == null) ? null : vertexCache.get(hash);
+        if (vertex != null)
+        {
+            return vertex;
+        }
+        if (isQueryUnavailable())
+        {
+            return null;
+        }
         try (Transaction tx = graphDb.beginTx())
         {
             Node node = graphDb.findNode(NodeTypes.VERTEX, PRIMARY_KEY, hash);
@@ -357,6 +758,10 @@ public class Neo4j extends AbstractStorage
     public Graph getChildren(String parentHash)
     {
         Graph children = null;
+        if (isQueryUnavailable())
+        {
+            return new Graph();
+        }
         try (Transaction tx = graphDb.beginTx())
         {
             children = new Graph();
@@ -384,6 +789,10 @@ public class Neo4j extends AbstractStorage
     public Graph getParents(String childVertexHash)
     {
         Graph parents = null;
+        if (isQueryUnavailable())
+        {
+            return new Graph();
+        }
         try (Transaction tx = graphDb.beginTx())
         {
             parents = new Graph();
@@ -403,8 +812,13 @@ public class Neo4j extends AbstractStorage
         AbstractVertex resultVertex = new Vertex();
         for (String key : node.getPropertyKeys())
         {
-            String value = (String) node.getProperty(key);
-            if(StringUtils.isNullOrEmpty(value))
+            // the hash is derived from the other annotations
+            if(PRIMARY_KEY.equals(key))
+            {
+                continue;
+            }
+            String value = String.valueOf(node.getProperty(key));
+            if(!StringUtils.isNullOrEmpty(value))
             {
                 resultVertex.addAnnotation(key, value);
             }
@@ -419,8 +833,13 @@ public class Neo4j extends AbstractStorage
                 convertNodeToVertex(relationship.getEndNode()));
         for (String key : relationship.getPropertyKeys())
         {
-            String value = (String) relationship.getProperty(key);
-            if(StringUtils.isNullOrEmpty(value))
+            // the hash is derived from the other annotations
+            if(PRIMARY_KEY.equals(key))
+            {
+                continue;
+            }
+            String value = String.valueOf(relationship.getProperty(key));
+            if(!StringUtils.isNullOrEmpty(value))
             {
                 resultEdge.addAnnotation(key, value);
             }
@@ -428,4 +847,180 @@ public class Neo4j extends AbstractStorage
 
         return resultEdge;
     }
+
+    /**
+     * Map from vertex hashes to node ids held in primitive arrays with open
+     * addressing. It grows as needed and never forgets a mapping.
+     */
+    private static final class NodeIdMap
+    {
+        private static final long EMPTY = -1;
+        private static final int INITIAL_CAPACITY = 1 << 16;
+
+        private long[] high;
+        private long[] low;
+        private long[] ids;
+        private int mask;
+        private int size = 0;
+
+        private NodeIdMap()
+        {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity)
+        {
+            high = new long[capacity];
+            low = new long[capacity];
+            ids = new long[capacity];
+            Arrays.fill(ids, EMPTY);
+            mask = capacity - 1;
+        }
+
+        private int slot(long h, long l)
+        {
+            long bits = h ^ l;
+            return (int) (bits ^ (bits >>> 32)) & mask;
+        }
+
+        /**
+         * @return The node id or -1 if not present.
+         */
+        private long get(ContentHash.Digest digest)
+        {
+            long h = digest.getMostSignificantBits();
+            long l = digest.getLeastSignificantBits();
+            for (int slot = slot(h, l); ids[slot] != EMPTY; slot = (slot + 1) & mask)
+            {
+                if (high[slot] == h && low[slot] == l)
+                {
+                    return ids[slot];
+                }
+            }
+            return EMPTY;
+        }
+
+        private void put(ContentHash.Digest digest, long id)
+        {
+            if (2 * (size + 1) > ids.length)
+            {
+                long[] oldHigh = high;
+                long[] oldLow = low;
+                long[] oldIds = ids;
+                allocate(2 * oldIds.length);
+                size = 0;
+                for (int i = 0; i < oldIds.length; i++)
+                {
+                    if (oldIds[i] != EMPTY)
+                    {
+                        put(oldHigh[i], oldLow[i], oldIds[i]);
+                    }
+                }
+            }
+            put(digest.getMostSignificantBits(), digest.getLeastSignificantBits(), id);
+        }
+
+        private void put(long h, long l, long id)
+        {
+            int slot = slot(h, l);
+            while (ids[slot] != EMPTY && !(high[slot] == h && low[slot] == l))
+            {
+                slot = (slot + 1) & mask;
+            }
+            if (ids[slot] == EMPTY)
+            {
+                size++;
+            }
+            high[slot] = h;
+            low[slot] = l;
+            ids[slot] = id;
+        }
+
+        private int size()
+        {
+            return size;
+        }
+    }
+
+    /**
+     * Bounded map from vertex hashes to node ids held in primitive arrays.
+     * It is 2-way set-associative: a hash may only be stored in one of the two
+     * slots of its set, and a new hash replaces the less recently used of them.
+     */
+    private static final class NodeIdCache
+    {
+        private static final long EMPTY = -1;
+
+        private final long[] high;
+        private final long[] low;
+        private final long[] ids;
+        private final int setMask;
+
+        private NodeIdCache(int maximumSize)
+        {
+            int sets = Integer.highestOneBit(Math.max(maximumSize / 2, 1));
+            setMask = sets - 1;
+            high = new long[2 * sets];
+            low = new long[2 * sets];
+            ids = new long[2 * sets];
+            Arrays.fill(ids, EMPTY);
+        }
+
+        private int slot(ContentHash.Digest digest)
+        {
+            long bits = digest.getLeastSignificantBits() ^ digest.getMostSignificantBits();
+            return 2 * ((int) (bits ^ (bits >>> 32)) & setMask);
+        }
+
+        /**
+         * @return The node id or -1 if not cached.
+         */
+        private synchronized long get(ContentHash.Digest digest)
+        {
+            int slot = slot(digest);
+            long h = digest.getMostSignificantBits();
+            long l = digest.getLeastSignificantBits();
+            if (ids[slot] != EMPTY && high[slot] == h && low[slot] == l)
+            {
+                return ids[slot];
+            }
+            if (ids[slot + 1] != EMPTY && high[slot + 1] == h && low[slot + 1] == l)
+            {
+                // keep the more recently used entry in the first way
+                long id = ids[slot + 1];
+                move(slot, slot + 1);
+                high[slot] = h;
+                low[slot] = l;
+                ids[slot] = id;
+                return id;
+            }
+            return EMPTY;
+        }
+
+        private synchronized void put(ContentHash.Digest digest, long id)
+        {
+            int slot = slot(digest);
+            long h = digest.getMostSignificantBits();
+            long l = digest.getLeastSignificantBits();
+            if (!(ids[slot] != EMPTY && high[slot] == h && low[slot] == l))
+            {
+                move(slot, slot + 1);
+            }
+            high[slot] = h;
+            low[slot] = l;
+            ids[slot] = id;
+        }
+
+        private void move(int from, int to)
+        {
+            high[to] = high[from];
+            low[to] = low[from];
+            ids[to] = ids[from];
+        }
+
+        private synchronized void clear()
+        {
+            Arrays.fill(ids, EMPTY);
+        }
+    }
 }
@@ -23,21 +23,32 @@ import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Cache;
+import spade.core.ContentHash;
 import spade.core.Edge;
 import spade.core.Graph;
 import spade.core.Vertex;
 import spade.query.scaffold.Scaffold;
+import spade.utility.CommonFunctions;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,6 +70,33 @@ public class SQL extends AbstractStorage
     private static final Logger logger = Logger.getLogger(SQL.class.getName());
     private int CURSOR_FETCH_SIZE = 0;
 
+    /**
+     * Rows are inserted in batches. A batch is written and committed once it
+     * has BATCH_SIZE rows or when FLUSH_INTERVAL_MILLIS have passed since the
+     * last commit, whichever comes first.
+     */
+    private static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    private int BATCH_SIZE = DEFAULT_BATCH_SIZE;
+    private long FLUSH_INTERVAL_MILLIS = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private long lastFlushTime;
+    private int pendingRowCount = 0;
+    // Rows waiting to be inserted, grouped by table and column signature
+    private final Map<String, PendingBatch> pendingBatches = new LinkedHashMap<>();
+    // Hashes of the rows in the pending batches, used to drop duplicates before
+    // they reach the database and fail a whole batch
+    private final Set<String> pendingHashes = new HashSet<>();
+    // Recently stored vertices and edges, used to drop duplicates across batches
+    // and to serve vertex lookups. Null if disabled in the settings.
+    private Cache<AbstractVertex> vertexCache;
+    private Cache<AbstractEdge> edgeCache;
+    // One prepared INSERT statement per table and column signature
+    private final Map<String, PreparedStatement> insertStatements = new HashMap<>();
+    // Used to stream batches with COPY ... FROM STDIN in the 'copy' ingest mode. Null otherwise.
+    private CopyManager copyManager = null;
+    // Annotation keys mapped to their sanitized column names
+    private final Map<String, String> sanitizedColumns = new HashMap<>();
+
     public int getCursorFetchSize()
     {
         return CURSOR_FETCH_SIZE;
@@ -83,6 +121,12 @@ public class SQL extends AbstractStorage
      *                  *PostgreSQL*
      *                  org.postgresql.Driver jdbc:postgres://localhost/spade_pg root 12345
      *
+     *                  Optional 'key=value' tokens may follow the 4 tokens:
+     *                  batchSize=N           number of rows to insert per batch
+     *                  flushIntervalMillis=N maximum time before pending rows are committed
+     *                  ingestMode=copy       write batches with PostgreSQL COPY instead of
+     *                                        INSERT statements. Ignored for other databases.
+     *
      *                  Points to note:
      *                  1. The database driver jar should be present in lib/ in the project's root.
      *                  2. For external databases like MySQL or PostgreSQL, a stand-alone database
@@ -108,10 +152,35 @@ public class SQL extends AbstractStorage
             String databaseUsername = tokens[2];
             String databasePassword = tokens[3];
 
+            StringBuilder options = new StringBuilder();
+            for(int i = 4; i < tokens.length; i++)
+            {
+                options.append(tokens[i]).append(' ');
+            }
+            Map<String, String> optionMap = CommonFunctions.parseKeyValPairs(options.toString());
+            BATCH_SIZE = CommonFunctions.parseInt(optionMap.get("batchSize"), DEFAULT_BATCH_SIZE);
+            FLUSH_INTERVAL_MILLIS = CommonFunctions.parseLong(optionMap.get("flushIntervalMillis"),
+                    DEFAULT_FLUSH_INTERVAL_MILLIS);
+            lastFlushTime = System.currentTimeMillis();
+            vertexCache = Cache.fromSettings();
+            edgeCache = Cache.fromSettings();
+
             Class.forName(databaseDriver).newInstance();
             dbConnection = DriverManager.getConnection(databaseURL, databaseUsername, databasePassword);
             dbConnection.setAutoCommit(false);
 
+            if("copy".equalsIgnoreCase(optionMap.get("ingestMode")))
+            {
+                if(dbConnection instanceof PGConnection)
+                {
+                    copyManager = ((PGConnection) dbConnection).getCopyAPI();
+                }
+                else
+                {
+                    logger.log(Level.WARNING, "COPY ingest mode is only supported for PostgreSQL. Using batched inserts");
+                }
+            }
+
             switch(databaseDriver)
             {
                 case("org.postgresql.Driver"):
@@ -167,7 +236,7 @@ public class SQL extends AbstractStorage
             dbStatement.close();
             if(USE_SCAFFOLD)
             {
-                Scaffold scaffold = new Scaffold();
+                Scaffold scaffold = Scaffold.create();
                 scaffold.initialize("/Users/raza/dev/scaffold/");
                 AbstractStorage.setScaffold(scaffold);
             }
@@ -189,13 +258,27 @@ public class SQL extends AbstractStorage
      * @return  returns true if the database connection is successfully closed.
      */
     @Override
-    public boolean shutdown()
+    public synchronized boolean shutdown()
     {
         try
         {
+            flushBatches();
+            for(PreparedStatement statement : insertStatements.values())
+            {
+                statement.close();
+            }
+            insertStatements.clear();
             dbConnection.commit();
             dbConnection.close();
-            scaffold.shutdown();
+            if(vertexCache != null)
+            {
+                logger.log(Level.INFO, "Vertex cache: " + vertexCache);
+                logger.log(Level.INFO, "Edge cache: " + edgeCache);
+            }
+            if(USE_SCAFFOLD)
+            {
+                scaffold.shutdown();
+            }
             return true;
         }
         catch (Exception ex)
@@ -250,6 +333,9 @@ public class SQL extends AbstractStorage
 
         try
         {
+            // Pending rows are written first because the commit of the new
+            // column, or the rollback on failure, would otherwise affect them.
+            flushBatches();
             Statement columnStatement = dbConnection.createStatement();
             String statement = "ALTER TABLE "
                     + table_name
@@ -262,11 +348,11 @@ public class SQL extends AbstractStorage
 
             if (table_name.equalsIgnoreCase(VERTEX_TABLE))
             {
-                vertexAnnotations.add(column_name);
+                vertexAnnotations.add(column_name.toLowerCase());
             }
             else if (table_name.equalsIgnoreCase(EDGE_TABLE))
             {
-                edgeAnnotations.add(column_name);
+                edgeAnnotations.add(column_name.toLowerCase());
             }
 
             return true;
@@ -315,22 +401,20 @@ public class SQL extends AbstractStorage
     @Override
     public AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
     {
-        if(!Cache.isPresent(childVertexHash) || !Cache.isPresent(parentVertexHash))
-            return null;
-
         AbstractEdge edge = null;
         try
         {
+            flushBatches();
             dbConnection.commit();
             AbstractVertex childVertex = getVertex(childVertexHash);
             AbstractVertex parentVertex = getVertex(parentVertexHash);
 
             String query = "SELECT * FROM " +
                     EDGE_TABLE +
-                    " WHERE childVertexHash = " +
+                    " WHERE childVertexHash = '" +
                     childVertexHash +
-                    " AND parentVertexHash = " +
-                    parentVertexHash;
+                    "' AND parentVertexHash = '" +
+                    parentVertexHash + "'";
             Statement vertexStatement = dbConnection.createStatement();
             ResultSet result = vertexStatement.executeQuery(query);
             ResultSetMetaData metadata = result.getMetaData();
@@ -377,15 +461,16 @@ public class SQL extends AbstractStorage
     @Override
     public AbstractVertex getVertex(String vertexHash)
     {
-        if(!Cache.isPresent(vertexHash))
-            return null;
+        AbstractVertex cachedVertex = getCachedVertex(vertexHash);
+        if(cachedVertex != null)
+            return cachedVertex;
 
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
                 " WHERE " +
                 PRIMARY_KEY +
-                " = " +
-                vertexHash;
+                " = '" +
+                vertexHash + "'";
 
         AbstractVertex vertex = null;
         Set<AbstractVertex> vertexSet = prepareVertexSetFromSQLResult(query);
@@ -408,10 +493,7 @@ public class SQL extends AbstractStorage
     @Override
     public Graph getChildren(String parentHash)
     {
-        if(!Cache.isPresent(parentHash))
-            return null;
-
-        Graph children = null;
+        Graph children = new Graph();
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
                 " WHERE " +
@@ -419,11 +501,14 @@ public class SQL extends AbstractStorage
                 " IN " +
                 "(SELECT childVertexHash FROM " +
                 EDGE_TABLE +
-                " WHERE parentVertexHash = " +
+                " WHERE parentVertexHash = '" +
                 parentHash +
-                ")";
+                "')";
 
-        children.vertexSet().addAll(prepareVertexSetFromSQLResult(query));
+        for(AbstractVertex vertex : prepareVertexSetFromSQLResult(query))
+        {
+            children.putVertex(vertex);
+        }
 
 
         return children;
@@ -442,6 +527,7 @@ public class SQL extends AbstractStorage
         Set<AbstractVertex> vertexSet = new HashSet<>();
         try
         {
+            flushBatches();
             dbConnection.commit();
             Statement vertexStatement = dbConnection.createStatement();
             ResultSet result = vertexStatement.executeQuery(query);
@@ -488,10 +574,7 @@ public class SQL extends AbstractStorage
     @Override
     public Graph getParents(String childVertexHash)
     {
-        if(!Cache.isPresent(childVertexHash))
-            return null;
-
-        Graph parents = null;
+        Graph parents = new Graph();
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
                 " WHERE " +
@@ -499,11 +582,14 @@ public class SQL extends AbstractStorage
                 " IN(" +
                 "SELECT parentVertexHash FROM " +
                 EDGE_TABLE +
-                " WHERE childVertexHash = " +
+                " WHERE childVertexHash = '" +
                 childVertexHash +
-                ")";
+                "')";
 
-        parents.vertexSet().addAll(prepareVertexSetFromSQLResult(query));
+        for(AbstractVertex vertex : prepareVertexSetFromSQLResult(query))
+        {
+            parents.putVertex(vertex);
+        }
 
 
         return parents;
@@ -511,97 +597,49 @@ public class SQL extends AbstractStorage
 
     /**
      * This function inserts the given edge into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * updates the cache(s) accordingly. The row is added to the pending batch
+     * for its column signature and written by the next batch flush.
      *
      * @param incomingEdge edge to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
      * not successful if the edge is already present in the storage.
      */
     @Override
-    public boolean putEdge(AbstractEdge incomingEdge)
+    public synchronized boolean putEdge(AbstractEdge incomingEdge)
     {
         String edgeHash = incomingEdge.bigHashCode();
-        if(Cache.isPresent(edgeHash))
+        if((edgeCache != null && edgeCache.isPresent(edgeHash)) || !pendingHashes.add(edgeHash))
             return true;
 
-        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
+        Map<String, String> annotations = incomingEdge.getAnnotations();
+        boolean addChildHash = !annotations.containsKey(CHILD_VERTEX_KEY);
+        boolean addParentHash = !annotations.containsKey(PARENT_VERTEX_KEY);
 
-        // Use StringBuilder to build the SQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder(200);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(EDGE_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
+        List<String> columns = new ArrayList<>(annotations.size() + 3);
+        List<Object> row = new ArrayList<>(annotations.size() + 3);
+        columns.add(PRIMARY_KEY);
+        row.add(toUUID(incomingEdge.bigHashDigest()));
+        if(addChildHash)
         {
-            insertStringBuilder.append(CHILD_VERTEX_KEY);
-            insertStringBuilder.append(", ");
+            columns.add(CHILD_VERTEX_KEY);
+            row.add(toUUID(incomingEdge.getChildVertex().bigHashDigest()));
         }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
+        if(addParentHash)
         {
-            insertStringBuilder.append(PARENT_VERTEX_KEY);
-            insertStringBuilder.append(", ");
+            columns.add(PARENT_VERTEX_KEY);
+            row.add(toUUID(incomingEdge.getParentVertex().bigHashDigest()));
         }
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
+        addAnnotationColumns(EDGE_TABLE, annotations, columns, row);
+        // cache the edge before the row is added as adding it may flush the batch
+        if(edgeCache != null)
         {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey = sanitizeColumn(annotationKey);
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table_name if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
+            edgeCache.addItem(edgeHash, incomingEdge);
         }
+        addRow(EDGE_TABLE, columns, row);
 
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
-        // Add the hash code, and source and destination vertex Ids
-        insertStringBuilder.append(edgeHash);
-        insertStringBuilder.append("', ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
+        if(USE_SCAFFOLD)
         {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(childVertexHash);
-            insertStringBuilder.append("', ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(parentVertexHash);
-            insertStringBuilder.append("', ");
-        }
-
-        // Add the annotation values
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationKey).replace("'", "\"") : incomingEdge.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            if(USE_SCAFFOLD)
-            {
-                scaffold.insertEntry(incomingEdge);
-            }
-            s.close();
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
+            scaffold.insertEntry(incomingEdge);
         }
 
         return true;
@@ -609,78 +647,329 @@ public class SQL extends AbstractStorage
 
     /**
      * This function inserts the given vertex into the underlying storage(s) and
-     * updates the cache(s) accordingly.
+     * updates the cache(s) accordingly. The row is added to the pending batch
+     * for its column signature and written by the next batch flush.
      *
      * @param incomingVertex vertex to insert into the storage
      * @return returns true if the insertion is successful. Insertion is considered
      * not successful if the vertex is already present in the storage.
      */
     @Override
-    public boolean putVertex(AbstractVertex incomingVertex)
+    public synchronized boolean putVertex(AbstractVertex incomingVertex)
     {
         String vertexHash = incomingVertex.bigHashCode();
-        if(Cache.isPresent(vertexHash))
+        if((vertexCache != null && vertexCache.isPresent(vertexHash)) || !pendingHashes.add(vertexHash))
             return true;
 
-        // Use StringBuilder to build the SQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder( 100);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(VERTEX_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
+        Map<String, String> annotations = incomingVertex.getAnnotations();
+        List<String> columns = new ArrayList<>(annotations.size() + 1);
+        List<Object> row = new ArrayList<>(annotations.size() + 1);
+        columns.add(PRIMARY_KEY);
+        row.add(toUUID(incomingVertex.bigHashDigest()));
+        addAnnotationColumns(VERTEX_TABLE, annotations, columns, row);
+
+        // cache the vertex before the row is added as adding it may flush the batch
+        if(vertexCache != null)
         {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey = sanitizeColumn(annotationKey);
+            vertexCache.addItem(vertexHash, incomingVertex);
+        }
+        addRow(VERTEX_TABLE, columns, row);
+        return true;
+    }
 
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table if they do not already exist
-            addColumn(VERTEX_TABLE, newAnnotationKey);
+    /**
+     * Returns the recently stored vertex with the given hash without querying
+     * the database.
+     *
+     * @param vertexHash hash of the vertex
+     * @return the vertex if it is cached OR NULL.
+     */
+    public AbstractVertex getCachedVertex(String vertexHash)
+    {
+        return (vertexCache == null) ? null : vertexCache.get(vertexHash);
+    }
 
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
+    public Cache<AbstractVertex> getVertexCache()
+    {
+        return vertexCache;
+    }
 
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
+    public Cache<AbstractEdge> getEdgeCache()
+    {
+        return edgeCache;
+    }
 
-        // Add the hash code primary key
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(vertexHash);
-        insertStringBuilder.append("', ");
+    /**
+     * Rows only become visible to queries when the pending batches are
+     * committed.
+     */
+    @Override
+    public long getWatermark()
+    {
+        return getCommitCount();
+    }
 
-        // Add the annotation values
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
+    /**
+     * Commits the pending batches if the flush interval has passed.
+     *
+     * @return True if the transactions were flushed successfully.
+     */
+    @Override
+    public synchronized boolean flushTransactions()
+    {
+        if(USE_SCAFFOLD)
+        {
+            scaffold.flushTransactions();
+        }
+        if(System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS)
+        {
+            return flushBatches();
+        }
+        return true;
+    }
+
+    private void addAnnotationColumns(String table, Map<String, String> annotations,
+                                      List<String> columns, List<Object> row)
+    {
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
         {
-            String value = (ENABLE_SANITIZATION) ? incomingVertex.getAnnotation(annotationKey).replace("'", "\"") :
-                    incomingVertex.getAnnotation(annotationKey);
+            String column = sanitizedColumns.get(annotation.getKey());
+            if(column == null)
+            {
+                column = sanitizeColumn(annotation.getKey());
+                sanitizedColumns.put(annotation.getKey(), column);
+            }
+            // Only checks the in-memory column set once the column is known
+            addColumn(table, column);
+            columns.add("\"" + column + "\"");
+            String value = annotation.getValue();
+            row.add((ENABLE_SANITIZATION) ? value.replace("'", "\"") : value);
+        }
+    }
 
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
+    private void addRow(String table, List<String> columns, List<Object> row)
+    {
+        String signature = table + columns.toString();
+        PendingBatch batch = pendingBatches.get(signature);
+        if(batch == null)
+        {
+            batch = new PendingBatch(table, columns);
+            pendingBatches.put(signature, batch);
+        }
+        batch.rows.add(row.toArray());
+        pendingRowCount++;
+        if(pendingRowCount >= BATCH_SIZE
+                || System.currentTimeMillis() - lastFlushTime >= FLUSH_INTERVAL_MILLIS)
+        {
+            flushBatches();
         }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
+    }
 
+    /**
+     * Writes all pending rows with one executeBatch per column signature and
+     * commits them. If a batch fails, e.g. because of a row which is already
+     * present, the rows are retried one at a time so that only the offending
+     * rows are lost.
+     *
+     * @return True if all pending rows were written.
+     */
+    private synchronized boolean flushBatches()
+    {
+        lastFlushTime = System.currentTimeMillis();
+        if(pendingRowCount == 0)
+        {
+            return true;
+        }
+        boolean success = true;
         try
         {
+            for(PendingBatch batch : pendingBatches.values())
+            {
+                if(copyManager != null)
+                {
+                    copyManager.copyIn(batch.copySql, new StringReader(toCSV(batch.rows)));
+                    continue;
+                }
+                PreparedStatement statement = getInsertStatement(batch.sql);
+                for(Object[] row : batch.rows)
+                {
+                    bindRow(statement, row);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
             dbConnection.commit();
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
         }
-        catch (Exception e)
+        catch(SQLException | IOException ex)
         {
-            logger.log(Level.SEVERE, null, e);
-            return false;
+            logger.log(Level.WARNING, "Batch insert failed. Inserting rows one at a time", ex);
+            success = insertRowsIndividually();
         }
+        // the rows are visible to queries now
+        advanceWatermark();
+        pendingBatches.clear();
+        pendingHashes.clear();
+        pendingRowCount = 0;
+        return success;
+    }
 
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-        return true;
+    private boolean insertRowsIndividually()
+    {
+        boolean success = true;
+        try
+        {
+            dbConnection.rollback();
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.WARNING, "Error in rolling back failed batch", ex);
+        }
+        for(PendingBatch batch : pendingBatches.values())
+        {
+            for(Object[] row : batch.rows)
+            {
+                try
+                {
+                    PreparedStatement statement = getInsertStatement(batch.sql);
+                    statement.clearBatch();
+                    bindRow(statement, row);
+                    statement.executeUpdate();
+                    dbConnection.commit();
+                }
+                catch(SQLException ex)
+                {
+                    success = false;
+                    logger.log(Level.SEVERE, null, ex);
+                    try
+                    {
+                        dbConnection.rollback();
+                    }
+                    catch(SQLException e)
+                    {
+                        logger.log(Level.WARNING, "Error in rolling back failed insert", e);
+                    }
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Formats rows as CSV for COPY. Every value is quoted so that empty
+     * strings are not read as NULL.
+     */
+    private static String toCSV(List<Object[]> rows)
+    {
+        StringBuilder csv = new StringBuilder(rows.size() * 128);
+        for(Object[] row : rows)
+        {
+            for(int i = 0; i < row.length; i++)
+            {
+                if(i > 0)
+                {
+                    csv.append(',');
+                }
+                String value = row[i].toString();
+                csv.append('"');
+                for(int j = 0; j < value.length(); j++)
+                {
+                    char c = value.charAt(j);
+                    if(c == '"')
+                    {
+                        csv.append('"');
+                    }
+                    csv.append(c);
+                }
+                csv.append('"');
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    private PreparedStatement getInsertStatement(String sql) throws SQLException
+    {
+        PreparedStatement statement = insertStatements.get(sql);
+        if(statement == null)
+        {
+            statement = dbConnection.prepareStatement(sql);
+            insertStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static void bindRow(PreparedStatement statement, Object[] row) throws SQLException
+    {
+        for(int i = 0; i < row.length; i++)
+        {
+            if(row[i] instanceof UUID)
+            {
+                statement.setObject(i + 1, row[i]);
+            }
+            else
+            {
+                statement.setString(i + 1, (String) row[i]);
+            }
+        }
+    }
+
+    /**
+     * Converts a hash digest to the UUID stored in the hash columns.
+     */
+    private static UUID toUUID(ContentHash.Digest digest)
+    {
+        return new UUID(digest.getMostSignificantBits(), digest.getLeastSignificantBits());
+    }
+
+    /**
+     * Converts a 32 character hex hash to the UUID stored in the hash columns.
+     * Any other string is returned as is.
+     */
+    private static Object toUUID(String hash)
+    {
+        if(hash != null && hash.length() == 32)
+        {
+            try
+            {
+                return new UUID(Long.parseUnsignedLong(hash.substring(0, 16), 16),
+                        Long.parseUnsignedLong(hash.substring(16), 16));
+            }
+            catch(NumberFormatException ex)
+            {
+                return hash;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Rows of one table which share the same columns, and the INSERT and
+     * COPY statements used to write them.
+     */
+    private static final class PendingBatch
+    {
+        private final String sql;
+        private final String copySql;
+        private final List<Object[]> rows = new ArrayList<>();
+
+        private PendingBatch(String table, List<String> columns)
+        {
+            StringBuilder sqlBuilder = new StringBuilder(64 + 16 * columns.size());
+            StringBuilder values = new StringBuilder(3 * columns.size());
+            for(int i = 0; i < columns.size(); i++)
+            {
+                if(i > 0)
+                {
+                    sqlBuilder.append(", ");
+                    values.append(", ");
+                }
+                sqlBuilder.append(columns.get(i));
+                values.append('?');
+            }
+            String columnList = sqlBuilder.toString();
+            this.sql = "INSERT INTO " + table + " (" + columnList + ") VALUES (" + values + ")";
+            this.copySql = "COPY " + table + " (" + columnList + ") FROM STDIN WITH (FORMAT csv)";
+        }
     }
 
     @Override
@@ -689,6 +978,7 @@ public class SQL extends AbstractStorage
         ResultSet result = null;
         try
         {
+            flushBatches();
             dbConnection.commit();
             Statement queryStatement = dbConnection.createStatement();
             if(CURSOR_FETCH_SIZE > 0)
@@ -49,7 +49,6 @@ public class OPM2ProvTC extends OPM2Prov{
 
 	public Graph putGraph(Graph graph, QueryParameters digQueryParams){
 		graph = super.putGraph(graph, digQueryParams);
-		graph.commitIndex();
 		
 		Graph resultGraph = new Graph();
 		
@@ -20,26 +20,105 @@
 
 package spade.utility;
 
-import com.google.code.externalsorting.ExternalSort;
 import spade.core.Settings;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Sorts the records of an audit log by (time, event id).
+ *
+ * The log is read in chunks that fit in the memory budget. The key of each record is parsed once
+ * when it is read. Chunks are sorted on a pool of threads and written as (compressed) sorted runs
+ * to the temp directory, which are then merged with a heap into the output log.
+ *
+ * The sort is stable i.e. records with the same key (the records of an event) stay in the order
+ * that they are in the input log. Duplicate records i.e. records equal to a record with the same key
+ * that was already written are dropped.
+ */
 public class SortAuditLog {
 
+	private static final Charset charset = Charset.defaultCharset();
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final String MESSAGE_PREFIX = "msg=audit(";
+
+	private final File tempDirectory;
+	private final long memoryBudgetBytes;
+	private final int threads;
+	private final boolean compressRuns;
+
+	// stats
+	private long recordsCount = 0, bytesCount = 0, duplicatesCount = 0;
+	private final AtomicLong sortNanos = new AtomicLong(0), writeNanos = new AtomicLong(0);
+	private long splitMillis = 0, mergeMillis = 0;
+	private int runsCount = 0;
+
+	/**
+	 * @param tempDirectory directory to write the sorted runs to
+	 * @param memoryBudgetBytes estimated memory to hold the records in. Divided among the chunks being sorted
+	 * @param threads number of threads to sort chunks on
+	 * @param compressRuns whether to gzip the sorted runs or not
+	 */
+	public SortAuditLog(File tempDirectory, long memoryBudgetBytes, int threads, boolean compressRuns){
+		this.tempDirectory = tempDirectory;
+		this.memoryBudgetBytes = memoryBudgetBytes;
+		this.threads = threads;
+		this.compressRuns = compressRuns;
+	}
+
 	public static void main(String[] args){
 		if(args.length < 2){
 			//temp directory is optional. if not given then read from config file and otherwise use the system temp directory
 			System.err.println("Invalid arguments. Valid arguments = <inputAuditLog> <sortedOutputAuditLog> [<temp directory for sorting>]");
 			return;
 		}
+
 		File inputAuditLogFile = new File(args[0]);
 		File sortedOutputLogFile = new File(args[1]);
 		File tempDirectory = null;
+
+		Map<String, String> configProperties = new HashMap<String, String>();
+		try{
+			File configFile = new File(Settings.getDefaultConfigFilePath(SortAuditLog.class));
+			if(configFile.exists()){
+				configProperties = FileUtility.readConfigFileAsKeyValueMap(configFile.getAbsolutePath(), "=");
+			}
+		}catch(Exception e){
+			System.err.println("Failed to read config file. Exited");
+			return;
+		}
+
 		if(args.length >= 3){ //passed in temp dir
 			if(args[2].trim().isEmpty()){
 				System.err.println("Invalid temp directory path in arguments");
@@ -48,34 +127,36 @@ public class SortAuditLog {
 				tempDirectory = new File(args[2]);
 			}
 		}else{ //didn't pass in temp directory. use the one in config file
-			try{
-				File configFile = new File(Settings.getDefaultConfigFilePath(SortAuditLog.class));
-				if(configFile.exists()){
-					Map<String, String> configProperties = FileUtility.readConfigFileAsKeyValueMap(configFile.getAbsolutePath(), "=");
-					String tempDirectoryPath = configProperties.get("tempSortingDirectory");
-					if(tempDirectoryPath != null){
-						tempDirectory = new File(tempDirectoryPath);
-					}
-				}
-			}catch(Exception e){
-				System.err.println("Failed to read config file. Exited");
-				return;
-			}finally{
-				if(tempDirectory == null){ //failed to read the config file too. Use the system temp 
-					String systemTempDirectoryPath = System.getProperty("java.io.tmpdir");
-					if(systemTempDirectoryPath != null){
-						tempDirectory = new File(systemTempDirectoryPath);
-					}else{
-						System.err.println("Failed to locate a system temp directory. Exited.");
-						return;
-					}
+			String tempDirectoryPath = configProperties.get("tempSortingDirectory");
+			if(tempDirectoryPath != null){
+				tempDirectory = new File(tempDirectoryPath);
+			}else{ //not in the config file either. Use the system temp
+				String systemTempDirectoryPath = System.getProperty("java.io.tmpdir");
+				if(systemTempDirectoryPath != null){
+					tempDirectory = new File(systemTempDirectoryPath);
+				}else{
+					System.err.println("Failed to locate a system temp directory. Exited.");
+					return;
 				}
 			}
 		}
+
+		// default to half of the heap and all the cores
+		long memoryBudgetBytes = CommonFunctions.parseLong(configProperties.get("memoryBudgetBytes"),
+				Runtime.getRuntime().maxMemory() / 2);
+		int threads = CommonFunctions.parseInt(configProperties.get("sortThreads"),
+				Runtime.getRuntime().availableProcessors());
+		boolean compressRuns = !"false".equals(configProperties.get("compressRuns"));
+		if(memoryBudgetBytes < 1 || threads < 1){
+			System.err.println("Invalid 'memoryBudgetBytes' or 'sortThreads' in config file. Exited.");
+			return;
+		}
+
 		if(!inputAuditLogFile.exists()){
 			System.err.println("Input audit log file doesn't exist. Exited.");
 			return;
 		}
+
 		if(tempDirectory != null && !tempDirectory.exists()){
 			try{
 				tempDirectory.mkdir();
@@ -84,37 +165,427 @@ public class SortAuditLog {
 				return;
 			}
 		}
-		
-		Comparator<String> comparator = new Comparator<String>(){
-			@Override
-			public int compare(String record1, String record2) {
-				try{
-					//example -> type=DAEMON_START msg=audit(1443402415.959:2435):
-					int record1ColonIndex = record1.indexOf(":");
-					int record1CloseBracketIndex = record1.indexOf(")");
-					int record2ColonIndex = record2.indexOf(":");
-					int record2CloseBracketIndex = record2.indexOf(")");
-					String record1EventId = record1.substring(record1ColonIndex+1, record1CloseBracketIndex);
-					String record2EventId = record2.substring(record2ColonIndex+1, record2CloseBracketIndex);
-					Long record1EventIdLong = Long.parseLong(record1EventId);
-					Long record2EventIdLong = Long.parseLong(record2EventId);
-					return (int)(record1EventIdLong - record2EventIdLong);
-				}catch(Exception e){
-					e.printStackTrace(System.err);
-				}
-				return 0;
-			}
-		};
-		
-		// https://github.com/lemire/externalsortinginjava
-		
+
 		try{
-			List<File> l = ExternalSort.sortInBatch(inputAuditLogFile, comparator, ExternalSort.DEFAULTMAXTEMPFILES, Charset.defaultCharset(), tempDirectory, true);
-	        ExternalSort.mergeSortedFiles(l, sortedOutputLogFile, comparator);
+			SortAuditLog sorter = new SortAuditLog(tempDirectory, memoryBudgetBytes, threads, compressRuns);
+			sorter.sort(inputAuditLogFile, sortedOutputLogFile);
+			sorter.printStats();
 		}catch(Exception e){
 			System.err.print("Failed to sort log file");
 			e.printStackTrace(System.err);
 		}
 	}
-	
+
+	/**
+	 * Sorts the input log into the output log. Sorted runs are deleted before returning
+	 *
+	 * @param inputAuditLogFile log to sort
+	 * @param sortedOutputLogFile file to write the sorted log to
+	 * @throws Exception if failed to read, write or sort
+	 */
+	public void sort(File inputAuditLogFile, File sortedOutputLogFile) throws Exception{
+		List<File> runs = new ArrayList<File>();
+		try{
+			long startTime = System.currentTimeMillis();
+			splitIntoSortedRuns(inputAuditLogFile, runs);
+			long mergeStartTime = System.currentTimeMillis();
+			splitMillis = mergeStartTime - startTime;
+			mergeSortedRuns(runs, sortedOutputLogFile);
+			mergeMillis = System.currentTimeMillis() - mergeStartTime;
+		}finally{
+			for(File run : runs){
+				if(run != null && run.exists() && !run.delete()){
+					System.err.println("Failed to delete sorted run: " + run.getAbsolutePath());
+				}
+			}
+		}
+	}
+
+	public void printStats(){
+		long totalMillis = Math.max(1, splitMillis + mergeMillis);
+		System.out.println(String.format("Sorted %d records (%d bytes, %d duplicates dropped) in %d runs using %d threads",
+				recordsCount, bytesCount, duplicatesCount, runsCount, threads));
+		System.out.println(String.format("Read, sort and write runs: %d ms (sort: %d ms, write: %d ms across threads)",
+				splitMillis, sortNanos.get() / 1000000, writeNanos.get() / 1000000));
+		System.out.println(String.format("Merge: %d ms", mergeMillis));
+		System.out.println(String.format("Total: %d ms. Throughput: %.3f MB/sec, %.3f records/sec", totalMillis,
+				(bytesCount / (1024f * 1024f)) / (totalMillis / 1000f), recordsCount / (totalMillis / 1000f)));
+	}
+
+	/**
+	 * Reads the input in chunks of the memory budget divided by the threads (and the chunk being read),
+	 * and sorts and writes each chunk as a run on the pool of threads. Runs are added to the list in
+	 * the order of the input
+	 */
+	private void splitIntoSortedRuns(File inputAuditLogFile, List<File> runs) throws Exception{
+		final long chunkBudgetBytes = Math.max(1, memoryBudgetBytes / (threads + 1));
+		final Semaphore chunkPermits = new Semaphore(threads);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<File>> runFutures = new ArrayList<Future<File>>();
+		BufferedReader reader = null;
+		try{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputAuditLogFile), charset), BUFFER_SIZE);
+			Chunk chunk = new Chunk();
+			long previousTime = 0, previousEventId = 0;
+			String line = null;
+			while((line = reader.readLine()) != null){
+				recordsCount++;
+				byte[] record = line.getBytes(charset);
+				bytesCount += record.length + 1;
+				long time = parseTime(line);
+				long eventId = parseEventId(line);
+				if(time < 0 || eventId < 0){
+					// keep malformed records next to the record before them
+					time = previousTime;
+					eventId = previousEventId;
+				}
+				chunk.add(record, time, eventId);
+				previousTime = time;
+				previousEventId = eventId;
+				if(chunk.estimatedBytes >= chunkBudgetBytes){
+					chunkPermits.acquire();
+					runFutures.add(executor.submit(new SortedRunWriter(chunk, chunkPermits)));
+					chunk = new Chunk();
+				}
+			}
+			if(chunk.size > 0){
+				chunkPermits.acquire();
+				runFutures.add(executor.submit(new SortedRunWriter(chunk, chunkPermits)));
+			}
+			for(Future<File> runFuture : runFutures){
+				try{
+					runs.add(runFuture.get());
+				}catch(ExecutionException e){
+					throw new Exception("Failed to write sorted run", e.getCause());
+				}
+			}
+			runsCount = runs.size();
+		}finally{
+			executor.shutdownNow();
+			if(reader != null){
+				reader.close();
+			}
+			// the runs that were written but not returned because of a failure
+			for(Future<File> runFuture : runFutures){
+				if(runFuture.isDone() && !runFuture.isCancelled()){
+					try{
+						File run = runFuture.get();
+						if(!runs.contains(run)){
+							runs.add(run);
+						}
+					}catch(Exception e){
+						// not written
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the runs with a heap. Ties are broken by the order of the runs to keep the sort stable.
+	 * The records written for the current key are remembered to drop duplicates
+	 */
+	private void mergeSortedRuns(List<File> runs, File sortedOutputLogFile) throws Exception{
+		PriorityQueue<RunReader> heap = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+		OutputStream output = null;
+		try{
+			for(int i = 0; i < runs.size(); i++){
+				RunReader runReader = new RunReader(runs.get(i), i, compressRuns);
+				if(runReader.next()){
+					heap.add(runReader);
+				}else{
+					runReader.close();
+				}
+			}
+			output = new BufferedOutputStream(new FileOutputStream(sortedOutputLogFile), BUFFER_SIZE);
+			Set<ByteBuffer> keyRecords = new HashSet<ByteBuffer>();
+			long keyTime = -1, keyEventId = -1;
+			while(!heap.isEmpty()){
+				RunReader runReader = heap.poll();
+				if(runReader.time != keyTime || runReader.eventId != keyEventId){
+					keyRecords.clear();
+					keyTime = runReader.time;
+					keyEventId = runReader.eventId;
+				}
+				if(keyRecords.add(ByteBuffer.wrap(Arrays.copyOf(runReader.record, runReader.recordLength)))){
+					output.write(runReader.record, 0, runReader.recordLength);
+					output.write('\n');
+				}else{
+					duplicatesCount++;
+				}
+				if(runReader.next()){
+					heap.add(runReader);
+				}else{
+					runReader.close();
+				}
+			}
+		}finally{
+			for(RunReader runReader : heap){
+				runReader.close();
+			}
+			if(output != null){
+				output.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the time in milliseconds in the record
+	 *
+	 * Expected format of record -> "type='TYPE' msg=audit('time':'eventid'):"
+	 *
+	 * @param record audit record
+	 * @return time or -1 if not found
+	 */
+	static long parseTime(String record){
+		int index = record.indexOf(MESSAGE_PREFIX);
+		if(index < 0){
+			return -1;
+		}
+		index += MESSAGE_PREFIX.length();
+		long seconds = 0;
+		int start = index;
+		for(; index < record.length() && isDigit(record.charAt(index)); index++){
+			seconds = seconds * 10 + (record.charAt(index) - '0');
+		}
+		if(index == start){
+			return -1;
+		}
+		long millis = 0;
+		if(index < record.length() && record.charAt(index) == '.'){
+			int fractionDigits = 0;
+			for(index++; index < record.length() && isDigit(record.charAt(index)); index++){
+				if(fractionDigits++ < 3){
+					millis = millis * 10 + (record.charAt(index) - '0');
+				}
+			}
+			for(; fractionDigits < 3; fractionDigits++){
+				millis *= 10;
+			}
+		}
+		if(index >= record.length() || record.charAt(index) != ':'){
+			return -1;
+		}
+		return seconds * 1000 + millis;
+	}
+
+	/**
+	 * Returns the event id in the record
+	 *
+	 * @param record audit record
+	 * @return event id or -1 if not found
+	 */
+	static long parseEventId(String record){
+		int index = record.indexOf(MESSAGE_PREFIX);
+		if(index < 0){
+			return -1;
+		}
+		index = record.indexOf(':', index);
+		if(index < 0){
+			return -1;
+		}
+		long eventId = 0;
+		int start = ++index;
+		for(; index < record.length() && isDigit(record.charAt(index)); index++){
+			eventId = eventId * 10 + (record.charAt(index) - '0');
+		}
+		if(index == start || index >= record.length() || record.charAt(index) != ')'){
+			return -1;
+		}
+		return eventId;
+	}
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+	private static int compare(long time1, long eventId1, long time2, long eventId2){
+		if(time1 != time2){
+			return time1 < time2 ? -1 : 1;
+		}
+		if(eventId1 != eventId2){
+			return eventId1 < eventId2 ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Records and their keys in the order of the input
+	 */
+	private static class Chunk{
+		private byte[][] records = new byte[1024][];
+		private long[] times = new long[1024];
+		private long[] eventIds = new long[1024];
+		private int size = 0;
+		private long estimatedBytes = 0;
+
+		private void add(byte[] record, long time, long eventId){
+			if(size == records.length){
+				int capacity = size * 2;
+				records = Arrays.copyOf(records, capacity);
+				times = Arrays.copyOf(times, capacity);
+				eventIds = Arrays.copyOf(eventIds, capacity);
+			}
+			records[size] = record;
+			times[size] = time;
+			eventIds[size] = eventId;
+			size++;
+			// encoded bytes, array overhead and reference, and the keys
+			estimatedBytes += record.length + 40;
+		}
+
+		/**
+		 * Stable merge sort of the indices of the records by their keys
+		 *
+		 * @return indices of the records in sorted order
+		 */
+		private int[] sortedOrder(){
+			int[] order = new int[size];
+			for(int i = 0; i < size; i++){
+				order[i] = i;
+			}
+			int[] scratch = new int[size];
+			for(int width = 1; width < size; width *= 2){
+				for(int low = 0; low < size - width; low += 2 * width){
+					int middle = low + width;
+					int high = Math.min(low + 2 * width, size);
+					// already in order
+					if(compare(order[middle - 1], order[middle]) <= 0){
+						continue;
+					}
+					System.arraycopy(order, low, scratch, low, high - low);
+					int i = low, j = middle, k = low;
+					while(i < middle && j < high){
+						order[k++] = (compare(scratch[j], scratch[i]) < 0) ? scratch[j++] : scratch[i++];
+					}
+					while(i < middle){
+						order[k++] = scratch[i++];
+					}
+					while(j < high){
+						order[k++] = scratch[j++];
+					}
+				}
+			}
+			return order;
+		}
+
+		private int compare(int index1, int index2){
+			return SortAuditLog.compare(times[index1], eventIds[index1], times[index2], eventIds[index2]);
+		}
+	}
+
+	/**
+	 * Sorts a chunk and writes it to a temp file as a run of (time, event id, record length, record bytes)
+	 */
+	private class SortedRunWriter implements Callable<File>{
+		private final Chunk chunk;
+		private final Semaphore chunkPermits;
+
+		private SortedRunWriter(Chunk chunk, Semaphore chunkPermits){
+			this.chunk = chunk;
+			this.chunkPermits = chunkPermits;
+		}
+
+		@Override
+		public File call() throws Exception{
+			try{
+				long sortStartTime = System.nanoTime();
+				int[] order = chunk.sortedOrder();
+				long writeStartTime = System.nanoTime();
+				sortNanos.addAndGet(writeStartTime - sortStartTime);
+
+				File run = File.createTempFile("sortedRun", compressRuns ? ".gz" : ".bin", tempDirectory);
+				run.deleteOnExit();
+				DataOutputStream output = null;
+				try{
+					OutputStream fileOutput = new FileOutputStream(run);
+					output = new DataOutputStream(compressRuns
+							? new BufferedOutputStream(new GZIPOutputStream(fileOutput, BUFFER_SIZE), BUFFER_SIZE)
+							: new BufferedOutputStream(fileOutput, BUFFER_SIZE));
+					for(int index : order){
+						byte[] record = chunk.records[index];
+						output.writeLong(chunk.times[index]);
+						output.writeLong(chunk.eventIds[index]);
+						output.writeInt(record.length);
+						output.write(record);
+					}
+				}catch(Exception e){
+					if(output != null){
+						output.close();
+						output = null;
+					}
+					run.delete();
+					throw e;
+				}finally{
+					if(output != null){
+						output.close();
+					}
+				}
+				writeNanos.addAndGet(System.nanoTime() - writeStartTime);
+				return run;
+			}finally{
+				chunkPermits.release();
+			}
+		}
+	}
+
+	/**
+	 * Reads the records of a run one at a time
+	 */
+	private static class RunReader implements Comparable<RunReader>{
+		private final int runIndex;
+		private final DataInputStream input;
+
+		private long time, eventId;
+		private byte[] record = new byte[1024];
+		private int recordLength;
+
+		private RunReader(File run, int runIndex, boolean compressed) throws IOException{
+			this.runIndex = runIndex;
+			InputStream fileInput = new FileInputStream(run);
+			try{
+				this.input = new DataInputStream(compressed
+						? new BufferedInputStream(new GZIPInputStream(fileInput, BUFFER_SIZE), BUFFER_SIZE)
+						: new BufferedInputStream(fileInput, BUFFER_SIZE));
+			}catch(IOException e){
+				fileInput.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return false if there are no more records in the run
+		 */
+		private boolean next() throws IOException{
+			try{
+				time = input.readLong();
+			}catch(EOFException e){
+				return false;
+			}
+			eventId = input.readLong();
+			recordLength = input.readInt();
+			if(record.length < recordLength){
+				record = new byte[Math.max(recordLength, record.length * 2)];
+			}
+			input.readFully(record, 0, recordLength);
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other){
+			int result = SortAuditLog.compare(time, eventId, other.time, other.eventId);
+			if(result == 0){
+				return Integer.compare(runIndex, other.runIndex);
+			}
+			return result;
+		}
+
+		private void close(){
+			try{
+				input.close();
+			}catch(IOException e){
+				System.err.println("Failed to close sorted run: " + e.getMessage());
+			}
+		}
+	}
 }
@@ -0,0 +1,135 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package core;
+
+import org.junit.Test;
+import spade.core.AbstractVertex;
+import spade.core.Buffer;
+import spade.core.Vertex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class is used to test the bounds and overflow policies of spade.core.Buffer
+ */
+public class BufferTest {
+
+    private static final int ELEMENTS = 20000;
+
+    private static List<AbstractVertex> createVertices(int count, int annotationLength) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < annotationLength; i++) {
+            value.append('x');
+        }
+        List<AbstractVertex> vertices = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("id", String.valueOf(i));
+            vertex.addAnnotation("value", value.toString());
+            vertices.add(vertex);
+        }
+        return vertices;
+    }
+
+    /**
+     * Runs one producer and one consumer and checks that every element is
+     * received in order without the producer waiting forever for space.
+     */
+    private static void produceAndConsume(final Buffer buffer, final List<AbstractVertex> vertices) throws Exception {
+        final List<Boolean> added = new ArrayList<>();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (AbstractVertex vertex : vertices) {
+                    added.add(buffer.putVertex(vertex));
+                }
+            }
+        });
+        producer.start();
+        for (AbstractVertex vertex : vertices) {
+            Object element;
+            while ((element = buffer.getBufferElement()) == null) {
+                buffer.awaitElements(10);
+            }
+            assertSame(vertex, element);
+        }
+        producer.join();
+        assertFalse(added.contains(false));
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.sizeInBytes());
+        assertNull(buffer.getBufferElement());
+    }
+
+    @Test(timeout = 30000)
+    public void blockingBufferOfOneElement() throws Exception {
+        Buffer buffer = new Buffer(1, 0, Buffer.OverflowPolicy.BLOCK);
+        produceAndConsume(buffer, createVertices(ELEMENTS, 1));
+        assertEquals(0, buffer.getDroppedCount());
+        assertTrue(buffer.getBlockedCount() > 0);
+    }
+
+    @Test(timeout = 30000)
+    public void blockingBufferFilledByOneElement() throws Exception {
+        // every element is larger than the byte limit so only one fits at a time
+        Buffer buffer = new Buffer(0, 128, Buffer.OverflowPolicy.BLOCK);
+        produceAndConsume(buffer, createVertices(ELEMENTS, 100));
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    @Test
+    public void droppingBuffer() {
+        Buffer buffer = new Buffer(2, 0, Buffer.OverflowPolicy.DROP);
+        List<AbstractVertex> vertices = createVertices(3, 1);
+        assertTrue(buffer.putVertex(vertices.get(0)));
+        assertTrue(buffer.putVertex(vertices.get(1)));
+        assertFalse(buffer.putVertex(vertices.get(2)));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(1.0, buffer.occupancy(), 0);
+        assertSame(vertices.get(0), buffer.getBufferElement());
+        assertTrue(buffer.putVertex(vertices.get(2)));
+        assertSame(vertices.get(1), buffer.getBufferElement());
+        assertSame(vertices.get(2), buffer.getBufferElement());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void unboundedBuffer() {
+        Buffer buffer = new Buffer();
+        List<AbstractVertex> vertices = createVertices(1000, 1);
+        for (AbstractVertex vertex : vertices) {
+            assertTrue(buffer.putVertex(vertex));
+        }
+        assertEquals(vertices.size(), buffer.size());
+        assertEquals(0, buffer.occupancy(), 0);
+        for (AbstractVertex vertex : vertices) {
+            assertSame(vertex, buffer.getBufferElement());
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
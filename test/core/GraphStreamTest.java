@@ -0,0 +1,185 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package core;
+
+import org.junit.Test;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.GraphStream;
+import spade.core.Vertex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class is used to test the binary result protocol of spade.core.GraphStream
+ */
+public class GraphStreamTest {
+
+    private static AbstractVertex createVertex(int id) {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("type", "Process");
+        vertex.addAnnotation("pid", String.valueOf(id));
+        vertex.addAnnotation("name", "process \u00e9 " + id);
+        return vertex;
+    }
+
+    private static Graph createGraph(int size) {
+        Graph graph = new Graph();
+        List<AbstractVertex> vertices = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            AbstractVertex vertex = createVertex(i);
+            vertices.add(vertex);
+            graph.putVertex(vertex);
+        }
+        for (int i = 1; i < size; i++) {
+            AbstractEdge edge = new Edge(vertices.get(i), vertices.get(i / 2));
+            edge.addAnnotation("type", "WasTriggeredBy");
+            edge.addAnnotation("operation", "fork");
+            graph.putEdge(edge);
+        }
+        graph.setRootVertex(vertices.get(0));
+        graph.putNetworkVertex(vertices.get(size - 1), 2);
+        graph.setMaxDepth(5);
+        graph.setComputeTime("12 ms");
+        graph.setHostName("host1");
+        return graph;
+    }
+
+    private static Set<String> edgeStrings(Graph graph) {
+        Set<String> edges = new HashSet<>();
+        for (AbstractEdge edge : graph.edgeSet()) {
+            edges.add(edge.getChildVertex().bigHashCode() + " " + edge.getParentVertex().bigHashCode()
+                    + " " + edge.getAnnotations());
+        }
+        return edges;
+    }
+
+    private static void assertGraphEquals(Graph expected, Graph actual) {
+        assertEquals(expected.vertexSet(), actual.vertexSet());
+        assertEquals(edgeStrings(expected), edgeStrings(actual));
+        assertEquals(expected.getRootVertex(), actual.getRootVertex());
+        assertEquals(expected.networkMap(), actual.networkMap());
+        assertEquals(expected.getMaxDepth(), actual.getMaxDepth());
+        assertEquals(expected.getComputeTime(), actual.getComputeTime());
+        assertEquals(expected.getHostName(), actual.getHostName());
+    }
+
+    @Test
+    public void graphRoundTrip() throws Exception {
+        Graph graph = createGraph(500);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // small chunks so that records are spread over many of them
+        GraphStream.Writer writer = new GraphStream.Writer(output, 128);
+        for (int i = 0; i < 2; i++) {
+            writer.beginResult("Graph");
+            writer.writeGraph(graph);
+            writer.endResult();
+        }
+
+        GraphStream.Reader reader = new GraphStream.Reader(new ByteArrayInputStream(output.toByteArray()));
+        // annotation keys are sent again for the second result
+        for (int i = 0; i < 2; i++) {
+            GraphStream.GraphBuilder builder = new GraphStream.GraphBuilder();
+            assertTrue(reader.readResult(builder));
+            assertEquals("Graph", builder.getReturnType());
+            assertNull(builder.getError());
+            assertGraphEquals(graph, builder.getGraph());
+        }
+        assertNull(reader.readGraph());
+    }
+
+    @Test
+    public void collectionRoundTrip() throws Exception {
+        AbstractVertex child = createVertex(1);
+        AbstractVertex parent = createVertex(2);
+        AbstractEdge edge = new Edge(child, parent);
+        edge.addAnnotation("type", "Used");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GraphStream.Writer writer = new GraphStream.Writer(output);
+        writer.beginResult("Set");
+        writer.writeCollection(Arrays.asList(edge, parent, "text"));
+        writer.endResult();
+
+        final List<String> records = new ArrayList<>();
+        GraphStream.Handler handler = new GraphStream.Handler() {
+            @Override
+            public void returnType(String returnType) {
+                records.add("type " + returnType);
+            }
+
+            @Override
+            public void vertex(String hash, AbstractVertex vertex, boolean root, int networkDepth) {
+                assertEquals(hash, vertex.bigHashCode());
+                assertFalse(root);
+                assertEquals(-1, networkDepth);
+                records.add("vertex " + vertex.getAnnotation("pid"));
+            }
+
+            @Override
+            public void edge(String childHash, String parentHash, Map<String, String> annotations) {
+                records.add("edge " + annotations.get("type"));
+            }
+
+            @Override
+            public void text(String text) {
+                records.add("text " + text);
+            }
+        };
+        assertTrue(new GraphStream.Reader(new ByteArrayInputStream(output.toByteArray())).readResult(handler));
+        // the end points are written once, before the edge
+        assertEquals(Arrays.asList("type Set", "vertex 1", "vertex 2", "edge Used", "text text"), records);
+    }
+
+    @Test
+    public void errorResult() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GraphStream.Writer writer = new GraphStream.Writer(output);
+        writer.beginResult("Graph");
+        writer.writeVertex(createVertex(1));
+        writer.writeError("Query cancelled");
+        writer.endResult();
+
+        GraphStream.GraphBuilder builder = new GraphStream.GraphBuilder();
+        assertTrue(new GraphStream.Reader(new ByteArrayInputStream(output.toByteArray())).readResult(builder));
+        assertEquals("Query cancelled", builder.getError());
+        assertEquals(1, builder.getGraph().vertexSet().size());
+    }
+
+    @Test
+    public void closedConnection() throws Exception {
+        GraphStream.Reader reader = new GraphStream.Reader(new ByteArrayInputStream(new byte[0]));
+        assertFalse(reader.readResult(new GraphStream.GraphBuilder()));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package core;
+
+import org.junit.Test;
+import spade.core.AbstractQuery;
+import spade.core.PathSearch;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class is used to test the bidirectional path search of spade.core.PathSearch
+ */
+public class PathSearchTest {
+
+    /**
+     * Searches an in-memory graph given as edges from child to parent.
+     */
+    private static class GraphSearch extends PathSearch {
+
+        private final Map<String, Set<String>> parents = new HashMap<>();
+        private final Map<String, Set<String>> children = new HashMap<>();
+
+        GraphSearch(String... edges) {
+            for (String edge : edges) {
+                String[] vertices = edge.split("->");
+                add(parents, vertices[0], vertices[1]);
+                add(children, vertices[1], vertices[0]);
+            }
+        }
+
+        private static void add(Map<String, Set<String>> map, String key, String value) {
+            if (!map.containsKey(key)) {
+                map.put(key, new HashSet<String>());
+            }
+            map.get(key).add(value);
+        }
+
+        private static Map<String, Set<String>> select(Map<String, Set<String>> map, Set<String> hashes) {
+            Map<String, Set<String>> result = new HashMap<>();
+            for (String hash : hashes) {
+                if (map.containsKey(hash)) {
+                    result.put(hash, map.get(hash));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        protected Map<String, Set<String>> getParents(Set<String> hashes) {
+            return select(parents, hashes);
+        }
+
+        @Override
+        protected Map<String, Set<String>> getChildren(Set<String> hashes) {
+            return select(children, hashes);
+        }
+    }
+
+    private static Set<String> set(String... hashes) {
+        return new HashSet<>(Arrays.asList(hashes));
+    }
+
+    @Test
+    public void sameVertex() {
+        GraphSearch search = new GraphSearch("a->b");
+        assertEquals(Collections.singletonMap("a", Collections.<String>emptySet()), search.findPaths("a", "a", 3));
+    }
+
+    @Test
+    public void chain() {
+        GraphSearch search = new GraphSearch("a->b", "b->c", "c->d");
+        Map<String, Set<String>> paths = search.findPaths("a", "d", 3);
+        assertEquals(4, paths.size());
+        assertEquals(set("b"), paths.get("a"));
+        assertEquals(set("c"), paths.get("b"));
+        assertEquals(set("d"), paths.get("c"));
+        assertEquals(set(), paths.get("d"));
+    }
+
+    @Test
+    public void pathLongerThanMaximum() {
+        GraphSearch search = new GraphSearch("a->b", "b->c", "c->d");
+        assertTrue(search.findPaths("a", "d", 2).isEmpty());
+    }
+
+    @Test
+    public void noPath() {
+        GraphSearch search = new GraphSearch("a->b", "c->d");
+        assertTrue(search.findPaths("a", "d", 5).isEmpty());
+        // edges are only followed from child to parent
+        assertTrue(search.findPaths("b", "a", 5).isEmpty());
+    }
+
+    @Test
+    public void onlyPathsWithinMaximum() {
+        GraphSearch search = new GraphSearch("a->b", "b->d", "a->c", "c->d", "a->e", "e->f", "f->g", "g->d", "x->d");
+        Map<String, Set<String>> paths = search.findPaths("a", "d", 2);
+        assertEquals(4, paths.size());
+        assertEquals(set("b", "c"), paths.get("a"));
+        assertEquals(set("d"), paths.get("b"));
+        assertEquals(set("d"), paths.get("c"));
+        assertEquals(set(), paths.get("d"));
+
+        paths = search.findPaths("a", "d", 4);
+        assertEquals(set("b", "c", "e"), paths.get("a"));
+        assertEquals(set("f"), paths.get("e"));
+        assertEquals(set("g"), paths.get("f"));
+        assertEquals(set("d"), paths.get("g"));
+        assertEquals(7, paths.size());
+    }
+
+    @Test
+    public void cycle() {
+        GraphSearch search = new GraphSearch("a->b", "b->a", "b->c");
+        Map<String, Set<String>> paths = search.findPaths("a", "c", 3);
+        assertEquals(set("b"), paths.get("a"));
+        assertEquals(set("c"), paths.get("b"));
+        assertEquals(set(), paths.get("c"));
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancelled() {
+        GraphSearch search = new GraphSearch("a->b", "b->c");
+        AbstractQuery.setCancelFlag(new AtomicBoolean(true));
+        try {
+            search.findPaths("a", "c", 2);
+        } finally {
+            AbstractQuery.setCancelFlag(null);
+        }
+    }
+}
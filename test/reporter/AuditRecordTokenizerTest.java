@@ -0,0 +1,197 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package reporter;
+
+import org.junit.Test;
+import spade.reporter.audit.AuditRecordTokenizer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class is used to test the parsing of audit records by spade.reporter.audit.AuditRecordTokenizer
+ */
+public class AuditRecordTokenizerTest {
+
+    private static final String SYSCALL_RECORD = "type=SYSCALL msg=audit(1500000000.123:4567): arch=c000003e syscall=2 "
+            + "success=yes exit=3 a0=7ffd1 a1=0 a2=1b6 a3=0 items=1 ppid=100 pid=101 comm=\"cat\" exe=\"/bin/cat\" key=(null)";
+
+    private static Map<String, String> readPairs(AuditRecordTokenizer tokenizer) {
+        Map<String, String> pairs = new LinkedHashMap<>();
+        while (tokenizer.next()) {
+            pairs.put(tokenizer.getKey(), tokenizer.getValue());
+        }
+        return pairs;
+    }
+
+    @Test
+    public void header() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        assertTrue(tokenizer.parseHeader(SYSCALL_RECORD));
+        assertEquals("SYSCALL", tokenizer.getType());
+        assertTrue(tokenizer.isType("SYSCALL"));
+        assertFalse(tokenizer.isType("SYSCALLS"));
+        assertEquals("1500000000.123", tokenizer.getTime());
+        assertEquals("4567", tokenizer.getEventId());
+    }
+
+    @Test
+    public void headerWithNode() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        assertTrue(tokenizer.parseHeader("node=host1 type=CWD msg=audit(1.5:9): cwd=\"/root\""));
+        assertEquals("CWD", tokenizer.getType());
+        assertEquals("9", tokenizer.getEventId());
+    }
+
+    @Test
+    public void malformedHeader() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        assertFalse(tokenizer.parseHeader("arch=c000003e syscall=2"));
+        assertFalse(tokenizer.parseHeader("type=SYSCALL msg=audit(abc:1): pid=1"));
+        assertFalse(tokenizer.parseHeader("type=SYSCALL msg=audit(1.0:): pid=1"));
+        assertFalse(tokenizer.parseHeader("type=SYSCALL msg=audit(1.0:2) pid=1"));
+    }
+
+    @Test
+    public void typeEndsAtLastMessageStart() {
+        // the record type is greedy in the pattern this tokenizer replaces
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        assertTrue(tokenizer.parseHeader("type=A msg=audit(1.0:1): x msg=audit(2.0:2): pid=5"));
+        assertEquals("A msg=audit(1.0:1): x", tokenizer.getType());
+        assertEquals("2.0", tokenizer.getTime());
+        assertEquals("2", tokenizer.getEventId());
+        assertEquals("5", readPairs(tokenizer).get("pid"));
+    }
+
+    @Test
+    public void keyValuePairs() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        assertTrue(tokenizer.parseHeader(SYSCALL_RECORD));
+        Map<String, String> pairs = readPairs(tokenizer);
+        assertEquals(14, pairs.size());
+        assertEquals("c000003e", pairs.get("arch"));
+        assertEquals("2", pairs.get("syscall"));
+        assertEquals("7ffd1", pairs.get("a0"));
+        assertEquals("101", pairs.get("pid"));
+        assertEquals("cat", pairs.get("comm"));
+        assertEquals("/bin/cat", pairs.get("exe"));
+        assertEquals("(null)", pairs.get("key"));
+    }
+
+    @Test
+    public void quotedAndHexValues() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        assertTrue(tokenizer.parseHeader("type=PATH msg=audit(1.0:7): item=0 name=\"/tmp/a b\" mode=0100644 nametype=NORMAL"));
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.isKey("item"));
+        assertFalse(tokenizer.isValueQuoted());
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.isKey("name"));
+        assertEquals("/tmp/a b", tokenizer.getValue());
+        assertTrue(tokenizer.isValueQuoted());
+        assertTrue(tokenizer.next());
+        assertEquals("0100644", tokenizer.getValue());
+
+        assertTrue(tokenizer.parseHeader("type=CWD msg=audit(1.0:7): cwd=2F746D70"));
+        assertTrue(tokenizer.next());
+        assertFalse(tokenizer.isValueQuoted());
+        assertEquals("/tmp", AuditRecordTokenizer.decodeHex(tokenizer.getValue()));
+    }
+
+    @Test
+    public void unterminatedQuote() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        tokenizer.reset("comm=\"abc def", 0);
+        assertTrue(tokenizer.next());
+        assertEquals("comm", tokenizer.getKey());
+        assertEquals("abc", tokenizer.getValue());
+        assertTrue(tokenizer.isValueQuoted());
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    public void skipsKeysWithoutValues() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        tokenizer.reset("a= b=1 :c=2 d", 0);
+        Map<String, String> pairs = readPairs(tokenizer);
+        assertEquals(2, pairs.size());
+        assertEquals("1", pairs.get("b"));
+        assertEquals("2", pairs.get("c"));
+    }
+
+    @Test
+    public void trimmedValue() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        tokenizer.reset("name=\" x \"", 0);
+        assertTrue(tokenizer.next());
+        assertEquals(" x ", tokenizer.getValue());
+        assertEquals("x", tokenizer.getTrimmedValue());
+    }
+
+    @Test
+    public void keysAreShared() {
+        AuditRecordTokenizer tokenizer = new AuditRecordTokenizer();
+        tokenizer.reset("pid=1", 0);
+        assertTrue(tokenizer.next());
+        String key = tokenizer.getKey();
+        tokenizer.reset("x=1 pid=2", 0);
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.next());
+        assertSame(key, tokenizer.getKey());
+        assertEquals("2", tokenizer.getValue());
+    }
+
+    @Test
+    public void units() {
+        String line = "type=UBSI_DEP msg=ubsi(1.0:2): dep=(pid=10 thread_time=1.500 unitid=3 iteration=4 time=5.250 count=6), "
+                + "(pid=x thread_time=1.0 unitid=1 iteration=1 time=1.0 count=1) "
+                + "unit=(pid=11 thread_time=2.000 unitid=7 iteration=8 time=9.000 count=1)";
+        String[] values = new String[6];
+        int index = AuditRecordTokenizer.findUnit(line, 0, values);
+        assertTrue(index > 0);
+        assertArrayEquals(new String[]{"10", "1.500", "3", "4", "5.250", "6"}, values);
+        // the malformed unit in between is skipped
+        index = AuditRecordTokenizer.findUnit(line, index, values);
+        assertTrue(index > 0);
+        assertArrayEquals(new String[]{"11", "2.000", "7", "8", "9.000", "1"}, values);
+        assertEquals(-1, AuditRecordTokenizer.findUnit(line, index, values));
+    }
+
+    @Test
+    public void decodeHex() {
+        assertEquals("ls", AuditRecordTokenizer.decodeHex("6C73"));
+        // stops at the first null character
+        assertEquals("ab", AuditRecordTokenizer.decodeHex("616200FF"));
+        assertEquals("\u00e9", AuditRecordTokenizer.decodeHex("C3A9"));
+        assertEquals(null, AuditRecordTokenizer.decodeHex(null));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void decodeInvalidHex() {
+        AuditRecordTokenizer.decodeHex("6G");
+    }
+}
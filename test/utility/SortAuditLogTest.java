@@ -0,0 +1,122 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+
+package utility;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spade.utility.SortAuditLog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * This class is used to test the external merge sort of audit logs by spade.utility.SortAuditLog
+ */
+public class SortAuditLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String record(String type, String time, long eventId, String data) {
+        return "type=" + type + " msg=audit(" + time + ":" + eventId + "): " + data;
+    }
+
+    private List<String> sort(List<String> lines, long memoryBudgetBytes, int threads, boolean compressRuns) throws Exception {
+        File input = folder.newFile();
+        File output = folder.newFile();
+        Files.write(input.toPath(), lines, Charset.defaultCharset());
+        new SortAuditLog(folder.newFolder(), memoryBudgetBytes, threads, compressRuns).sort(input, output);
+        assertEquals(0, folder.getRoot().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.list().length > 0;
+            }
+        }).length);
+        return Files.readAllLines(output.toPath(), Charset.defaultCharset());
+    }
+
+    @Test
+    public void sortsByTimeAndEventId() throws Exception {
+        List<String> lines = Arrays.asList(
+                record("SYSCALL", "20.5", 3, "pid=3"),
+                record("SYSCALL", "10.25", 9, "pid=1"),
+                record("SYSCALL", "10.250", 2, "pid=0"),
+                record("SYSCALL", "9.999", 100, "pid=2"));
+        List<String> sorted = sort(lines, 1 << 20, 1, false);
+        assertEquals(Arrays.asList(lines.get(3), lines.get(2), lines.get(1), lines.get(0)), sorted);
+    }
+
+    @Test
+    public void stableAcrossRuns() throws Exception {
+        // a tiny budget writes a run per record so the order of an event comes from the merge
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(1);
+        List<Integer> events = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            events.add(i);
+        }
+        Collections.shuffle(events, random);
+        for (int event : events) {
+            lines.add(record("SYSCALL", (event / 10) + ".000", event, "n=0"));
+            lines.add(record("PATH", (event / 10) + ".000", event, "n=1 name=\"/tmp/a b\""));
+            lines.add("malformed record of " + event);
+        }
+        for (boolean compressRuns : new boolean[]{false, true}) {
+            List<String> sorted = sort(lines, 1, 3, compressRuns);
+            assertEquals(lines.size(), sorted.size());
+            for (int event = 0; event < events.size(); event++) {
+                assertEquals(record("SYSCALL", (event / 10) + ".000", event, "n=0"), sorted.get(3 * event));
+                assertEquals(record("PATH", (event / 10) + ".000", event, "n=1 name=\"/tmp/a b\""), sorted.get(3 * event + 1));
+                assertEquals("malformed record of " + event, sorted.get(3 * event + 2));
+            }
+        }
+    }
+
+    @Test
+    public void dropsDuplicates() throws Exception {
+        String syscall = record("SYSCALL", "1.0", 1, "pid=1");
+        String path = record("PATH", "1.0", 1, "item=0");
+        String other = record("SYSCALL", "1.0", 2, "pid=1");
+        // the log concatenated with an overlapping copy of itself
+        List<String> lines = Arrays.asList(syscall, path, other, syscall, path, other);
+        for (long memoryBudgetBytes : new long[]{1, 1 << 20}) {
+            assertEquals(Arrays.asList(syscall, path, other), sort(lines, memoryBudgetBytes, 2, true));
+        }
+        // equal data with a different key is not a duplicate
+        String later = record("SYSCALL", "2.0", 1, "pid=1");
+        assertEquals(Arrays.asList(syscall, later), sort(Arrays.asList(later, syscall), 1 << 20, 1, false));
+    }
+
+    @Test
+    public void emptyLog() throws Exception {
+        assertEquals(Collections.<String>emptyList(), sort(Collections.<String>emptyList(), 1 << 20, 2, true));
+    }
+}